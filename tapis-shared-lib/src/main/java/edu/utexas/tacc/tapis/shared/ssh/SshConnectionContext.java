@@ -237,6 +237,26 @@ final class SshConnectionContext {
         return System.currentTimeMillis() - idleSinceTime;
     }
 
+    /**
+     * Actively probe the underlying connection.  This method is intentionally not synchronized since
+     * it may wait up to the timeout for the server to reply.
+     *
+     * @param timeoutMs maximum time to wait for the server's reply
+     * @return true if the server replied in time
+     */
+    protected boolean isHealthy(long timeoutMs) {
+        boolean healthy = sshConnection.isAlive(timeoutMs);
+        if (!healthy) {
+            String msg = MsgUtils.getMsg("SSH_POOL_CONNECTION_HEALTH_CHECK_FAILED");
+            log.debug(msg);
+        }
+        return healthy;
+    }
+
+    protected SSHConnection getSshConnection() {
+        return sshConnection;
+    }
+
     protected synchronized void expireConnection() {
         this.expired = true;
         String msg = MsgUtils.getMsg("SSH_POOL_CONNECTION_EXPIRATION_REQUESTED");
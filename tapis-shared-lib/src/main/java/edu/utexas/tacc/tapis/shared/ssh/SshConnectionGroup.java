@@ -3,10 +3,12 @@ package edu.utexas.tacc.tapis.shared.ssh;
 import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
 import edu.utexas.tacc.tapis.shared.exceptions.recoverable.TapisRecoverableException;
 import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.shared.ssh.apache.SSHAlgorithms;
 import edu.utexas.tacc.tapis.shared.ssh.apache.SSHConnection;
 import edu.utexas.tacc.tapis.shared.ssh.apache.SSHExecChannel;
 import edu.utexas.tacc.tapis.shared.ssh.apache.SSHSession;
 import edu.utexas.tacc.tapis.shared.ssh.apache.SSHSftpClient;
+import edu.utexas.tacc.tapis.shared.ssh.apache.SSHTimeouts;
 import edu.utexas.tacc.tapis.systems.client.gen.model.AuthnEnum;
 import edu.utexas.tacc.tapis.systems.client.gen.model.Credential;
 import org.apache.commons.lang3.StringUtils;
@@ -31,6 +33,15 @@ final class SshConnectionGroup {
     private List<SshConnectionContext> connectionContextList;
     private SshSessionPoolPolicy poolPolicy;
     private long lastTouched;
+
+    // The connection information used to create the most recent connection in this group.  This is used
+    // to open replacement connections when unhealthy connections are evicted.  Credentials are deliberately
+    // not kept here, replacements look them up through the pool policy's credential provider.
+    private ConnectionParms lastConnectionParms;
+
+    private record ConnectionParms(String tenant, String host, Integer port, String effectiveUserId,
+                                   AuthnEnum authnMethod) {}
+
     protected SshConnectionGroup(SshSessionPoolPolicy poolPolicy) {
         connectionContextList = new ArrayList<>();
         this.poolPolicy = poolPolicy;
@@ -90,6 +101,113 @@ final class SshConnectionGroup {
         }
     }
 
+    /**
+     * Returns the idle connections in the group, which are the ones that can be health checked.  Idle
+     * connections are those that are not expired and have no active sessions.  The connections are probed
+     * by the caller without holding the group lock so that borrowers are not blocked while we wait on
+     * unresponsive hosts.
+     *
+     * @return the idle connections
+     */
+    protected List<SshConnectionContext> getIdleConnections() {
+        List<SshConnectionContext> idleContexts = new ArrayList<>();
+        synchronized (connectionContextList) {
+            for (SshConnectionContext connectionContext : connectionContextList) {
+                if ((!connectionContext.isExpired()) && (connectionContext.getSessionCount() == 0)) {
+                    idleContexts.add(connectionContext);
+                }
+            }
+        }
+        return idleContexts;
+    }
+
+    /**
+     * Evict connections that failed their health check.  If a session was reserved on a connection while
+     * it was being probed, the connection is expired rather than closed, and it will be removed once its
+     * sessions are released.
+     *
+     * @param unhealthyContexts connections from this group that didn't respond to their health check
+     * @param timeoutMs the health check timeout, for logging
+     * @return the number of connections evicted
+     */
+    protected int evictConnections(List<SshConnectionContext> unhealthyContexts, long timeoutMs) {
+        if (unhealthyContexts.isEmpty()) {
+            return 0;
+        }
+
+        synchronized (connectionContextList) {
+            for (SshConnectionContext connectionContext : unhealthyContexts) {
+                SSHConnection conn = connectionContext.getSshConnection();
+                String msg = MsgUtils.getMsg("SSH_POOL_UNHEALTHY_CONNECTION_EVICTED", conn.getHost(), conn.getPort(),
+                        conn.getUsername(), conn.getAuthMethod(), timeoutMs);
+                log.warn(msg);
+                connectionContext.expireConnection();
+            }
+            // close and remove the expired connections that have no sessions.
+            cleanup();
+        }
+
+        return unhealthyContexts.size();
+    }
+
+    /**
+     * Open up to the requested number of new connections using the connection information of the most
+     * recently created connection in this group.  This is used to replace connections evicted by a health
+     * check so that the next borrower doesn't pay the connection setup cost.  The credential is looked up
+     * through the provider each time since the group doesn't keep credentials.  New connections are only
+     * added if the group is still below its maximum number of connections.
+     *
+     * @param count the number of connections to open
+     * @param credentialProvider looks up the credential for the connections
+     * @return the number of connections actually opened
+     */
+    protected int replaceConnections(int count, SshCredentialProvider credentialProvider) {
+        ConnectionParms parms;
+        synchronized (connectionContextList) {
+            parms = lastConnectionParms;
+        }
+        if (parms == null) {
+            return 0;
+        }
+
+        int replaced = 0;
+        for (int i = 0; i < count; i++) {
+            synchronized (connectionContextList) {
+                if (connectionContextList.size() >= poolPolicy.getMaxConnectionsPerKey()) {
+                    break;
+                }
+            }
+
+            // Connecting can take a while, so don't hold the lock while we do it.
+            SSHConnection sshConnection;
+            try {
+                Credential credential = credentialProvider.getCredential(parms.tenant(), parms.host(), parms.port(),
+                        parms.effectiveUserId(), parms.authnMethod());
+                sshConnection = createNewConnection(parms.tenant(), parms.host(), parms.port(),
+                        parms.effectiveUserId(), parms.authnMethod(), credential);
+            } catch (Exception ex) {
+                String msg = MsgUtils.getMsg("SSH_POOL_UNHEALTHY_CONNECTION_REPLACE_ERROR", parms.host(), parms.port(),
+                        parms.effectiveUserId(), parms.authnMethod(), ex.getMessage());
+                log.warn(msg, ex);
+                break;
+            }
+
+            synchronized (connectionContextList) {
+                if (connectionContextList.size() >= poolPolicy.getMaxConnectionsPerKey()) {
+                    sshConnection.close();
+                    break;
+                }
+                connectionContextList.add(new SshConnectionContext(sshConnection, poolPolicy));
+            }
+            String msg = MsgUtils.getMsg("SSH_POOL_UNHEALTHY_CONNECTION_REPLACED", parms.host(), parms.port(),
+                    parms.effectiveUserId(), parms.authnMethod());
+            log.info(msg);
+            replaced++;
+        }
+
+        return replaced;
+    }
+
     protected boolean isReadyForCleanup() {
         // if this group is recently touched, dont report it as empty.  This will keep us
         // from cleaning it up while we are trying to create a connection on it.
@@ -204,6 +322,7 @@ final class SshConnectionGroup {
 
         if ((sessionHolder == null) && (connectionContextList.size() < poolPolicy.getMaxConnectionsPerKey())) {
             SSHConnection sshConnection = createNewConnection(tenant, host, port, effectiveUserId, authnMethod, credential);
+            lastConnectionParms = new ConnectionParms(tenant, host, port, effectiveUserId, authnMethod);
             SshConnectionContext sshConnectionContext = new SshConnectionContext(sshConnection, poolPolicy);
             connectionContextList.add(sshConnectionContext);
             sessionHolder = reserveSession(sshConnectionContext, clazz);
@@ -256,16 +375,26 @@ final class SshConnectionGroup {
             throw new TapisException(msg);
         }
 
+        // Pooled connections can sit idle for a while, so send keepalives to keep
+        // them from being dropped by firewalls between us and the host.
+        SSHTimeouts timeouts = new SSHTimeouts();
+        if (poolPolicy.getKeepAliveInterval() != null) {
+            timeouts.setKeepAliveMillis(poolPolicy.getKeepAliveInterval().toMillis());
+        }
+
+        // Use any algorithm preferences configured for this host.
+        SSHAlgorithms algorithms = poolPolicy.getAlgorithms(host);
+
         // Connect.
         SSHConnection conn = null;
         try {
             if (authnMethod == AuthnEnum.PASSWORD) {
                 conn = new SSHConnection(host, port,
-                        effectiveUserId, credential.getPassword());
+                        effectiveUserId, credential.getPassword(), timeouts, algorithms);
             } else {
                 conn = new SSHConnection(host, port,
                         effectiveUserId,
-                        credential.getPublicKey(), credential.getPrivateKey());
+                        credential.getPublicKey(), credential.getPrivateKey(), timeouts, algorithms);
             }
         } catch (TapisRecoverableException e) {
             // Handle recoverable exceptions, let non-recoverable ones through.
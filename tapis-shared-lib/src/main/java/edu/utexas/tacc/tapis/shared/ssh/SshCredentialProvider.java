@@ -0,0 +1,21 @@
+package edu.utexas.tacc.tapis.shared.ssh;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.systems.client.gen.model.AuthnEnum;
+import edu.utexas.tacc.tapis.systems.client.gen.model.Credential;
+
+/**
+ * Looks up the credential for a connection when the pool opens a connection on its own, such as when it
+ * replaces a connection evicted by a health check.  The pool never keeps the credentials passed in by
+ * borrowers, so services that want evicted connections replaced must supply a provider that fetches the
+ * credential the same way they do before borrowing a session.
+ */
+@FunctionalInterface
+public interface SshCredentialProvider {
+
+    /**
+     * Returns the credential to use for the connection, or null if none is available.
+     */
+    Credential getCredential(String tenant, String host, Integer port, String effectiveUserId,
+                             AuthnEnum authnMethod) throws TapisException;
+}
@@ -17,12 +17,18 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public final class SshSessionPool {
@@ -43,6 +49,10 @@ public final class SshSessionPool {
 
     private AtomicInteger traceOnCleanupCounter = new AtomicInteger(0);
 
+    // Cumulative counts of connections evicted by health checks and of the connections opened to replace them.
+    private final AtomicLong unhealthyConnectionsEvicted = new AtomicLong(0);
+    private final AtomicLong unhealthyConnectionsReplaced = new AtomicLong(0);
+
     public class PooledSshSession<T extends SSHSession> implements Closeable {
         private final SshConnectionGroup sshConnectionGroup;
         private final SshSessionHolder<T> sessionHolder;
@@ -68,8 +78,7 @@ public final class SshSessionPool {
      * Executor for cleaning up the pool.  Removes expired connections, etc.  Uses a ThreadFactory to ensure
      * we always have daemon threads.
      */
-    private final ScheduledExecutorService poolMaintaanenceExecutor = Executors.newSingleThreadScheduledExecutor(
-        new ThreadFactory() {
+    private static final ThreadFactory daemonThreadFactory = new ThreadFactory() {
 
             @Override
             public Thread newThread(@NotNull Runnable runnable) {
@@ -77,7 +86,25 @@ public final class SshSessionPool {
                 t.setDaemon(true);
                 return t;
             }
-        });
+        };
+    private final ScheduledExecutorService poolMaintaanenceExecutor =
+        Executors.newSingleThreadScheduledExecutor(daemonThreadFactory);
+
+    /**
+     * Executor for health check probes.  Probes wait on the network, so they are run in parallel to keep
+     * unresponsive hosts from stalling the cleanup thread.  The number of threads bounds how many probes
+     * are in flight at once.
+     */
+    private static final int HEALTH_CHECK_THREADS = 8;
+    private final ExecutorService healthCheckExecutor =
+        Executors.newFixedThreadPool(HEALTH_CHECK_THREADS, daemonThreadFactory);
+
+    /**
+     * Executor for opening connections that replace the ones evicted by health checks.  Connecting can take
+     * a while, so this is kept off of the cleanup thread.
+     */
+    private final ExecutorService connectionReplacementExecutor =
+        Executors.newSingleThreadExecutor(daemonThreadFactory);
 
     // SYNCHRONIZATION NOTES:
     // Super Important!!!
@@ -152,7 +179,8 @@ public final class SshSessionPool {
         } finally {
             poolRWLock.readLock().unlock();
         }
-        return new SshSessionPoolStats(groupStatsList);
+        return new SshSessionPoolStats(groupStatsList, unhealthyConnectionsEvicted.get(),
+                unhealthyConnectionsReplaced.get());
     }
 
     public PooledSshSession<SSHExecChannel> borrowExecChannel(String tenant, String host, Integer port, String effectiveUserId,
@@ -260,6 +288,10 @@ public final class SshSessionPool {
             connectionGroup.cleanup();
         }
 
+        if (poolPolicy.isHealthCheckEnabled()) {
+            checkConnectionHealth();
+        }
+
         try {
             if (poolRWLock.writeLock().tryLock(MAX_CLEANUP_LOCK_WAIT_MS, TimeUnit.MILLISECONDS)) {
                 pool.entrySet().removeIf(entry -> {
@@ -291,4 +323,78 @@ public final class SshSessionPool {
         }
     }
 
+    /**
+     * Probe the idle connections in every group and evict the ones that are no longer responsive.  The
+     * probes run in parallel on the health check executor, and the whole pass is capped at twice the
+     * health check timeout so that a large number of unresponsive hosts can't stall the cleanup thread.
+     * Probes that don't finish within the pass are cancelled and the connections are checked again on the
+     * next pass.  Replacement connections (if enabled by the policy) are opened on their own executor.
+     */
+    private void checkConnectionHealth() {
+        List<SshConnectionGroup> connectionGroups;
+        poolRWLock.readLock().lock();
+        try {
+            connectionGroups = new ArrayList<>(pool.values());
+        } finally {
+            poolRWLock.readLock().unlock();
+        }
+
+        long timeoutMs = poolPolicy.getHealthCheckTimeout().toMillis();
+        List<SshConnectionGroup> probedGroups = new ArrayList<>();
+        List<SshConnectionContext> probedContexts = new ArrayList<>();
+        List<Callable<Boolean>> probes = new ArrayList<>();
+        for (SshConnectionGroup connectionGroup : connectionGroups) {
+            for (SshConnectionContext connectionContext : connectionGroup.getIdleConnections()) {
+                probedGroups.add(connectionGroup);
+                probedContexts.add(connectionContext);
+                probes.add(() -> connectionContext.isHealthy(timeoutMs));
+            }
+        }
+        if (probes.isEmpty()) {
+            return;
+        }
+
+        List<Future<Boolean>> results;
+        try {
+            results = healthCheckExecutor.invokeAll(probes, 2 * timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        Map<SshConnectionGroup, List<SshConnectionContext>> unhealthyContexts = new HashMap<>();
+        for (int i = 0; i < results.size(); i++) {
+            if (isUnhealthy(results.get(i))) {
+                unhealthyContexts.computeIfAbsent(probedGroups.get(i), group -> new ArrayList<>())
+                        .add(probedContexts.get(i));
+            }
+        }
+
+        SshCredentialProvider credentialProvider = poolPolicy.getCredentialProvider();
+        for (Map.Entry<SshConnectionGroup, List<SshConnectionContext>> entry : unhealthyContexts.entrySet()) {
+            SshConnectionGroup connectionGroup = entry.getKey();
+            int evicted = connectionGroup.evictConnections(entry.getValue(), timeoutMs);
+            unhealthyConnectionsEvicted.addAndGet(evicted);
+            if ((evicted > 0) && poolPolicy.isReplaceUnhealthyConnections() && (credentialProvider != null)) {
+                connectionReplacementExecutor.execute(() -> unhealthyConnectionsReplaced.addAndGet(
+                        connectionGroup.replaceConnections(evicted, credentialProvider)));
+            }
+        }
+    }
+
+    /**
+     * A probe that was cancelled because the pass ran out of time says nothing about the connection, so
+     * only probes that completed with a negative result count as unhealthy.
+     */
+    private static boolean isUnhealthy(Future<Boolean> result) {
+        try {
+            return !result.get();
+        } catch (CancellationException | ExecutionException ex) {
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
 }
@@ -1,6 +1,10 @@
 package edu.utexas.tacc.tapis.shared.ssh;
 
+import edu.utexas.tacc.tapis.shared.ssh.apache.SSHAlgorithms;
+
 import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class SshSessionPoolPolicy {
 
@@ -52,6 +56,35 @@ public final class SshSessionPoolPolicy {
      */
     private Duration DEFAULT_CLEANUP_INTERVAL = Duration.ofSeconds(30);
     private int DEFAULT_TRACE_DURING_CLEANUP_FREQUENCY = 20;
+
+    /**
+     * How often ssh-level keepalives are sent on each pooled connection.  Keepalives keep firewalls and NAT
+     * devices between us and the remote host from silently dropping connections that sit idle in the pool.
+     * A zero duration disables keepalives.
+     */
+    private Duration DEFAULT_KEEPALIVE_INTERVAL = Duration.ofSeconds(60);
+
+    /**
+     * When enabled, each cleanup cycle actively probes idle connections (connections with no active sessions)
+     * by sending a keepalive request and waiting for the server's reply.  Connections that don't reply within
+     * the health check timeout are evicted from the pool so that borrowers don't receive a dead connection.
+     */
+    private boolean DEFAULT_HEALTH_CHECK_ENABLED = true;
+    private Duration DEFAULT_HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * When enabled, a replacement connection is opened in the background for each connection evicted by a
+     * health check, so that the next borrower doesn't pay the connection setup cost.  Replacement also
+     * requires a credential provider, since the pool doesn't keep the credentials borrowers pass in.
+     */
+    private boolean DEFAULT_REPLACE_UNHEALTHY_CONNECTIONS = false;
+
+    /**
+     * Preferred ciphers, MACs and compression for new connections.  Null leaves the ssh library's default
+     * ordering in place.  Host specific preferences take precedence over these, which lets operators pick
+     * the fastest algorithms each site accepts for bulk transfers.
+     */
+    private SSHAlgorithms DEFAULT_ALGORITHMS = null;
     private Duration cleanupInterval;
     private int maxConnectionsPerKey;
     private int maxSessionsPerConnection;
@@ -61,6 +94,13 @@ public final class SshSessionPoolPolicy {
     private Duration maxConnectionDuration;
     private Duration maxConnectionIdleTime;
     private Duration maxSessionLifetime;
+    private Duration keepAliveInterval;
+    private boolean healthCheckEnabled;
+    private Duration healthCheckTimeout;
+    private boolean replaceUnhealthyConnections;
+    private SshCredentialProvider credentialProvider;
+    private SSHAlgorithms algorithms;
+    private final Map<String, SSHAlgorithms> hostAlgorithms = new ConcurrentHashMap<>();
 
     protected SshSessionPoolPolicy() {
         cleanupInterval = DEFAULT_CLEANUP_INTERVAL;
@@ -70,6 +110,11 @@ public final class SshSessionPoolPolicy {
         maxConnectionIdleTime = DEFAULT_MAX_CONNECTION_IDLE_TIME;
         traceDuringCleanupFrequency = DEFAULT_TRACE_DURING_CLEANUP_FREQUENCY;
         maxSessionLifetime = DEFAULT_MAX_SESSION_LIFETIME;
+        keepAliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+        healthCheckEnabled = DEFAULT_HEALTH_CHECK_ENABLED;
+        healthCheckTimeout = DEFAULT_HEALTH_CHECK_TIMEOUT;
+        replaceUnhealthyConnections = DEFAULT_REPLACE_UNHEALTHY_CONNECTIONS;
+        algorithms = DEFAULT_ALGORITHMS;
     }
 
     public int getMaxConnectionsPerKey() {
@@ -153,6 +198,96 @@ public final class SshSessionPoolPolicy {
         return traceDuringCleanupFrequency;
     }
 
+    public Duration getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * Sets how often ssh keepalives are sent on pooled connections.  A zero duration disables keepalives.
+     */
+    public SshSessionPoolPolicy setKeepAliveInterval(Duration keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+        return this;
+    }
+
+    public boolean isHealthCheckEnabled() {
+        return healthCheckEnabled;
+    }
+
+    /**
+     * Enables or disables probing of idle connections during cleanup.
+     */
+    public SshSessionPoolPolicy setHealthCheckEnabled(boolean healthCheckEnabled) {
+        this.healthCheckEnabled = healthCheckEnabled;
+        return this;
+    }
+
+    public Duration getHealthCheckTimeout() {
+        return healthCheckTimeout;
+    }
+
+    /**
+     * Sets how long a health check waits for the server to reply before the connection is evicted.
+     */
+    public SshSessionPoolPolicy setHealthCheckTimeout(Duration healthCheckTimeout) {
+        this.healthCheckTimeout = healthCheckTimeout;
+        return this;
+    }
+
+    public boolean isReplaceUnhealthyConnections() {
+        return replaceUnhealthyConnections;
+    }
+
+    /**
+     * When true, connections evicted by a health check are replaced with new connections.  Replacement only
+     * happens when a credential provider is also set.
+     */
+    public SshSessionPoolPolicy setReplaceUnhealthyConnections(boolean replaceUnhealthyConnections) {
+        this.replaceUnhealthyConnections = replaceUnhealthyConnections;
+        return this;
+    }
+
+    public SshCredentialProvider getCredentialProvider() {
+        return credentialProvider;
+    }
+
+    /**
+     * Sets how the pool looks up credentials for connections it opens on its own.  May be null.
+     */
+    public SshSessionPoolPolicy setCredentialProvider(SshCredentialProvider credentialProvider) {
+        this.credentialProvider = credentialProvider;
+        return this;
+    }
+
+    /**
+     * Returns the algorithm preferences for the host, falling back to the pool wide preferences.  May be null.
+     */
+    public SSHAlgorithms getAlgorithms(String host) {
+        SSHAlgorithms hostSpecific = (host == null) ? null : hostAlgorithms.get(host);
+        return (hostSpecific != null) ? hostSpecific : algorithms;
+    }
+
+    /**
+     * Sets the preferred ciphers, MACs and compression for connections to hosts without host specific preferences.
+     */
+    public SshSessionPoolPolicy setAlgorithms(SSHAlgorithms algorithms) {
+        this.algorithms = algorithms;
+        return this;
+    }
+
+    /**
+     * Sets the preferred ciphers, MACs and compression for connections to a specific host.  Passing null
+     * removes the host specific preferences.
+     */
+    public SshSessionPoolPolicy setHostAlgorithms(String host, SSHAlgorithms algorithms) {
+        if (algorithms == null) {
+            hostAlgorithms.remove(host);
+        } else {
+            hostAlgorithms.put(host, algorithms);
+        }
+        return this;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -178,6 +313,27 @@ public final class SshSessionPoolPolicy {
         builder.append("Trace During Cleanup Frequency: ");
         builder.append(traceDuringCleanupFrequency);
         builder.append(System.lineSeparator());
+        builder.append("Keepalive Interval: ");
+        builder.append(keepAliveInterval);
+        builder.append(System.lineSeparator());
+        builder.append("Health Check Enabled: ");
+        builder.append(healthCheckEnabled);
+        builder.append(System.lineSeparator());
+        builder.append("Health Check Timeout: ");
+        builder.append(healthCheckTimeout);
+        builder.append(System.lineSeparator());
+        builder.append("Replace Unhealthy Connections: ");
+        builder.append(replaceUnhealthyConnections);
+        builder.append(System.lineSeparator());
+        builder.append("Credential Provider: ");
+        builder.append(credentialProvider != null);
+        builder.append(System.lineSeparator());
+        builder.append("Algorithms: ");
+        builder.append(algorithms);
+        builder.append(System.lineSeparator());
+        builder.append("Host Algorithms: ");
+        builder.append(hostAlgorithms);
+        builder.append(System.lineSeparator());
         return builder.toString();
     }
 }
@@ -19,7 +19,19 @@ public final class SshSessionPoolStats {
     private int sessionsOnExpiredConnections = 0;
     private int sessionsOnParkedSftpConnections = 0;
 
+    // Connections evicted because they failed a health check, and connections opened to replace them.
+    // These are cumulative over the life of the pool.
+    private long unhealthyConnectionsEvicted = 0;
+    private long unhealthyConnectionsReplaced = 0;
+
     protected SshSessionPoolStats(List<ConnectionGroupStats> groupStatsList) {
+        this(groupStatsList, 0, 0);
+    }
+
+    protected SshSessionPoolStats(List<ConnectionGroupStats> groupStatsList, long unhealthyConnectionsEvicted,
+                                  long unhealthyConnectionsReplaced) {
+        this.unhealthyConnectionsEvicted = unhealthyConnectionsEvicted;
+        this.unhealthyConnectionsReplaced = unhealthyConnectionsReplaced;
         for(ConnectionGroupStats groupStats : groupStatsList) {
             this.connectionCount += groupStats.getConnectionCount();
             this.activeConnectionCount += groupStats.getActiveConnectionCount();
@@ -55,6 +67,14 @@ public final class SshSessionPoolStats {
         return sessionsOnActiveConnections;
     }
 
+    public long getUnhealthyConnectionsEvicted() {
+        return unhealthyConnectionsEvicted;
+    }
+
+    public long getUnhealthyConnectionsReplaced() {
+        return unhealthyConnectionsReplaced;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -79,6 +99,12 @@ public final class SshSessionPoolStats {
         builder.append("Parked Sftp Connections: ");
         builder.append(sessionsOnParkedSftpConnections);
         builder.append(System.lineSeparator());
+        builder.append("Unhealthy Connections Evicted: ");
+        builder.append(unhealthyConnectionsEvicted);
+        builder.append(System.lineSeparator());
+        builder.append("Unhealthy Connections Replaced: ");
+        builder.append(unhealthyConnectionsReplaced);
+        builder.append(System.lineSeparator());
         return builder.toString();
     }
 }
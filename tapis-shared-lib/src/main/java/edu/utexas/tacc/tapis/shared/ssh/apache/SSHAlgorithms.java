@@ -0,0 +1,120 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.cipher.BuiltinCiphers;
+import org.apache.sshd.common.compression.BuiltinCompressions;
+import org.apache.sshd.common.config.FactoriesListParseResult;
+import org.apache.sshd.common.mac.BuiltinMacs;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+
+/** Preferred ciphers, MACs and compression algorithms for an SSH connection.
+ *
+ * Each list is in order of preference and uses the standard ssh algorithm names,
+ * such as "aes128-gcm@openssh.com", "chacha20-poly1305@openssh.com",
+ * "hmac-sha2-256-etm@openssh.com" or "zlib@openssh.com".  Preferred algorithms
+ * are proposed ahead of the client's defaults, and the defaults are still proposed
+ * after them so that hosts that don't accept a preferred algorithm can still
+ * negotiate a connection.  An empty list leaves the default ordering in place.
+ *
+ * Note that the client proposes no compression by default, so compression is only
+ * used when a compression algorithm is explicitly preferred.
+ */
+public class SSHAlgorithms
+{
+    // Preferred algorithms in order.
+    private List<String> _ciphers = Collections.emptyList();
+    private List<String> _macs = Collections.emptyList();
+    private List<String> _compressions = Collections.emptyList();
+
+    public List<String> getCiphers() {
+        return _ciphers;
+    }
+    public SSHAlgorithms setCiphers(String... ciphers) {
+        this._ciphers = Arrays.asList(ciphers);
+        return this;
+    }
+    public List<String> getMacs() {
+        return _macs;
+    }
+    public SSHAlgorithms setMacs(String... macs) {
+        this._macs = Arrays.asList(macs);
+        return this;
+    }
+    public List<String> getCompressions() {
+        return _compressions;
+    }
+    public SSHAlgorithms setCompressions(String... compressions) {
+        this._compressions = Arrays.asList(compressions);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "ciphers=" + _ciphers + ", macs=" + _macs + ", compressions=" + _compressions;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* configure:                                                             */
+    /* ---------------------------------------------------------------------- */
+    /** Reorder the client's algorithm factories so that the preferred algorithms
+     * are proposed first.  This must be called before the client is started.
+     *
+     * @param client an unstarted client
+     * @throws TapisException if an algorithm name is not supported
+     */
+    void configure(SshClient client) throws TapisException
+    {
+        if (!_ciphers.isEmpty())
+            client.setCipherFactories(preferredFirst("cipher",
+                BuiltinCiphers.parseCiphersList(_ciphers), client.getCipherFactories()));
+        if (!_macs.isEmpty())
+            client.setMacFactories(preferredFirst("mac",
+                BuiltinMacs.parseMacsList(_macs), client.getMacFactories()));
+        if (!_compressions.isEmpty())
+            client.setCompressionFactories(preferredFirst("compression",
+                BuiltinCompressions.parseCompressionsList(_compressions),
+                client.getCompressionFactories()));
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* preferredFirst:                                                        */
+    /* ---------------------------------------------------------------------- */
+    private static <T, F extends NamedFactory<T>> List<NamedFactory<T>> preferredFirst(
+            String algorithmType, FactoriesListParseResult<T, F> parsed, List<NamedFactory<T>> defaults)
+     throws TapisException
+    {
+        // Unsupported names are configuration errors.
+        if (!parsed.getUnsupportedFactories().isEmpty()) {
+            String msg = MsgUtils.getMsg("TAPIS_SSH_UNSUPPORTED_ALGORITHM", algorithmType,
+                                         parsed.getUnsupportedFactories());
+            throw new TapisException(msg);
+        }
+
+        // Preferred factories that are supported by this jvm, followed by the remaining defaults.
+        var factories = new ArrayList<NamedFactory<T>>();
+        for (F factory : parsed.getParsedFactories())
+            if (!(factory instanceof BuiltinCiphers c) || c.isSupported()) factories.add(factory);
+        if (defaults != null)
+            for (NamedFactory<T> factory : defaults)
+                if (!containsName(factories, factory.getName())) factories.add(factory);
+        return factories;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* containsName:                                                          */
+    /* ---------------------------------------------------------------------- */
+    private static <T> boolean containsName(List<NamedFactory<T>> factories, String name)
+    {
+        for (NamedFactory<T> factory : factories)
+            if (factory.getName().equals(name)) return true;
+        return false;
+    }
+}
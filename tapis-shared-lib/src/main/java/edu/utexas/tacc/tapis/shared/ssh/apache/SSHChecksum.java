@@ -0,0 +1,345 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sshd.sftp.client.extensions.CheckFileNameExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.shared.utils.TapisUtils;
+
+/** Verify transferred files without moving their bytes across the network a
+ * second time.  The remote checksum is computed on the remote host and compared
+ * with a hash of the local bytes computed while they were being transferred.
+ *
+ * The remote checksum is obtained from the first of the configured sources
+ * that works:
+ *
+ *  1. SFTP_CHECK_FILE - the sftp check-file-name extension, when the server supports it
+ *  2. REMOTE_COMMAND  - sha256sum/md5sum (or shasum/md5 on BSD-like hosts) via an exec channel
+ *  3. READ_BACK       - read the file back over sftp and hash it locally
+ *
+ * Only the first two are used by default.  READ_BACK is a fallback for hosts
+ * without the extension or the tools that moves the bytes again, so callers
+ * must opt in to it with setSources(), and its use is logged as a warning.
+ *
+ * The uploadAndVerify() and downloadAndVerify() methods transfer over sftp while
+ * hashing.  Callers that transfer with SSHScpClient can wrap their streams with
+ * digestingStream() and pass the resulting hex digest to verify().
+ */
+public class SSHChecksum
+{
+    /* ********************************************************************** */
+    /*                               Constants                                */
+    /* ********************************************************************** */
+    // Tracing.
+    private static final Logger _log = LoggerFactory.getLogger(SSHChecksum.class);
+
+    // Remote command exit code when the command isn't found.
+    private static final int COMMAND_NOT_FOUND = 127;
+
+    // Transfer buffer size.
+    private static final int BUFSIZE = 64 * 1024;
+
+    // Sources that don't move the file's bytes again.
+    public static final List<Source> DEFAULT_SOURCES = List.of(Source.SFTP_CHECK_FILE, Source.REMOTE_COMMAND);
+
+    /* ********************************************************************** */
+    /*                                 Enums                                  */
+    /* ********************************************************************** */
+    /** Supported hash algorithms with their java, command line and sftp names. */
+    public enum Algorithm
+    {
+        SHA256("SHA-256", "sha256", List.of("sha256sum", "shasum -a 256")),
+        MD5("MD5", "md5", List.of("md5sum", "md5 -r"));
+
+        private final String       _javaName;
+        private final String       _sftpName;
+        private final List<String> _commands;
+
+        Algorithm(String javaName, String sftpName, List<String> commands)
+        {_javaName = javaName; _sftpName = sftpName; _commands = commands;}
+
+        public String getJavaName() {return _javaName;}
+        public String getSftpName() {return _sftpName;}
+        public List<String> getCommands() {return _commands;}
+    }
+
+    /** Where a remote checksum came from. */
+    public enum Source {SFTP_CHECK_FILE, REMOTE_COMMAND, READ_BACK}
+
+    /** A hex encoded checksum and the source that produced it. */
+    public record Result(String checksum, Source source) {}
+
+    /* ********************************************************************** */
+    /*                                Fields                                  */
+    /* ********************************************************************** */
+    private final SSHConnection _sshConnection;
+    private final Algorithm     _algorithm;
+    private List<Source>        _sources = DEFAULT_SOURCES;
+
+    /* ********************************************************************** */
+    /*                            Constructors                                */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* constructor:                                                           */
+    /* ---------------------------------------------------------------------- */
+    public SSHChecksum(SSHConnection sshConnection, Algorithm algorithm)
+    {
+        if (sshConnection == null) {
+            String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "SSHChecksum", "sshConnection");
+            throw new IllegalArgumentException(msg);
+        }
+        if (algorithm == null) {
+            String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "SSHChecksum", "algorithm");
+            throw new IllegalArgumentException(msg);
+        }
+        _sshConnection = sshConnection;
+        _algorithm = algorithm;
+    }
+
+    /* ********************************************************************** */
+    /*                            Public Methods                              */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* remoteChecksum:                                                        */
+    /* ---------------------------------------------------------------------- */
+    /** Compute the checksum of a remote file using the first source that works.
+     *
+     * @param remotePath the remote file's path
+     * @return the hex encoded checksum and its source
+     * @throws TapisException if no source could compute the checksum
+     */
+    public Result remoteChecksum(String remotePath) throws TapisException
+    {
+        Exception lastException = null;
+        for (Source source : _sources) {
+            try {
+                String checksum = switch (source) {
+                    case SFTP_CHECK_FILE -> checkFileChecksum(remotePath);
+                    case REMOTE_COMMAND  -> commandChecksum(remotePath);
+                    case READ_BACK       -> readBackChecksum(remotePath);
+                };
+                if (checksum == null) continue;
+                if (source == Source.READ_BACK)
+                    _log.warn(MsgUtils.getMsg("TAPIS_SSH_CHECKSUM_READ_BACK", remotePath, _sshConnection.getHost()));
+                return new Result(checksum, source);
+            } catch (Exception e) {
+                lastException = e;
+                if (_log.isDebugEnabled())
+                    _log.debug(MsgUtils.getMsg("TAPIS_SSH_CHECKSUM_SOURCE_FAILED", source, remotePath,
+                                               _sshConnection.getHost(), e.getMessage()));
+            }
+        }
+
+        String msg = MsgUtils.getMsg("TAPIS_SSH_CHECKSUM_UNAVAILABLE", _algorithm, remotePath,
+                                     _sshConnection.getHost(), _sources);
+        throw new TapisException(msg, lastException);
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* verify:                                                                */
+    /* ---------------------------------------------------------------------- */
+    /** Compare a locally computed checksum with the remote file's checksum.
+     *
+     * @param remotePath the remote file's path
+     * @param localChecksum the hex encoded local checksum
+     * @return the remote result
+     * @throws TapisException if the checksums differ or the remote checksum is unavailable
+     */
+    public Result verify(String remotePath, String localChecksum) throws TapisException
+    {
+        Result result = remoteChecksum(remotePath);
+        if (!result.checksum().equalsIgnoreCase(localChecksum)) {
+            String msg = MsgUtils.getMsg("TAPIS_SSH_CHECKSUM_MISMATCH", _algorithm, remotePath,
+                                         _sshConnection.getHost(), localChecksum, result.checksum(),
+                                         result.source());
+            throw new TapisException(msg);
+        }
+        return result;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* uploadAndVerify:                                                       */
+    /* ---------------------------------------------------------------------- */
+    /** Upload a stream over sftp while hashing it, then verify the remote copy.
+     * The input stream is not closed.
+     *
+     * @param in the local data
+     * @param remotePath the remote file to create or overwrite
+     * @return the verified checksum and its remote source
+     * @throws TapisException on transfer error or checksum mismatch
+     */
+    public Result uploadAndVerify(InputStream in, String remotePath) throws TapisException
+    {
+        MessageDigest digest = newDigest();
+        try (var sftp = _sshConnection.getSftpClient();
+             var out  = sftp.write(remotePath, BUFSIZE))
+        {
+            new DigestInputStream(in, digest).transferTo(out);
+        } catch (IOException e) {
+            String msg = MsgUtils.getMsg("TAPIS_SSH_CHECKSUM_TRANSFER_ERROR", remotePath,
+                                         _sshConnection.getHost(), e.getMessage());
+            throw new TapisException(msg, e);
+        }
+        return verify(remotePath, hex(digest));
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* downloadAndVerify:                                                     */
+    /* ---------------------------------------------------------------------- */
+    /** Download a remote file over sftp while hashing it, then verify the local
+     * copy against the remote checksum.  The output stream is not closed.  Note
+     * that if READ_BACK is enabled and is the only source that works, the file
+     * is read twice.
+     *
+     * @param remotePath the remote file to read
+     * @param out the local destination
+     * @return the verified checksum and its remote source
+     * @throws TapisException on transfer error or checksum mismatch
+     */
+    public Result downloadAndVerify(String remotePath, OutputStream out) throws TapisException
+    {
+        MessageDigest digest = newDigest();
+        try (var sftp = _sshConnection.getSftpClient();
+             var in   = sftp.read(remotePath, BUFSIZE))
+        {
+            in.transferTo(new DigestOutputStream(out, digest));
+        } catch (IOException e) {
+            String msg = MsgUtils.getMsg("TAPIS_SSH_CHECKSUM_TRANSFER_ERROR", remotePath,
+                                         _sshConnection.getHost(), e.getMessage());
+            throw new TapisException(msg, e);
+        }
+        return verify(remotePath, hex(digest));
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* newDigest:                                                             */
+    /* ---------------------------------------------------------------------- */
+    /** Create a new digest for this checksum's algorithm. */
+    public MessageDigest newDigest()
+    {
+        try {return MessageDigest.getInstance(_algorithm.getJavaName());}
+            catch (NoSuchAlgorithmException e) {
+                // Every jvm is required to support MD5 and SHA-256.
+                throw new IllegalStateException(e);
+            }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* digestingStream:                                                       */
+    /* ---------------------------------------------------------------------- */
+    /** Wrap a stream so that the bytes read through it are hashed.  Use with
+     * SSHScpClient.uploadStreamToFile(), then pass hex(stream.getMessageDigest())
+     * to verify().
+     */
+    public DigestInputStream digestingStream(InputStream in)
+    {
+        return new DigestInputStream(in, newDigest());
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* hex:                                                                   */
+    /* ---------------------------------------------------------------------- */
+    /** Complete the digest and return it as lowercase hex. */
+    public static String hex(MessageDigest digest)
+    {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /* ********************************************************************** */
+    /*                               Accessors                                */
+    /* ********************************************************************** */
+    public Algorithm getAlgorithm() {return _algorithm;}
+    public List<Source> getSources() {return _sources;}
+    public SSHChecksum setSources(Source... sources) {
+        _sources = Arrays.asList(sources); return this;}
+
+    /* ********************************************************************** */
+    /*                            Private Methods                             */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* checkFileChecksum:                                                     */
+    /* ---------------------------------------------------------------------- */
+    /** Use the check-file-name sftp extension.
+     *
+     * @return the checksum or null if the server doesn't support the extension
+     */
+    private String checkFileChecksum(String remotePath) throws IOException
+    {
+        try (var sftp = _sshConnection.getSftpClient()) {
+            CheckFileNameExtension ext = sftp.getExtension(CheckFileNameExtension.class);
+            if (ext == null || !ext.isSupported()) return null;
+
+            // Zero length and block size mean a single hash of the whole file.
+            Map.Entry<String, Collection<byte[]>> result =
+                ext.checkFileName(remotePath, List.of(_algorithm.getSftpName()), 0L, 0L, 0);
+            if (result == null || !_algorithm.getSftpName().equalsIgnoreCase(result.getKey())) return null;
+            Collection<byte[]> hashes = result.getValue();
+            if (hashes == null || hashes.size() != 1) return null;
+            return HexFormat.of().formatHex(hashes.iterator().next());
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* commandChecksum:                                                       */
+    /* ---------------------------------------------------------------------- */
+    /** Run the algorithm's checksum commands in order until one is found.
+     *
+     * @return the checksum or null if none of the commands exist on the host
+     */
+    private String commandChecksum(String remotePath) throws IOException, TapisException
+    {
+        String quotedPath = TapisUtils.alwaysSingleQuote(remotePath);
+        for (String command : _algorithm.getCommands()) {
+            var out = new ByteArrayOutputStream(SSHExecChannel.DEFAULT_OUTPUT_LEN);
+            var err = new ByteArrayOutputStream(SSHExecChannel.DEFAULT_OUTPUT_LEN);
+            // The -- keeps a path that starts with a dash from being read as an option.
+            int rc = _sshConnection.getExecChannel().execute(command + " -- " + quotedPath, out, err);
+            if (rc == COMMAND_NOT_FOUND) continue;
+            if (rc != 0) {
+                String msg = MsgUtils.getMsg("TAPIS_SSH_CMD_ERROR", command, _sshConnection.getHost(),
+                                             _sshConnection.getUsername(), rc);
+                throw new IOException(msg + " " + err.toString(StandardCharsets.UTF_8).trim());
+            }
+
+            // Output is "<hex>  <path>".
+            String output = out.toString(StandardCharsets.UTF_8).trim();
+            int end = 0;
+            while (end < output.length() && Character.digit(output.charAt(end), 16) >= 0) end++;
+            if (end == 0) return null;
+            return output.substring(0, end).toLowerCase();
+        }
+        return null;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* readBackChecksum:                                                      */
+    /* ---------------------------------------------------------------------- */
+    /** Read the remote file over sftp and hash it locally. */
+    private String readBackChecksum(String remotePath) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        try (var sftp = _sshConnection.getSftpClient();
+             var in   = sftp.read(remotePath, BUFSIZE))
+        {
+            in.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+        }
+        return hex(digest);
+    }
+}
@@ -3,6 +3,7 @@ package edu.utexas.tacc.tapis.shared.ssh.apache;
 import java.io.Closeable;
 import java.io.IOException;
 import java.security.KeyPair;
+import java.time.Duration;
 import java.util.Base64;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -12,6 +13,9 @@ import org.apache.sshd.client.config.hosts.HostConfigEntry;
 import org.apache.sshd.client.session.ClientSession;
 import org.apache.sshd.common.SshConstants;
 import org.apache.sshd.common.SshException;
+import org.apache.sshd.common.future.GlobalRequestFuture;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.core.CoreModuleProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,6 +66,10 @@ public class SSHConnection
     private static final int    CONNECT_DELAY_MS    = 4000; // Mininum delay
     private static final int    CONNECT_MAX_SKEW_MS = 8000; // Added skew maximum
     
+    // The global request used to probe connection liveness.  Servers that don't
+    // recognize the request reply with a failure, which still proves liveness.
+    private static final String KEEPALIVE_REQUEST = "keepalive@openssh.com";
+    
     /* ********************************************************************** */
     /*                            Initializers                                */
     /* ********************************************************************** */
@@ -95,6 +103,7 @@ public class SSHConnection
     private final String      _username;
     private final SSHTimeouts _timeouts;
     private final AuthMethod  _authMethod;
+    private final SSHAlgorithms _algorithms; // null means library defaults
     
     // Optional constructor parameters.
     private String            _password;
@@ -133,6 +142,28 @@ public class SSHConnection
     public SSHConnection(String host, int port, String username, String password,
                          SSHTimeouts timeouts) 
      throws TapisException 
+    {
+        this(host, port, username, password, timeouts, null);
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* constructor:                                                           */
+    /* ---------------------------------------------------------------------- */
+    /**
+     *  Establish a password authenticated client+session with the given
+     *  timeouts and algorithm preferences.
+     * 
+     * @param host
+     * @param port
+     * @param username
+     * @param password
+     * @param timeouts
+     * @param algorithms preferred algorithms or null for the defaults
+     * @throws TapisException
+     */
+    public SSHConnection(String host, int port, String username, String password,
+                         SSHTimeouts timeouts, SSHAlgorithms algorithms) 
+     throws TapisException 
     {
         // Check call-specific input.
         if (password == null) {
@@ -146,6 +177,7 @@ public class SSHConnection
         _username = username;
         _password = password;
         _timeouts = timeouts;
+        _algorithms = algorithms;
         _authMethod = AuthMethod.PASSWORD_AUTH;
         
         // Establish a connected and authenticated session.
@@ -198,6 +230,29 @@ public class SSHConnection
     public SSHConnection(String host, int port, String username, String publicKey, 
                          String privateKey, SSHTimeouts timeouts) 
      throws TapisException 
+    {
+        this(host, port, username, publicKey, privateKey, timeouts, null);
+    }
+    
+    /* ---------------------------------------------------------------------- */
+    /* constructor:                                                           */
+    /* ---------------------------------------------------------------------- */
+    /**
+     *  Establish a PKI authenticated client+session with the given timeouts
+     *  and algorithm preferences.
+     *
+     * @param host
+     * @param port
+     * @param username
+     * @param publicKey
+     * @param privateKey
+     * @param timeouts
+     * @param algorithms preferred algorithms or null for the defaults
+     * @throws TapisException
+     */
+    public SSHConnection(String host, int port, String username, String publicKey, 
+                         String privateKey, SSHTimeouts timeouts, SSHAlgorithms algorithms) 
+     throws TapisException 
     {
         // Check call-specific input.
         if (publicKey == null) {
@@ -216,6 +271,7 @@ public class SSHConnection
         _privateKey = privateKey;
         _publicKey = publicKey;
         _timeouts = timeouts;
+        _algorithms = algorithms;
         _authMethod = AuthMethod.PUBLICKEY_AUTH;
         
         // Establish a connected and authenticated session.
@@ -284,6 +340,48 @@ public class SSHConnection
         return false;
     }
 
+    /* ---------------------------------------------------------------------- */
+    /* isAlive:                                                               */
+    /* ---------------------------------------------------------------------- */
+    /** Actively probe the connection by sending a keepalive global request and
+     * waiting for the server's reply.  Any reply, including a failure reply from
+     * servers that don't understand the request, means the server is responsive.
+     * No reply within the timeout or an error sending the request means the 
+     * connection should be considered dead.  This method does not throw exceptions. 
+     * 
+     * @param timeoutMillis the maximum time to wait for the server's reply
+     * @return true if the server replied in time, false otherwise
+     */
+    public boolean isAlive(long timeoutMillis)
+    {
+        // Capture the session since we don't hold the lock while waiting.
+        ClientSession session;
+        synchronized (this) {
+            if (isClosed()) return false;
+            session = _session;
+        }
+        
+        // Send the request with want-reply set and wait for the response.
+        try {
+            Buffer buf = session.createBuffer(SshConstants.SSH_MSG_GLOBAL_REQUEST, 
+                                              KEEPALIVE_REQUEST.length() + Byte.SIZE);
+            buf.putString(KEEPALIVE_REQUEST);
+            buf.putBoolean(true);
+            GlobalRequestFuture future = session.request(buf, KEEPALIVE_REQUEST, null);
+            if (!future.await(timeoutMillis)) return false;
+            
+            // A failure reply completes the future exceptionally, but the session 
+            // being closed is what distinguishes a dead connection.
+            return session.isOpen();
+        }
+        catch (Exception e) {
+            if (_log.isDebugEnabled())
+                _log.debug(MsgUtils.getMsg("TAPIS_SSH_KEEPALIVE_ERROR", _username, 
+                                           _host, _port, e.getMessage()));
+            return false;
+        }
+    }
+    
     /* ---------------------------------------------------------------------- */
     /* close:                                                                 */
     /* ---------------------------------------------------------------------- */
@@ -305,6 +403,7 @@ public class SSHConnection
     public String getUsername() {return _username;}
     public SSHTimeouts getTimeouts() {return _timeouts;}
     public AuthMethod getAuthMethod() {return _authMethod;}
+    public SSHAlgorithms getAlgorithms() {return _algorithms;}
     
     /* ********************************************************************** */
     /*                           Protected Methods                            */
@@ -348,6 +447,8 @@ public class SSHConnection
         // Create a new client.
         if (_client != null) stop();
         _client = SshClient.setUpDefaultClient();
+        configureKeepAlive(_client);
+        if (_algorithms != null) _algorithms.configure(_client);
         _client.start();
         
         // Connect the session.
@@ -393,6 +494,28 @@ public class SSHConnection
         if (LOCAL_NODE_NAME != null) logAuth();
     }
 
+    /* ---------------------------------------------------------------------- */
+    /* configureKeepAlive:                                                    */
+    /* ---------------------------------------------------------------------- */
+    /** Enable ssh-level keepalives on the client when a keepalive interval is
+     * configured.  Keepalives keep firewalls and NAT devices from silently 
+     * dropping idle connections.  When a reply wait is also configured, the 
+     * client waits for the server's reply and closes the session if none arrives.
+     * 
+     * @param client the unstarted client
+     */
+    private void configureKeepAlive(SshClient client)
+    {
+        if (_timeouts.getKeepAliveMillis() <= 0) return;
+        CoreModuleProperties.HEARTBEAT_INTERVAL.set(client, 
+            Duration.ofMillis(_timeouts.getKeepAliveMillis()));
+        if (_timeouts.getKeepAliveReplyWaitMillis() > 0) {
+            CoreModuleProperties.HEARTBEAT_REQUEST.set(client, KEEPALIVE_REQUEST);
+            CoreModuleProperties.HEARTBEAT_REPLY_WAIT.set(client, 
+                Duration.ofMillis(_timeouts.getKeepAliveReplyWaitMillis()));
+        }
+    }
+    
     /* ---------------------------------------------------------------------- */
     /* closeSession:                                                          */
     /* ---------------------------------------------------------------------- */
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import org.apache.sshd.client.session.ClientSession;
 import org.apache.sshd.common.util.buffer.Buffer;
 import org.apache.sshd.sftp.client.SftpClient.Attributes;
 import org.apache.sshd.sftp.client.SftpClient.CloseableHandle;
@@ -19,7 +20,9 @@ import org.apache.sshd.sftp.client.SftpClient.CopyMode;
 import org.apache.sshd.sftp.client.SftpClient.DirEntry;
 import org.apache.sshd.sftp.client.SftpClient.Handle;
 import org.apache.sshd.sftp.client.SftpClient.OpenMode;
+import org.apache.sshd.sftp.client.SftpErrorDataHandler;
 import org.apache.sshd.sftp.client.SftpVersionSelector;
+import org.apache.sshd.sftp.client.extensions.SftpClientExtension;
 import org.apache.sshd.sftp.client.impl.DefaultSftpClient;
 import org.apache.sshd.sftp.client.impl.DefaultSftpClientFactory;
 
@@ -46,6 +49,25 @@ public class SSHSftpClient
 {
     Logger log = LoggerFactory.getLogger(SSHSftpClient.class);
 
+    // The apache client matches replies to requests by id, so many requests
+    // can be outstanding on one channel, but the channel only accepts one 
+    // pending write at a time.  Clients from this factory serialize the writes
+    // so that multiple threads can have requests in flight concurrently.
+    private static final DefaultSftpClientFactory CLIENT_FACTORY = new DefaultSftpClientFactory() {
+        @Override
+        protected DefaultSftpClient createDefaultSftpClient(ClientSession session, SftpVersionSelector selector,
+                                                            SftpErrorDataHandler errorDataHandler) 
+         throws IOException
+        {
+            return new DefaultSftpClient(session, selector, errorDataHandler) {
+                @Override
+                public synchronized int send(int cmd, Buffer buffer) throws IOException {
+                    return super.send(cmd, buffer);
+                }
+            };
+        }
+    };
+
     // Fields.
     private final SSHConnection     _sshConnection;
     private final DefaultSftpClient _sftpClient;
@@ -76,8 +98,7 @@ public class SSHSftpClient
             throw new TapisRuntimeException(msg);
         }
         long begin = System.currentTimeMillis();
-        _sftpClient = (DefaultSftpClient)
-            DefaultSftpClientFactory.INSTANCE.createSftpClient(session);
+        _sftpClient = (DefaultSftpClient) CLIENT_FACTORY.createSftpClient(session);
         log.trace(MsgUtils.getMsg("SSH_SFTP_TRACE_SESSION_TIME", System.currentTimeMillis() - begin));
     }
     
@@ -165,6 +186,10 @@ public class SSHSftpClient
         return _sftpClient.open(path, options);
     }
 
+    public int getVersion() {
+        return _sftpClient.getVersion();
+    }
+
     public int negotiateVersion(SftpVersionSelector selector) throws IOException {
         return _sftpClient.negotiateVersion(selector);
     }
@@ -358,4 +383,8 @@ public class SSHSftpClient
     public OutputStream write(String path, Collection<OpenMode> mode) throws IOException {
         return _sftpClient.write(path, mode);
     }
+
+    public <E extends SftpClientExtension> E getExtension(Class<? extends E> extensionType) {
+        return _sftpClient.getExtension(extensionType);
+    }
 }
@@ -0,0 +1,383 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sshd.sftp.client.SftpClient.CopyMode;
+import org.apache.sshd.sftp.client.SftpClient.OpenMode;
+import org.apache.sshd.sftp.client.extensions.CheckFileNameExtension;
+import org.apache.sshd.sftp.client.extensions.openssh.OpenSSHPosixRenameExtension;
+import org.apache.sshd.sftp.client.impl.SftpInputStreamAsync;
+import org.apache.sshd.sftp.client.impl.SftpOutputStreamAsync;
+import org.apache.sshd.sftp.common.SftpConstants;
+import org.apache.sshd.sftp.common.SftpException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.shared.ssh.apache.SSHChecksum.Algorithm;
+
+/** Upload and download files over sftp so that an interrupted transfer can
+ * continue where it left off instead of starting over.
+ *
+ * Data is written to a partial file next to the target, named by appending the
+ * part suffix to the target's name.  When a transfer is retried, the size of an
+ * existing partial file determines where the transfer resumes.  The existing
+ * prefix is verified block by block by comparing hashes computed on each side,
+ * and the transfer resumes at the first block that differs.  Only complete
+ * blocks are kept, so a torn block at the end of the partial file is always
+ * resent.  Once all bytes are written the partial file is renamed to the target,
+ * atomically where the server or local filesystem allows it.
+ *
+ * Remote block hashes come from the sftp check-file-name extension.  When the
+ * server doesn't support it, the complete blocks of the partial file are trusted
+ * without verification.  Prefix verification can also be turned off.
+ *
+ * Callers retry a failed transfer by calling the same method again, typically
+ * with a client on a new connection.  The client remains owned by the caller.
+ * Note that scp has no way to write at an offset, so resumable transfers are
+ * only offered over sftp.
+ */
+public class SSHSftpResumableTransfer
+{
+    /* ********************************************************************** */
+    /*                               Constants                                */
+    /* ********************************************************************** */
+    // Tracing.
+    private static final Logger _log = LoggerFactory.getLogger(SSHSftpResumableTransfer.class);
+
+    // Defaults.
+    public static final String    DEFAULT_PART_SUFFIX = ".tapis-part";
+    public static final int       DEFAULT_BLOCK_SIZE = 8 * 1024 * 1024;
+    public static final int       DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final Algorithm DEFAULT_ALGORITHM = Algorithm.SHA256;
+
+    /* ********************************************************************** */
+    /*                                 Types                                  */
+    /* ********************************************************************** */
+    /** The outcome of a transfer.  The resume offset is 0 when the transfer
+     * started from the beginning.
+     */
+    public record TransferResult(long size, long resumeOffset)
+    {
+        public long bytesTransferred() {return size - resumeOffset;}
+    }
+
+    /* ********************************************************************** */
+    /*                                Fields                                  */
+    /* ********************************************************************** */
+    private final SSHSftpClient _client;
+    private String              _partSuffix = DEFAULT_PART_SUFFIX;
+    private int                 _blockSize = DEFAULT_BLOCK_SIZE;
+    private int                 _bufferSize = DEFAULT_BUFFER_SIZE;
+    private Algorithm           _algorithm = DEFAULT_ALGORITHM;
+    private boolean             _verifyPrefix = true;
+
+    /* ********************************************************************** */
+    /*                            Constructors                                */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* constructor:                                                           */
+    /* ---------------------------------------------------------------------- */
+    public SSHSftpResumableTransfer(SSHSftpClient client)
+    {
+        if (client == null) {
+            String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "SSHSftpResumableTransfer", "client");
+            throw new IllegalArgumentException(msg);
+        }
+        _client = client;
+    }
+
+    /* ********************************************************************** */
+    /*                            Public Methods                              */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* upload:                                                                */
+    /* ---------------------------------------------------------------------- */
+    /** Upload a local file, resuming a previous attempt if its partial file exists.
+     *
+     * @param localFile the file to upload
+     * @param remotePath the remote target, replaced if it exists
+     * @return the transfer result
+     * @throws TapisException on any error, after which the upload can be retried
+     */
+    public TransferResult upload(Path localFile, String remotePath) throws TapisException
+    {
+        String partPath = remotePath + _partSuffix;
+        try {
+            // Decide where to start.
+            long size = Files.size(localFile);
+            long existing = remoteSize(partPath);
+            boolean truncate = existing > size;
+            long offset = truncate ? 0 : resumeOffset(partPath, localFile, existing);
+            logResume(localFile.toString(), remotePath, offset, size);
+
+            // Send the rest of the file.
+            var modes = EnumSet.of(OpenMode.Write, OpenMode.Create);
+            if (truncate) modes.add(OpenMode.Truncate);
+            try (FileChannel in = FileChannel.open(localFile, StandardOpenOption.READ);
+                 OutputStream out = _client.write(partPath, _bufferSize, modes))
+            {
+                if (offset > 0) {
+                    if (!(out instanceof SftpOutputStreamAsync asyncOut))
+                        throw new IOException(out.getClass().getName() + " cannot write at an offset.");
+                    asyncOut.setOffset(offset);
+                    in.position(offset);
+                }
+                Channels.newInputStream(in).transferTo(out);
+            }
+
+            // Make sure the server has everything before committing.
+            long written = remoteSize(partPath);
+            if (written != size)
+                throw new IOException("Wrote " + written + " of " + size + " bytes to " + partPath + ".");
+            renameRemote(partPath, remotePath);
+            return new TransferResult(size, offset);
+        }
+        catch (Exception e) {
+            String msg = MsgUtils.getMsg("TAPIS_SFTP_RESUMABLE_TRANSFER_ERROR", localFile,
+                                         remotePath, e.getMessage());
+            throw new TapisException(msg, e);
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* download:                                                              */
+    /* ---------------------------------------------------------------------- */
+    /** Download a remote file, resuming a previous attempt if its partial file exists.
+     *
+     * @param remotePath the remote file to download
+     * @param localFile the local target, replaced if it exists
+     * @return the transfer result
+     * @throws TapisException on any error, after which the download can be retried
+     */
+    public TransferResult download(String remotePath, Path localFile) throws TapisException
+    {
+        Path partFile = localFile.resolveSibling(localFile.getFileName() + _partSuffix);
+        try {
+            // Decide where to start.
+            long size = _client.stat(remotePath).getSize();
+            long existing = Files.exists(partFile) ? Files.size(partFile) : 0;
+            boolean truncate = existing > size;
+            long offset = truncate ? 0 : resumeOffset(remotePath, partFile, existing);
+            logResume(remotePath, localFile.toString(), offset, size);
+
+            // Receive the rest of the file.
+            try (FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE);
+                 InputStream in = _client.read(remotePath, _bufferSize))
+            {
+                if (truncate) out.truncate(0);
+                out.position(offset);
+                skipFully(in, offset);
+                in.transferTo(Channels.newOutputStream(out));
+                out.force(false);
+            }
+
+            // Make sure we have everything before committing.
+            long written = Files.size(partFile);
+            if (written != size)
+                throw new IOException("Received " + written + " of " + size + " bytes in " + partFile + ".");
+            renameLocal(partFile, localFile);
+            return new TransferResult(size, offset);
+        }
+        catch (Exception e) {
+            String msg = MsgUtils.getMsg("TAPIS_SFTP_RESUMABLE_TRANSFER_ERROR", remotePath,
+                                         localFile, e.getMessage());
+            throw new TapisException(msg, e);
+        }
+    }
+
+    /* ********************************************************************** */
+    /*                               Accessors                                */
+    /* ********************************************************************** */
+    public String getPartSuffix() {return _partSuffix;}
+    public SSHSftpResumableTransfer setPartSuffix(String partSuffix) {
+        _partSuffix = partSuffix; return this;}
+    public int getBlockSize() {return _blockSize;}
+    public SSHSftpResumableTransfer setBlockSize(int blockSize) {
+        _blockSize = blockSize; return this;}
+    public int getBufferSize() {return _bufferSize;}
+    public SSHSftpResumableTransfer setBufferSize(int bufferSize) {
+        _bufferSize = bufferSize; return this;}
+    public Algorithm getAlgorithm() {return _algorithm;}
+    public SSHSftpResumableTransfer setAlgorithm(Algorithm algorithm) {
+        _algorithm = algorithm; return this;}
+    public boolean isVerifyPrefix() {return _verifyPrefix;}
+    public SSHSftpResumableTransfer setVerifyPrefix(boolean verifyPrefix) {
+        _verifyPrefix = verifyPrefix; return this;}
+
+    /* ********************************************************************** */
+    /*                            Private Methods                             */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* resumeOffset:                                                          */
+    /* ---------------------------------------------------------------------- */
+    /** Determine how much of a partial file can be kept.  Only complete blocks
+     * are considered, and when verification is possible, only the blocks before
+     * the first one whose remote and local hashes differ.
+     *
+     * @param remotePath the remote side of the transfer
+     * @param localFile the local side of the transfer
+     * @param existing the size of the partial file
+     * @return the offset at which to resume
+     */
+    private long resumeOffset(String remotePath, Path localFile, long existing) throws IOException
+    {
+        long blocks = existing / _blockSize;
+        if (!_verifyPrefix || blocks == 0) return blocks * _blockSize;
+
+        List<byte[]> remoteHashes = remoteBlockHashes(remotePath, blocks * _blockSize);
+        if (remoteHashes == null) {
+            if (_log.isDebugEnabled())
+                _log.debug(MsgUtils.getMsg("TAPIS_SFTP_RESUME_UNVERIFIED", remotePath,
+                                           _client.getConnection().getHost()));
+            return blocks * _blockSize;
+        }
+        List<byte[]> localHashes = localBlockHashes(localFile, blocks);
+
+        // Keep the blocks up to the first difference.
+        long good = Math.min(blocks, Math.min(remoteHashes.size(), localHashes.size()));
+        for (int i = 0; i < good; i++)
+            if (!Arrays.equals(remoteHashes.get(i), localHashes.get(i))) return (long) i * _blockSize;
+        return good * _blockSize;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* remoteBlockHashes:                                                     */
+    /* ---------------------------------------------------------------------- */
+    /** Hash each block of a remote file's prefix on the server.
+     *
+     * @return the block hashes or null if the server can't compute them
+     */
+    private List<byte[]> remoteBlockHashes(String remotePath, long length) throws IOException
+    {
+        CheckFileNameExtension ext = _client.getExtension(CheckFileNameExtension.class);
+        if (ext == null || !ext.isSupported()) return null;
+
+        Map.Entry<String, Collection<byte[]>> result =
+            ext.checkFileName(remotePath, List.of(_algorithm.getSftpName()), 0L, length, _blockSize);
+        if (result == null || !_algorithm.getSftpName().equalsIgnoreCase(result.getKey())) return null;
+        return result.getValue() == null ? null : new ArrayList<>(result.getValue());
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* localBlockHashes:                                                      */
+    /* ---------------------------------------------------------------------- */
+    private List<byte[]> localBlockHashes(Path localFile, long blocks) throws IOException
+    {
+        MessageDigest digest;
+        try {digest = MessageDigest.getInstance(_algorithm.getJavaName());}
+            catch (NoSuchAlgorithmException e) {throw new IllegalStateException(e);}
+        var hashes = new ArrayList<byte[]>();
+        var buf = ByteBuffer.allocate(Math.min(_blockSize, _bufferSize));
+        try (FileChannel in = FileChannel.open(localFile, StandardOpenOption.READ)) {
+            for (long b = 0; b < blocks; b++) {
+                long remaining = _blockSize;
+                while (remaining > 0) {
+                    buf.clear().limit((int) Math.min(buf.capacity(), remaining));
+                    int n = in.read(buf);
+                    if (n < 0) return hashes;
+                    digest.update(buf.flip());
+                    remaining -= n;
+                }
+                hashes.add(digest.digest());
+            }
+        }
+        return hashes;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* remoteSize:                                                            */
+    /* ---------------------------------------------------------------------- */
+    /** Get the size of a remote file, or 0 if it doesn't exist. */
+    private long remoteSize(String remotePath) throws IOException
+    {
+        try {return _client.stat(remotePath).getSize();}
+        catch (SftpException e) {
+            if (e.getStatus() == SftpConstants.SSH_FX_NO_SUCH_FILE) return 0;
+            throw e;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* renameRemote:                                                          */
+    /* ---------------------------------------------------------------------- */
+    /** Replace the remote target with the partial file, atomically if the server
+     * supports posix-rename or sftp version 5 or later.  Otherwise the target is
+     * removed first, which leaves a short window in which it doesn't exist.
+     */
+    private void renameRemote(String partPath, String remotePath) throws IOException
+    {
+        OpenSSHPosixRenameExtension posixRename = _client.getExtension(OpenSSHPosixRenameExtension.class);
+        if (posixRename != null && posixRename.isSupported()) {
+            posixRename.posixRename(partPath, remotePath);
+        } else if (_client.getVersion() >= SftpConstants.SFTP_V5) {
+            _client.rename(partPath, remotePath, CopyMode.Atomic, CopyMode.Overwrite);
+        } else {
+            try {_client.remove(remotePath);}
+            catch (SftpException e) {
+                if (e.getStatus() != SftpConstants.SSH_FX_NO_SUCH_FILE) throw e;
+            }
+            _client.rename(partPath, remotePath);
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* renameLocal:                                                           */
+    /* ---------------------------------------------------------------------- */
+    private static void renameLocal(Path partFile, Path localFile) throws IOException
+    {
+        try {
+            Files.move(partFile, localFile, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile, localFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* skipFully:                                                             */
+    /* ---------------------------------------------------------------------- */
+    /** Position a remote stream.  The async sftp stream skips without reading
+     * when nothing has been requested yet, so no data is moved.
+     */
+    private static void skipFully(InputStream in, long offset) throws IOException
+    {
+        if (offset > 0 && !(in instanceof SftpInputStreamAsync))
+            throw new IOException(in.getClass().getName() + " cannot read at an offset.");
+        long remaining = offset;
+        while (remaining > 0) {
+            long n = in.skip(remaining);
+            if (n <= 0) throw new IOException("Unable to skip to offset " + offset + ".");
+            remaining -= n;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* logResume:                                                             */
+    /* ---------------------------------------------------------------------- */
+    private void logResume(String source, String target, long offset, long size)
+    {
+        if (offset > 0 && _log.isDebugEnabled())
+            _log.debug(MsgUtils.getMsg("TAPIS_SFTP_RESUMING_TRANSFER", source, target, offset, size));
+    }
+}
@@ -0,0 +1,294 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.sshd.sftp.client.SftpClient.Attributes;
+import org.apache.sshd.sftp.client.SftpClient.CloseableHandle;
+import org.apache.sshd.sftp.client.SftpClient.DirEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+
+/** Walk a remote directory tree over sftp with many directory listings in flight
+ * at once.  Listing a tree one directory at a time costs a full round-trip per
+ * directory, which dominates on deep trees with many small directories over high
+ * latency links.  This walker lists up to maxInFlight directories concurrently,
+ * spreading the requests over the sftp clients it's given.  The apache sftp client
+ * multiplexes concurrent requests on a single channel, so even one client benefits
+ * from pipelining; several clients also spread the server side work.
+ *
+ * Entries are streamed to the consumer as they arrive, so the order in which
+ * entries are delivered is not deterministic.  Consumer calls are serialized, so
+ * consumers do not need to be thread-safe.  Symbolic links are reported but not
+ * followed, which prevents cycles.
+ *
+ * The walker is configured with fluent setters and can be reused for multiple
+ * walks, though not concurrently.
+ */
+public class SSHSftpTreeWalker
+{
+    /* ********************************************************************** */
+    /*                               Constants                                */
+    /* ********************************************************************** */
+    // Tracing.
+    private static final Logger _log = LoggerFactory.getLogger(SSHSftpTreeWalker.class);
+
+    // Defaults.
+    public static final int  DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final int  DEFAULT_MAX_DEPTH = Integer.MAX_VALUE;
+    public static final long DEFAULT_MAX_ENTRIES = Long.MAX_VALUE;
+
+    /* ********************************************************************** */
+    /*                                 Types                                  */
+    /* ********************************************************************** */
+    /** A remote entry found during the walk.  The depth of the root's children is 1. */
+    public record RemoteEntry(String path, String filename, int depth, Attributes attributes)
+    {
+        public boolean isDirectory() {return attributes.isDirectory();}
+    }
+
+    /** Receives entries as they are discovered. */
+    @FunctionalInterface
+    public interface EntryConsumer
+    {
+        void accept(RemoteEntry entry) throws IOException;
+    }
+
+    /* ********************************************************************** */
+    /*                                Fields                                  */
+    /* ********************************************************************** */
+    // The clients used to issue requests.
+    private final List<SSHSftpClient> _clients;
+
+    // Walk limits.
+    private int                    _maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int                    _maxDepth = DEFAULT_MAX_DEPTH;
+    private long                   _maxEntries = DEFAULT_MAX_ENTRIES;
+    private Predicate<RemoteEntry> _filter;
+
+    // Per-walk state.
+    private String                 _rootPath;
+    private ExecutorService        _executor;
+    private EntryConsumer          _consumer;
+    private AtomicInteger          _pending;
+    private AtomicLong             _emitted;
+    private AtomicInteger          _nextClient;
+    private volatile boolean       _stopped;
+    private volatile Exception     _failure;
+
+    /* ********************************************************************** */
+    /*                            Constructors                                */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* constructor:                                                           */
+    /* ---------------------------------------------------------------------- */
+    public SSHSftpTreeWalker(SSHSftpClient client)
+    {
+        this(List.of(client));
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* constructor:                                                           */
+    /* ---------------------------------------------------------------------- */
+    /** Requests are spread round-robin over the clients.  The clients can be
+     * pooled sessions to the same host and remain owned by the caller.
+     *
+     * @param clients one or more open sftp clients to the same host
+     */
+    public SSHSftpTreeWalker(List<SSHSftpClient> clients)
+    {
+        if (clients == null || clients.isEmpty()) {
+            String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "SSHSftpTreeWalker", "clients");
+            throw new IllegalArgumentException(msg);
+        }
+        _clients = new ArrayList<>(clients);
+    }
+
+    /* ********************************************************************** */
+    /*                            Public Methods                              */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* walk:                                                                  */
+    /* ---------------------------------------------------------------------- */
+    /** Walk the tree rooted at rootPath and pass each entry that satisfies the
+     * filter to the consumer.  Entries rejected by the filter are neither reported
+     * nor descended into.  The walk ends when the tree is exhausted, the maximum
+     * number of entries has been reported or an error occurs.
+     *
+     * @param rootPath the remote directory to walk
+     * @param consumer receives the entries
+     * @return the number of entries passed to the consumer
+     * @throws TapisException on any listing or consumer error
+     */
+    public long walk(String rootPath, EntryConsumer consumer) throws TapisException
+    {
+        // Initialize the walk.
+        _rootPath   = stripTrailingSlash(rootPath);
+        _consumer   = consumer;
+        _pending    = new AtomicInteger();
+        _emitted    = new AtomicLong();
+        _nextClient = new AtomicInteger();
+        _stopped    = false;
+        _failure    = null;
+        _executor   = Executors.newFixedThreadPool(Math.max(1, _maxInFlight), runnable -> {
+            Thread t = new Thread(runnable, "SftpTreeWalker");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Start with the root and wait for all listings to complete.
+        try {
+            synchronized (this) {
+                submit(_rootPath, 0);
+                while (_pending.get() > 0) wait();
+            }
+        } catch (InterruptedException e) {
+            _stopped = true;
+            Thread.currentThread().interrupt();
+            String msg = MsgUtils.getMsg("TAPIS_SFTP_TREE_WALK_ERROR", rootPath, e.getMessage());
+            throw new TapisException(msg, e);
+        } finally {
+            _executor.shutdownNow();
+        }
+
+        // Report the first failure.
+        if (_failure != null) {
+            String msg = MsgUtils.getMsg("TAPIS_SFTP_TREE_WALK_ERROR", rootPath, _failure.getMessage());
+            throw new TapisException(msg, _failure);
+        }
+        return _emitted.get();
+    }
+
+    /* ********************************************************************** */
+    /*                               Accessors                                */
+    /* ********************************************************************** */
+    public int getMaxInFlight() {return _maxInFlight;}
+    public SSHSftpTreeWalker setMaxInFlight(int maxInFlight) {
+        _maxInFlight = maxInFlight; return this;}
+    public int getMaxDepth() {return _maxDepth;}
+    public SSHSftpTreeWalker setMaxDepth(int maxDepth) {
+        _maxDepth = maxDepth; return this;}
+    public long getMaxEntries() {return _maxEntries;}
+    public SSHSftpTreeWalker setMaxEntries(long maxEntries) {
+        _maxEntries = maxEntries; return this;}
+    public Predicate<RemoteEntry> getFilter() {return _filter;}
+    public SSHSftpTreeWalker setFilter(Predicate<RemoteEntry> filter) {
+        _filter = filter; return this;}
+
+    /* ********************************************************************** */
+    /*                            Private Methods                             */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* submit:                                                                */
+    /* ---------------------------------------------------------------------- */
+    /** Queue the listing of a directory.  The pending count is incremented
+     * before the task is queued so that the walk can't appear complete while
+     * work remains.
+     */
+    private void submit(String dirPath, int depth)
+    {
+        _pending.incrementAndGet();
+        try {_executor.execute(() -> list(dirPath, depth));}
+            catch (Exception e) {
+                fail(e);
+                done();
+            }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* list:                                                                  */
+    /* ---------------------------------------------------------------------- */
+    private void list(String dirPath, int depth)
+    {
+        try {
+            if (_stopped) return;
+
+            // Pick the next client round-robin.
+            var client = _clients.get(Math.floorMod(_nextClient.getAndIncrement(), _clients.size()));
+            int childDepth = depth + 1;
+            try (CloseableHandle handle = client.openDir(dirPath)) {
+                List<DirEntry> dirEntries;
+                while ((dirEntries = client.readDir(handle)) != null) {
+                    for (DirEntry dirEntry : dirEntries) {
+                        if (_stopped) return;
+                        String filename = dirEntry.getFilename();
+                        if (".".equals(filename) || "..".equals(filename)) continue;
+
+                        String path = dirPath.endsWith("/") ? dirPath + filename : dirPath + "/" + filename;
+                        var entry = new RemoteEntry(path, filename, childDepth, dirEntry.getAttributes());
+                        if (_filter != null && !_filter.test(entry)) continue;
+                        if (!emit(entry)) return;
+
+                        // Descend into directories, but never follow links.
+                        if (entry.isDirectory() && childDepth < _maxDepth) submit(entry.path(), childDepth);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {fail(e);}
+        finally {done();}
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* emit:                                                                  */
+    /* ---------------------------------------------------------------------- */
+    /** Serialize calls to the consumer and enforce the entry limit.  The limit
+     * is checked before the entry is passed on, so a limit of zero or less
+     * emits nothing.
+     *
+     * @return false if the walk should stop
+     */
+    private synchronized boolean emit(RemoteEntry entry) throws IOException
+    {
+        if (_stopped) return false;
+        if (_emitted.get() >= _maxEntries) {
+            _stopped = true;
+            return false;
+        }
+        _consumer.accept(entry);
+        if (_emitted.incrementAndGet() >= _maxEntries) {
+            _stopped = true;
+            return false;
+        }
+        return true;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* fail:                                                                  */
+    /* ---------------------------------------------------------------------- */
+    private synchronized void fail(Exception e)
+    {
+        if (_failure == null) {
+            _failure = e;
+            _log.warn(MsgUtils.getMsg("TAPIS_SFTP_TREE_WALK_ERROR", _rootPath, e.getMessage()));
+        }
+        _stopped = true;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* done:                                                                  */
+    /* ---------------------------------------------------------------------- */
+    private synchronized void done()
+    {
+        if (_pending.decrementAndGet() <= 0) notifyAll();
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* stripTrailingSlash:                                                    */
+    /* ---------------------------------------------------------------------- */
+    private static String stripTrailingSlash(String path)
+    {
+        if (path == null || path.isEmpty()) return ".";
+        if (path.length() > 1 && path.endsWith("/")) return path.substring(0, path.length() - 1);
+        return path;
+    }
+}
@@ -8,6 +8,8 @@ public class SSHTimeouts
     public static final long DEFAULT_AUTHENTICATE_MILLIS = 20000;
     public static final long DEFAULT_OPEN_CHANNEL_MILLIS = 20000;
     public static final long DEFAULT_EXECUTION_MILLIS = 600000; // 10 minutes.
+    public static final long DEFAULT_KEEPALIVE_MILLIS = 0;      // disabled
+    public static final long DEFAULT_KEEPALIVE_REPLY_WAIT_MILLIS = 0;
     
     // Timed operations.
     private long _connectMillis = DEFAULT_CONNECT_MILLIS;
@@ -15,6 +17,13 @@ public class SSHTimeouts
     private long _openChannelMillis = DEFAULT_OPEN_CHANNEL_MILLIS;
     private long _executionMillis = DEFAULT_EXECUTION_MILLIS;
     
+    // Keepalive settings.  A keepalive interval of zero or less disables 
+    // ssh-level keepalives on the connection.  When the reply wait is greater
+    // than zero, keepalives request a reply from the server and the connection
+    // is considered dead if no reply arrives within that time.
+    private long _keepAliveMillis = DEFAULT_KEEPALIVE_MILLIS;
+    private long _keepAliveReplyWaitMillis = DEFAULT_KEEPALIVE_REPLY_WAIT_MILLIS;
+    
     public long getConnectMillis() {
         return _connectMillis;
     }
@@ -39,4 +48,16 @@ public class SSHTimeouts
     public void setExecutionMillis(long executionMillis) {
         this._executionMillis = executionMillis;
     }
+    public long getKeepAliveMillis() {
+        return _keepAliveMillis;
+    }
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this._keepAliveMillis = keepAliveMillis;
+    }
+    public long getKeepAliveReplyWaitMillis() {
+        return _keepAliveReplyWaitMillis;
+    }
+    public void setKeepAliveReplyWaitMillis(long keepAliveReplyWaitMillis) {
+        this._keepAliveReplyWaitMillis = keepAliveReplyWaitMillis;
+    }
 }
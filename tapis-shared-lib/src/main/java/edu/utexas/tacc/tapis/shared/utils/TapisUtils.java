@@ -17,8 +17,10 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.Month;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.time.chrono.IsoChronology;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.format.DateTimeParseException;
@@ -276,50 +278,196 @@ public class TapisUtils
   public static LocalDateTime getUTCTimeFromString(String timeStr) throws DateTimeParseException
   {
     if (StringUtils.isBlank(timeStr)) throw new DateTimeParseException("Empty timestamp string", "", 0);
+    String expandedStr = expandUTCTimeString(timeStr);
+    if (expandedStr == null)
+      throw new DateTimeParseException("Less than 4 characters in string", StringUtils.removeEnd(timeStr, "Z"), 0);
+    LocalDateTime time = parseExpandedUTCTime(expandedStr);
+    if (time == null) throw new DateTimeParseException("Not a valid Tapis Timestamp", expandedStr, 0);
+    return time;
+  }
+
+  /* ---------------------------------------------------------------------------- */
+  /* parseUTCTime:                                                                */
+  /* ---------------------------------------------------------------------------- */
+  /** Convert a string into a LocalDateTime, a timestamp in UTC, using the same rules
+   *  and giving the same results as getUTCTimeFromString(), but returning null
+   *  instead of throwing an exception when the string is not a valid timestamp.
+   *
+   * The common forms yyyy[-MM[-dd[THH[:mm[:ss[.fffffffff]]]]]][Z|+HH:MM|-HH:MM] are
+   * parsed directly, without formatters or exceptions.  Rare forms, such as signed
+   * years, hour 24, leap seconds and days past the end of the month, are left to the
+   * java.time formatters.
+   *
+   * @param timeStr String representing a Tapis timestamp
+   * @return the time represented by the string or null if not a valid timestamp
+   */
+  public static LocalDateTime parseUTCTime(String timeStr)
+  {
+    if (StringUtils.isBlank(timeStr)) return null;
+    String expandedStr = expandUTCTimeString(timeStr);
+    return expandedStr == null ? null : parseExpandedUTCTime(expandedStr);
+  }
+
+  /* ---------------------------------------------------------------------------- */
+  /* parseUTCInstant:                                                             */
+  /* ---------------------------------------------------------------------------- */
+  /** Convert a string into an Instant using the rules of getUTCTimeFromString().
+   *
+   * @param timeStr String representing a Tapis timestamp
+   * @return the instant represented by the string or null if not a valid timestamp
+   */
+  public static Instant parseUTCInstant(String timeStr)
+  {
+    LocalDateTime time = parseUTCTime(timeStr);
+    return time == null ? null : time.toInstant(ZoneOffset.UTC);
+  }
+
+  /* ---------------------------------------------------------------------------- */
+  /* expandUTCTimeString:                                                         */
+  /* ---------------------------------------------------------------------------- */
+  /** Strip a trailing Z and expand the short forms yyyy, yyyy-MM, yyyy-MM-dd and
+   *  their offset variants to full timestamps with the earliest time.
+   *
+   * @param timeStr non-blank string representing a Tapis timestamp
+   * @return the expanded string or null if less than 4 characters
+   */
+  private static String expandUTCTimeString(String timeStr)
+  {
     // If there is a trailing Z strip
     // it off. In most cases the formatter does not handle it.
     if (timeStr.endsWith("Z")) timeStr = timeStr.substring(0, timeStr.length()-1);
-    if (timeStr.length() < 4) throw new DateTimeParseException("Less than 4 characters in string", timeStr, 0);
-    // If 4, 7 or 10 characters convert to earliest time.
-    if (timeStr.length() == 4)
+    switch (timeStr.length())
     {
-      // Must be yyyy
-      timeStr += "-01-01T00:00:00";
+      case 0: case 1: case 2: case 3:
+        return null;
+      case 4:
+        // Must be yyyy
+        return timeStr + "-01-01T00:00:00";
+      case 7:
+        // Must be yyyy-MM
+        return timeStr + "-01T00:00:00";
+      case 10:
+        // Must be yyyy-MM-dd or yyyy+HH:MM
+        if (timeStr.charAt(7) != ':') return timeStr + "T00:00:00";
+        return timeStr.substring(0,4) + "-01-01T00:00:00" + timeStr.substring(4,10);
+      // Cannot get DateTimeFormatter working for a date (no HH:mm) when there is a timezone offset,
+      //   so do explicit checks here.
+      case 13:
+        // Check for yyyy-MM+HH:MM
+        if (timeStr.charAt(10) == ':' && (timeStr.charAt(7) == '+' || timeStr.charAt(7) == '-'))
+          return timeStr.substring(0, 7) + "-01T00:00:00" + timeStr.substring(7, 13);
+        return timeStr;
+      case 16:
+        // Check for yyyy-MM-dd+HH:MM
+        if (timeStr.charAt(13) == ':' && (timeStr.charAt(10) == '+' || timeStr.charAt(10) == '-'))
+          return timeStr.substring(0, 10) + "T00:00:00" + timeStr.substring(10, 16);
+        return timeStr;
+      default:
+        return timeStr;
     }
-    else if (timeStr.length() == 7)
+  }
+
+  /* ---------------------------------------------------------------------------- */
+  /* parseExpandedUTCTime:                                                        */
+  /* ---------------------------------------------------------------------------- */
+  /** Parse an expanded timestamp string without exceptions, dispatching on its shape.
+   * Every accepted form starts with yyyy-MM-ddTHH, optionally followed by :mm, :ss,
+   * a fraction and an offset.  The results are those of the java.time formatters
+   * tried in turn by getUTCTimeFromString() in earlier releases:
+   *   - an offset is applied only when seconds are present (ISO instant); the
+   *     formatters for minutes and hours accept the offset but ignore it
+   *   - values out of range for every formatter are invalid
+   *   - forms only some formatters accept or adjust are handed to the formatters
+   *
+   * @param s expanded timestamp string
+   * @return the time or null if not a valid timestamp
+   */
+  private static LocalDateTime parseExpandedUTCTime(String s)
+  {
+    // Signed and longer years are left to the formatters.
+    int n = s.length();
+    char first = s.charAt(0);
+    int year = parseDigits(s, 0, 4);
+    if (year < 0 || n < 5 || s.charAt(4) != '-')
     {
-      // Must be yyyy-MM
-      timeStr += "-01T00:00:00";
+      if (first == '+' || first == '-' || (year >= 0 && n > 4 && isAsciiDigit(s.charAt(4))))
+        return parseUTCTimeWithFormatters(s);
+      return null;
     }
-    else if (timeStr.length() == 10)
+    if (n < 13) return null;
+    int month = parseDigits(s, 5, 2);
+    int day   = parseDigits(s, 8, 2);
+    int hour  = parseDigits(s, 11, 2);
+    char t = s.charAt(10);
+    if (s.charAt(7) != '-' || month < 0 || day < 0 || (t != 'T' && t != 't') || hour < 0) return null;
+
+    // Optional minutes, seconds and fraction.
+    int minute = 0, second = 0, nano = 0;
+    boolean hasSeconds = false;
+    int i = 13;
+    if (i < n && s.charAt(i) == ':')
     {
-      // Must be yyyy-MM-dd or yyyy+HH:MM
-      if (timeStr.charAt(7) != ':') timeStr += "T00:00:00";
-      else
+      minute = parseDigits(s, i + 1, 2);
+      if (minute < 0) return parseUTCTimeWithFormatters(s);
+      i += 3;
+      if (i < n && s.charAt(i) == ':')
       {
-        var tmpStr = timeStr.substring(0,4) + "-01-01T00:00:00" + timeStr.substring(4,10);
-        timeStr = tmpStr;
+        second = parseDigits(s, i + 1, 2);
+        if (second < 0) return parseUTCTimeWithFormatters(s);
+        hasSeconds = true;
+        i += 3;
+        if (i < n && s.charAt(i) == '.')
+        {
+          int start = ++i;
+          while (i < n && i - start < 9 && isAsciiDigit(s.charAt(i))) nano = nano * 10 + (s.charAt(i++) - '0');
+          int fractionDigits = i - start;
+          if (fractionDigits == 0 || (i < n && isAsciiDigit(s.charAt(i)))) return parseUTCTimeWithFormatters(s);
+          for (int d = fractionDigits; d < 9; d++) nano *= 10;
+        }
       }
     }
-    // Cannot get DateTimeFormatter working for a date (no HH:mm) when there is a timezone offset,
-    //   so do explicit checks here.
-    else if (timeStr.length() == 13)
+
+    // Optional offset +HH:MM or -HH:MM.
+    int offsetSeconds = 0;
+    boolean hasOffset = i < n;
+    if (hasOffset)
     {
-      // Check for yyyy-MM+HH:MM
-      if (timeStr.charAt(10) == ':' && (timeStr.charAt(7) == '+' || timeStr.charAt(7) == '-'))
-      {
-        var tmpStr = timeStr.substring(0, 7) + "-01T00:00:00" + timeStr.substring(7, 13);
-        timeStr = tmpStr;
-      }
+      char sign = s.charAt(i);
+      int offsetHours = n - i == 6 && s.charAt(i + 3) == ':' ? parseDigits(s, i + 1, 2) : -1;
+      int offsetMinutes = offsetHours < 0 ? -1 : parseDigits(s, i + 4, 2);
+      if ((sign != '+' && sign != '-') || offsetMinutes < 0 || offsetMinutes > 59 || offsetHours > 18
+          || (offsetHours == 18 && offsetMinutes > 0))
+        return parseUTCTimeWithFormatters(s);
+      offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (sign == '-' ? -1 : 1);
     }
-    else if (timeStr.length() == 16)
+
+    // Values out of range for every formatter, then values that some formatters adjust.
+    if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 24 || minute > 59 || second > 60) return null;
+    if (hour == 24 || second == 60 || day > Month.of(month).length(IsoChronology.INSTANCE.isLeapYear(year)))
+      return parseUTCTimeWithFormatters(s);
+
+    var time = LocalDateTime.of(year, month, day, hour, minute, second, nano);
+    return hasOffset && hasSeconds ? time.minusSeconds(offsetSeconds) : time;
+  }
+
+  /* ---------------------------------------------------------------------------- */
+  /* parseUTCTimeWithFormatters:                                                  */
+  /* ---------------------------------------------------------------------------- */
+  /** Parse an expanded timestamp string by trying the java.time formatters in turn.
+   * Every format is made up of digits, signs, separators, T and Z, so any other
+   * character makes the string invalid without trying them.
+   *
+   * @param timeStr expanded timestamp string
+   * @return the time or null if no formatter accepts the string
+   */
+  private static LocalDateTime parseUTCTimeWithFormatters(String timeStr)
+  {
+    for (int i = 0; i < timeStr.length(); i++)
     {
-      // Check for yyyy-MM-dd+HH:MM
-      if (timeStr.charAt(13) == ':' && (timeStr.charAt(10) == '+' || timeStr.charAt(10) == '-'))
-      {
-        var tmpStr = timeStr.substring(0, 10) + "T00:00:00" + timeStr.substring(10, 16);
-        timeStr = tmpStr;
-      }
+      char c = timeStr.charAt(i);
+      if (!isAsciiDigit(c) && c != '-' && c != '+' && c != ':' && c != '.' && c != 'T' && c != 't'
+          && c != 'Z' && c != 'z')
+        return null;
     }
 
     // Attempt to convert the string into a timestamp
@@ -342,9 +490,25 @@ public class TapisUtils
       }
       catch (DateTimeParseException e) { }
     }
-    throw new DateTimeParseException("Not a valid Tapis Timestamp", timeStr, 0);
+    return null;
   }
 
+  /** The value of count ASCII digits at a position, or -1 if not all digits or past the end. */
+  private static int parseDigits(String s, int pos, int count)
+  {
+    if (pos + count > s.length()) return -1;
+    int value = 0;
+    for (int i = pos; i < pos + count; i++)
+    {
+      char c = s.charAt(i);
+      if (!isAsciiDigit(c)) return -1;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static boolean isAsciiDigit(char c) { return c >= '0' && c <= '9'; }
+
   /* ---------------------------------------------------------------------------- */
   /* getSQLStringFromInstant:                                                     */
   /* ---------------------------------------------------------------------------- */
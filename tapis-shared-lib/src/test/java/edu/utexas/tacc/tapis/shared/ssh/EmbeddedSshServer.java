@@ -0,0 +1,94 @@
+package edu.utexas.tacc.tapis.shared.ssh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sshd.common.channel.RequestHandler;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.session.ConnectionService;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.global.KeepAliveHandler;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellCommandFactory;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+/**
+ * An in-process ssh server for tests that need a real ssh endpoint without an
+ * external host.  The server listens on an ephemeral localhost port, accepts a
+ * single user/password combination and serves sftp from a local directory.
+ * Exec requests run as local processes, so commands see the real filesystem
+ * rather than the sftp root.
+ *
+ * The server can be told to stop answering keepalive requests, which makes its
+ * connections look like ones that were silently dropped by the network.
+ */
+public class EmbeddedSshServer implements Closeable {
+
+    public static final String USER = "tapistest";
+    public static final String PASSWORD = "tapistest-password";
+
+    private final SshServer sshServer;
+    private volatile boolean respondToKeepAlives = true;
+
+    public EmbeddedSshServer(Path rootDir) throws IOException {
+        sshServer = SshServer.setUpDefaultServer();
+        sshServer.setHost("localhost");
+        sshServer.setPort(0);
+        sshServer.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        sshServer.setPasswordAuthenticator((username, password, session) ->
+                USER.equals(username) && PASSWORD.equals(password));
+        sshServer.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        sshServer.setFileSystemFactory(new VirtualFileSystemFactory(rootDir));
+        sshServer.setCommandFactory(new ProcessShellCommandFactory());
+
+        // Our handler goes first so that it can swallow keepalives when asked to.
+        List<RequestHandler<ConnectionService>> handlers = new ArrayList<>();
+        handlers.add(new SwallowingKeepAliveHandler());
+        handlers.addAll(sshServer.getGlobalRequestHandlers());
+        sshServer.setGlobalRequestHandlers(handlers);
+
+        sshServer.start();
+    }
+
+    public String getHost() {
+        return "localhost";
+    }
+
+    public int getPort() {
+        return sshServer.getPort();
+    }
+
+    public SshServer getSshServer() {
+        return sshServer;
+    }
+
+    /**
+     * When false, keepalive requests are accepted but never answered.
+     */
+    public void setRespondToKeepAlives(boolean respondToKeepAlives) {
+        this.respondToKeepAlives = respondToKeepAlives;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sshServer.stop(true);
+    }
+
+    private class SwallowingKeepAliveHandler implements RequestHandler<ConnectionService> {
+        @Override
+        public Result process(ConnectionService connectionService, String request, boolean wantReply, Buffer buffer)
+                throws Exception {
+            if (respondToKeepAlives) {
+                return KeepAliveHandler.INSTANCE.process(connectionService, request, wantReply, buffer);
+            }
+
+            // Claim we replied without sending anything back.
+            return request.startsWith("keepalive@") ? Result.Replied : Result.Unsupported;
+        }
+    }
+}
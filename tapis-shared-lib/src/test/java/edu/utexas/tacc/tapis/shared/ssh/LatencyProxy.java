@@ -0,0 +1,151 @@
+package edu.utexas.tacc.tapis.shared.ssh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A localhost tcp proxy that delays every chunk of data by a fixed one-way latency, which simulates a
+ * wide area network between a client and a server running in the same process.  Data is forwarded in
+ * both directions and throughput is not limited, only latency is added.
+ *
+ * The proxy can also inject a fault by abruptly closing every open connection once a given number of
+ * bytes has been forwarded, which simulates a link that fails in the middle of a transfer.
+ */
+public class LatencyProxy implements Closeable {
+
+    private final String targetHost;
+    private final int targetPort;
+    private final long oneWayDelayMillis;
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+    private volatile long dropAfterBytes;
+    private final AtomicLong forwardedBytes = new AtomicLong();
+
+    private record Chunk(long dueMillis, byte[] data) {}
+
+    public LatencyProxy(String targetHost, int targetPort, long oneWayDelayMillis) throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.oneWayDelayMillis = oneWayDelayMillis;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startDaemon(this::accept, "LatencyProxyAccept");
+    }
+
+    public String getHost() {
+        return "localhost";
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Close all connections once this many more bytes have been forwarded in either direction.  The fault
+     * fires once; connections made afterwards are forwarded normally.  Zero disables the fault.
+     */
+    public void dropConnectionsAfter(long bytes) {
+        forwardedBytes.set(0);
+        dropAfterBytes = bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(targetHost, targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                forward(client, server);
+                forward(server, client);
+            } catch (IOException e) {
+                // closed or target unavailable
+            }
+        }
+    }
+
+    /**
+     * Read from one socket and write to the other after the delay.  A reader thread timestamps the chunks
+     * so that the delay doesn't accumulate, and a writer thread releases each chunk when it's due.
+     */
+    private void forward(Socket from, Socket to) throws IOException {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        startDaemon(() -> {
+            byte[] buf = new byte[64 * 1024];
+            try {
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    queue.put(new Chunk(System.currentTimeMillis() + oneWayDelayMillis, Arrays.copyOf(buf, n)));
+                    long dropAfter = dropAfterBytes;
+                    if (dropAfter > 0 && forwardedBytes.addAndGet(n) >= dropAfter) {
+                        dropAfterBytes = 0;
+                        dropAll();
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                // socket closed
+            }
+            queue.add(new Chunk(0, null));
+        }, "LatencyProxyRead");
+        startDaemon(() -> {
+            try {
+                while (true) {
+                    Chunk chunk = queue.take();
+                    if (chunk.data() == null) {
+                        break;
+                    }
+                    long wait = chunk.dueMillis() - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                    out.write(chunk.data());
+                    out.flush();
+                }
+                to.shutdownOutput();
+            } catch (Exception e) {
+                // socket closed
+            }
+        }, "LatencyProxyWrite");
+    }
+
+    private void dropAll() {
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        sockets.clear();
+    }
+
+    private static void startDaemon(Runnable runnable, String name) {
+        Thread t = new Thread(runnable, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,211 @@
+package edu.utexas.tacc.tapis.shared.ssh;
+
+import edu.utexas.tacc.tapis.shared.ssh.apache.SSHConnection;
+import edu.utexas.tacc.tapis.shared.ssh.apache.SSHExecChannel;
+import edu.utexas.tacc.tapis.systems.client.gen.model.AuthnEnum;
+import edu.utexas.tacc.tapis.systems.client.gen.model.Credential;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests keepalive probing and eviction of unresponsive connections using an in-process ssh server.
+ */
+@Test(groups={"unit"})
+public class TestSshConnectionHealth {
+
+    private static final String TENANT = "testTenant";
+
+    private Path rootDir;
+    private EmbeddedSshServer server;
+    private Credential credential;
+    private final AtomicInteger credentialLookups = new AtomicInteger();
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        rootDir = Files.createTempDirectory("sshhealth");
+        server = new EmbeddedSshServer(rootDir);
+        credential = new Credential();
+        credential.setPassword(EmbeddedSshServer.PASSWORD);
+
+        // Recreate the pool singleton for each test.
+        Field poolInstanceField = SshSessionPool.class.getDeclaredField("instance");
+        poolInstanceField.setAccessible(true);
+        poolInstanceField.set(null, null);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws Exception {
+        if (SshSessionPool.getInstance() != null) {
+            SshSessionPool.getInstance().poolCleanupTaskFuture.cancel(true);
+        }
+        server.close();
+        FileUtils.deleteDirectory(rootDir.toFile());
+    }
+
+    @Test
+    public void testIsAlive() throws Exception {
+        SSHConnection conn = new SSHConnection(server.getHost(), server.getPort(),
+                EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD);
+        try {
+            Assert.assertTrue(conn.isAlive(5000));
+
+            // A server that doesn't answer looks like a dropped connection.
+            server.setRespondToKeepAlives(false);
+            Assert.assertFalse(conn.isAlive(500));
+        } finally {
+            conn.close();
+        }
+
+        // A closed connection is never alive.
+        Assert.assertFalse(conn.isAlive(500));
+    }
+
+    @Test
+    public void testPoolEvictsUnresponsiveConnections() throws Exception {
+        SshSessionPoolPolicy poolPolicy = SshSessionPoolPolicy.defaultPolicy()
+                .setCleanupInterval(Duration.ofMillis(500))
+                .setHealthCheckTimeout(Duration.ofMillis(500));
+        SshSessionPool.init(poolPolicy);
+
+        SshSessionPool.PooledSshSession<SSHExecChannel> channel = SshSessionPool.getInstance().borrowExecChannel(
+                TENANT, server.getHost(), server.getPort(), EmbeddedSshServer.USER, AuthnEnum.PASSWORD,
+                credential, Duration.ofSeconds(10));
+        channel.close();
+        Assert.assertEquals(SshSessionPool.getInstance().getConnectionStats().getConnectionCount(), 1);
+
+        // Healthy idle connections stay in the pool.
+        Thread.sleep(1500);
+        Assert.assertEquals(SshSessionPool.getInstance().getConnectionStats().getConnectionCount(), 1);
+        Assert.assertEquals(SshSessionPool.getInstance().getConnectionStats().getUnhealthyConnectionsEvicted(), 0);
+
+        // Unresponsive idle connections are evicted.
+        server.setRespondToKeepAlives(false);
+        SshSessionPoolStats stats = waitForEviction(Duration.ofSeconds(10));
+        Assert.assertTrue(stats.getUnhealthyConnectionsEvicted() >= 1);
+        Assert.assertEquals(stats.getConnectionCount(), 0);
+        Assert.assertEquals(stats.getUnhealthyConnectionsReplaced(), 0);
+    }
+
+    @Test
+    public void testPoolReplacesEvictedConnections() throws Exception {
+        SshSessionPoolPolicy poolPolicy = SshSessionPoolPolicy.defaultPolicy()
+                .setCleanupInterval(Duration.ofMillis(500))
+                .setHealthCheckTimeout(Duration.ofMillis(500))
+                .setReplaceUnhealthyConnections(true)
+                .setCredentialProvider((tenant, host, port, effectiveUserId, authnMethod) -> {
+                    credentialLookups.incrementAndGet();
+                    return credential;
+                });
+        SshSessionPool.init(poolPolicy);
+
+        SshSessionPool.PooledSshSession<SSHExecChannel> channel = SshSessionPool.getInstance().borrowExecChannel(
+                TENANT, server.getHost(), server.getPort(), EmbeddedSshServer.USER, AuthnEnum.PASSWORD,
+                credential, Duration.ofSeconds(10));
+        channel.close();
+
+        server.setRespondToKeepAlives(false);
+        waitForEviction(Duration.ofSeconds(10));
+        server.setRespondToKeepAlives(true);
+
+        long endTime = System.currentTimeMillis() + Duration.ofSeconds(10).toMillis();
+        SshSessionPoolStats stats = SshSessionPool.getInstance().getConnectionStats();
+        while ((stats.getUnhealthyConnectionsReplaced() == 0) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(100);
+            stats = SshSessionPool.getInstance().getConnectionStats();
+        }
+        Assert.assertTrue(stats.getUnhealthyConnectionsReplaced() >= 1);
+        Assert.assertTrue(stats.getConnectionCount() <= poolPolicy.getMaxConnectionsPerKey());
+
+        // The replacement fetched its credential instead of reusing the borrower's.
+        Assert.assertTrue(credentialLookups.get() >= 1);
+    }
+
+    @Test
+    public void testNoReplacementWithoutCredentialProvider() throws Exception {
+        SshSessionPoolPolicy poolPolicy = SshSessionPoolPolicy.defaultPolicy()
+                .setCleanupInterval(Duration.ofMillis(500))
+                .setHealthCheckTimeout(Duration.ofMillis(500))
+                .setReplaceUnhealthyConnections(true);
+        SshSessionPool.init(poolPolicy);
+
+        SshSessionPool.PooledSshSession<SSHExecChannel> channel = SshSessionPool.getInstance().borrowExecChannel(
+                TENANT, server.getHost(), server.getPort(), EmbeddedSshServer.USER, AuthnEnum.PASSWORD,
+                credential, Duration.ofSeconds(10));
+        channel.close();
+
+        server.setRespondToKeepAlives(false);
+        waitForEviction(Duration.ofSeconds(10));
+        server.setRespondToKeepAlives(true);
+        Thread.sleep(1500);
+
+        SshSessionPoolStats stats = SshSessionPool.getInstance().getConnectionStats();
+        Assert.assertTrue(stats.getUnhealthyConnectionsEvicted() >= 1);
+        Assert.assertEquals(stats.getUnhealthyConnectionsReplaced(), 0);
+        Assert.assertEquals(stats.getConnectionCount(), 0);
+    }
+
+    @Test
+    public void testProbesRunInParallel() throws Exception {
+        SshSessionPoolPolicy poolPolicy = SshSessionPoolPolicy.defaultPolicy()
+                .setCleanupInterval(Duration.ofMillis(500))
+                .setHealthCheckTimeout(Duration.ofMillis(2000));
+        SshSessionPool.init(poolPolicy);
+
+        // One connection in each of several groups.
+        int groups = 4;
+        for (int i = 0; i < groups; i++) {
+            SshSessionPool.getInstance().borrowExecChannel(TENANT + i, server.getHost(), server.getPort(),
+                    EmbeddedSshServer.USER, AuthnEnum.PASSWORD, credential, Duration.ofSeconds(10)).close();
+        }
+
+        // Probed one after another, the unresponsive connections would take at least groups * timeout
+        // to evict.
+        server.setRespondToKeepAlives(false);
+        long endTime = System.currentTimeMillis() + 5000;
+        SshSessionPoolStats stats = SshSessionPool.getInstance().getConnectionStats();
+        while ((stats.getUnhealthyConnectionsEvicted() < groups) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(100);
+            stats = SshSessionPool.getInstance().getConnectionStats();
+        }
+        Assert.assertEquals(stats.getUnhealthyConnectionsEvicted(), groups);
+        Assert.assertEquals(stats.getConnectionCount(), 0);
+    }
+
+    @Test
+    public void testHealthCheckDisabled() throws Exception {
+        SshSessionPoolPolicy poolPolicy = SshSessionPoolPolicy.defaultPolicy()
+                .setCleanupInterval(Duration.ofMillis(500))
+                .setHealthCheckTimeout(Duration.ofMillis(500))
+                .setHealthCheckEnabled(false);
+        SshSessionPool.init(poolPolicy);
+
+        SshSessionPool.PooledSshSession<SSHExecChannel> channel = SshSessionPool.getInstance().borrowExecChannel(
+                TENANT, server.getHost(), server.getPort(), EmbeddedSshServer.USER, AuthnEnum.PASSWORD,
+                credential, Duration.ofSeconds(10));
+        channel.close();
+
+        server.setRespondToKeepAlives(false);
+        Thread.sleep(2000);
+        Assert.assertEquals(SshSessionPool.getInstance().getConnectionStats().getConnectionCount(), 1);
+        Assert.assertEquals(SshSessionPool.getInstance().getConnectionStats().getUnhealthyConnectionsEvicted(), 0);
+    }
+
+    private SshSessionPoolStats waitForEviction(Duration wait) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + wait.toMillis();
+        SshSessionPoolStats stats = SshSessionPool.getInstance().getConnectionStats();
+        while ((stats.getUnhealthyConnectionsEvicted() == 0) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(100);
+            stats = SshSessionPool.getInstance().getConnectionStats();
+        }
+        return stats;
+    }
+}
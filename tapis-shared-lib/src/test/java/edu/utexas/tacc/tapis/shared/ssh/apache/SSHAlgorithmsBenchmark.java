@@ -0,0 +1,104 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.utexas.tacc.tapis.shared.ssh.EmbeddedSshServer;
+
+/** Measure sftp transfer throughput for a set of cipher, MAC and compression
+ * preferences against an in-process ssh server.  Operators can use the results
+ * to choose the fastest algorithms to configure for their hosts, though absolute
+ * numbers over loopback will be higher than over a real network.
+ * 
+ * Usage: SSHAlgorithmsBenchmark [megabytes] [iterations]
+ * 
+ * Each algorithm set uploads and downloads both random (incompressible) data 
+ * and repetitive text (compressible) data.  The first iteration of each set is
+ * treated as warmup and not reported.
+ */
+public class SSHAlgorithmsBenchmark 
+{
+    private static final int BUFSIZE = 64 * 1024;
+    
+    public static void main(String[] args) throws Exception 
+    {
+        int megabytes  = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        
+        // The algorithm sets to compare.
+        var algorithmSets = new LinkedHashMap<String, SSHAlgorithms>();
+        algorithmSets.put("library defaults", null);
+        algorithmSets.put("aes128-gcm", new SSHAlgorithms().setCiphers("aes128-gcm@openssh.com"));
+        algorithmSets.put("aes256-gcm", new SSHAlgorithms().setCiphers("aes256-gcm@openssh.com"));
+        algorithmSets.put("chacha20-poly1305", new SSHAlgorithms().setCiphers("chacha20-poly1305@openssh.com"));
+        algorithmSets.put("aes128-ctr/hmac-sha2-256-etm", new SSHAlgorithms().setCiphers("aes128-ctr")
+                                                                .setMacs("hmac-sha2-256-etm@openssh.com"));
+        algorithmSets.put("aes128-gcm/zlib@openssh", new SSHAlgorithms().setCiphers("aes128-gcm@openssh.com")
+                                                               .setCompressions("zlib@openssh.com"));
+        
+        // Test payloads.
+        var random = new byte[megabytes * 1024 * 1024];
+        new Random(42).nextBytes(random);
+        var text = new byte[random.length];
+        var line = "2023-01-01T00:00:00Z INFO job 1234 transitioned to state RUNNING\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < text.length; i++) text[i] = line[i % line.length];
+        
+        Path rootDir = Files.createTempDirectory("sshbench");
+        try (var server = new EmbeddedSshServer(rootDir)) {
+            System.out.printf("%-30s %-8s %12s %12s%n", "algorithms", "data", "upload MB/s", "download MB/s");
+            for (var entry : algorithmSets.entrySet()) {
+                run(server, entry.getKey(), entry.getValue(), "random", random, iterations);
+                run(server, entry.getKey(), entry.getValue(), "text", text, iterations);
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(rootDir.toFile());
+        }
+    }
+    
+    private static void run(EmbeddedSshServer server, String name, SSHAlgorithms algorithms,
+                            String dataName, byte[] data, int iterations) 
+     throws Exception
+    {
+        try (var conn = new SSHConnection(server.getHost(), server.getPort(), EmbeddedSshServer.USER,
+                                          EmbeddedSshServer.PASSWORD, new SSHTimeouts(), algorithms);
+             var sftp = conn.getSftpClient()) 
+        {
+            double uploadMBs = 0, downloadMBs = 0;
+            var buf = new byte[BUFSIZE];
+            for (int i = 0; i <= iterations; i++) {
+                long start = System.nanoTime();
+                try (OutputStream out = sftp.write("bench.dat", BUFSIZE)) {
+                    for (int off = 0; off < data.length; off += BUFSIZE)
+                        out.write(data, off, Math.min(BUFSIZE, data.length - off));
+                }
+                long uploadNanos = System.nanoTime() - start;
+                
+                start = System.nanoTime();
+                try (InputStream in = sftp.read("bench.dat", BUFSIZE)) {
+                    while (in.read(buf) >= 0) {}
+                }
+                long downloadNanos = System.nanoTime() - start;
+                
+                // Skip the warmup iteration.
+                if (i == 0) continue;
+                uploadMBs += mbPerSecond(data.length, uploadNanos);
+                downloadMBs += mbPerSecond(data.length, downloadNanos);
+            }
+            System.out.printf("%-30s %-8s %12.1f %12.1f%n", name, dataName, 
+                              uploadMBs / iterations, downloadMBs / iterations);
+        }
+    }
+    
+    private static double mbPerSecond(long bytes, long nanos)
+    {
+        return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+}
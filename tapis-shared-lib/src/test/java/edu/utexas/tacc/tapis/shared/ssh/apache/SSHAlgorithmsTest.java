@@ -0,0 +1,106 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sshd.common.kex.KexProposalOption;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.shared.ssh.EmbeddedSshServer;
+import edu.utexas.tacc.tapis.shared.ssh.SshSessionPoolPolicy;
+
+/** Verify that algorithm preferences are what get negotiated with the server. */
+@Test(groups={"unit"})
+public class SSHAlgorithmsTest 
+{
+    private Path              _rootDir;
+    private EmbeddedSshServer _server;
+    
+    @BeforeClass
+    public void setup() throws Exception
+    {
+        _rootDir = Files.createTempDirectory("sshalgs");
+        _server = new EmbeddedSshServer(_rootDir);
+    }
+    
+    @AfterClass
+    public void teardown() throws Exception
+    {
+        _server.close();
+        FileUtils.deleteDirectory(_rootDir.toFile());
+    }
+    
+    @Test
+    public void testPreferredCipherAndCompression() throws Exception
+    {
+        var algorithms = new SSHAlgorithms()
+            .setCiphers("aes128-gcm@openssh.com")
+            .setCompressions("zlib@openssh.com");
+        try (var conn = connect(algorithms)) {
+            var session = conn.getSession();
+            Assert.assertEquals(session.getNegotiatedKexParameter(KexProposalOption.C2SENC), "aes128-gcm@openssh.com");
+            Assert.assertEquals(session.getNegotiatedKexParameter(KexProposalOption.S2CENC), "aes128-gcm@openssh.com");
+            Assert.assertEquals(session.getNegotiatedKexParameter(KexProposalOption.C2SCOMP), "zlib@openssh.com");
+        }
+    }
+    
+    @Test
+    public void testPreferredCipherAndMac() throws Exception
+    {
+        var algorithms = new SSHAlgorithms()
+            .setCiphers("aes256-ctr")
+            .setMacs("hmac-sha2-512");
+        try (var conn = connect(algorithms)) {
+            var session = conn.getSession();
+            Assert.assertEquals(session.getNegotiatedKexParameter(KexProposalOption.C2SENC), "aes256-ctr");
+            Assert.assertEquals(session.getNegotiatedKexParameter(KexProposalOption.C2SMAC), "hmac-sha2-512");
+            Assert.assertEquals(session.getNegotiatedKexParameter(KexProposalOption.C2SCOMP), "none");
+        }
+    }
+    
+    @Test
+    public void testDefaultsRemainAsFallback() throws Exception
+    {
+        // The server doesn't accept the preferred cipher, so a default is negotiated.
+        var serverCiphers = _server.getSshServer().getCipherFactories();
+        _server.getSshServer().setCipherFactoriesNames("aes256-ctr");
+        try (var conn = connect(new SSHAlgorithms().setCiphers("aes128-ctr"))) {
+            Assert.assertEquals(conn.getSession().getNegotiatedKexParameter(KexProposalOption.C2SENC), "aes256-ctr");
+        } finally {
+            _server.getSshServer().setCipherFactories(serverCiphers);
+        }
+    }
+    
+    @Test(expectedExceptions = TapisException.class)
+    public void testUnsupportedAlgorithm() throws Exception
+    {
+        connect(new SSHAlgorithms().setCiphers("no-such-cipher")).close();
+    }
+    
+    @Test
+    public void testPolicyHostAlgorithms()
+    {
+        var poolWide = new SSHAlgorithms().setCiphers("aes128-ctr");
+        var hostSpecific = new SSHAlgorithms().setCiphers("aes128-gcm@openssh.com");
+        var policy = SshSessionPoolPolicy.defaultPolicy();
+        Assert.assertNull(policy.getAlgorithms("host1"));
+        
+        policy.setAlgorithms(poolWide).setHostAlgorithms("host1", hostSpecific);
+        Assert.assertSame(policy.getAlgorithms("host1"), hostSpecific);
+        Assert.assertSame(policy.getAlgorithms("host2"), poolWide);
+        
+        policy.setHostAlgorithms("host1", null);
+        Assert.assertSame(policy.getAlgorithms("host1"), poolWide);
+    }
+    
+    private SSHConnection connect(SSHAlgorithms algorithms) throws TapisException
+    {
+        return new SSHConnection(_server.getHost(), _server.getPort(), EmbeddedSshServer.USER,
+                                 EmbeddedSshServer.PASSWORD, new SSHTimeouts(), algorithms);
+    }
+}
@@ -0,0 +1,144 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sshd.server.command.CommandFactory;
+import org.apache.sshd.server.shell.ProcessShellCommandFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.shared.ssh.EmbeddedSshServer;
+import edu.utexas.tacc.tapis.shared.ssh.apache.SSHChecksum.Algorithm;
+import edu.utexas.tacc.tapis.shared.ssh.apache.SSHChecksum.Source;
+
+/** Compute remote checksums against an in-process ssh server.  The server's sftp
+ * root is the filesystem root so that sftp and exec see the same absolute paths.
+ */
+@Test(groups={"unit"})
+public class SSHChecksumTest
+{
+    private Path              _dir;
+    private Path              _file;
+    private byte[]            _data;
+    private Path              _notFoundScript;
+    private EmbeddedSshServer _server;
+    private SSHConnection     _conn;
+
+    @BeforeClass
+    public void setup() throws Exception
+    {
+        _dir = Files.createTempDirectory("sshchecksum");
+        _data = new byte[300 * 1024];
+        new Random(42).nextBytes(_data);
+        _file = Files.write(_dir.resolve("data file.bin"), _data);
+
+        // A command that behaves like a missing checksum tool.
+        _notFoundScript = Files.writeString(_dir.resolve("notfound.sh"), "#!/bin/sh\nexit 127\n");
+        Files.setPosixFilePermissions(_notFoundScript, PosixFilePermissions.fromString("rwx------"));
+
+        _server = new EmbeddedSshServer(Path.of("/"));
+        _conn = new SSHConnection(_server.getHost(), _server.getPort(),
+                                  EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD);
+    }
+
+    @AfterClass
+    public void teardown() throws Exception
+    {
+        _conn.close();
+        _server.close();
+        FileUtils.deleteDirectory(_dir.toFile());
+    }
+
+    @AfterMethod
+    public void restoreCommands()
+    {
+        _server.getSshServer().setCommandFactory(new ProcessShellCommandFactory());
+    }
+
+    @Test
+    public void testCheckFileExtension() throws Exception
+    {
+        for (Algorithm alg : Algorithm.values()) {
+            var result = new SSHChecksum(_conn, alg).remoteChecksum(_file.toString());
+            Assert.assertEquals(result.source(), Source.SFTP_CHECK_FILE);
+            Assert.assertEquals(result.checksum(), localHex(alg));
+        }
+    }
+
+    @Test
+    public void testRemoteCommand() throws Exception
+    {
+        for (Algorithm alg : Algorithm.values()) {
+            var checksum = new SSHChecksum(_conn, alg).setSources(Source.REMOTE_COMMAND, Source.READ_BACK);
+            var result = checksum.remoteChecksum(_file.toString());
+            Assert.assertEquals(result.source(), Source.REMOTE_COMMAND);
+            Assert.assertEquals(result.checksum(), localHex(alg));
+        }
+    }
+
+    @Test
+    public void testMissingToolFallsBackToReadBack() throws Exception
+    {
+        CommandFactory notFound = (channel, command) ->
+            new ProcessShellCommandFactory().createCommand(channel, _notFoundScript.toString());
+        _server.getSshServer().setCommandFactory(notFound);
+
+        var checksum = new SSHChecksum(_conn, Algorithm.SHA256).setSources(Source.REMOTE_COMMAND, Source.READ_BACK);
+        var result = checksum.remoteChecksum(_file.toString());
+        Assert.assertEquals(result.source(), Source.READ_BACK);
+        Assert.assertEquals(result.checksum(), localHex(Algorithm.SHA256));
+
+        // Without the fallback, which is off by default, there's no way to compute the checksum.
+        checksum.setSources(Source.REMOTE_COMMAND);
+        Assert.expectThrows(TapisException.class, () -> checksum.remoteChecksum(_file.toString()));
+        Assert.assertFalse(new SSHChecksum(_conn, Algorithm.SHA256).getSources().contains(Source.READ_BACK));
+    }
+
+    @Test
+    public void testUploadAndDownload() throws Exception
+    {
+        var checksum = new SSHChecksum(_conn, Algorithm.SHA256);
+        String remote = _dir.resolve("uploaded.bin").toString();
+        var result = checksum.uploadAndVerify(new ByteArrayInputStream(_data), remote);
+        Assert.assertEquals(result.checksum(), localHex(Algorithm.SHA256));
+        Assert.assertEquals(Files.readAllBytes(Path.of(remote)), _data);
+
+        var out = new ByteArrayOutputStream();
+        result = checksum.downloadAndVerify(remote, out);
+        Assert.assertEquals(out.toByteArray(), _data);
+        Assert.assertEquals(result.source(), Source.SFTP_CHECK_FILE);
+    }
+
+    @Test
+    public void testMismatch() throws Exception
+    {
+        var checksum = new SSHChecksum(_conn, Algorithm.MD5);
+        String expected = localHex(Algorithm.MD5);
+        Assert.assertEquals(checksum.verify(_file.toString(), expected.toUpperCase()).checksum(), expected);
+
+        var e = Assert.expectThrows(TapisException.class,
+                                    () -> checksum.verify(_file.toString(), "0".repeat(32)));
+        Assert.assertTrue(e.getMessage().contains("TAPIS_SSH_CHECKSUM_MISMATCH"));
+
+        var missing = Assert.expectThrows(TapisException.class,
+                                          () -> checksum.remoteChecksum(_dir.resolve("missing").toString()));
+        Assert.assertTrue(missing.getMessage().contains("TAPIS_SSH_CHECKSUM_UNAVAILABLE"));
+    }
+
+    private String localHex(Algorithm alg) throws Exception
+    {
+        return HexFormat.of().formatHex(MessageDigest.getInstance(alg.getJavaName()).digest(_data));
+    }
+}
@@ -0,0 +1,146 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.shared.ssh.EmbeddedSshServer;
+import edu.utexas.tacc.tapis.shared.ssh.LatencyProxy;
+
+/** Interrupt transfers by dropping the connection part way through, then resume
+ * them over a new connection.
+ */
+@Test(groups={"unit"})
+public class SSHSftpResumableTransferTest
+{
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private Path              _rootDir;
+    private Path              _localDir;
+    private byte[]            _data;
+    private EmbeddedSshServer _server;
+    private LatencyProxy      _proxy;
+
+    @BeforeClass
+    public void setup() throws Exception
+    {
+        _rootDir = Files.createTempDirectory("sftpresume-remote");
+        _localDir = Files.createTempDirectory("sftpresume-local");
+        _data = new byte[2 * 1024 * 1024 + 1234];
+        new Random(7).nextBytes(_data);
+        _server = new EmbeddedSshServer(_rootDir);
+        _proxy = new LatencyProxy(_server.getHost(), _server.getPort(), 0);
+    }
+
+    @AfterClass
+    public void teardown() throws Exception
+    {
+        _proxy.close();
+        _server.close();
+        FileUtils.deleteDirectory(_rootDir.toFile());
+        FileUtils.deleteDirectory(_localDir.toFile());
+    }
+
+    @Test
+    public void testInterruptedUpload() throws Exception
+    {
+        Path local = Files.write(_localDir.resolve("up.bin"), _data);
+
+        // The first attempt fails part way through.
+        _proxy.dropConnectionsAfter(_data.length / 2);
+        Assert.expectThrows(TapisException.class, () -> transfer(true, local, "/up.bin"));
+        awaitServerIdle();
+        long partial = Files.size(_rootDir.resolve("up.bin.tapis-part"));
+        Assert.assertTrue(partial > 0 && partial < _data.length, "partial size " + partial);
+        Assert.assertFalse(Files.exists(_rootDir.resolve("up.bin")));
+
+        // The second attempt resumes from the last complete block.
+        var result = transfer(true, local, "/up.bin");
+        Assert.assertEquals(result.resumeOffset(), partial - partial % BLOCK_SIZE);
+        Assert.assertEquals(Files.readAllBytes(_rootDir.resolve("up.bin")), _data);
+        Assert.assertFalse(Files.exists(_rootDir.resolve("up.bin.tapis-part")));
+    }
+
+    @Test
+    public void testInterruptedDownload() throws Exception
+    {
+        Files.write(_rootDir.resolve("down.bin"), _data);
+        Path local = _localDir.resolve("down.bin");
+
+        _proxy.dropConnectionsAfter(_data.length / 2);
+        Assert.expectThrows(TapisException.class, () -> transfer(false, local, "/down.bin"));
+        awaitServerIdle();
+        long partial = Files.size(_localDir.resolve("down.bin.tapis-part"));
+        Assert.assertTrue(partial > 0 && partial < _data.length, "partial size " + partial);
+
+        var result = transfer(false, local, "/down.bin");
+        Assert.assertEquals(result.resumeOffset(), partial - partial % BLOCK_SIZE);
+        Assert.assertEquals(result.bytesTransferred(), _data.length - result.resumeOffset());
+        Assert.assertEquals(Files.readAllBytes(local), _data);
+        Assert.assertFalse(Files.exists(_localDir.resolve("down.bin.tapis-part")));
+    }
+
+    @Test
+    public void testCorruptPrefixIsResent() throws Exception
+    {
+        // A partial file whose fourth block doesn't match the source.
+        Path local = Files.write(_localDir.resolve("corrupt.bin"), _data);
+        byte[] prefix = Arrays.copyOf(_data, 10 * BLOCK_SIZE);
+        prefix[3 * BLOCK_SIZE + 17] ^= 1;
+        Files.write(_rootDir.resolve("corrupt.bin.tapis-part"), prefix);
+
+        var result = transfer(true, local, "/corrupt.bin");
+        Assert.assertEquals(result.resumeOffset(), 3 * BLOCK_SIZE);
+        Assert.assertEquals(Files.readAllBytes(_rootDir.resolve("corrupt.bin")), _data);
+
+        // Without verification the corrupt block would have been kept.
+        Files.write(_rootDir.resolve("corrupt.bin.tapis-part"), prefix);
+        try (var conn = connect(); var sftp = conn.getSftpClient()) {
+            result = new SSHSftpResumableTransfer(sftp).setBlockSize(BLOCK_SIZE).setVerifyPrefix(false)
+                                                       .upload(local, "/corrupt.bin");
+        }
+        Assert.assertEquals(result.resumeOffset(), 10 * BLOCK_SIZE);
+    }
+
+    @Test
+    public void testOversizedPartialRestarts() throws Exception
+    {
+        Path local = Files.write(_localDir.resolve("small.bin"), new byte[] {1, 2, 3});
+        Files.write(_rootDir.resolve("small.bin.tapis-part"), _data);
+        Files.write(_rootDir.resolve("small.bin"), _data);
+
+        var result = transfer(true, local, "/small.bin");
+        Assert.assertEquals(result.resumeOffset(), 0);
+        Assert.assertEquals(Files.readAllBytes(_rootDir.resolve("small.bin")), new byte[] {1, 2, 3});
+    }
+
+    private SSHSftpResumableTransfer.TransferResult transfer(boolean upload, Path local, String remote)
+     throws Exception
+    {
+        try (var conn = connect(); var sftp = conn.getSftpClient()) {
+            var transfer = new SSHSftpResumableTransfer(sftp).setBlockSize(BLOCK_SIZE);
+            return upload ? transfer.upload(local, remote) : transfer.download(remote, local);
+        }
+    }
+
+    /** The server may still be writing requests that arrived before the drop. */
+    private void awaitServerIdle() throws Exception
+    {
+        for (int i = 0; i < 100 && !_server.getSshServer().getActiveSessions().isEmpty(); i++) Thread.sleep(50);
+        Assert.assertTrue(_server.getSshServer().getActiveSessions().isEmpty());
+    }
+
+    private SSHConnection connect() throws Exception
+    {
+        return new SSHConnection(_proxy.getHost(), _proxy.getPort(),
+                                 EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD);
+    }
+}
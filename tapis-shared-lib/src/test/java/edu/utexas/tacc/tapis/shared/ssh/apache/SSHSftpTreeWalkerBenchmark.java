@@ -0,0 +1,76 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.utexas.tacc.tapis.shared.ssh.EmbeddedSshServer;
+import edu.utexas.tacc.tapis.shared.ssh.LatencyProxy;
+
+/** Compare a one-directory-at-a-time walk with pipelined walks of a large
+ * tree served by an in-process ssh server behind a simulated WAN link.
+ * 
+ * Usage: SSHSftpTreeWalkerBenchmark [entries] [one-way latency ms]
+ * 
+ * The default is a 50 000 entry tree (about 2 500 directories of 19 files)
+ * with 10ms of one-way latency.  The sequential walk takes several minutes
+ * at that latency, which is the point.
+ */
+public class SSHSftpTreeWalkerBenchmark 
+{
+    private static final int FILES_PER_DIR = 19;
+    private static final int FANOUT = 50;
+    
+    public static void main(String[] args) throws Exception 
+    {
+        int entries   = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int latencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        
+        // Build tree/dNN/dNN/fNN until we have the requested number of entries.
+        Path rootDir = Files.createTempDirectory("sftpwalkbench");
+        Path tree = Files.createDirectory(rootDir.resolve("tree"));
+        int created = 0;
+        for (int i = 0; i < FANOUT && created < entries; i++) {
+            Path top = Files.createDirectory(tree.resolve("d" + i)); created++;
+            for (int j = 0; j < FANOUT && created < entries; j++) {
+                Path leaf = Files.createDirectory(top.resolve("d" + j)); created++;
+                for (int k = 0; k < FILES_PER_DIR && created < entries; k++) {
+                    Files.createFile(leaf.resolve("f" + k)); created++;
+                }
+            }
+        }
+        System.out.println("Created " + created + " entries, one-way latency " + latencyMs + "ms");
+        
+        try (var server = new EmbeddedSshServer(rootDir);
+             var proxy = new LatencyProxy(server.getHost(), server.getPort(), latencyMs);
+             var conn = new SSHConnection(proxy.getHost(), proxy.getPort(), 
+                                          EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD)) 
+        {
+            List<SSHSftpClient> clients = new ArrayList<>();
+            for (int i = 0; i < 4; i++) clients.add(conn.getSftpClient());
+            
+            System.out.printf("%-32s %10s %10s %12s%n", "configuration", "entries", "millis", "entries/s");
+            run("1 client, 1 in flight", List.of(clients.get(0)), 1);
+            run("1 client, 16 in flight", List.of(clients.get(0)), 16);
+            run("1 client, 64 in flight", List.of(clients.get(0)), 64);
+            run("4 clients, 64 in flight", clients, 64);
+            
+            for (var client : clients) client.close();
+        }
+        finally {
+            FileUtils.deleteDirectory(rootDir.toFile());
+        }
+    }
+    
+    private static void run(String name, List<SSHSftpClient> clients, int inFlight) throws Exception
+    {
+        var walker = new SSHSftpTreeWalker(clients).setMaxInFlight(inFlight);
+        long start = System.nanoTime();
+        long count = walker.walk("/tree", entry -> {});
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.printf("%-32s %10d %10d %12.0f%n", name, count, millis, count * 1000.0 / Math.max(1, millis));
+    }
+}
@@ -0,0 +1,128 @@
+package edu.utexas.tacc.tapis.shared.ssh.apache;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
+import edu.utexas.tacc.tapis.shared.ssh.EmbeddedSshServer;
+
+/** Walk a small local tree served by an in-process ssh server. */
+@Test(groups={"unit"})
+public class SSHSftpTreeWalkerTest 
+{
+    private Path              _rootDir;
+    private EmbeddedSshServer _server;
+    private SSHConnection     _conn;
+    private SSHSftpClient     _sftp1;
+    private SSHSftpClient     _sftp2;
+    
+    @BeforeClass
+    public void setup() throws Exception
+    {
+        // tree/d0..d2/e0..e2/f0..f3 plus a file at each directory level.
+        _rootDir = Files.createTempDirectory("sftpwalk");
+        Path tree = Files.createDirectory(_rootDir.resolve("tree"));
+        Files.writeString(tree.resolve("top.txt"), "top");
+        for (int d = 0; d < 3; d++) {
+            Path dDir = Files.createDirectory(tree.resolve("d" + d));
+            Files.writeString(dDir.resolve("mid.txt"), "mid");
+            for (int e = 0; e < 3; e++) {
+                Path eDir = Files.createDirectory(dDir.resolve("e" + e));
+                for (int f = 0; f < 4; f++) Files.writeString(eDir.resolve("f" + f), "leaf");
+            }
+        }
+        
+        _server = new EmbeddedSshServer(_rootDir);
+        _conn = new SSHConnection(_server.getHost(), _server.getPort(), 
+                                  EmbeddedSshServer.USER, EmbeddedSshServer.PASSWORD);
+        _sftp1 = _conn.getSftpClient();
+        _sftp2 = _conn.getSftpClient();
+    }
+    
+    @AfterClass
+    public void teardown() throws Exception
+    {
+        _sftp1.close();
+        _sftp2.close();
+        _conn.close();
+        _server.close();
+        FileUtils.deleteDirectory(_rootDir.toFile());
+    }
+    
+    @Test
+    public void testFullWalk() throws Exception
+    {
+        Set<String> expected;
+        try (Stream<Path> paths = Files.walk(_rootDir.resolve("tree"))) {
+            expected = paths.filter(p -> !p.equals(_rootDir.resolve("tree")))
+                            .map(p -> "/" + _rootDir.relativize(p).toString().replace('\\', '/'))
+                            .collect(Collectors.toSet());
+        }
+        
+        for (int inFlight : new int[] {1, 4, 16}) {
+            var found = new HashSet<String>();
+            var walker = new SSHSftpTreeWalker(List.of(_sftp1, _sftp2)).setMaxInFlight(inFlight);
+            long count = walker.walk("/tree/", entry -> Assert.assertTrue(found.add(entry.path())));
+            Assert.assertEquals(found, expected);
+            Assert.assertEquals(count, expected.size());
+        }
+    }
+    
+    @Test
+    public void testMaxDepth() throws Exception
+    {
+        var entries = new ArrayList<SSHSftpTreeWalker.RemoteEntry>();
+        long count = new SSHSftpTreeWalker(_sftp1).setMaxDepth(2).walk("/tree", entries::add);
+        
+        // 1 file + 3 directories at depth 1, 3 x (1 file + 3 directories) at depth 2.
+        Assert.assertEquals(count, 16);
+        Assert.assertTrue(entries.stream().allMatch(e -> e.depth() <= 2));
+        Assert.assertEquals(entries.stream().filter(e -> e.depth() == 1).count(), 4);
+    }
+    
+    @Test
+    public void testFilterPrunes() throws Exception
+    {
+        var entries = new ArrayList<SSHSftpTreeWalker.RemoteEntry>();
+        new SSHSftpTreeWalker(_sftp1)
+            .setFilter(e -> !e.filename().equals("d1"))
+            .walk("/tree", entries::add);
+        
+        // Everything under d1 is skipped along with d1 itself.
+        Assert.assertEquals(entries.size(), 1 + 2 * (1 + 1 + 3 + 12));
+        Assert.assertTrue(entries.stream().noneMatch(e -> e.path().contains("/d1")));
+    }
+    
+    @Test
+    public void testMaxEntries() throws Exception
+    {
+        var entries = new ArrayList<SSHSftpTreeWalker.RemoteEntry>();
+        long count = new SSHSftpTreeWalker(_sftp1).setMaxEntries(10).walk("/tree", entries::add);
+        Assert.assertEquals(count, 10);
+        Assert.assertEquals(entries.size(), 10);
+        
+        // A limit of zero emits nothing.
+        entries.clear();
+        count = new SSHSftpTreeWalker(_sftp1).setMaxEntries(0).walk("/tree", entries::add);
+        Assert.assertEquals(count, 0);
+        Assert.assertTrue(entries.isEmpty());
+    }
+    
+    @Test(expectedExceptions = TapisException.class)
+    public void testMissingRoot() throws Exception
+    {
+        new SSHSftpTreeWalker(_sftp1).walk("/no/such/dir", entry -> {});
+    }
+}
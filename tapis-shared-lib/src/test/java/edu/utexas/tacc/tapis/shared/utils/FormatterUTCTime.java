@@ -0,0 +1,69 @@
+package edu.utexas.tacc.tapis.shared.utils;
+
+import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+
+import org.apache.commons.lang3.StringUtils;
+
+/** The former TapisUtils.getUTCTimeFromString(), which tries java.time formatters
+ * in turn and falls through on exceptions.  Kept as the reference implementation
+ * for tests and benchmarks of the hand-written parser in TapisUtils.
+ */
+final class FormatterUTCTime
+{
+    private static final DateTimeFormatter[] UTC_IN_FORMATTERS = {
+      new DateTimeFormatterBuilder().parseCaseInsensitive().append(ISO_LOCAL_DATE)
+              .appendLiteral('T').appendPattern("HH").appendLiteral(":").appendPattern("mm")
+              .appendLiteral(":").appendPattern("ss").appendLiteral(".").appendPattern("nnnnnn")
+              .optionalStart().appendOffset("+HH:MM", "Z").toFormatter(),
+      new DateTimeFormatterBuilder().parseCaseInsensitive().append(ISO_LOCAL_DATE)
+            .appendLiteral('T').appendPattern("HH").appendLiteral(":").appendPattern("mm")
+            .optionalStart().appendOffset("+HH:MM", "Z").toFormatter(),
+      new DateTimeFormatterBuilder().parseCaseInsensitive().append(ISO_LOCAL_DATE)
+            .appendLiteral('T').appendPattern("HH")
+            .optionalStart().appendOffset("+HH:MM", "Z").toFormatter()
+    };
+
+    private FormatterUTCTime() {}
+
+    static LocalDateTime getUTCTimeFromString(String timeStr) throws DateTimeParseException
+    {
+      if (StringUtils.isBlank(timeStr)) throw new DateTimeParseException("Empty timestamp string", "", 0);
+      if (timeStr.endsWith("Z")) timeStr = timeStr.substring(0, timeStr.length()-1);
+      if (timeStr.length() < 4) throw new DateTimeParseException("Less than 4 characters in string", timeStr, 0);
+      if (timeStr.length() == 4) timeStr += "-01-01T00:00:00";
+      else if (timeStr.length() == 7) timeStr += "-01T00:00:00";
+      else if (timeStr.length() == 10)
+      {
+        if (timeStr.charAt(7) != ':') timeStr += "T00:00:00";
+        else timeStr = timeStr.substring(0,4) + "-01-01T00:00:00" + timeStr.substring(4,10);
+      }
+      else if (timeStr.length() == 13)
+      {
+        if (timeStr.charAt(10) == ':' && (timeStr.charAt(7) == '+' || timeStr.charAt(7) == '-'))
+          timeStr = timeStr.substring(0, 7) + "-01T00:00:00" + timeStr.substring(7, 13);
+      }
+      else if (timeStr.length() == 16)
+      {
+        if (timeStr.charAt(13) == ':' && (timeStr.charAt(10) == '+' || timeStr.charAt(10) == '-'))
+          timeStr = timeStr.substring(0, 10) + "T00:00:00" + timeStr.substring(10, 16);
+      }
+
+      try { return LocalDateTime.ofInstant(Instant.parse(timeStr),ZoneOffset.UTC); }
+      catch (DateTimeParseException e) { }
+      try { return LocalDateTime.parse(timeStr); }
+      catch (DateTimeParseException e) { }
+      for (DateTimeFormatter formatter : UTC_IN_FORMATTERS)
+      {
+        try { return LocalDateTime.parse(timeStr, formatter); }
+        catch (DateTimeParseException e) { }
+      }
+      throw new DateTimeParseException("Not a valid Tapis Timestamp", timeStr, 0);
+    }
+}
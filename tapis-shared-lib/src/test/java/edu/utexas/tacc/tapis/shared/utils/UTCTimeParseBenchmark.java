@@ -0,0 +1,58 @@
+package edu.utexas.tacc.tapis.shared.utils;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.function.Function;
+
+/** Measure TapisUtils.getUTCTimeFromString() and TapisUtils.parseUTCTime() with the
+ * hand-written parser against the former formatter based implementation in
+ * FormatterUTCTime, for timestamps in each accepted form and for invalid timestamps.
+ * For invalid timestamps getUTCTimeFromString() still throws, parseUTCTime() does not.
+ * 
+ * Usage: UTCTimeParseBenchmark [iterations] [rounds]
+ * 
+ * Each round parses every timestamp of a form iterations times.  Only the last
+ * round is reported, the earlier ones warm up the JIT.
+ */
+public class UTCTimeParseBenchmark 
+{
+    private static final String[][] FORMS = {
+        {"date",     "2021-04-29", "2021", "2021-04-29Z"},
+        {"minutes",  "2021-04-29T20:15", "2021-04-29T20:15Z", "2021-04-29T20:15-06:00"},
+        {"seconds",  "2021-04-29T20:15:52", "2021-04-29T20:15:52Z", "2021-04-29T20:15:52+01:00"},
+        {"fraction", "2021-04-29T20:15:52.123456Z", "2021-04-29T20:15:52.5", "2021-04-29T20:15:52.123-06:00"},
+        {"invalid",  "yesterday", "2021-13-29", "2021-04-29T20:15:52X"},
+    };
+    
+    public static void main(String[] args) 
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds     = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        
+        for (int r = 1; r <= rounds; r++) {
+            boolean print = r == rounds;
+            if (print) System.out.printf("%-10s %22s %18s %18s%n", "form", "getUTCTimeFromString", "parseUTCTime",
+                                         "formatters");
+            for (String[] form : FORMS) {
+                double parser = run(form, iterations, TapisUtils::getUTCTimeFromString);
+                double noThrow = run(form, iterations, TapisUtils::parseUTCTime);
+                double formatters = run(form, iterations / 10, FormatterUTCTime::getUTCTimeFromString);
+                if (print) System.out.printf("%-10s %19.1f ns %15.1f ns %15.1f ns%n", form[0], parser, noThrow, formatters);
+            }
+        }
+    }
+    
+    /** Return the average nanoseconds per timestamp. */
+    private static double run(String[] form, int iterations, Function<String, LocalDateTime> parse)
+    {
+        long start = System.nanoTime();
+        int count = 0;
+        for (int i = 0; i < iterations; i++)
+            for (int j = 1; j < form.length; j++) {
+                try {if (parse.apply(form[j]) != null) count++;}
+                catch (DateTimeParseException e) {count--;}
+            }
+        if (count == Integer.MIN_VALUE) System.out.println(count);
+        return (System.nanoTime() - start) / (double) iterations / (form.length - 1);
+    }
+}
@@ -0,0 +1,149 @@
+package edu.utexas.tacc.tapis.shared.utils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/** Property based tests of the hand-written timestamp parser behind
+ * TapisUtils.getUTCTimeFromString() and TapisUtils.parseUTCTime().
+ *
+ * Random timestamps are generated in every form Tapis accepts, and from valid and
+ * invalid pieces, using a fixed seed.  For each one the parser must agree with
+ * the former formatter based implementation in FormatterUTCTime, and timestamps
+ * without an offset must round trip to the time they were formatted from.
+ */
+@Test(groups={"unit"})
+public class UTCTimeParseTest
+{
+    // Constants.
+    private static final int ITERATIONS = 50000;
+
+    // Pieces that malformed timestamps are built from, after a year.
+    private static final String[] PIECES =
+        {"-", "-01", "-02", "-12", "-13", "-00", "-29", "-30", "-31", "-32", "T", "t", "T00", "T23",
+         "T24", "T25", ":00", ":59", ":60", ":61", ".", ".5", ".123456", ".1234567890", "+01:00",
+         "-06:00", "+18:00", "+18:01", "+01:00:30", "Z", "z", "1", "+", " ", "x"};
+    private static final String[] YEARS =
+        {"2020", "2000", "1900", "0000", "9999", "+12020", "-0001", "202", "20201"};
+
+    /* **************************************************************************** */
+    /*                                    Tests                                     */
+    /* **************************************************************************** */
+    /* ---------------------------------------------------------------------------- */
+    /* wellFormedTest:                                                              */
+    /* ---------------------------------------------------------------------------- */
+    /** Timestamps in each accepted form agree with the formatters, and without an
+     * offset round trip to the time truncated to the precision of the form.
+     */
+    @Test(enabled=true)
+    public void wellFormedTest()
+    {
+        var random = new Random(46);
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            // A random time, sometimes on the last day of the month.
+            var time = LocalDateTime.of(random.nextInt(10000), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                                        random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                                        random.nextInt(1000000000));
+            if (random.nextInt(10) == 0) time = time.withDayOfMonth(time.toLocalDate().lengthOfMonth());
+            int fractionDigits = 1 + random.nextInt(9);
+            String offset = randomOffset(random);
+
+            // Each form with its expected time when there is no offset.
+            String date = String.format("%04d-%02d-%02d", time.getYear(), time.getMonthValue(), time.getDayOfMonth());
+            String hour = date + (random.nextBoolean() ? "T" : "t") + String.format("%02d", time.getHour());
+            String minute = hour + String.format(":%02d", time.getMinute());
+            String second = minute + String.format(":%02d", time.getSecond());
+            String fraction = second + "." + String.format("%09d", time.getNano()).substring(0, fractionDigits);
+            checkForm(date.substring(0, 4), offset, time.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1));
+            checkForm(date.substring(0, 7), offset, time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1));
+            checkForm(date, offset, time.truncatedTo(ChronoUnit.DAYS));
+            checkForm(hour, offset, time.truncatedTo(ChronoUnit.HOURS));
+            checkForm(minute, offset, time.truncatedTo(ChronoUnit.MINUTES));
+            checkForm(second, offset, time.truncatedTo(ChronoUnit.SECONDS));
+            long unit = (long) Math.pow(10, 9 - fractionDigits);
+            checkForm(fraction, offset, time.withNano((int) (time.getNano() / unit * unit)));
+        }
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* malformedTest:                                                               */
+    /* ---------------------------------------------------------------------------- */
+    /** Timestamps built from valid and invalid pieces agree with the formatters. */
+    @Test(enabled=true)
+    public void malformedTest()
+    {
+        var random = new Random(460);
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            var sb = new StringBuilder(YEARS[random.nextInt(YEARS.length)]);
+            int count = random.nextInt(7);
+            for (int j = 0; j < count; j++) sb.append(PIECES[random.nextInt(PIECES.length)]);
+            check(sb.toString());
+        }
+
+        String[] values = {"", " ", "Z", "202Z", "2020-02-30T10:15", "2020-02-30T10:15:00.123456",
+                           "2020-12-31T24:00", "2020-12-31T23:59:60Z", "+12020-01-01T00:00:00Z",
+                           "yesterday", "2021/04/29", "2021-04-29T20:15:52X", "2020-04-29T20:15:52+18:00"};
+        for (String value : values) check(value);
+    }
+
+    /* **************************************************************************** */
+    /*                               Private Methods                                */
+    /* **************************************************************************** */
+    /* ---------------------------------------------------------------------------- */
+    /* checkForm:                                                                   */
+    /* ---------------------------------------------------------------------------- */
+    /** Check a well formed timestamp, which must also give the expected time when it
+     * has no offset or a Z.
+     */
+    private void checkForm(String timeStr, String offset, LocalDateTime expected)
+    {
+        LocalDateTime actual = check(timeStr + offset);
+        if (offset.length() <= 1) Assert.assertEquals(actual, expected, timeStr + offset);
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* check:                                                                       */
+    /* ---------------------------------------------------------------------------- */
+    /** Compare the parser with the formatters, including exception messages.
+     *
+     * @return the parsed time or null if not valid
+     */
+    private LocalDateTime check(String timeStr)
+    {
+        LocalDateTime reference = null, actual = null;
+        String referenceError = null, actualError = null;
+        try {reference = FormatterUTCTime.getUTCTimeFromString(timeStr);}
+        catch (DateTimeParseException e) {referenceError = e.getMessage();}
+        try {actual = TapisUtils.getUTCTimeFromString(timeStr);}
+        catch (DateTimeParseException e) {actualError = e.getMessage();}
+
+        Assert.assertEquals(actual, reference, timeStr);
+        Assert.assertEquals(actualError, referenceError, timeStr);
+        Assert.assertEquals(TapisUtils.parseUTCTime(timeStr), reference, timeStr);
+        Assert.assertEquals(TapisUtils.parseUTCInstant(timeStr),
+                            reference == null ? null : reference.toInstant(ZoneOffset.UTC), timeStr);
+        return actual;
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* randomOffset:                                                                */
+    /* ---------------------------------------------------------------------------- */
+    private String randomOffset(Random random)
+    {
+        switch (random.nextInt(4))
+        {
+            case 0: return "";
+            case 1: return "Z";
+            default:
+                int minutes = random.nextInt(18 * 60 + 1);
+                return String.format("%s%02d:%02d", random.nextBoolean() ? "+" : "-", minutes / 60, minutes % 60);
+        }
+    }
+}
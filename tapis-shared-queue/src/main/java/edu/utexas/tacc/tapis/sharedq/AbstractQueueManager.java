@@ -1,9 +1,13 @@
 package edu.utexas.tacc.tapis.sharedq;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +18,8 @@ import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.RecoverableConnection;
+import com.rabbitmq.client.ShutdownSignalException;
 
 import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
 import edu.utexas.tacc.tapis.shared.exceptions.runtime.TapisRuntimeException;
@@ -42,8 +48,12 @@ public abstract class AbstractQueueManager
   
   // Fields that get initialized once and tend not to change.
   private ConnectionFactory       _factory;
-  private Connection              _outConnection;
   private Connection              _inConnection;
+  
+  // Outbound connections and their channel pools, one of each per shard.
+  private final AtomicReferenceArray<Connection>  _outConnections;
+  private final AtomicReferenceArray<ChannelPool> _outChannelPools;
+  private final AtomicInteger                     _nextOutShard = new AtomicInteger();
 
   /* ********************************************************************** */
   /*                             Constructors                               */
@@ -70,6 +80,10 @@ public abstract class AbstractQueueManager
       
       // Set the parms for the singleton.
       _parms = parms;
+      
+      // Connections and pools are created on first use.
+      _outConnections  = new AtomicReferenceArray<>(parms.getOutConnectionShards());
+      _outChannelPools = new AtomicReferenceArray<>(parms.getOutConnectionShards());
   }
   
   /* ********************************************************************** */
@@ -79,19 +93,36 @@ public abstract class AbstractQueueManager
   /* getNewOutChannel:                                                      */
   /* ---------------------------------------------------------------------- */
   /** Return a new outbound channel on the existing queuing system connection.
+   * When outbound connections are sharded, successive channels are spread 
+   * across the shards.
    * 
    * @return the new channel
    * @throws JobSchedulerException on error
    */
   public Channel getNewOutChannel()
     throws TapisQueueException
+  {
+      return getNewOutChannel(selectOutShard(null));
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* getNewOutChannel:                                                      */
+  /* ---------------------------------------------------------------------- */
+  /** Return a new outbound channel on the specified connection shard.
+   * 
+   * @param shard the shard index, from 0 to getOutConnectionShards() - 1
+   * @return the new channel
+   * @throws JobSchedulerException on error
+   */
+  public Channel getNewOutChannel(int shard)
+    throws TapisQueueException
   {
       // Create a new channel in this phase's connection.
       Channel channel = null;
-      try {channel = getOutConnection().createChannel();} 
+      try {channel = getOutConnection(shard).createChannel();} 
        catch (IOException e) {
            String msg = MsgUtils.getMsg("QMGR_CHANNEL_CREATE_ERROR", 
-                                        getOutConnectionName(), e.getMessage());
+                                        getOutConnectionName(shard), e.getMessage());
            _log.error(msg, e);
            throw new TapisQueueException(msg, e);
        }
@@ -99,7 +130,7 @@ public abstract class AbstractQueueManager
       // Tracing.
       if (_log.isInfoEnabled()) 
           _log.info("Created channel number " + channel.getChannelNumber() + 
-                    " on " + getOutConnectionName() + ".");
+                    " on " + getOutConnectionName(shard) + ".");
        
       return channel;
   }
@@ -133,6 +164,175 @@ public abstract class AbstractQueueManager
       return channel;
   }
   
+  /* ---------------------------------------------------------------------- */
+  /* getOutChannelPool:                                                     */
+  /* ---------------------------------------------------------------------- */
+  /** Return the pool of publisher channels on the outbound connection, 
+   * creating it if necessary.  Publishing through pooled channels avoids the
+   * broker round-trips needed to open and close a channel per message.  When
+   * outbound connections are sharded, this is the first shard's pool.
+   * 
+   * @return the outbound channel pool
+   */
+  public ChannelPool getOutChannelPool()
+  {
+      return getOutChannelPool(0);
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* getOutChannelPool:                                                     */
+  /* ---------------------------------------------------------------------- */
+  /** Return the pool of publisher channels on the specified outbound 
+   * connection shard, creating it if necessary.  Each shard has its own pool
+   * of up to the configured pool size.
+   * 
+   * @param shard the shard index, from 0 to getOutConnectionShards() - 1
+   * @return the shard's channel pool
+   */
+  public ChannelPool getOutChannelPool(int shard)
+  {
+      // Create the pool if necessary.
+      ChannelPool pool = _outChannelPools.get(shard);
+      if (pool == null)
+      {
+        // Only allow one thread at a time to create the pool.
+        synchronized(this) {
+          pool = _outChannelPools.get(shard);
+          if (pool == null) {
+            pool = new ChannelPool(getOutConnectionName(shard), () -> getNewOutChannel(shard),
+                                   _parms.getOutChannelPoolSize(), 
+                                   _parms.getOutChannelPoolTimeoutMs());
+            _outChannelPools.set(shard, pool);
+          }
+        }
+      }
+      
+      return pool;
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* getParms:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** The parameters this queue manager was created with. */
+  public QueueManagerParms getParms() {return _parms;}
+  
+  /* ---------------------------------------------------------------------- */
+  /* getOutConnectionShards:                                                */
+  /* ---------------------------------------------------------------------- */
+  /** The number of outbound connections that publishing is spread across. */
+  public int getOutConnectionShards() {return _outConnections.length();}
+  
+  /* ---------------------------------------------------------------------- */
+  /* selectOutShard:                                                        */
+  /* ---------------------------------------------------------------------- */
+  /** Choose the outbound connection shard for a shard key.  Messages with the
+   * same key use the same shard while it is up.  This keeps a key's traffic
+   * on one connection but doesn't order it, since consecutive publishes can
+   * borrow different pooled channels and the broker only orders messages 
+   * within a channel.  A null key selects shards round-robin.  Shards whose 
+   * connection is being recovered by the client are skipped while any other 
+   * shard is available.
+   * 
+   * @param shardKey the key, often the routing key, or null
+   * @return the shard index
+   */
+  public int selectOutShard(String shardKey)
+  {
+      // Nothing to choose.
+      int shards = _outConnections.length();
+      if (shards == 1) return 0;
+      
+      // Prefer the key's shard, but fail over to the next healthy one.
+      int preferred = shardKey == null ? Math.floorMod(_nextOutShard.getAndIncrement(), shards) 
+                                       : Math.floorMod(shardKey.hashCode(), shards);
+      for (int i = 0; i < shards; i++) {
+          int shard = (preferred + i) % shards;
+          if (isOutShardHealthy(shard)) return shard;
+      }
+      return preferred;
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* isOutShardHealthy:                                                     */
+  /* ---------------------------------------------------------------------- */
+  /** A shard is healthy unless its connection is down and waiting for 
+   * automatic recovery.  Connections that are down and won't recover are 
+   * replaced the next time the shard is used.
+   * 
+   * @param shard the shard index
+   * @return true if the shard can be used now
+   */
+  public boolean isOutShardHealthy(int shard)
+  {
+      Connection conn = _outConnections.get(shard);
+      return conn == null || conn.isOpen() || !isRecovering(conn);
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* publish:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Publish a message on a pooled outbound channel.  When outbound 
+   * connections are sharded, the routing key selects the shard.  Bodies at
+   * least as large as the compression threshold are gzipped.
+   * 
+   * @param exchangeName the target exchange
+   * @param routingKey the routing key
+   * @param properties the message properties
+   * @param body the message
+   * @throws TapisQueueException on error
+   */
+  public void publish(String exchangeName, String routingKey, AMQP.BasicProperties properties, 
+                      byte[] body)
+    throws TapisQueueException
+  {
+      publish(exchangeName, routingKey, properties, body, routingKey);
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* publish:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Publish a message on a pooled outbound channel of the shard selected by
+   * the shard key.  Publishers that send everything with the same routing 
+   * key can use another key, such as a consumer or job id, to spread the 
+   * load, or null to spread it evenly.
+   * 
+   * @param exchangeName the target exchange
+   * @param routingKey the routing key
+   * @param properties the message properties
+   * @param body the message
+   * @param shardKey the key that selects the connection shard or null
+   * @throws TapisQueueException on error
+   */
+  public void publish(String exchangeName, String routingKey, AMQP.BasicProperties properties, 
+                      byte[] body, String shardKey)
+    throws TapisQueueException
+  {
+      // Compress large messages if configured.
+      var encoded = MessageCompression.compress(properties, body, _parms.getCompressionThreshold());
+      properties = encoded.properties();
+      body = encoded.body();
+      
+      // Time the whole publish, including waiting for a channel.
+      QueueMetrics metrics = _parms.getMetrics();
+      long start = metrics == null ? 0 : System.nanoTime();
+      
+      int shard = selectOutShard(shardKey);
+      ChannelPool pool = getOutChannelPool(shard);
+      Channel channel = pool.borrow();
+      try {channel.basicPublish(exchangeName, routingKey, properties, body);}
+        catch (Exception e) {
+          // Don't reuse a channel in an unknown state.
+          pool.invalidate(channel);
+          String msg = MsgUtils.getMsg("QMGR_PUBLISH_ERROR", exchangeName, 
+                                       getOutConnectionName(shard), channel.getChannelNumber(), 
+                                       e.getMessage());
+          throw new TapisQueueException(msg, e);
+        }
+      pool.release(channel);
+      if (metrics != null) 
+          metrics.getPublishTimer(exchangeName).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+  }
+  
   /* ---------------------------------------------------------------------- */
   /* postDeadLetterQueue:                                                   */
   /* ---------------------------------------------------------------------- */
@@ -149,54 +349,14 @@ public abstract class AbstractQueueManager
     String queueName    = QueueManagerNames.getDeadLetterQueueName();
     String exchangeName = QueueManagerNames.getDeadLetterExchangeName(); 
     
-    // Create a temporary channel.
-    Channel channel = null;
-    boolean abortChannel = false;
-    try {
-      // Create a temporary channel.
-      try {channel = getNewOutChannel();}
-        catch (Exception e) {
-          throw e;
-        }
-    
-      // Publish the message to the queue.
-      try {
-        // Write the job to the tenant recovery queue.
-        channel.basicPublish(exchangeName, DEFAULT_BINDING_KEY, QueueManagerNames.PERSISTENT_TEXT, 
-                             message.getBytes("UTF-8"));
+    // Publish the message to the queue on a pooled channel.
+    publish(exchangeName, DEFAULT_BINDING_KEY, QueueManagerNames.PERSISTENT_TEXT, 
+            message.getBytes(StandardCharsets.UTF_8));
         
-        // Tracing.
-        if (_log.isDebugEnabled()) {
-            String msg = MsgUtils.getMsg("QMGR_POST", _parms.getService(), exchangeName, queueName);
-            _log.debug(msg);
-        }
-      }
-        catch (Exception e) {
-          String msg = MsgUtils.getMsg("QMGR_PUBLISH_ERROR", exchangeName, 
-                                       getOutConnectionName(), channel.getChannelNumber(), 
-                                       e.getMessage());
-          throw new TapisQueueException(msg, e);
-        }
-    } 
-    catch (Exception e) {
-      // Affect the way we close the channel and then rethrow exception.
-      abortChannel = true;
-      throw e;
-    }
-    finally {
-      // Channel clean up
-      if (channel != null) {
-        try {
-          // Close the channel one way or the other.
-          if (abortChannel) channel.abort();
-            else channel.close();
-        } 
-          catch (Exception e) {
-            String msg = MsgUtils.getMsg("QMGR_CHANNEL_CLOSE_ERROR", channel.getChannelNumber(), 
-                                         e.getMessage());
-            _log.error(msg, e);
-          }
-      }
+    // Tracing.
+    if (_log.isDebugEnabled()) {
+        String msg = MsgUtils.getMsg("QMGR_POST", _parms.getService(), exchangeName, queueName);
+        _log.debug(msg);
     }
   }
 
@@ -338,6 +498,12 @@ public abstract class AbstractQueueManager
    * */
   public void closeConnections(int timeoutMs)
   {
+      // Close pooled channels before their connection.
+      for (int i = 0; i < _outChannelPools.length(); i++) {
+          ChannelPool pool = _outChannelPools.get(i);
+          if (pool != null) pool.close();
+      }
+      
       // Close each connection.
       if (_inConnection != null) 
           try {_inConnection.close(timeoutMs);}
@@ -345,12 +511,16 @@ public abstract class AbstractQueueManager
               String msg = MsgUtils.getMsg("QMGR_CLOSE_CONN_ERROR", "inbound", e.getMessage());
               _log.error(msg, e);
           }
-      if (_outConnection != null) 
-          try {_outConnection.close(timeoutMs);}
-          catch (Exception e) {
-              String msg = MsgUtils.getMsg("QMGR_CLOSE_CONN_ERROR", "outbound", e.getMessage());
-              _log.error(msg, e);
-          }
+      for (int i = 0; i < _outConnections.length(); i++) {
+          Connection conn = _outConnections.get(i);
+          if (conn != null) 
+              try {conn.close(timeoutMs);}
+              catch (Exception e) {
+                  String msg = MsgUtils.getMsg("QMGR_CLOSE_CONN_ERROR", getOutConnectionName(i), 
+                                               e.getMessage());
+                  _log.error(msg, e);
+              }
+      }
   }
   
   /* ********************************************************************** */
@@ -466,23 +636,41 @@ public abstract class AbstractQueueManager
   /* ---------------------------------------------------------------------- */
   /* getOutConnection:                                                      */
   /* ---------------------------------------------------------------------- */
-  /** Return a outbound connection to the queuing subsystem, creating the 
-   * connection if necessary.
+  /** Return a shard's outbound connection to the queuing subsystem, creating 
+   * the connection if necessary.  A connection that has closed and isn't 
+   * being recovered automatically is replaced.
    * 
+   * @param shard the shard index
    * @return the connection
    * @throws JobQueueException on error.
    */
-  private Connection getOutConnection()
+  private Connection getOutConnection(int shard)
    throws TapisQueueException
   {
       // Create the connection if necessary.
-      if (_outConnection == null)
+      Connection conn = _outConnections.get(shard);
+      if (conn == null || isReplaceable(conn))
       {
         // Only allow one thread at a time to create a shared connection.
         synchronized(AbstractQueueManager.class) {
           // Don't do anything if another thread beat us to the punch.
-          if (_outConnection == null)
-            try {_outConnection = getConnectionFactory().newConnection(getOutConnectionName());}
+          conn = _outConnections.get(shard);
+          if (conn == null || isReplaceable(conn))
+            try {
+              // Discard the dead connection.
+              String name = getOutConnectionName(shard);
+              if (conn != null) {
+                  if (_log.isInfoEnabled()) _log.info(MsgUtils.getMsg("QMGR_OUT_SHARD_REPLACED", name));
+                  try {conn.abort();} catch (Exception e) {}
+              }
+              
+              // Log unexpected shutdowns; the next use of the shard replaces 
+              // the connection unless the client is recovering it.
+              conn = getConnectionFactory().newConnection(name);
+              conn.addShutdownListener(sig -> logOutShardShutdown(name, sig));
+              if (_parms.getMetrics() != null) _parms.getMetrics().watch(conn, name);
+              _outConnections.set(shard, conn);
+            }
             catch (IOException e) {
               String msg = MsgUtils.getMsg("QMGR_CONNECTION_CREATE_ERROR", e.getMessage());
               _log.error(msg, e);
@@ -496,7 +684,37 @@ public abstract class AbstractQueueManager
         } // synchronized
       }
       
-      return _outConnection;
+      return conn;
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* isReplaceable:                                                         */
+  /* ---------------------------------------------------------------------- */
+  private boolean isReplaceable(Connection conn)
+  {
+      return !conn.isOpen() && !isRecovering(conn);
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* isRecovering:                                                          */
+  /* ---------------------------------------------------------------------- */
+  /** Recoverable connections reconnect on their own unless the application
+   * closed them.
+   */
+  private boolean isRecovering(Connection conn)
+  {
+      if (!(conn instanceof RecoverableConnection)) return false;
+      ShutdownSignalException reason = conn.getCloseReason();
+      return reason != null && !reason.isInitiatedByApplication();
+  }
+  
+  /* ---------------------------------------------------------------------- */
+  /* logOutShardShutdown:                                                   */
+  /* ---------------------------------------------------------------------- */
+  private void logOutShardShutdown(String name, ShutdownSignalException sig)
+  {
+      if (sig.isInitiatedByApplication()) return;
+      _log.warn(MsgUtils.getMsg("QMGR_OUT_SHARD_SHUTDOWN", name, sig.getMessage()));
   }
   
   /* ---------------------------------------------------------------------- */
@@ -518,7 +736,11 @@ public abstract class AbstractQueueManager
       synchronized(AbstractQueueManager.class) {
         // Don't do anything if another thread beat us to the punch.
         if (_inConnection == null)
-          try {_inConnection = getConnectionFactory().newConnection(getInConnectionName());}
+          try {
+            Connection conn = getConnectionFactory().newConnection(getInConnectionName());
+            if (_parms.getMetrics() != null) _parms.getMetrics().watch(conn, getInConnectionName());
+            _inConnection = conn;
+          }
           catch (IOException e) {
             String msg = MsgUtils.getMsg("QMGR_CONNECTION_CREATE_ERROR", e.getMessage());
             _log.error(msg, e);
@@ -547,24 +769,39 @@ public abstract class AbstractQueueManager
   private ConnectionFactory getConnectionFactory()
   {
       // Create the factory if necessary.
-      if (_factory == null) 
-      {
-          // Get a rabbitmq connection factory.
-          _factory = new ConnectionFactory();
-          
-          // Set the factory parameters.
-          // TODO: generalize w/auth & network info & heartbeat
-          _factory.setHost(_parms.getQueueHost());
-          _factory.setPort(_parms.getQueuePort());
-          _factory.setUsername(_parms.getQueueUser());
-          _factory.setPassword(_parms.getQueuePassword());
-          _factory.setAutomaticRecoveryEnabled(_parms.isQueueAutoRecoveryEnabled());
-          if (_parms.getVhost() != null) _factory.setVirtualHost(_parms.getVhost());
+      if (_factory == null) {
+          _factory = createConnectionFactory();
+          if (_parms.getMetrics() != null) _factory.setMetricsCollector(_parms.getMetrics().getCollector());
       }
-      
       return _factory;
   }
 
+  /* ---------------------------------------------------------------------- */
+  /* createConnectionFactory:                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Create and configure the factory used for both of this manager's 
+   * connections.  Subclasses can override this method to connect to 
+   * something other than the configured broker, such as an in-memory broker
+   * during testing.
+   * 
+   * @return a new connection factory
+   */
+  protected ConnectionFactory createConnectionFactory()
+  {
+      // Get a rabbitmq connection factory.
+      var factory = new ConnectionFactory();
+      
+      // Set the factory parameters.
+      // TODO: generalize w/auth & network info & heartbeat
+      factory.setHost(_parms.getQueueHost());
+      factory.setPort(_parms.getQueuePort());
+      factory.setUsername(_parms.getQueueUser());
+      factory.setPassword(_parms.getQueuePassword());
+      factory.setAutomaticRecoveryEnabled(_parms.isQueueAutoRecoveryEnabled());
+      if (_parms.getVhost() != null) factory.setVirtualHost(_parms.getVhost());
+      return factory;
+  }
+
   /* ---------------------------------------------------------------------- */
   /* createAndBindQueue:                                                    */
   /* ---------------------------------------------------------------------- */
@@ -613,6 +850,12 @@ public abstract class AbstractQueueManager
   public String getOutConnectionName()
   {return QueueManagerNames.getOutConnectionName(_parms.getInstanceName());}
   
+  /* ---------------------------------------------------------------------- */
+  /* getOutConnectionName:                                                  */
+  /* ---------------------------------------------------------------------- */
+  public String getOutConnectionName(int shard)
+  {return QueueManagerNames.getOutConnectionName(_parms.getInstanceName(), shard);}
+  
   /* ---------------------------------------------------------------------- */
   /* getInConnectionName:                                                   */
   /* ---------------------------------------------------------------------- */
@@ -0,0 +1,293 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** A bounded, thread-safe pool of publisher channels.  Opening and closing a
+ * channel each cost a broker round-trip, so publishing a single message on a
+ * temporary channel is several times slower than publishing on an open one.
+ *
+ * At most maxChannels channels are handed out at once; callers that find the
+ * pool exhausted wait up to the borrow timeout.  Idle channels are validated
+ * before reuse and broken channels are discarded and replaced on demand.  The
+ * most recently returned channel is reused first.
+ *
+ * Channels are not thread-safe for publishing, so a borrowed channel must only
+ * be used by the borrowing thread until it's returned.  Callers should not put
+ * pooled channels into confirm or transaction mode or leave listeners on them.
+ */
+public final class ChannelPool
+ implements AutoCloseable
+{
+  /* ********************************************************************** */
+  /*                               Constants                                */
+  /* ********************************************************************** */
+  // Tracing.
+  private static final Logger _log = LoggerFactory.getLogger(ChannelPool.class);
+
+  // Defaults.
+  public static final int  DEFAULT_MAX_CHANNELS = 16;
+  public static final long DEFAULT_BORROW_TIMEOUT_MS = 30000;
+
+  /* ********************************************************************** */
+  /*                                 Types                                  */
+  /* ********************************************************************** */
+  /** Creates the pool's channels. */
+  @FunctionalInterface
+  public interface ChannelFactory
+  {
+    Channel newChannel() throws TapisQueueException;
+  }
+
+  /** Work performed with a borrowed channel. */
+  @FunctionalInterface
+  public interface ChannelCallback<T>
+  {
+    T apply(Channel channel) throws Exception;
+  }
+
+  /* ********************************************************************** */
+  /*                                 Fields                                 */
+  /* ********************************************************************** */
+  private final String                         _name;
+  private final ChannelFactory                 _factory;
+  private final int                            _maxChannels;
+  private final long                           _borrowTimeoutMs;
+  private final Semaphore                      _permits;
+  private final ConcurrentLinkedDeque<Channel> _idle = new ConcurrentLinkedDeque<>();
+  private volatile boolean                     _closed;
+
+  // Statistics.
+  private final AtomicLong _created   = new AtomicLong();
+  private final AtomicLong _discarded = new AtomicLong();
+  private final AtomicLong _borrowed  = new AtomicLong();
+
+  /* ********************************************************************** */
+  /*                             Constructors                               */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Create an empty pool.  Channels are created on demand.
+   *
+   * @param name the pool name used in messages, usually the connection name
+   * @param factory creates new channels
+   * @param maxChannels the maximum number of channels in use at once
+   * @param borrowTimeoutMs how long to wait for a channel when all are in use
+   */
+  public ChannelPool(String name, ChannelFactory factory, int maxChannels, long borrowTimeoutMs)
+  {
+    if (factory == null) {
+      String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "ChannelPool", "factory");
+      throw new IllegalArgumentException(msg);
+    }
+    if (maxChannels <= 0) {
+      String msg = MsgUtils.getMsg("TAPIS_INVALID_PARAMETER", "ChannelPool", "maxChannels", maxChannels);
+      throw new IllegalArgumentException(msg);
+    }
+    _name = name;
+    _factory = factory;
+    _maxChannels = maxChannels;
+    _borrowTimeoutMs = borrowTimeoutMs;
+    _permits = new Semaphore(maxChannels, true);
+  }
+
+  /* ********************************************************************** */
+  /*                             Public Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* borrow:                                                                */
+  /* ---------------------------------------------------------------------- */
+  /** Get an open channel for the exclusive use of the caller, who must pass it
+   * to release() or invalidate() when done.
+   *
+   * @return an open channel
+   * @throws TapisQueueException if the pool is closed, no channel becomes
+   *            available in time or a new channel can't be created
+   */
+  public Channel borrow() throws TapisQueueException
+  {
+    // Wait for a slot.
+    checkOpen();
+    boolean acquired;
+    try {acquired = _permits.tryAcquire(_borrowTimeoutMs, TimeUnit.MILLISECONDS);}
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        acquired = false;
+      }
+    if (!acquired) {
+      String msg = MsgUtils.getMsg("QMGR_CHANNEL_POOL_TIMEOUT", _name, _borrowTimeoutMs, _maxChannels);
+      throw new TapisQueueException(msg);
+    }
+
+    // Reuse an idle channel if one is still usable, otherwise create one.
+    try {
+      Channel channel;
+      while ((channel = _idle.pollFirst()) != null) {
+        if (channel.isOpen()) break;
+        discard(channel);
+      }
+      if (channel == null) {
+        checkOpen();
+        channel = _factory.newChannel();
+        _created.incrementAndGet();
+      }
+      _borrowed.incrementAndGet();
+      return channel;
+    }
+    catch (TapisQueueException | RuntimeException e) {
+      _permits.release();
+      throw e;
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* release:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Return a borrowed channel to the pool.  Closed channels are discarded. */
+  public void release(Channel channel)
+  {
+    if (channel == null) return;
+    if (_closed || !channel.isOpen()) discard(channel);
+      else _idle.offerFirst(channel);
+    _permits.release();
+
+    // Don't leave a channel behind if the pool was closed concurrently.
+    if (_closed) drainIdle();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* invalidate:                                                            */
+  /* ---------------------------------------------------------------------- */
+  /** Return a borrowed channel that may be in an unknown state, such as after
+   * a failed operation.  The channel is aborted and will be replaced.
+   */
+  public void invalidate(Channel channel)
+  {
+    if (channel == null) return;
+    discard(channel);
+    _permits.release();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* execute:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Run the callback with a borrowed channel.  The channel is returned to the
+   * pool on success and invalidated if the callback throws.
+   *
+   * @param callback the work to perform
+   * @return the callback's result
+   * @throws TapisQueueException if a channel can't be borrowed or the callback fails
+   */
+  public <T> T execute(ChannelCallback<T> callback) throws TapisQueueException
+  {
+    Channel channel = borrow();
+    boolean ok = false;
+    try {
+      T result = callback.apply(channel);
+      ok = true;
+      return result;
+    }
+    catch (TapisQueueException e) {throw e;}
+    catch (Exception e) {
+      String msg = MsgUtils.getMsg("QMGR_CHANNEL_POOL_OP_ERROR", _name, channel.getChannelNumber(),
+                                   e.getMessage());
+      throw new TapisQueueException(msg, e);
+    }
+    finally {
+      if (ok) release(channel);
+        else invalidate(channel);
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* close:                                                                 */
+  /* ---------------------------------------------------------------------- */
+  /** Close the idle channels and refuse further borrowing.  Channels that are
+   * currently borrowed are closed when they're returned.
+   */
+  @Override
+  public void close()
+  {
+    _closed = true;
+    drainIdle();
+  }
+
+  /* ********************************************************************** */
+  /*                               Accessors                                */
+  /* ********************************************************************** */
+  public String getName() {return _name;}
+  public int getMaxChannels() {return _maxChannels;}
+  public long getBorrowTimeoutMs() {return _borrowTimeoutMs;}
+  public boolean isClosed() {return _closed;}
+  public int getIdleCount() {return _idle.size();}
+  public int getActiveCount() {return _maxChannels - _permits.availablePermits();}
+  public long getCreatedCount() {return _created.get();}
+  public long getDiscardedCount() {return _discarded.get();}
+  public long getBorrowedCount() {return _borrowed.get();}
+
+  @Override
+  public String toString()
+  {
+    return "ChannelPool[" + _name + ", active=" + getActiveCount() + ", idle=" + getIdleCount() +
+           ", max=" + _maxChannels + ", created=" + getCreatedCount() +
+           ", discarded=" + getDiscardedCount() + "]";
+  }
+
+  /* ********************************************************************** */
+  /*                             Private Methods                            */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* checkOpen:                                                             */
+  /* ---------------------------------------------------------------------- */
+  private void checkOpen() throws TapisQueueException
+  {
+    if (_closed) {
+      String msg = MsgUtils.getMsg("QMGR_CHANNEL_POOL_CLOSED", _name);
+      throw new TapisQueueException(msg);
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* drainIdle:                                                             */
+  /* ---------------------------------------------------------------------- */
+  private void drainIdle()
+  {
+    Channel channel;
+    while ((channel = _idle.pollFirst()) != null) {
+      try {channel.close();}
+        catch (Exception e) {
+          String msg = MsgUtils.getMsg("QMGR_CHANNEL_CLOSE_ERROR", channel.getChannelNumber(),
+                                       e.getMessage());
+          _log.warn(msg);
+        }
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* discard:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Abort a channel without waiting for the broker. */
+  private void discard(Channel channel)
+  {
+    _discarded.incrementAndGet();
+    if (_log.isDebugEnabled())
+      _log.debug(MsgUtils.getMsg("QMGR_CHANNEL_POOL_DISCARD", _name, channel.getChannelNumber()));
+    try {channel.abort();}
+      catch (Exception e) {
+        String msg = MsgUtils.getMsg("QMGR_CHANNEL_CLOSE_ERROR", channel.getChannelNumber(),
+                                     e.getMessage());
+        _log.warn(msg);
+      }
+  }
+}
@@ -0,0 +1,476 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.sharedq.ChannelPool.ChannelFactory;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Publish messages with broker confirmation without waiting a round-trip per
+ * message.  The publisher puts its channel in confirm mode and tracks each
+ * message by delivery tag.  Acks and nacks arrive asynchronously, possibly
+ * covering many messages at once, and complete the future returned by publish().
+ *
+ * At most maxInFlight messages are unconfirmed at a time; publish() blocks
+ * while the window is full.  Messages are published as mandatory, so a message
+ * that can't be routed to any queue is returned by the broker.  Nacked and
+ * returned messages are retried after a delay, as are messages that were
+ * outstanding when the channel failed, up to maxRetries times.  After that
+ * their futures complete exceptionally with a TapisQueueException.  A new channel
+ * is opened when the current one fails.  Retried messages can be delivered
+ * more than once, so consumers should be idempotent.
+ *
+ * Publishers are thread-safe.  Futures are completed on the connection's
+ * dispatch thread or the retry thread, so dependent actions should be quick or
+ * use the async variants of the CompletableFuture methods.
+ */
+public final class ConfirmingPublisher
+ implements AutoCloseable
+{
+  /* ********************************************************************** */
+  /*                               Constants                                */
+  /* ********************************************************************** */
+  // Tracing.
+  private static final Logger _log = LoggerFactory.getLogger(ConfirmingPublisher.class);
+
+  // Defaults.
+  public static final int  DEFAULT_MAX_IN_FLIGHT = 1000;
+  public static final int  DEFAULT_MAX_RETRIES = 3;
+  public static final long DEFAULT_RETRY_DELAY_MS = 200;
+
+  // The header that correlates returned messages with their publish calls.
+  public static final String PUBLISH_ID_HEADER = "x-tapis-publish-id";
+
+  /* ********************************************************************** */
+  /*                                 Fields                                 */
+  /* ********************************************************************** */
+  private final String                    _name;
+  private final ChannelFactory            _factory;
+  private final int                       _maxInFlight;
+  private final int                       _maxRetries;
+  private final long                      _retryDelayMs;
+  private final Semaphore                 _window;
+  private final ScheduledExecutorService  _retryExecutor;
+  private final AtomicLong                _nextId = new AtomicLong();
+  private final Map<Long,Pending>         _pendingById = new ConcurrentHashMap<>();
+  private volatile boolean                _closed;
+  private volatile int                    _compressionThreshold;
+  private volatile QueueMetrics           _metrics;
+  private String                          _unconfirmedGauge;
+
+  // The current channel and its unconfirmed messages.  The connection's main
+  // loop clears it when the channel shuts down, so it is never guarded by a
+  // lock that a sender holds while waiting on the broker.
+  private final AtomicReference<ConfirmChannel> _current = new AtomicReference<>();
+
+  // Serializes opening replacement channels.  Never taken on the connection thread.
+  private final Object                    _openLock = new Object();
+
+  // Statistics.
+  private final AtomicLong _confirmed = new AtomicLong();
+  private final AtomicLong _retried   = new AtomicLong();
+  private final AtomicLong _failed    = new AtomicLong();
+
+  /* ********************************************************************** */
+  /*                                 Types                                  */
+  /* ********************************************************************** */
+  /** A message from publish until its future completes. */
+  private static final class Pending
+  {
+    private final long                      id;
+    private final String                    exchangeName;
+    private final String                    routingKey;
+    private final AMQP.BasicProperties      properties;
+    private final byte[]                    body;
+    private final CompletableFuture<Void>   future = new CompletableFuture<>();
+    private final long                      startNanos = System.nanoTime();
+    private int                             attempts;
+    private volatile String                 returnReason;
+
+    private Pending(long id, String exchangeName, String routingKey,
+                    AMQP.BasicProperties properties, byte[] body)
+    {
+      this.id = id;
+      this.exchangeName = exchangeName;
+      this.routingKey = routingKey;
+      this.properties = properties;
+      this.body = body;
+    }
+  }
+
+  /** A channel in confirm mode and the messages awaiting its confirms. */
+  private final class ConfirmChannel
+   implements ConfirmListener
+  {
+    private final Channel                              channel;
+    private final NavigableMap<Long,Pending>           outstanding = new ConcurrentSkipListMap<>();
+
+    private ConfirmChannel(Channel channel) {this.channel = channel;}
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {confirm(this, deliveryTag, multiple, true);}
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {confirm(this, deliveryTag, multiple, false);}
+  }
+
+  /* ********************************************************************** */
+  /*                             Constructors                               */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Create a publisher on the queue manager's outbound connection with the
+   * default window and retry settings.
+   */
+  public ConfirmingPublisher(AbstractQueueManager qm)
+  {
+    this(qm.getOutConnectionName(), qm::getNewOutChannel, DEFAULT_MAX_IN_FLIGHT,
+         DEFAULT_MAX_RETRIES, DEFAULT_RETRY_DELAY_MS);
+    _compressionThreshold = qm.getParms().getCompressionThreshold();
+    setMetrics(qm.getParms().getMetrics());
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Create a publisher whose channels come from the factory.  The channels
+   * are owned by the publisher and must not be used for anything else.
+   *
+   * @param name the publisher name used in messages
+   * @param factory creates the publisher's channels
+   * @param maxInFlight the maximum number of unconfirmed messages
+   * @param maxRetries the number of times a message is republished
+   * @param retryDelayMs the delay before the first retry, which grows linearly
+   */
+  public ConfirmingPublisher(String name, ChannelFactory factory, int maxInFlight,
+                             int maxRetries, long retryDelayMs)
+  {
+    if (factory == null) {
+      String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "ConfirmingPublisher", "factory");
+      throw new IllegalArgumentException(msg);
+    }
+    if (maxInFlight <= 0) {
+      String msg = MsgUtils.getMsg("TAPIS_INVALID_PARAMETER", "ConfirmingPublisher", "maxInFlight",
+                                   maxInFlight);
+      throw new IllegalArgumentException(msg);
+    }
+    _name = name;
+    _factory = factory;
+    _maxInFlight = maxInFlight;
+    _maxRetries = Math.max(0, maxRetries);
+    _retryDelayMs = Math.max(0, retryDelayMs);
+    _window = new Semaphore(maxInFlight);
+    _retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread t = new Thread(runnable, "ConfirmingPublisher-" + name);
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /* ********************************************************************** */
+  /*                             Public Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* publish:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Publish a message and return a future that completes when the broker
+   * confirms it.  This method blocks while the in-flight window is full.
+   *
+   * @param exchangeName the target exchange
+   * @param routingKey the routing key
+   * @param properties the message properties or null
+   * @param body the message
+   * @return a future completed on confirmation or failed after the last retry
+   * @throws TapisQueueException if the publisher is closed or the caller is interrupted
+   */
+  public CompletableFuture<Void> publish(String exchangeName, String routingKey,
+                                         AMQP.BasicProperties properties, byte[] body)
+   throws TapisQueueException
+  {
+    // Wait for room in the window.
+    checkOpen();
+    try {_window.acquire();}
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        String msg = MsgUtils.getMsg("QMGR_PUBLISH_ERROR", exchangeName, _name, "-", e.getMessage());
+        throw new TapisQueueException(msg, e);
+      }
+
+    // Compress large messages once so that retries send the same bytes.
+    var encoded = MessageCompression.compress(properties, body, _compressionThreshold);
+
+    // Tag the message so that a return can be matched to it.
+    long id = _nextId.incrementAndGet();
+    var pending = new Pending(id, exchangeName, routingKey, withPublishId(encoded.properties(), id),
+                              encoded.body());
+    _pendingById.put(id, pending);
+    send(pending);
+    return pending.future;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* close:                                                                 */
+  /* ---------------------------------------------------------------------- */
+  /** Stop accepting messages, wait up to the timeout for outstanding messages
+   * to be confirmed, then close the channel.  Messages still unconfirmed after
+   * the timeout are failed.
+   *
+   * @param timeoutMs how long to wait for outstanding confirms
+   */
+  public void close(long timeoutMs)
+  {
+    _closed = true;
+    try {
+      if (_window.tryAcquire(_maxInFlight, timeoutMs, TimeUnit.MILLISECONDS))
+        _window.release(_maxInFlight);
+    }
+    catch (InterruptedException e) {Thread.currentThread().interrupt();}
+
+    // Fail anything left and release the channel.
+    _retryExecutor.shutdownNow();
+    for (Pending pending : _pendingById.values()) fail(pending, "closed");
+    ConfirmChannel current = _current.getAndSet(null);
+    if (current != null) {
+      try {current.channel.close();}
+        catch (Exception e) {
+          String msg = MsgUtils.getMsg("QMGR_CHANNEL_CLOSE_ERROR",
+                                       current.channel.getChannelNumber(), e.getMessage());
+          _log.warn(msg);
+        }
+    }
+    setMetrics(null);
+  }
+
+  @Override
+  public void close() {close(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);}
+
+  /* ---------------------------------------------------------------------- */
+  /* setMetrics:                                                            */
+  /* ---------------------------------------------------------------------- */
+  /** Record confirm latencies and export the unconfirmed count as a gauge,
+   * or stop doing so when metrics is null.
+   *
+   * @param metrics the queue metrics or null
+   */
+  public synchronized void setMetrics(QueueMetrics metrics)
+  {
+    if (_metrics != null) _metrics.remove(_unconfirmedGauge, this);
+    _unconfirmedGauge = metrics == null ? null : metrics.registerUnconfirmed(this);
+    _metrics = metrics;
+  }
+
+  /* ********************************************************************** */
+  /*                               Accessors                                */
+  /* ********************************************************************** */
+  public String getName() {return _name;}
+  public int getMaxInFlight() {return _maxInFlight;}
+  public int getMaxRetries() {return _maxRetries;}
+  public long getRetryDelayMs() {return _retryDelayMs;}
+  public int getCompressionThreshold() {return _compressionThreshold;}
+  public void setCompressionThreshold(int threshold) {_compressionThreshold = Math.max(0, threshold);}
+  public QueueMetrics getMetrics() {return _metrics;}
+  public int getInFlightCount() {return _maxInFlight - _window.availablePermits();}
+  public long getConfirmedCount() {return _confirmed.get();}
+  public long getRetriedCount() {return _retried.get();}
+  public long getFailedCount() {return _failed.get();}
+
+  /* ********************************************************************** */
+  /*                             Private Methods                            */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* send:                                                                  */
+  /* ---------------------------------------------------------------------- */
+  /** Publish a pending message on the current channel.  The delivery tag and
+   * publish must be paired atomically, so sends on a channel are serialized on
+   * that channel.  If the channel fails after the message is recorded as
+   * outstanding, whichever of abandon() and this method removes it retries it.
+   */
+  private void send(Pending pending)
+  {
+    pending.returnReason = null;
+    pending.attempts++;
+    ConfirmChannel current = null;
+    long deliveryTag = -1;
+    try {
+      current = getConfirmChannel();
+      synchronized (current) {
+        deliveryTag = current.channel.getNextPublishSeqNo();
+        current.outstanding.put(deliveryTag, pending);
+        current.channel.basicPublish(pending.exchangeName, pending.routingKey, true,
+                                     pending.properties, pending.body);
+      }
+    }
+    catch (Exception e) {
+      if (current == null || deliveryTag < 0 || current.outstanding.remove(deliveryTag) != null)
+        retryOrFail(pending, e.getMessage());
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* getConfirmChannel:                                                     */
+  /* ---------------------------------------------------------------------- */
+  /** Return the current channel, opening a new one in confirm mode if there is
+   * none or the current one has failed.  Opening a channel and selecting
+   * confirms are round-trips answered on the connection's main loop, which
+   * also runs the shutdown listener, so the listener takes no locks.
+   */
+  private ConfirmChannel getConfirmChannel() throws Exception
+  {
+    ConfirmChannel current = _current.get();
+    if (current != null && current.channel.isOpen()) return current;
+
+    synchronized (_openLock) {
+      // Another sender may have replaced the channel while we waited.
+      current = _current.get();
+      if (current != null && current.channel.isOpen()) return current;
+      if (current != null && _current.compareAndSet(current, null)) abandon(current);
+      checkOpen();
+
+      Channel channel = _factory.newChannel();
+      var replacement = new ConfirmChannel(channel);
+      channel.addConfirmListener(replacement);
+      channel.addReturnListener((replyCode, replyText, exchange, routingKey, properties, body) ->
+          handleReturn(replyText, properties));
+      channel.addShutdownListener(cause -> {
+        _current.compareAndSet(replacement, null);
+        abandon(replacement);
+      });
+      channel.confirmSelect();
+      _current.set(replacement);
+      return replacement;
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* confirm:                                                               */
+  /* ---------------------------------------------------------------------- */
+  private void confirm(ConfirmChannel current, long deliveryTag, boolean multiple, boolean ack)
+  {
+    // Collect the confirmed messages.
+    NavigableMap<Long,Pending> confirmed = multiple ?
+        current.outstanding.headMap(deliveryTag, true) :
+        current.outstanding.subMap(deliveryTag, true, deliveryTag, true);
+    for (var it = confirmed.values().iterator(); it.hasNext(); ) {
+      Pending pending = it.next();
+      it.remove();
+
+      // Returned messages are acked after the return.
+      if (ack && pending.returnReason == null) succeed(pending);
+        else retryOrFail(pending, ack ? pending.returnReason : "nack");
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* handleReturn:                                                          */
+  /* ---------------------------------------------------------------------- */
+  private void handleReturn(String replyText, AMQP.BasicProperties properties)
+  {
+    Map<String,Object> headers = properties == null ? null : properties.getHeaders();
+    Object id = headers == null ? null : headers.get(PUBLISH_ID_HEADER);
+    Pending pending = id instanceof Number n ? _pendingById.get(n.longValue()) : null;
+    if (pending != null) pending.returnReason = "returned " + replyText;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* abandon:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Retry every message that was outstanding on a failed channel. */
+  private void abandon(ConfirmChannel current)
+  {
+    Map.Entry<Long,Pending> entry;
+    while ((entry = current.outstanding.pollFirstEntry()) != null)
+      retryOrFail(entry.getValue(), "channel closed");
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* retryOrFail:                                                           */
+  /* ---------------------------------------------------------------------- */
+  private void retryOrFail(Pending pending, String reason)
+  {
+    if (pending.future.isDone()) return;
+    if (_closed || pending.attempts > _maxRetries) {
+      fail(pending, reason);
+      return;
+    }
+
+    // Retry off the connection thread, which must never block on the window or a send.
+    _retried.incrementAndGet();
+    if (_log.isDebugEnabled())
+      _log.debug(MsgUtils.getMsg("QMGR_PUBLISH_RETRY", pending.exchangeName, pending.routingKey,
+                                 pending.attempts, reason));
+    try {_retryExecutor.schedule(() -> send(pending), _retryDelayMs * pending.attempts,
+                                 TimeUnit.MILLISECONDS);}
+      catch (Exception e) {fail(pending, reason);}
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* succeed:                                                               */
+  /* ---------------------------------------------------------------------- */
+  private void succeed(Pending pending)
+  {
+    if (_pendingById.remove(pending.id) == null) return;
+    _confirmed.incrementAndGet();
+    _window.release();
+    QueueMetrics metrics = _metrics;
+    if (metrics != null)
+      metrics.getConfirmTimer(pending.exchangeName).update(System.nanoTime() - pending.startNanos,
+                                                           TimeUnit.NANOSECONDS);
+    pending.future.complete(null);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* fail:                                                                  */
+  /* ---------------------------------------------------------------------- */
+  private void fail(Pending pending, String reason)
+  {
+    if (_pendingById.remove(pending.id) == null) return;
+    _failed.incrementAndGet();
+    _window.release();
+    String msg = MsgUtils.getMsg("QMGR_PUBLISH_NOT_CONFIRMED", pending.exchangeName,
+                                 pending.routingKey, pending.attempts, reason);
+    _log.warn(msg);
+    pending.future.completeExceptionally(new TapisQueueException(msg));
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* checkOpen:                                                             */
+  /* ---------------------------------------------------------------------- */
+  private void checkOpen() throws TapisQueueException
+  {
+    if (_closed) {
+      String msg = MsgUtils.getMsg("QMGR_PUBLISHER_CLOSED", _name);
+      throw new TapisQueueException(msg);
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* withPublishId:                                                         */
+  /* ---------------------------------------------------------------------- */
+  private static AMQP.BasicProperties withPublishId(AMQP.BasicProperties properties, long id)
+  {
+    if (properties == null) properties = new AMQP.BasicProperties();
+    var headers = properties.getHeaders() == null ? new HashMap<String,Object>() :
+                                                    new HashMap<>(properties.getHeaders());
+    headers.put(PUBLISH_ID_HEADER, id);
+    return properties.builder().headers(headers).build();
+  }
+}
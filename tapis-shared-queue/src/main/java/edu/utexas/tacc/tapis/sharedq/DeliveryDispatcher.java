@@ -0,0 +1,536 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Timer;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Consume queues with a shared pool of worker threads.  Deliveries are taken
+ * off the connection thread and handed to the workers, so slow handlers don't
+ * hold up the connection.  Each subscription has its own channel and settings:
+ *
+ *  - prefetch:     the basicQos limit on unacknowledged deliveries
+ *  - concurrency:  the maximum number of the subscription's deliveries being
+ *                  handled at once, independent of the worker pool size
+ *  - ackBatchSize: completed deliveries are acknowledged together with a
+ *                  single multiple=true ack once this many are ready
+ *  - ackIntervalMs: pending acks are also flushed at this interval
+ *
+ * Handlers return an Outcome for each delivery.  A handler that throws has its
+ * delivery requeued or dead-lettered according to the subscription's failure
+ * policy.  Dead-lettered deliveries are rejected without requeueing, which
+ * routes them to the queue's dead letter exchange if it has one.  Compressed
+ * deliveries are decompressed before the handler sees them, and one that
+ * can't be decompressed is treated like a handler failure.
+ *
+ * Deliveries can complete out of order, so a multiple ack only covers the
+ * deliveries up to the first one still being handled.  Completed deliveries
+ * beyond that point are acknowledged individually when the timer fires so that
+ * one slow delivery can't exhaust the prefetch window.
+ *
+ * The worker pool can be any executor, such as a virtual thread executor on
+ * runtimes that provide one.
+ *
+ * With queue metrics, handler latency is timed per queue and each
+ * subscription's unsettled deliveries are exported as a gauge.  Subscriptions
+ * made through a queue manager use its metrics unless their parms name others.
+ */
+public final class DeliveryDispatcher
+ implements AutoCloseable
+{
+  /* ********************************************************************** */
+  /*                               Constants                                */
+  /* ********************************************************************** */
+  // Tracing.
+  private static final Logger _log = LoggerFactory.getLogger(DeliveryDispatcher.class);
+
+  /* ********************************************************************** */
+  /*                                 Types                                  */
+  /* ********************************************************************** */
+  /** What to do with a handled delivery. */
+  public enum Outcome {ACK, REQUEUE, DEAD_LETTER}
+
+  /** What to do with a delivery whose handler throws.  REQUEUE_ONCE requeues a
+   * first delivery and dead-letters a redelivery.
+   */
+  public enum FailurePolicy {REQUEUE, DEAD_LETTER, REQUEUE_ONCE}
+
+  /** Processes one delivery. */
+  @FunctionalInterface
+  public interface DeliveryHandler
+  {
+    Outcome handle(DeliveryResponse delivery) throws Exception;
+  }
+
+  /** Subscription settings. */
+  public static final class SubscriptionParms
+  {
+    public static final int           DEFAULT_PREFETCH = 50;
+    public static final int           DEFAULT_CONCURRENCY = 8;
+    public static final int           DEFAULT_ACK_BATCH_SIZE = 20;
+    public static final long          DEFAULT_ACK_INTERVAL_MS = 100;
+    public static final FailurePolicy DEFAULT_FAILURE_POLICY = FailurePolicy.REQUEUE_ONCE;
+
+    private int           prefetch = DEFAULT_PREFETCH;
+    private int           concurrency = DEFAULT_CONCURRENCY;
+    private int           ackBatchSize = DEFAULT_ACK_BATCH_SIZE;
+    private long          ackIntervalMs = DEFAULT_ACK_INTERVAL_MS;
+    private FailurePolicy failurePolicy = DEFAULT_FAILURE_POLICY;
+    private QueueMetrics  metrics;
+
+    public int getPrefetch() {return prefetch;}
+    public SubscriptionParms setPrefetch(int prefetch) {this.prefetch = prefetch; return this;}
+    public int getConcurrency() {return concurrency;}
+    public SubscriptionParms setConcurrency(int concurrency) {this.concurrency = concurrency; return this;}
+    public int getAckBatchSize() {return ackBatchSize;}
+    public SubscriptionParms setAckBatchSize(int ackBatchSize) {this.ackBatchSize = ackBatchSize; return this;}
+    public long getAckIntervalMs() {return ackIntervalMs;}
+    public SubscriptionParms setAckIntervalMs(long ackIntervalMs) {this.ackIntervalMs = ackIntervalMs; return this;}
+    public FailurePolicy getFailurePolicy() {return failurePolicy;}
+    public SubscriptionParms setFailurePolicy(FailurePolicy failurePolicy) {
+        this.failurePolicy = failurePolicy; return this;}
+    public QueueMetrics getMetrics() {return metrics;}
+    public SubscriptionParms setMetrics(QueueMetrics metrics) {this.metrics = metrics; return this;}
+
+    @Override
+    public String toString()
+    {
+      return "prefetch=" + prefetch + ", concurrency=" + concurrency + ", ackBatchSize=" + ackBatchSize +
+             ", ackIntervalMs=" + ackIntervalMs + ", failurePolicy=" + failurePolicy;
+    }
+  }
+
+  /* ********************************************************************** */
+  /*                                 Fields                                 */
+  /* ********************************************************************** */
+  private final ExecutorService          _workers;
+  private final boolean                  _ownsWorkers;
+  private final ScheduledExecutorService _ackTimer;
+
+  /* ********************************************************************** */
+  /*                             Constructors                               */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Create a dispatcher with its own fixed pool of daemon worker threads. */
+  public DeliveryDispatcher(int workerThreads)
+  {
+    this(Executors.newFixedThreadPool(workerThreads, daemonFactory("DeliveryWorker")), true);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Create a dispatcher on a caller-owned executor, which is not shut down
+   * when the dispatcher is closed.
+   */
+  public DeliveryDispatcher(ExecutorService workers)
+  {
+    this(workers, false);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  private DeliveryDispatcher(ExecutorService workers, boolean ownsWorkers)
+  {
+    if (workers == null) {
+      String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "DeliveryDispatcher", "workers");
+      throw new IllegalArgumentException(msg);
+    }
+    _workers = workers;
+    _ownsWorkers = ownsWorkers;
+    _ackTimer = Executors.newSingleThreadScheduledExecutor(daemonFactory("DeliveryAckTimer"));
+  }
+
+  /* ********************************************************************** */
+  /*                             Public Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* subscribe:                                                             */
+  /* ---------------------------------------------------------------------- */
+  /** Consume a queue on a new inbound channel from the queue manager.  The
+   * channel is closed when the subscription is closed.
+   */
+  public Subscription subscribe(AbstractQueueManager qm, String queueName, SubscriptionParms parms,
+                                DeliveryHandler handler)
+   throws TapisQueueException
+  {
+    Channel channel = qm.getNewInChannel();
+    QueueMetrics metrics = parms != null && parms.getMetrics() != null ? parms.getMetrics() :
+                           qm.getParms().getMetrics();
+    try {return subscribe(channel, true, queueName, parms, handler, metrics);}
+      catch (TapisQueueException e) {
+        try {channel.abort();} catch (Exception e1) {}
+        throw e;
+      }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* subscribe:                                                             */
+  /* ---------------------------------------------------------------------- */
+  /** Consume a queue on a caller-owned channel, which should not be used for
+   * any other consumer since its prefetch setting is changed.
+   */
+  public Subscription subscribe(Channel channel, String queueName, SubscriptionParms parms,
+                                DeliveryHandler handler)
+   throws TapisQueueException
+  {
+    return subscribe(channel, false, queueName, parms, handler, parms == null ? null : parms.getMetrics());
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* close:                                                                 */
+  /* ---------------------------------------------------------------------- */
+  /** Stop the ack timer and, if the dispatcher created it, the worker pool.
+   * Subscriptions should be closed first.
+   */
+  @Override
+  public void close()
+  {
+    _ackTimer.shutdownNow();
+    if (_ownsWorkers) _workers.shutdown();
+  }
+
+  /* ********************************************************************** */
+  /*                             Private Methods                            */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* subscribe:                                                             */
+  /* ---------------------------------------------------------------------- */
+  private Subscription subscribe(Channel channel, boolean ownsChannel, String queueName,
+                                 SubscriptionParms parms, DeliveryHandler handler, QueueMetrics metrics)
+   throws TapisQueueException
+  {
+    if (parms == null) parms = new SubscriptionParms();
+    var sub = new Subscription(channel, ownsChannel, queueName, parms, handler, metrics);
+    try {
+      channel.basicQos(parms.getPrefetch());
+      sub._consumerTag = channel.basicConsume(queueName, false, sub.new Consumer());
+    }
+    catch (IOException e) {
+      String msg = MsgUtils.getMsg("QMGR_CONSUMER_SUBSCRIBE_ERROR", queueName,
+                                   channel.getChannelNumber(), e.getMessage());
+      throw new TapisQueueException(msg, e);
+    }
+    if (metrics != null) sub._unackedGauge = metrics.registerUnacked(sub);
+    sub._flushTask = _ackTimer.scheduleWithFixedDelay(() -> sub.flush(true), parms.getAckIntervalMs(),
+                                                     parms.getAckIntervalMs(), TimeUnit.MILLISECONDS);
+    return sub;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* daemonFactory:                                                         */
+  /* ---------------------------------------------------------------------- */
+  private static java.util.concurrent.ThreadFactory daemonFactory(String prefix)
+  {
+    var count = new AtomicInteger();
+    return runnable -> {
+      Thread t = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /* ********************************************************************** */
+  /*                              Subscription                              */
+  /* ********************************************************************** */
+  /** An active consumer on one queue. */
+  public final class Subscription
+   implements AutoCloseable
+  {
+    // Configuration.
+    private final Channel           _channel;
+    private final boolean           _ownsChannel;
+    private final String            _queueName;
+    private final SubscriptionParms _parms;
+    private final DeliveryHandler   _handler;
+    private final QueueMetrics      _metrics;
+    private final Timer             _handlerTimer;
+    private String                  _unackedGauge;
+    private volatile String         _consumerTag;
+    private ScheduledFuture<?>      _flushTask;
+
+    // Dispatch state.
+    private final ConcurrentLinkedQueue<DeliveryResponse> _backlog = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger     _running = new AtomicInteger();
+
+    // Ack state guarded by the lock.  Unsettled tags have been delivered but
+    // not yet acked or rejected; completed tags are ready to ack.
+    private final Object            _ackLock = new Object();
+    private final TreeSet<Long>     _unsettled = new TreeSet<>();
+    private final TreeSet<Long>     _completed = new TreeSet<>();
+
+    // Statistics.
+    private final AtomicLong _delivered    = new AtomicLong();
+    private final AtomicLong _acked        = new AtomicLong();
+    private final AtomicLong _requeued     = new AtomicLong();
+    private final AtomicLong _deadLettered = new AtomicLong();
+    private final AtomicLong _ackFrames    = new AtomicLong();
+
+    private Subscription(Channel channel, boolean ownsChannel, String queueName,
+                         SubscriptionParms parms, DeliveryHandler handler, QueueMetrics metrics)
+    {
+      _channel = channel;
+      _ownsChannel = ownsChannel;
+      _queueName = queueName;
+      _parms = parms;
+      _handler = handler;
+      _metrics = metrics;
+      _handlerTimer = metrics == null ? null : metrics.getHandlerTimer(queueName);
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* close:                                                                 */
+    /* ---------------------------------------------------------------------- */
+    /** Cancel the consumer, wait up to the timeout for deliveries already
+     * received to be handled, acknowledge them and release the channel.
+     * Deliveries still unsettled are requeued by the broker when the channel
+     * closes.
+     */
+    public void close(long timeoutMs)
+    {
+      // Stop new deliveries.
+      try {if (_consumerTag != null && _channel.isOpen()) _channel.basicCancel(_consumerTag);}
+        catch (Exception e) {
+          String msg = MsgUtils.getMsg("QMGR_CANCEL_TOPIC_CONSUMER", _channel.getChannelNumber(),
+                                       _consumerTag, _queueName, e.getMessage());
+          _log.warn(msg);
+        }
+
+      // Drain what we have.
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while ((!_backlog.isEmpty() || _running.get() > 0) && System.currentTimeMillis() < deadline)
+        try {Thread.sleep(10);}
+          catch (InterruptedException e) {Thread.currentThread().interrupt(); break;}
+      if (_flushTask != null) _flushTask.cancel(false);
+      flush(true);
+      if (_metrics != null) _metrics.remove(_unackedGauge, this);
+
+      if (_ownsChannel)
+        try {_channel.close();}
+          catch (Exception e) {
+            String msg = MsgUtils.getMsg("QMGR_CHANNEL_CLOSE_ERROR", _channel.getChannelNumber(),
+                                         e.getMessage());
+            _log.warn(msg);
+          }
+    }
+
+    @Override
+    public void close() {close(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);}
+
+    /* ---------------------------------------------------------------------- */
+    /* accessors:                                                             */
+    /* ---------------------------------------------------------------------- */
+    public String getQueueName() {return _queueName;}
+    public String getConsumerTag() {return _consumerTag;}
+    public SubscriptionParms getParms() {return _parms;}
+    public long getDeliveredCount() {return _delivered.get();}
+    public long getAckedCount() {return _acked.get();}
+    public long getRequeuedCount() {return _requeued.get();}
+    public long getDeadLetteredCount() {return _deadLettered.get();}
+    public long getAckFrameCount() {return _ackFrames.get();}
+    public int getRunningCount() {return _running.get();}
+    public int getUnsettledCount() {synchronized (_ackLock) {return _unsettled.size();}}
+
+    /* ---------------------------------------------------------------------- */
+    /* dispatch:                                                              */
+    /* ---------------------------------------------------------------------- */
+    /** Queue a delivery and start a runner if the concurrency limit allows. */
+    private void dispatch(DeliveryResponse delivery)
+    {
+      _delivered.incrementAndGet();
+      synchronized (_ackLock) {_unsettled.add(delivery.envelope.getDeliveryTag());}
+      _backlog.add(delivery);
+      startRunner();
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* startRunner:                                                           */
+    /* ---------------------------------------------------------------------- */
+    private void startRunner()
+    {
+      while (!_backlog.isEmpty()) {
+        int running = _running.get();
+        if (running >= _parms.getConcurrency()) return;
+        if (_running.compareAndSet(running, running + 1)) {
+          try {_workers.execute(this::run);}
+            catch (Exception e) {
+              // Leave the delivery unsettled; the broker redelivers it when the channel closes.
+              _running.decrementAndGet();
+              _log.error(MsgUtils.getMsg("QMGR_CONSUMER_DISPATCH_ERROR", _queueName, e.getMessage()));
+            }
+          return;
+        }
+      }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* run:                                                                   */
+    /* ---------------------------------------------------------------------- */
+    /** Handle queued deliveries until there are none left.  A delivery queued
+     * after the last poll but before the running count drops is picked up by
+     * restarting.
+     */
+    private void run()
+    {
+      DeliveryResponse delivery;
+      while ((delivery = _backlog.poll()) != null) handle(delivery);
+      _running.decrementAndGet();
+      startRunner();
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* handle:                                                                */
+    /* ---------------------------------------------------------------------- */
+    private void handle(DeliveryResponse delivery)
+    {
+      Outcome outcome;
+      long start = _handlerTimer == null ? 0 : System.nanoTime();
+      try {
+        MessageCompression.decompress(delivery);
+        outcome = _handler.handle(delivery);
+        if (outcome == null) outcome = Outcome.ACK;
+      }
+      catch (Exception e) {
+        outcome = switch (_parms.getFailurePolicy()) {
+          case REQUEUE      -> Outcome.REQUEUE;
+          case DEAD_LETTER  -> Outcome.DEAD_LETTER;
+          case REQUEUE_ONCE -> delivery.envelope.isRedeliver() ? Outcome.DEAD_LETTER : Outcome.REQUEUE;
+        };
+        String msg = MsgUtils.getMsg("QMGR_CONSUMER_HANDLER_ERROR", _queueName,
+                                     delivery.envelope.getDeliveryTag(), outcome, e.getMessage());
+        _log.error(msg, e);
+      }
+      if (_handlerTimer != null) _handlerTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      settle(delivery.envelope.getDeliveryTag(), outcome);
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* settle:                                                                */
+    /* ---------------------------------------------------------------------- */
+    private void settle(long deliveryTag, Outcome outcome)
+    {
+      synchronized (_ackLock) {
+        if (outcome == Outcome.ACK) {
+          _completed.add(deliveryTag);
+          if (_completed.size() >= _parms.getAckBatchSize()) flush(false);
+          return;
+        }
+
+        // Rejections are sent right away.
+        boolean requeue = outcome == Outcome.REQUEUE;
+        try {
+          _channel.basicReject(deliveryTag, requeue);
+          if (requeue) _requeued.incrementAndGet();
+            else _deadLettered.incrementAndGet();
+        }
+        catch (Exception e) {
+          _log.error(MsgUtils.getMsg("QMGR_CONSUMER_SETTLE_ERROR", _queueName, deliveryTag, e.getMessage()));
+        }
+        _unsettled.remove(deliveryTag);
+      }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* flush:                                                                 */
+    /* ---------------------------------------------------------------------- */
+    /** Acknowledge completed deliveries.  The contiguous run of completed tags
+     * at the front of the unsettled set is acked with one multiple ack.  When
+     * all is true, completed tags after a gap are acked individually.
+     */
+    private void flush(boolean all)
+    {
+      synchronized (_ackLock) {
+        if (_completed.isEmpty() || !_channel.isOpen()) return;
+        try {
+          // Find the end of the completed prefix.
+          long last = -1;
+          int count = 0;
+          for (Long tag : _unsettled) {
+            if (!_completed.contains(tag)) break;
+            last = tag;
+            count++;
+          }
+          if (last >= 0) {
+            _channel.basicAck(last, count > 1);
+            _ackFrames.incrementAndGet();
+            _acked.addAndGet(count);
+            _unsettled.headSet(last, true).clear();
+            _completed.headSet(last, true).clear();
+          }
+
+          // Don't let a slow delivery hold up the rest.
+          if (all)
+            for (Iterator<Long> it = _completed.iterator(); it.hasNext(); ) {
+              long tag = it.next();
+              _channel.basicAck(tag, false);
+              _ackFrames.incrementAndGet();
+              _acked.incrementAndGet();
+              _unsettled.remove(tag);
+              it.remove();
+            }
+        }
+        catch (Exception e) {
+          _log.error(MsgUtils.getMsg("QMGR_CONSUMER_SETTLE_ERROR", _queueName, "ack", e.getMessage()));
+        }
+      }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* Consumer:                                                              */
+    /* ---------------------------------------------------------------------- */
+    /** Runs on the connection thread and only queues deliveries. */
+    private final class Consumer
+     extends DefaultConsumer
+    {
+      private Consumer() {super(_channel);}
+
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope,
+                                 AMQP.BasicProperties properties, byte[] body)
+      {
+        var delivery = new DeliveryResponse();
+        delivery.consumerTag = consumerTag;
+        delivery.envelope = envelope;
+        delivery.properties = properties;
+        delivery.body = body;
+        dispatch(delivery);
+      }
+
+      @Override
+      public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig)
+      {
+        // The broker requeues everything unsettled, so forget it.
+        if (_flushTask != null) _flushTask.cancel(false);
+        synchronized (_ackLock) {
+          _unsettled.clear();
+          _completed.clear();
+        }
+        if (!sig.isInitiatedByApplication())
+          _log.warn(MsgUtils.getMsg("QMGR_CONSUMER_SHUTDOWN", _queueName, sig.getMessage()));
+      }
+    }
+  }
+}
@@ -1,11 +1,20 @@
 package edu.utexas.tacc.tapis.sharedq;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+
+import com.google.gson.JsonElement;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Envelope;
 
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
 /** Simple container for the results of Consumer.handleDelivery()
  * appropriate for insertion into internal data structures like
  * lists or queues.
  * 
+ * The accessor methods read the body in place; see MessageBodies.
+ * 
  * @author rcardone
  */
 public final class DeliveryResponse 
@@ -14,4 +23,26 @@ public final class DeliveryResponse
   public Envelope             envelope;
   public AMQP.BasicProperties properties; 
   public byte[]               body;
+  
+  /** A read-only view of the body. */
+  public ByteBuffer bodyBuffer() {return MessageBodies.asBuffer(body);}
+  
+  /** A stream over the body. */
+  public InputStream bodyStream() {return MessageBodies.asStream(body);}
+  
+  /** The body decoded in its content type's character set. */
+  public String bodyAsString() throws TapisQueueException 
+  {return MessageBodies.asString(properties, body);}
+  
+  /** Bind a JSON body to a class without an intermediate string. */
+  public <T> T bodyAs(Class<T> type) throws TapisQueueException 
+  {return MessageBodies.fromJson(properties, body, type);}
+  
+  /** Bind a JSON body to a generic type without an intermediate string. */
+  public <T> T bodyAs(Type type) throws TapisQueueException 
+  {return MessageBodies.fromJson(properties, body, type);}
+  
+  /** Parse a JSON body into a tree without an intermediate string. */
+  public JsonElement bodyAsJson() throws TapisQueueException 
+  {return MessageBodies.parseJson(properties, body);}
 }
@@ -0,0 +1,335 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.rabbitmq.client.AMQP;
+
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.shared.utils.TapisGsonUtils;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Read message bodies without copying them.  Consumers that turn a body into
+ * a String and then parse the String copy each message two or three times;
+ * these methods view or stream the delivered bytes instead, and bind JSON
+ * straight from them using one shared gson instance and cached type adapters.
+ *
+ * The character set comes from the charset parameter of the content type
+ * property and defaults to UTF-8.  UTF-8 bodies are decoded as they are read
+ * rather than through an intermediate buffer.  Compressed bodies are
+ * decompressed first (see MessageCompression).
+ */
+public final class MessageBodies
+{
+  /* ********************************************************************** */
+  /*                               Constants                                */
+  /* ********************************************************************** */
+  // Built once, since TapisGsonUtils.getGson() creates a new instance per call.
+  private static final Gson GSON = TapisGsonUtils.getGson();
+
+  // Gson caches adapters too, but looking them up still costs a map probe
+  // and a TypeToken per call.
+  private static final ClassValue<TypeAdapter<?>> ADAPTERS = new ClassValue<>() {
+      @Override
+      protected TypeAdapter<?> computeValue(Class<?> type) {return GSON.getAdapter(type);}
+  };
+
+  private static final byte[] EMPTY = new byte[0];
+
+  /* ********************************************************************** */
+  /*                             Constructors                               */
+  /* ********************************************************************** */
+  private MessageBodies() {}
+
+  /* ********************************************************************** */
+  /*                             Public Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* asBuffer:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** A read-only view of the body.  A null body is an empty buffer.
+   *
+   * @param body the message body or null
+   * @return a read-only buffer backed by the body
+   */
+  public static ByteBuffer asBuffer(byte[] body)
+  {
+      return ByteBuffer.wrap(body == null ? EMPTY : body).asReadOnlyBuffer();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* asStream:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** A stream over the body.  A null body is an empty stream.
+   *
+   * @param body the message body or null
+   * @return a stream backed by the body
+   */
+  public static InputStream asStream(byte[] body)
+  {
+      return new ByteArrayInputStream(body == null ? EMPTY : body);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* asReader:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** A reader over the body in the character set of its content type.
+   *
+   * @param properties the message properties or null
+   * @param body the message body or null
+   * @return a reader that decodes the body as it's read
+   * @throws TapisQueueException if the body can't be decompressed or its
+   *         character set isn't supported
+   */
+  public static Reader asReader(AMQP.BasicProperties properties, byte[] body)
+   throws TapisQueueException
+  {
+      body = MessageCompression.decompress(properties, body);
+      if (body == null) body = EMPTY;
+      Charset charset = getCharset(properties);
+      if (charset == StandardCharsets.UTF_8) return new Utf8Reader(body);
+      return new InputStreamReader(new ByteArrayInputStream(body), charset);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* asString:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** The body as a string, for consumers that really need one.
+   *
+   * @param properties the message properties or null
+   * @param body the message body or null
+   * @return the decoded body, null if the body is null
+   * @throws TapisQueueException if the body can't be decompressed or its
+   *         character set isn't supported
+   */
+  public static String asString(AMQP.BasicProperties properties, byte[] body)
+   throws TapisQueueException
+  {
+      body = MessageCompression.decompress(properties, body);
+      return body == null ? null : new String(body, getCharset(properties));
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* fromJson:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** Bind a JSON body to an instance of a class.
+   *
+   * @param properties the message properties or null
+   * @param body the message body or null
+   * @param type the target class
+   * @return the new object, null if the body is empty or JSON null
+   * @throws TapisQueueException if the body isn't valid JSON for the class
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T fromJson(AMQP.BasicProperties properties, byte[] body, Class<T> type)
+   throws TapisQueueException
+  {
+      return read(properties, body, (TypeAdapter<T>) ADAPTERS.get(type), type.getName());
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* fromJson:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** Bind a JSON body to an instance of a generic type such as a list of
+   * objects.
+   *
+   * @param properties the message properties or null
+   * @param body the message body or null
+   * @param type the target type
+   * @return the new object, null if the body is empty or JSON null
+   * @throws TapisQueueException if the body isn't valid JSON for the type
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T fromJson(AMQP.BasicProperties properties, byte[] body, Type type)
+   throws TapisQueueException
+  {
+      return read(properties, body, (TypeAdapter<T>) GSON.getAdapter(TypeToken.get(type)),
+                  type.getTypeName());
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* parseJson:                                                             */
+  /* ---------------------------------------------------------------------- */
+  /** Parse a JSON body into a tree.
+   *
+   * @param properties the message properties or null
+   * @param body the message body or null
+   * @return the tree, JsonNull if the body is empty
+   * @throws TapisQueueException if the body isn't valid JSON
+   */
+  public static JsonElement parseJson(AMQP.BasicProperties properties, byte[] body)
+   throws TapisQueueException
+  {
+      JsonElement tree = read(properties, body, null, "JSON");
+      return tree == null ? JsonNull.INSTANCE : tree;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* getCharset:                                                            */
+  /* ---------------------------------------------------------------------- */
+  /** The charset parameter of the content type, UTF-8 if there isn't one.
+   *
+   * @param properties the message properties or null
+   * @return the body's character set
+   * @throws TapisQueueException if the character set isn't supported
+   */
+  public static Charset getCharset(AMQP.BasicProperties properties)
+   throws TapisQueueException
+  {
+      String contentType = properties == null ? null : properties.getContentType();
+      if (contentType == null) return StandardCharsets.UTF_8;
+
+      // Look for a charset parameter after the media type.
+      for (String parm : contentType.split(";")) {
+          int eq = parm.indexOf('=');
+          if (eq < 0 || !parm.substring(0, eq).trim().equalsIgnoreCase("charset")) continue;
+          String name = parm.substring(eq + 1).trim();
+          if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+              name = name.substring(1, name.length() - 1);
+          if (name.equalsIgnoreCase("utf-8")) return StandardCharsets.UTF_8;
+          try {return Charset.forName(name);}
+          catch (IllegalArgumentException e) {
+              String msg = MsgUtils.getMsg("QMGR_BODY_PARSE_ERROR", "text", e.getMessage());
+              throw new TapisQueueException(msg, e);
+          }
+      }
+      return StandardCharsets.UTF_8;
+  }
+
+  /* ********************************************************************** */
+  /*                            Private Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* read:                                                                  */
+  /* ---------------------------------------------------------------------- */
+  /** Read one JSON value with the adapter, or as a tree if the adapter is
+   * null.  Like Gson.fromJson(), parsing is lenient, empty input is null
+   * and trailing content is an error.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T read(AMQP.BasicProperties properties, byte[] body, TypeAdapter<T> adapter,
+                            String typeName)
+   throws TapisQueueException
+  {
+      if (body == null || body.length == 0) return null;
+      try (JsonReader json = GSON.newJsonReader(asReader(properties, body))) {
+          json.setLenient(true);
+          if (json.peek() == JsonToken.END_DOCUMENT) return null;
+          T result = adapter == null ? (T) JsonParser.parseReader(json) : adapter.read(json);
+          if (json.peek() != JsonToken.END_DOCUMENT)
+              throw new JsonSyntaxException("JSON document was not fully consumed.");
+          return result;
+      }
+      catch (IOException | JsonParseException | IllegalStateException e) {
+          String msg = MsgUtils.getMsg("QMGR_BODY_PARSE_ERROR", typeName, e.getMessage());
+          throw new TapisQueueException(msg, e);
+      }
+  }
+
+  /* ********************************************************************** */
+  /*                            Private Classes                             */
+  /* ********************************************************************** */
+  /** Decode UTF-8 straight from the body into the caller's buffer.  Malformed
+   * sequences become U+FFFD the way new String(bytes, UTF_8) does it.
+   */
+  private static final class Utf8Reader
+   extends Reader
+  {
+      private static final char REPLACEMENT = '\uFFFD';
+
+      private final byte[] _bytes;
+      private int          _pos;
+      private char         _pendingLow; // second half of a surrogate pair, or 0
+
+      private Utf8Reader(byte[] bytes) {_bytes = bytes;}
+
+      @Override
+      public int read(char[] cbuf, int off, int len)
+      {
+          if (len == 0) return 0;
+          int n = 0;
+          if (_pendingLow != 0) {
+              cbuf[off + n++] = _pendingLow;
+              _pendingLow = 0;
+          }
+          else if (_pos >= _bytes.length) return -1;
+
+          final byte[] bytes = _bytes;
+          while (n < len && _pos < bytes.length) {
+              // JSON is mostly ASCII.
+              byte b = bytes[_pos];
+              if (b >= 0) {
+                  cbuf[off + n++] = (char) b;
+                  _pos++;
+                  continue;
+              }
+
+              int cp = decode();
+              if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) cbuf[off + n++] = (char) cp;
+              else {
+                  cbuf[off + n++] = Character.highSurrogate(cp);
+                  if (n < len) cbuf[off + n++] = Character.lowSurrogate(cp);
+                    else _pendingLow = Character.lowSurrogate(cp);
+              }
+          }
+          return n;
+      }
+
+      @Override
+      public boolean ready() {return _pendingLow != 0 || _pos < _bytes.length;}
+
+      @Override
+      public void close() {}
+
+      /** Decode the multi-byte sequence at _pos and move past it, or past its
+       * longest valid prefix if it's malformed.
+       */
+      private int decode()
+      {
+          int b0 = _bytes[_pos] & 0xFF;
+          int need, cp;
+          if (b0 >= 0xC2 && b0 <= 0xDF) {need = 1; cp = b0 & 0x1F;}
+          else if (b0 >= 0xE0 && b0 <= 0xEF) {need = 2; cp = b0 & 0x0F;}
+          else if (b0 >= 0xF0 && b0 <= 0xF4) {need = 3; cp = b0 & 0x07;}
+          else {
+              _pos++;
+              return REPLACEMENT;
+          }
+
+          // The second byte's range excludes overlongs and code points above
+          // U+10FFFF.  Encoded surrogates are rejected whole, as the JDK does.
+          int lo = b0 == 0xE0 ? 0xA0 : b0 == 0xF0 ? 0x90 : 0x80;
+          int hi = b0 == 0xF4 ? 0x8F : 0xBF;
+          int i = _pos + 1;
+          for (int k = 0; k < need; k++, i++) {
+              int b = i < _bytes.length ? _bytes[i] & 0xFF : -1;
+              if (b < lo || b > hi) {
+                  _pos = i;
+                  return REPLACEMENT;
+              }
+              cp = (cp << 6) | (b & 0x3F);
+              lo = 0x80;
+              hi = 0xBF;
+          }
+          _pos = i;
+          return cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE ? REPLACEMENT : cp;
+      }
+  }
+}
@@ -0,0 +1,181 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.rabbitmq.client.AMQP;
+
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Compress message bodies on publish and decompress them on delivery.  A
+ * compressed message has its content-encoding property set to gzip, which
+ * is how RabbitMQ and other AMQP clients expect the body encoding to be
+ * advertised.  Messages without a content encoding, or with the identity
+ * encoding, are passed through unchanged, so compressing and uncompressing
+ * publishers can share queues as long as their consumers decompress.
+ *
+ * Only bodies at least as large as the threshold are compressed, and only if
+ * compression makes them smaller.  Small JSON messages gain little and cost
+ * a gzip header and a deflater per message.
+ */
+public final class MessageCompression
+{
+  /* ********************************************************************** */
+  /*                               Constants                                */
+  /* ********************************************************************** */
+  // Content encodings.
+  public static final String GZIP     = "gzip";
+  public static final String IDENTITY = "identity";
+
+  // Fastest deflate level, which gets most of the savings on JSON.
+  public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+  // Decompressed bodies can't exceed RabbitMQ's default maximum message size.
+  public static final int MAX_DECOMPRESSED_SIZE = 128 * 1024 * 1024;
+
+  /* ********************************************************************** */
+  /*                              Inner Classes                             */
+  /* ********************************************************************** */
+  /** A message body and the properties it should be published with. */
+  public record Encoded(AMQP.BasicProperties properties, byte[] body) {}
+
+  /* ********************************************************************** */
+  /*                             Constructors                               */
+  /* ********************************************************************** */
+  private MessageCompression() {}
+
+  /* ********************************************************************** */
+  /*                             Public Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* compress:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** Compress the body at the default level if it's at least threshold bytes.
+   *
+   * @param properties the message properties or null
+   * @param body the message
+   * @param threshold the minimum body size to compress, 0 to never compress
+   * @return the properties and body to publish
+   */
+  public static Encoded compress(AMQP.BasicProperties properties, byte[] body, int threshold)
+  {
+      return compress(properties, body, threshold, DEFAULT_LEVEL);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* compress:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** Compress the body if it's at least threshold bytes and not already
+   * encoded.  The returned properties are a copy of the originals with the
+   * content encoding set.  The inputs are returned unchanged when the body
+   * isn't compressed.
+   *
+   * @param properties the message properties or null
+   * @param body the message
+   * @param threshold the minimum body size to compress, 0 to never compress
+   * @param level the deflate level from 1 (fastest) to 9 (smallest)
+   * @return the properties and body to publish
+   */
+  public static Encoded compress(AMQP.BasicProperties properties, byte[] body, int threshold,
+                                 int level)
+  {
+      // Leave small and already encoded messages alone.
+      if (threshold <= 0 || body == null || body.length < threshold || isEncoded(properties))
+          return new Encoded(properties, body);
+
+      // Compress into a buffer sized for typical JSON ratios.
+      var out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+      try (var gzip = new LeveledGZIPOutputStream(out, level)) {gzip.write(body);}
+        catch (IOException e) {return new Encoded(properties, body);} // not thrown in memory
+      if (out.size() >= body.length) return new Encoded(properties, body);
+
+      var builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+      return new Encoded(builder.contentEncoding(GZIP).build(), out.toByteArray());
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* decompress:                                                            */
+  /* ---------------------------------------------------------------------- */
+  /** Return the body of a delivered message with its content encoding
+   * removed.  Bodies without an encoding are returned as is.
+   *
+   * @param properties the delivered properties or null
+   * @param body the delivered body
+   * @return the original message
+   * @throws TapisQueueException if the encoding is unknown or the body is corrupt
+   */
+  public static byte[] decompress(AMQP.BasicProperties properties, byte[] body)
+   throws TapisQueueException
+  {
+      // Most messages aren't compressed.
+      if (!isEncoded(properties) || body == null) return body;
+      String encoding = properties.getContentEncoding();
+      if (!GZIP.equalsIgnoreCase(encoding)) {
+          String msg = MsgUtils.getMsg("QMGR_UNSUPPORTED_ENCODING", encoding);
+          throw new TapisQueueException(msg);
+      }
+
+      // Read the whole body, refusing to expand beyond the broker's limit.
+      try (var gzip = new GZIPInputStream(new ByteArrayInputStream(body), 8192)) {
+          byte[] result = gzip.readNBytes(MAX_DECOMPRESSED_SIZE);
+          if (gzip.read() != -1) {
+              String msg = MsgUtils.getMsg("QMGR_DECOMPRESS_ERROR", encoding,
+                                           "the message exceeds " + MAX_DECOMPRESSED_SIZE + " bytes");
+              throw new TapisQueueException(msg);
+          }
+          return result;
+      }
+      catch (IOException e) {
+          String msg = MsgUtils.getMsg("QMGR_DECOMPRESS_ERROR", encoding, e.getMessage());
+          throw new TapisQueueException(msg, e);
+      }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* decompress:                                                            */
+  /* ---------------------------------------------------------------------- */
+  /** Decompress a delivery in place.  The body is replaced and the content
+   * encoding is removed from the properties, so decompressing twice is
+   * harmless.
+   *
+   * @param delivery a delivered message
+   * @throws TapisQueueException if the encoding is unknown or the body is corrupt
+   */
+  public static void decompress(DeliveryResponse delivery)
+   throws TapisQueueException
+  {
+      if (!isEncoded(delivery.properties)) return;
+      delivery.body = decompress(delivery.properties, delivery.body);
+      delivery.properties = delivery.properties.builder().contentEncoding(null).build();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* isEncoded:                                                             */
+  /* ---------------------------------------------------------------------- */
+  /** Whether the properties advertise a content encoding other than identity. */
+  public static boolean isEncoded(AMQP.BasicProperties properties)
+  {
+      if (properties == null) return false;
+      String encoding = properties.getContentEncoding();
+      return encoding != null && !encoding.isEmpty() && !IDENTITY.equalsIgnoreCase(encoding);
+  }
+
+  /* ********************************************************************** */
+  /*                            Private Classes                             */
+  /* ********************************************************************** */
+  /** GZIPOutputStream always uses the default level unless told otherwise. */
+  private static final class LeveledGZIPOutputStream
+   extends GZIPOutputStream
+  {
+      private LeveledGZIPOutputStream(ByteArrayOutputStream out, int level) throws IOException
+      {
+          super(out, 8192);
+          def.setLevel(level);
+      }
+  }
+}
@@ -0,0 +1,1254 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.LongString;
+
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.sharedq.ChannelPool.ChannelFactory;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** A local, append-only journal of messages waiting to be published.  Callers
+ * append messages to the journal and return immediately; a background drainer
+ * publishes them to the broker with publisher confirms.  Request threads are
+ * therefore not held up by a slow, blocked or unreachable broker, and messages
+ * published while the broker is down are sent when it comes back, even if the
+ * service restarts in between.
+ *
+ * The journal is a directory of fixed size segment files that are memory
+ * mapped for writing.  Each record holds a sequence number, a checksum and the
+ * exchange, routing key, properties and body of one message in a versioned
+ * format that doesn't depend on the client library's wire encoding.  A separate sync
+ * thread forces appended records to disk in batches.  By default appends don't
+ * wait for the sync, so a machine crash can lose the last syncInterval's worth
+ * of messages; with durableAppends set each append waits until its batch has
+ * been forced, which is a group commit.
+ *
+ * The drainer publishes records in journal order on a single confirm-mode
+ * channel, so messages with the same routing key reach the broker in the order
+ * they were appended.  The position of the first unconfirmed record is saved
+ * in a checkpoint file and segments before it are deleted.  When the channel
+ * fails or the broker nacks a message, the drainer opens a new channel and
+ * republishes everything from the first unconfirmed record.  Messages can
+ * therefore be delivered more than once, after a failure or when restarting
+ * from a checkpoint that was not yet saved, so consumers should be idempotent.
+ * A record that can't be decoded, such as one written by a newer format
+ * version, is logged as an error and skipped rather than retried forever.
+ *
+ * On open, the journal resumes from the checkpoint and scans the remaining
+ * records.  A record with a bad checksum or length, as left by a crash in the
+ * middle of a write, ends the journal; the rest of that segment is cleared and
+ * any later segments are removed.
+ */
+public final class OutboxJournal
+ implements AutoCloseable
+{
+  /* ********************************************************************** */
+  /*                               Constants                                */
+  /* ********************************************************************** */
+  // Tracing.
+  private static final Logger _log = LoggerFactory.getLogger(OutboxJournal.class);
+
+  // File names.
+  private static final String SEGMENT_SUFFIX  = ".seg";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+
+  // Record layout: length, checksum, sequence number, payload.  The length
+  // covers the whole record and the checksum covers the sequence number and
+  // payload.  A length of ROLLOVER means the journal continues in the next
+  // segment, and zero means no more records have been written.
+  private static final int HEADER_SIZE = 16;
+  private static final int ROLLOVER    = -1;
+
+  // The payload starts with its format version.  Version 1 payloads hold the
+  // exchange, routing key, properties and body.  Properties are a bit mask of
+  // the fields present followed by those fields, and header values are tagged
+  // with their type.
+  private static final byte FORMAT_VERSION = 1;
+
+  // Checkpoints are written alternately to two slots so that a torn write
+  // always leaves the previous one intact.
+  private static final int CHECKPOINT_SLOT_SIZE = 32;
+
+  /* ********************************************************************** */
+  /*                                 Fields                                 */
+  /* ********************************************************************** */
+  private final String                           _name;
+  private final Path                             _dir;
+  private final JournalParms                     _parms;
+  private final ChannelFactory                   _factory;
+  private final ConcurrentSkipListMap<Long,Segment> _segments = new ConcurrentSkipListMap<>();
+  private final FileChannel                      _checkpointFile;
+  private volatile boolean                       _closed;
+  private volatile int                           _compressionThreshold;
+
+  // Writer state guarded by _lock.
+  private final ReentrantLock                    _lock = new ReentrantLock();
+  private final Condition                        _syncNeeded = _lock.newCondition();
+  private final Condition                        _synced = _lock.newCondition();
+  private Segment                                _writeSegment;
+  private int                                    _writePos;
+  private long                                   _nextSeq;
+  private int                                    _unsynced;
+  private int                                    _durableWaiters;
+  private volatile long                          _appendedSeq;
+  private volatile long                          _syncedSeq;
+
+  // Sync thread state, including what has been forced so far.
+  private final Thread                           _syncThread;
+  private long                                   _syncSegmentId;
+  private int                                    _syncPos;
+  private Position                               _savedCheckpoint;
+  private int                                    _checkpointSlot;
+
+  // Drainer state.  The cursor is only used by the drainer thread; the
+  // in-flight records and the checkpoint are guarded by _drainLock.
+  private final Thread                           _drainThread;
+  private final Object                           _drainLock = new Object();
+  private final ArrayDeque<InFlight>             _inFlight = new ArrayDeque<>();
+  private Position                               _cursor;
+  private volatile Position                      _checkpoint;
+  private volatile long                          _confirmedSeq;
+  private volatile DrainChannel                  _channel;
+  private volatile DrainChannel                  _failedChannel;
+  private long                                   _lastDrainErrorMs;
+
+  // Statistics.
+  private volatile long _published;
+  private volatile long _republished;
+  private volatile long _skipped;
+  private volatile long _syncs;
+
+  /* ********************************************************************** */
+  /*                              Inner Classes                             */
+  /* ********************************************************************** */
+  /** Journal settings with fluent setters. */
+  public static final class JournalParms
+  {
+    private int     segmentSize = 64 * 1024 * 1024;
+    private int     maxSegments = 16;
+    private long    syncIntervalMs = 10;
+    private int     syncBatchSize = 256;
+    private boolean durableAppends;
+    private int     maxInFlight = ConfirmingPublisher.DEFAULT_MAX_IN_FLIGHT;
+    private long    retryDelayMs = 1000;
+
+    public int getSegmentSize() {return segmentSize;}
+    public JournalParms setSegmentSize(int segmentSize) {this.segmentSize = segmentSize; return this;}
+    public int getMaxSegments() {return maxSegments;}
+    public JournalParms setMaxSegments(int maxSegments) {this.maxSegments = maxSegments; return this;}
+    public long getSyncIntervalMs() {return syncIntervalMs;}
+    public JournalParms setSyncIntervalMs(long syncIntervalMs) {this.syncIntervalMs = syncIntervalMs; return this;}
+    public int getSyncBatchSize() {return syncBatchSize;}
+    public JournalParms setSyncBatchSize(int syncBatchSize) {this.syncBatchSize = syncBatchSize; return this;}
+    public boolean isDurableAppends() {return durableAppends;}
+    public JournalParms setDurableAppends(boolean durableAppends) {this.durableAppends = durableAppends; return this;}
+    public int getMaxInFlight() {return maxInFlight;}
+    public JournalParms setMaxInFlight(int maxInFlight) {this.maxInFlight = maxInFlight; return this;}
+    public long getRetryDelayMs() {return retryDelayMs;}
+    public JournalParms setRetryDelayMs(long retryDelayMs) {this.retryDelayMs = retryDelayMs; return this;}
+  }
+
+  /** A mapped segment file. */
+  private static final class Segment
+  {
+    private final long              id;
+    private final Path              path;
+    private final FileChannel       file;
+    private final MappedByteBuffer  buf;
+
+    private Segment(long id, Path path, int size) throws IOException
+    {
+      this.id = id;
+      this.path = path;
+      file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                              StandardOpenOption.WRITE);
+      buf = file.map(MapMode.READ_WRITE, 0, size);
+    }
+
+    private void close()
+    {
+      try {file.close();} catch (IOException e) {}
+    }
+  }
+
+  /** A record's location and sequence number. */
+  private record Position(long segmentId, int pos, long seq) {}
+
+  /** A published record waiting for its confirm. */
+  private record InFlight(Position position, long deliveryTag) {}
+
+  /** A message read back from the journal. */
+  private record Message(String exchange, String routingKey, AMQP.BasicProperties properties,
+                         byte[] body, int length) {}
+
+  /** The drainer's confirm-mode channel.  Confirms from a replaced channel
+   * are ignored.
+   */
+  private final class DrainChannel
+   implements ConfirmListener
+  {
+    private final Channel channel;
+
+    private DrainChannel(Channel channel) {this.channel = channel;}
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {confirm(this, deliveryTag, multiple);}
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {fail(this);}
+  }
+
+  /* ********************************************************************** */
+  /*                             Constructors                               */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Open a journal in the directory that drains to the queue manager's
+   * outbound connection.
+   *
+   * @param dir the journal directory, created if necessary
+   * @param qm the queue manager
+   * @param parms the journal settings
+   * @throws TapisQueueException if the journal can't be opened
+   */
+  public OutboxJournal(Path dir, AbstractQueueManager qm, JournalParms parms)
+   throws TapisQueueException
+  {
+    this(qm.getOutConnectionName() + "-outbox", dir, qm::getNewOutChannel, parms);
+    _compressionThreshold = qm.getParms().getCompressionThreshold();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Open a journal in the directory, recover its contents and start the
+   * sync and drainer threads.  Only one journal can use a directory at a time.
+   *
+   * @param name the journal name used in messages and thread names
+   * @param dir the journal directory, created if necessary
+   * @param factory creates the drainer's channels, which the journal owns
+   * @param parms the journal settings
+   * @throws TapisQueueException if the journal can't be opened
+   */
+  public OutboxJournal(String name, Path dir, ChannelFactory factory, JournalParms parms)
+   throws TapisQueueException
+  {
+    if (factory == null) {
+      String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "OutboxJournal", "factory");
+      throw new IllegalArgumentException(msg);
+    }
+    if (parms.getSegmentSize() < 4096) {
+      String msg = MsgUtils.getMsg("TAPIS_INVALID_PARAMETER", "OutboxJournal", "segmentSize",
+                                   parms.getSegmentSize());
+      throw new IllegalArgumentException(msg);
+    }
+    if (parms.getMaxInFlight() <= 0) {
+      String msg = MsgUtils.getMsg("TAPIS_INVALID_PARAMETER", "OutboxJournal", "maxInFlight",
+                                   parms.getMaxInFlight());
+      throw new IllegalArgumentException(msg);
+    }
+    _name = name;
+    _dir = dir;
+    _parms = parms;
+    _factory = factory;
+
+    // Recover the journal's state from its files.
+    try {
+      Files.createDirectories(dir);
+      _checkpointFile = FileChannel.open(dir.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE,
+                                         StandardOpenOption.READ, StandardOpenOption.WRITE);
+      recover();
+    }
+    catch (IOException | UncheckedIOException e) {
+      closeFiles();
+      String msg = MsgUtils.getMsg("QMGR_OUTBOX_OPEN_ERROR", dir, e.getMessage());
+      _log.error(msg, e);
+      throw new TapisQueueException(msg, e);
+    }
+
+    _syncThread = new Thread(this::syncLoop, "OutboxSync-" + name);
+    _syncThread.setDaemon(true);
+    _syncThread.start();
+    _drainThread = new Thread(this::drainLoop, "OutboxDrainer-" + name);
+    _drainThread.setDaemon(true);
+    _drainThread.start();
+  }
+
+  /* ********************************************************************** */
+  /*                             Public Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* publish:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Append a message to the journal for publishing.  This method returns
+   * once the message is in the journal, or once it's on disk when appends are
+   * durable, regardless of the state of the broker.
+   *
+   * @param exchangeName the target exchange
+   * @param routingKey the routing key
+   * @param properties the message properties or null
+   * @param body the message
+   * @return the message's sequence number in the journal
+   * @throws TapisQueueException if the journal is closed, full or can't be written
+   */
+  public long publish(String exchangeName, String routingKey, AMQP.BasicProperties properties,
+                      byte[] body)
+   throws TapisQueueException
+  {
+    // Build the record outside the lock.
+    checkOpen();
+    var encoded = MessageCompression.compress(properties, body, _compressionThreshold);
+    byte[] payload = encode(exchangeName, routingKey, encoded.properties(), encoded.body());
+    int length = HEADER_SIZE + payload.length;
+    if (length > _parms.getSegmentSize() - 4) {
+      String msg = MsgUtils.getMsg("QMGR_OUTBOX_RECORD_TOO_LARGE", _name, length,
+                                   _parms.getSegmentSize() - 4);
+      throw new TapisQueueException(msg);
+    }
+
+    long seq;
+    _lock.lock();
+    try {
+      checkOpen();
+
+      // Leave room for a rollover marker at the end of each segment.
+      if (_writePos + length > _parms.getSegmentSize() - 4) rollover();
+
+      // Write the record and then make it visible to the drainer.
+      seq = _nextSeq++;
+      ByteBuffer buf = _writeSegment.buf;
+      buf.putInt(_writePos, length);
+      buf.putInt(_writePos + 4, checksum(seq, payload));
+      buf.putLong(_writePos + 8, seq);
+      buf.put(_writePos + HEADER_SIZE, payload);
+      _writePos += length;
+      _appendedSeq = seq;
+
+      // Start a sync once a batch has accumulated.
+      if (++_unsynced >= _parms.getSyncBatchSize()) _syncNeeded.signal();
+    }
+    finally {_lock.unlock();}
+    LockSupport.unpark(_drainThread);
+
+    if (_parms.isDurableAppends()) awaitSynced(seq);
+    return seq;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* sync:                                                                  */
+  /* ---------------------------------------------------------------------- */
+  /** Wait until everything appended so far has been forced to disk.
+   *
+   * @throws TapisQueueException if the journal is closed while waiting
+   */
+  public void sync() throws TapisQueueException
+  {
+    awaitSynced(_appendedSeq);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* awaitDrained:                                                          */
+  /* ---------------------------------------------------------------------- */
+  /** Wait until the broker has confirmed everything appended so far.
+   *
+   * @param timeoutMs the maximum time to wait
+   * @return true if everything was confirmed in time
+   * @throws InterruptedException if the caller is interrupted
+   */
+  public boolean awaitDrained(long timeoutMs) throws InterruptedException
+  {
+    long target = _appendedSeq;
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (_drainLock) {
+      while (_confirmedSeq < target) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) return false;
+        _drainLock.wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* close:                                                                 */
+  /* ---------------------------------------------------------------------- */
+  /** Stop accepting messages, give the drainer up to timeoutMs to publish the
+   * rest, then save the checkpoint and close the files.  Messages that weren't
+   * confirmed are published when the journal is next opened.
+   *
+   * @param timeoutMs the maximum time to wait for the broker
+   */
+  public void close(long timeoutMs)
+  {
+    // Only close once.
+    _lock.lock();
+    try {
+      if (_closed) return;
+      _closed = true;
+    }
+    finally {_lock.unlock();}
+
+    try {awaitDrained(timeoutMs);}
+      catch (InterruptedException e) {Thread.currentThread().interrupt();}
+    halt();
+
+    // Save the final state.
+    try {
+      forceAppended();
+      saveCheckpoint();
+    }
+    catch (IOException | UncheckedIOException e) {
+      _log.error(MsgUtils.getMsg("QMGR_OUTBOX_SYNC_ERROR", _name, e.getMessage()), e);
+    }
+    closeFiles();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* close:                                                                 */
+  /* ---------------------------------------------------------------------- */
+  @Override
+  public void close() {close(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);}
+
+  /* ---------------------------------------------------------------------- */
+  /* accessors:                                                             */
+  /* ---------------------------------------------------------------------- */
+  public String getName() {return _name;}
+  public Path getDirectory() {return _dir;}
+  public boolean isClosed() {return _closed;}
+  public long getAppendedSeq() {return _appendedSeq;}
+  public long getSyncedSeq() {return _syncedSeq;}
+  public long getConfirmedSeq() {return _confirmedSeq;}
+  public long getPendingCount() {return _appendedSeq - _confirmedSeq;}
+  public int getSegmentCount() {return _segments.size();}
+  public long getPublishedCount() {return _published;}
+  public long getRepublishedCount() {return _republished;}
+  public long getSkippedCount() {return _skipped;}
+  public long getSyncCount() {return _syncs;}
+  public int getCompressionThreshold() {return _compressionThreshold;}
+  public void setCompressionThreshold(int threshold) {_compressionThreshold = Math.max(0, threshold);}
+
+  @Override
+  public String toString()
+  {
+    return "OutboxJournal(" + _name + ", appended=" + _appendedSeq + ", synced=" + _syncedSeq +
+           ", confirmed=" + _confirmedSeq + ", segments=" + _segments.size() + ")";
+  }
+
+  /* ********************************************************************** */
+  /*                           Package Methods                              */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* halt:                                                                  */
+  /* ---------------------------------------------------------------------- */
+  /** Stop the background threads without saving anything, which leaves the
+   * files as a process crash would.  Used by close() and by tests.
+   */
+  void halt()
+  {
+    // Interrupting a file operation closes the file, so the sync thread is
+    // only signalled.
+    _closed = true;
+    _lock.lock();
+    try {_syncNeeded.signal();}
+    finally {_lock.unlock();}
+    _drainThread.interrupt();
+    try {
+      _syncThread.join(10000);
+      _drainThread.join(10000);
+    }
+    catch (InterruptedException e) {Thread.currentThread().interrupt();}
+
+    // Release anyone waiting for a sync and the drainer's channel.
+    _lock.lock();
+    try {_synced.signalAll();}
+    finally {_lock.unlock();}
+    if (_channel != null) abort(_channel.channel);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* closeFiles:                                                            */
+  /* ---------------------------------------------------------------------- */
+  /** Close the files without saving anything. */
+  void closeFiles()
+  {
+    for (var segment : _segments.values()) segment.close();
+    if (_checkpointFile != null) try {_checkpointFile.close();} catch (IOException e) {}
+  }
+
+  /* ********************************************************************** */
+  /*                            Private Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* recover:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Load the checkpoint and segments and find the end of the journal. */
+  private void recover() throws IOException
+  {
+    // Find the existing segments.
+    List<Long> ids = new ArrayList<>();
+    try (Stream<Path> files = Files.list(_dir)) {
+      files.map(p -> p.getFileName().toString())
+           .filter(f -> f.endsWith(SEGMENT_SUFFIX))
+           .forEach(f -> ids.add(Long.parseLong(f.substring(0, f.length() - SEGMENT_SUFFIX.length()))));
+    }
+    ids.sort(null);
+
+    // Drop the segments that were fully confirmed before the checkpoint.
+    Position checkpoint = readCheckpoint();
+    if (checkpoint != null && !ids.contains(checkpoint.segmentId())) checkpoint = null;
+    for (var it = ids.iterator(); it.hasNext(); ) {
+      long id = it.next();
+      if (checkpoint != null && id < checkpoint.segmentId()) {
+        Files.deleteIfExists(segmentPath(id));
+        it.remove();
+      }
+    }
+    if (ids.isEmpty()) ids.add(checkpoint == null ? 1L : checkpoint.segmentId());
+    for (long id : ids) _segments.put(id, new Segment(id, segmentPath(id), _parms.getSegmentSize()));
+
+    // Scan from the checkpoint to the last good record.
+    long segmentId = checkpoint == null ? ids.get(0) : checkpoint.segmentId();
+    int pos = checkpoint == null ? 0 : checkpoint.pos();
+    long seq = checkpoint == null ? -1 : checkpoint.seq();
+    Position start = null;
+    while (true) {
+      Segment segment = _segments.get(segmentId);
+      ByteBuffer buf = segment.buf;
+      int length = pos + 4 <= buf.capacity() ? buf.getInt(pos) : 0;
+
+      // Move on to the next segment.
+      if (length == ROLLOVER) {
+        Long next = _segments.higherKey(segmentId);
+        if (next != null) {
+          segmentId = next;
+          pos = 0;
+          continue;
+        }
+        // The crash came before the next segment was created.
+        break;
+      }
+
+      // Stop at the end of the records or at a damaged record.
+      if (length == 0) break;
+      String problem = checkRecord(buf, pos, length, seq);
+      if (problem != null) {
+        _log.warn(MsgUtils.getMsg("QMGR_OUTBOX_TRUNCATED", segment.path, Integer.toString(pos), problem));
+        for (int i = pos; i < buf.capacity(); i++) buf.put(i, (byte) 0);
+        break;
+      }
+      if (seq < 0) seq = buf.getLong(pos + 8);
+      if (start == null) start = new Position(segmentId, pos, seq);
+      seq++;
+      pos += length;
+    }
+
+    // Records after a damaged one can't be trusted.
+    for (long id : new ArrayList<>(_segments.tailMap(segmentId, false).keySet())) {
+      Segment segment = _segments.remove(id);
+      _log.warn(MsgUtils.getMsg("QMGR_OUTBOX_TRUNCATED", segment.path, 0, "follows the end of the journal"));
+      segment.close();
+      Files.deleteIfExists(segment.path);
+    }
+
+    // Resume writing at the end and draining at the first unconfirmed record.
+    if (seq < 0) seq = 1;
+    _writeSegment = _segments.get(segmentId);
+    _writePos = pos;
+    _nextSeq = seq;
+    _appendedSeq = seq - 1;
+    _syncedSeq = seq - 1;
+    _syncSegmentId = segmentId;
+    _syncPos = pos;
+    if (start == null) start = new Position(segmentId, pos, seq);
+    _cursor = start;
+    _checkpoint = start;
+    _savedCheckpoint = checkpoint;
+    _confirmedSeq = start.seq() - 1;
+
+    if (_log.isInfoEnabled())
+      _log.info("Opened outbox journal " + _name + " in " + _dir + " with " +
+                (_appendedSeq - _confirmedSeq) + " unconfirmed messages.");
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* checkRecord:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Return why the record at pos is invalid, or null if it's good. */
+  private static String checkRecord(ByteBuffer buf, int pos, int length, long expectedSeq)
+  {
+    if (length < HEADER_SIZE || pos + length > buf.capacity() - 4) return "bad length " + length;
+    long seq = buf.getLong(pos + 8);
+    if (expectedSeq >= 0 && seq != expectedSeq) return "expected sequence " + expectedSeq + " not " + seq;
+    var crc = new CRC32C();
+    crc.update(buf.slice(pos + 8, length - 8));
+    if ((int) crc.getValue() != buf.getInt(pos + 4)) return "bad checksum";
+    return null;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* rollover:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** Start a new segment.  Called with _lock held. */
+  private void rollover() throws TapisQueueException
+  {
+    if (_parms.getMaxSegments() > 0 && _segments.size() >= _parms.getMaxSegments()) {
+      String msg = MsgUtils.getMsg("QMGR_OUTBOX_FULL", _name, _segments.size(), _parms.getSegmentSize());
+      throw new TapisQueueException(msg);
+    }
+
+    // The new segment must exist before the drainer can see the marker.
+    long id = _writeSegment.id + 1;
+    Segment segment;
+    try {segment = new Segment(id, segmentPath(id), _parms.getSegmentSize());}
+      catch (IOException e) {
+        String msg = MsgUtils.getMsg("QMGR_OUTBOX_WRITE_ERROR", _name, e.getMessage());
+        _log.error(msg, e);
+        throw new TapisQueueException(msg, e);
+      }
+    _segments.put(id, segment);
+    _writeSegment.buf.putInt(_writePos, ROLLOVER);
+    _writeSegment = segment;
+    _writePos = 0;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* awaitSynced:                                                           */
+  /* ---------------------------------------------------------------------- */
+  private void awaitSynced(long seq) throws TapisQueueException
+  {
+    _lock.lock();
+    try {
+      _durableWaiters++;
+      _syncNeeded.signal();
+      while (_syncedSeq < seq) {
+        if (!_syncThread.isAlive()) {
+          String msg = MsgUtils.getMsg("QMGR_OUTBOX_CLOSED", _name);
+          throw new TapisQueueException(msg);
+        }
+        _synced.await(100, TimeUnit.MILLISECONDS);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      String msg = MsgUtils.getMsg("QMGR_OUTBOX_CLOSED", _name);
+      throw new TapisQueueException(msg, e);
+    }
+    finally {
+      _durableWaiters--;
+      _lock.unlock();
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* syncLoop:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** Force appended records to disk when a batch has accumulated, when an
+   * append is waiting, or when the interval has passed, whichever is first.
+   * Records appended while a force is in progress go in the next batch.
+   */
+  private void syncLoop()
+  {
+    long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, _parms.getSyncIntervalMs()));
+    while (!_closed) {
+      try {
+        _lock.lock();
+        try {
+          long waitNanos = intervalNanos;
+          while (_unsynced < _parms.getSyncBatchSize() && _durableWaiters == 0 && waitNanos > 0 
+                 && !_closed)
+            waitNanos = _syncNeeded.awaitNanos(waitNanos);
+        }
+        finally {_lock.unlock();}
+        if (_closed) break;
+
+        forceAppended();
+        saveCheckpoint();
+      }
+      catch (InterruptedException e) {break;}
+      catch (IOException | UncheckedIOException e) {
+        _log.error(MsgUtils.getMsg("QMGR_OUTBOX_SYNC_ERROR", _name, e.getMessage()), e);
+        LockSupport.parkNanos(intervalNanos);
+      }
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* forceAppended:                                                         */
+  /* ---------------------------------------------------------------------- */
+  /** Force everything appended so far to disk. */
+  private void forceAppended()
+  {
+    // Take a consistent snapshot of the end of the journal.
+    long seq, endSegmentId;
+    int endPos;
+    _lock.lock();
+    try {
+      if (_syncedSeq == _appendedSeq) return;
+      seq = _appendedSeq;
+      endSegmentId = _writeSegment.id;
+      endPos = _writePos;
+      _unsynced = 0;
+    }
+    finally {_lock.unlock();}
+
+    // Force the dirty range of each segment, including rollover markers.
+    for (var segment : _segments
+                         .subMap(_syncSegmentId, true, endSegmentId, true).values()) {
+      int from = segment.id == _syncSegmentId ? _syncPos : 0;
+      int to = segment.id == endSegmentId ? endPos : segment.buf.capacity();
+      if (to > from) segment.buf.force(from, to - from);
+    }
+    _syncSegmentId = endSegmentId;
+    _syncPos = endPos;
+    _syncs++;
+
+    _lock.lock();
+    try {
+      _syncedSeq = seq;
+      _synced.signalAll();
+    }
+    finally {_lock.unlock();}
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* saveCheckpoint:                                                        */
+  /* ---------------------------------------------------------------------- */
+  /** Save the drainer's position and delete the segments before it. */
+  private void saveCheckpoint() throws IOException
+  {
+    Position checkpoint = _checkpoint;
+    if (checkpoint.equals(_savedCheckpoint)) return;
+
+    // Write to the older slot.
+    var slot = ByteBuffer.allocate(CHECKPOINT_SLOT_SIZE);
+    slot.putLong(checkpoint.segmentId()).putInt(checkpoint.pos()).putLong(checkpoint.seq());
+    var crc = new CRC32C();
+    crc.update(slot.array(), 0, 20);
+    slot.putInt((int) crc.getValue()).rewind();
+    _checkpointFile.write(slot, (long) _checkpointSlot * CHECKPOINT_SLOT_SIZE);
+    _checkpointFile.force(false);
+    _checkpointSlot ^= 1;
+    _savedCheckpoint = checkpoint;
+
+    // Fully confirmed segments are no longer needed.
+    for (var segment : _segments
+                         .headMap(checkpoint.segmentId()).values()) {
+      _segments.remove(segment.id);
+      segment.close();
+      Files.deleteIfExists(segment.path);
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* readCheckpoint:                                                        */
+  /* ---------------------------------------------------------------------- */
+  /** Return the newer valid checkpoint slot, or null if there is none. */
+  private Position readCheckpoint() throws IOException
+  {
+    var buf = ByteBuffer.allocate(2 * CHECKPOINT_SLOT_SIZE);
+    while (buf.hasRemaining() && _checkpointFile.read(buf, buf.position()) > 0);
+    Position best = null;
+    for (int slot = 0; slot < 2; slot++) {
+      int base = slot * CHECKPOINT_SLOT_SIZE;
+      var crc = new CRC32C();
+      crc.update(buf.array(), base, 20);
+      if ((int) crc.getValue() != buf.getInt(base + 20)) continue;
+      var position = new Position(buf.getLong(base), buf.getInt(base + 8), buf.getLong(base + 12));
+      if (position.seq() <= 0) continue;
+      if (best == null || position.seq() > best.seq()) {
+        best = position;
+        _checkpointSlot = slot ^ 1;
+      }
+    }
+    return best;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* drainLoop:                                                             */
+  /* ---------------------------------------------------------------------- */
+  /** Publish journal records in order, reopening the channel and going back
+   * to the first unconfirmed record after a failure.
+   */
+  private void drainLoop()
+  {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        // Start over after a nack or a channel failure.
+        if (_channel != null && _failedChannel == _channel) {
+          abort(_channel.channel);
+          _channel = null;
+          synchronized (_drainLock) {
+            if (!_inFlight.isEmpty()) {
+              _republished += _cursor.seq() - _inFlight.peekFirst().position().seq();
+              _cursor = _inFlight.peekFirst().position();
+              _inFlight.clear();
+            }
+          }
+          Thread.sleep(_parms.getRetryDelayMs());
+        }
+
+        // Wait for something to publish and room to publish it.
+        if (_cursor.seq() > _appendedSeq || inFlightCount() >= _parms.getMaxInFlight()) {
+          LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+          continue;
+        }
+
+        // Open a channel if necessary.
+        if (_channel == null && (_channel = openChannel()) == null) {
+          Thread.sleep(_parms.getRetryDelayMs());
+          continue;
+        }
+
+        // Publish what's available.
+        while (_cursor.seq() <= _appendedSeq && inFlightCount() < _parms.getMaxInFlight()
+               && _failedChannel != _channel) {
+          Message msg;
+          try {msg = read(_cursor);}
+          catch (IOException e) {skip(e); continue;}
+          if (msg == null) continue;
+          long tag = _channel.channel.getNextPublishSeqNo();
+          synchronized (_drainLock) {_inFlight.addLast(new InFlight(_cursor, tag));}
+          _channel.channel.basicPublish(msg.exchange(), msg.routingKey(), false, msg.properties(), msg.body());
+          _published++;
+          _cursor = new Position(_cursor.segmentId(), _cursor.pos() + msg.length(), _cursor.seq() + 1);
+        }
+      }
+      catch (InterruptedException e) {break;}
+      catch (Exception e) {
+        logDrainError(e);
+        if (_channel != null) _failedChannel = _channel;
+      }
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* openChannel:                                                           */
+  /* ---------------------------------------------------------------------- */
+  private DrainChannel openChannel()
+  {
+    Channel channel = null;
+    try {
+      channel = _factory.newChannel();
+      channel.confirmSelect();
+      var drainChannel = new DrainChannel(channel);
+      channel.addConfirmListener(drainChannel);
+      channel.addShutdownListener(sig -> fail(drainChannel));
+      return drainChannel;
+    }
+    catch (Exception e) {
+      logDrainError(e);
+      if (channel != null) abort(channel);
+      return null;
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* logDrainError:                                                         */
+  /* ---------------------------------------------------------------------- */
+  /** Warn about the first of a run of failures, which repeat every retry
+   * delay while the broker is down.
+   */
+  private void logDrainError(Exception e)
+  {
+    String msg = MsgUtils.getMsg("QMGR_OUTBOX_DRAIN_ERROR", _name, e.getMessage());
+    long now = System.currentTimeMillis();
+    if (now - _lastDrainErrorMs > 60000) _log.warn(msg);
+      else if (_log.isDebugEnabled()) _log.debug(msg);
+    _lastDrainErrorMs = now;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* read:                                                                  */
+  /* ---------------------------------------------------------------------- */
+  /** Read the record at the cursor, moving the cursor to the next segment
+   * and returning null at a rollover marker.
+   */
+  private Message read(Position cursor) throws IOException
+  {
+    ByteBuffer buf = _segments.get(cursor.segmentId()).buf;
+    int length = buf.getInt(cursor.pos());
+    if (length == ROLLOVER) {
+      _cursor = new Position(cursor.segmentId() + 1, 0, cursor.seq());
+      return null;
+    }
+
+    // Decode the payload.
+    byte[] payload = new byte[length - HEADER_SIZE];
+    buf.get(cursor.pos() + HEADER_SIZE, payload);
+    var in = new DataInputStream(new ByteArrayInputStream(payload));
+    byte version = in.readByte();
+    if (version != FORMAT_VERSION) {
+      String msg = MsgUtils.getMsg("QMGR_OUTBOX_RECORD_VERSION", _name, cursor.seq(), version);
+      throw new IOException(msg);
+    }
+    String exchange = in.readUTF();
+    String routingKey = in.readUTF();
+    AMQP.BasicProperties properties = in.readBoolean() ? readProperties(in) : null;
+    byte[] body = new byte[in.readInt()];
+    in.readFully(body);
+    return new Message(exchange, routingKey, properties, body, length);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* skip:                                                                  */
+  /* ---------------------------------------------------------------------- */
+  /** Move the cursor past a record that can't be decoded.  No retry can
+   * publish it, so it is retired like a confirmed record: right away when
+   * nothing is in flight, otherwise with the confirm of the record before it.
+   */
+  private void skip(IOException e)
+  {
+    _log.error(MsgUtils.getMsg("QMGR_OUTBOX_RECORD_SKIPPED", _name, _cursor.seq(), e.getMessage()), e);
+    int length = _segments.get(_cursor.segmentId()).buf.getInt(_cursor.pos());
+    Position next = new Position(_cursor.segmentId(), _cursor.pos() + length, _cursor.seq() + 1);
+    synchronized (_drainLock) {
+      if (_inFlight.isEmpty()) {
+        _confirmedSeq = _cursor.seq();
+        _checkpoint = next;
+        _drainLock.notifyAll();
+      }
+      else _inFlight.addLast(new InFlight(_cursor, _inFlight.peekLast().deliveryTag()));
+    }
+    _skipped++;
+    _cursor = next;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* confirm:                                                               */
+  /* ---------------------------------------------------------------------- */
+  /** Retire confirmed records and move the checkpoint up to the first
+   * unconfirmed one.
+   */
+  private void confirm(DrainChannel channel, long deliveryTag, boolean multiple)
+  {
+    synchronized (_drainLock) {
+      if (channel != _channel || _failedChannel == channel) return;
+      if (!multiple && !_inFlight.isEmpty() && _inFlight.peekFirst().deliveryTag() != deliveryTag) {
+        // Confirms arrive in order on a channel, so this shouldn't happen;
+        // treat it like a failure rather than lose track of a record.
+        _failedChannel = channel;
+        LockSupport.unpark(_drainThread);
+        return;
+      }
+      InFlight last = null;
+      while (!_inFlight.isEmpty() && _inFlight.peekFirst().deliveryTag() <= deliveryTag)
+        last = _inFlight.pollFirst();
+      if (last == null) return;
+      _confirmedSeq = last.position().seq();
+      _checkpoint = _inFlight.isEmpty() ? nextPosition(last) : _inFlight.peekFirst().position();
+      _drainLock.notifyAll();
+    }
+    LockSupport.unpark(_drainThread);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* nextPosition:                                                          */
+  /* ---------------------------------------------------------------------- */
+  /** The position after an in-flight record. */
+  private Position nextPosition(InFlight record)
+  {
+    Position p = record.position();
+    int length = _segments.get(p.segmentId()).buf.getInt(p.pos());
+    return new Position(p.segmentId(), p.pos() + length, p.seq() + 1);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* fail:                                                                  */
+  /* ---------------------------------------------------------------------- */
+  private void fail(DrainChannel channel)
+  {
+    _failedChannel = channel;
+    LockSupport.unpark(_drainThread);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* inFlightCount:                                                         */
+  /* ---------------------------------------------------------------------- */
+  private int inFlightCount()
+  {
+    synchronized (_drainLock) {return _inFlight.size();}
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* encode:                                                                */
+  /* ---------------------------------------------------------------------- */
+  /** Serialize a message in the current format version.
+   *
+   * @throws IllegalArgumentException if a header value has an unsupported type
+   */
+  private static byte[] encode(String exchangeName, String routingKey,
+                               AMQP.BasicProperties properties, byte[] body)
+  {
+    var bytes = new ByteArrayOutputStream(64 + (body == null ? 0 : body.length));
+    var out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(FORMAT_VERSION);
+      out.writeUTF(exchangeName == null ? "" : exchangeName);
+      out.writeUTF(routingKey == null ? "" : routingKey);
+      out.writeBoolean(properties != null);
+      if (properties != null) writeProperties(out, properties);
+      out.writeInt(body == null ? 0 : body.length);
+      if (body != null) out.write(body);
+    }
+    catch (IOException e) {throw new UncheckedIOException(e);} // not thrown in memory
+    return bytes.toByteArray();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* writeProperties:                                                       */
+  /* ---------------------------------------------------------------------- */
+  /** Write a bit mask of the properties that are set followed by their values. */
+  private static void writeProperties(DataOutputStream out, AMQP.BasicProperties p)
+   throws IOException
+  {
+    Object[] values = {p.getContentType(), p.getContentEncoding(), p.getHeaders(), p.getDeliveryMode(),
+                       p.getPriority(), p.getCorrelationId(), p.getReplyTo(), p.getExpiration(),
+                       p.getMessageId(), p.getTimestamp(), p.getType(), p.getUserId(), p.getAppId(),
+                       p.getClusterId()};
+    int mask = 0;
+    for (int i = 0; i < values.length; i++) if (values[i] != null) mask |= 1 << i;
+    out.writeShort(mask);
+
+    if (p.getContentType() != null) out.writeUTF(p.getContentType());
+    if (p.getContentEncoding() != null) out.writeUTF(p.getContentEncoding());
+    if (p.getHeaders() != null) writeTable(out, p.getHeaders(), "");
+    if (p.getDeliveryMode() != null) out.writeInt(p.getDeliveryMode());
+    if (p.getPriority() != null) out.writeInt(p.getPriority());
+    if (p.getCorrelationId() != null) out.writeUTF(p.getCorrelationId());
+    if (p.getReplyTo() != null) out.writeUTF(p.getReplyTo());
+    if (p.getExpiration() != null) out.writeUTF(p.getExpiration());
+    if (p.getMessageId() != null) out.writeUTF(p.getMessageId());
+    if (p.getTimestamp() != null) out.writeLong(p.getTimestamp().getTime());
+    if (p.getType() != null) out.writeUTF(p.getType());
+    if (p.getUserId() != null) out.writeUTF(p.getUserId());
+    if (p.getAppId() != null) out.writeUTF(p.getAppId());
+    if (p.getClusterId() != null) out.writeUTF(p.getClusterId());
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* readProperties:                                                        */
+  /* ---------------------------------------------------------------------- */
+  private static AMQP.BasicProperties readProperties(DataInputStream in) throws IOException
+  {
+    int mask = in.readUnsignedShort();
+    var builder = new AMQP.BasicProperties.Builder();
+    if ((mask & 1) != 0) builder.contentType(in.readUTF());
+    if ((mask & 1 << 1) != 0) builder.contentEncoding(in.readUTF());
+    if ((mask & 1 << 2) != 0) builder.headers(readTable(in));
+    if ((mask & 1 << 3) != 0) builder.deliveryMode(in.readInt());
+    if ((mask & 1 << 4) != 0) builder.priority(in.readInt());
+    if ((mask & 1 << 5) != 0) builder.correlationId(in.readUTF());
+    if ((mask & 1 << 6) != 0) builder.replyTo(in.readUTF());
+    if ((mask & 1 << 7) != 0) builder.expiration(in.readUTF());
+    if ((mask & 1 << 8) != 0) builder.messageId(in.readUTF());
+    if ((mask & 1 << 9) != 0) builder.timestamp(new Date(in.readLong()));
+    if ((mask & 1 << 10) != 0) builder.type(in.readUTF());
+    if ((mask & 1 << 11) != 0) builder.userId(in.readUTF());
+    if ((mask & 1 << 12) != 0) builder.appId(in.readUTF());
+    if ((mask & 1 << 13) != 0) builder.clusterId(in.readUTF());
+    return builder.build();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* writeTable:                                                            */
+  /* ---------------------------------------------------------------------- */
+  private static void writeTable(DataOutputStream out, Map<String,Object> table, String prefix)
+   throws IOException
+  {
+    out.writeInt(table.size());
+    for (var entry : table.entrySet()) {
+      writeString(out, entry.getKey());
+      writeValue(out, entry.getValue(), prefix + entry.getKey());
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* readTable:                                                             */
+  /* ---------------------------------------------------------------------- */
+  private static Map<String,Object> readTable(DataInputStream in) throws IOException
+  {
+    int size = in.readInt();
+    var table = new LinkedHashMap<String,Object>();
+    for (int i = 0; i < size; i++) table.put(readString(in), readValue(in));
+    return table;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* writeValue:                                                            */
+  /* ---------------------------------------------------------------------- */
+  /** Write a header value preceded by a tag for its type.  The types are the
+   * ones the client library can send in a field table.  Long strings from the
+   * client library are written as strings.
+   */
+  @SuppressWarnings("unchecked")
+  private static void writeValue(DataOutputStream out, Object value, String name)
+   throws IOException
+  {
+    if (value == null) out.writeByte('V');
+    else if (value instanceof String || value instanceof LongString) {
+      out.writeByte('S');
+      writeString(out, value.toString());
+    }
+    else if (value instanceof Integer v) {out.writeByte('I'); out.writeInt(v);}
+    else if (value instanceof Long v) {out.writeByte('l'); out.writeLong(v);}
+    else if (value instanceof Short v) {out.writeByte('s'); out.writeShort(v);}
+    else if (value instanceof Byte v) {out.writeByte('b'); out.writeByte(v);}
+    else if (value instanceof Boolean v) {out.writeByte('t'); out.writeBoolean(v);}
+    else if (value instanceof Double v) {out.writeByte('d'); out.writeDouble(v);}
+    else if (value instanceof Float v) {out.writeByte('f'); out.writeFloat(v);}
+    else if (value instanceof BigDecimal v) {
+      out.writeByte('D');
+      out.writeInt(v.scale());
+      writeBytes(out, v.unscaledValue().toByteArray());
+    }
+    else if (value instanceof Date v) {out.writeByte('T'); out.writeLong(v.getTime());}
+    else if (value instanceof byte[] v) {out.writeByte('x'); writeBytes(out, v);}
+    else if (value instanceof Map<?,?> v) {out.writeByte('F'); writeTable(out, (Map<String,Object>) v, name + ".");}
+    else if (value instanceof List<?> v) {
+      out.writeByte('A');
+      out.writeInt(v.size());
+      for (Object element : v) writeValue(out, element, name + "[]");
+    }
+    else {
+      String msg = MsgUtils.getMsg("QMGR_OUTBOX_UNSUPPORTED_HEADER", name, value.getClass().getName());
+      throw new IllegalArgumentException(msg);
+    }
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* readValue:                                                             */
+  /* ---------------------------------------------------------------------- */
+  private static Object readValue(DataInputStream in) throws IOException
+  {
+    byte tag = in.readByte();
+    return switch (tag) {
+      case 'V' -> null;
+      case 'S' -> readString(in);
+      case 'I' -> in.readInt();
+      case 'l' -> in.readLong();
+      case 's' -> in.readShort();
+      case 'b' -> in.readByte();
+      case 't' -> in.readBoolean();
+      case 'd' -> in.readDouble();
+      case 'f' -> in.readFloat();
+      case 'D' -> {
+        int scale = in.readInt();
+        yield new BigDecimal(new BigInteger(readBytes(in)), scale);
+      }
+      case 'T' -> new Date(in.readLong());
+      case 'x' -> readBytes(in);
+      case 'F' -> readTable(in);
+      case 'A' -> {
+        int size = in.readInt();
+        var list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) list.add(readValue(in));
+        yield list;
+      }
+      default -> throw new IOException(MsgUtils.getMsg("QMGR_OUTBOX_UNKNOWN_HEADER_TYPE", (char) tag));
+    };
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* writeString:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Strings in headers aren't limited to writeUTF's 64K. */
+  private static void writeString(DataOutputStream out, String s) throws IOException
+  {
+    writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    return new String(readBytes(in), StandardCharsets.UTF_8);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* writeBytes:                                                            */
+  /* ---------------------------------------------------------------------- */
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+  {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException
+  {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* checksum:                                                              */
+  /* ---------------------------------------------------------------------- */
+  private static int checksum(long seq, byte[] payload)
+  {
+    var crc = new CRC32C();
+    crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* segmentPath:                                                           */
+  /* ---------------------------------------------------------------------- */
+  private Path segmentPath(long id)
+  {
+    return _dir.resolve(String.format("%020d", id) + SEGMENT_SUFFIX);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* abort:                                                                 */
+  /* ---------------------------------------------------------------------- */
+  private static void abort(Channel channel)
+  {
+    try {channel.abort();} catch (Exception e) {}
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* checkOpen:                                                             */
+  /* ---------------------------------------------------------------------- */
+  private void checkOpen() throws TapisQueueException
+  {
+    if (_closed) {
+      String msg = MsgUtils.getMsg("QMGR_OUTBOX_CLOSED", _name);
+      throw new TapisQueueException(msg);
+    }
+  }
+}
@@ -57,6 +57,18 @@ public class QueueManagerNames
       return instanceName + OUT_CONNECTION_SUFFIX;
   }
   
+  /* ---------------------------------------------------------------------- */
+  /* getOutConnectionName:                                                  */
+  /* ---------------------------------------------------------------------- */
+  /** The name of one of several sharded outbound connections.  The first 
+   * shard keeps the unsharded name.
+   */
+  public static String getOutConnectionName(String instanceName, int shard)
+  {
+      String name = getOutConnectionName(instanceName);
+      return shard == 0 ? name : name + "-" + shard;
+  }
+  
   /* ---------------------------------------------------------------------- */
   /* getInConnectionName:                                                   */
   /* ---------------------------------------------------------------------- */
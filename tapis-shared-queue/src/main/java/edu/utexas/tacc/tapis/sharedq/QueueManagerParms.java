@@ -18,6 +18,19 @@ public class QueueManagerParms
     private boolean queueAutoRecoveryEnabled;
     private String  vhost;        // can be null 
     
+    // Outbound channel pool configuration.
+    private int     outChannelPoolSize = ChannelPool.DEFAULT_MAX_CHANNELS;
+    private long    outChannelPoolTimeoutMs = ChannelPool.DEFAULT_BORROW_TIMEOUT_MS;
+    
+    // Number of outbound connections that publishing is spread across.
+    private int     outConnectionShards = 1;
+    
+    // Published bodies at least this large are compressed, 0 disables compression.
+    private int     compressionThreshold;
+    
+    // Where queue metrics are kept, null to keep none.
+    private QueueMetrics metrics;
+    
     // Validation method should be called before first parameter use.
     public void validate() throws TapisRuntimeException
     {
@@ -46,6 +59,21 @@ public class QueueManagerParms
                                          queuePort);
             throw new TapisRuntimeException(msg);
         }
+        if (outChannelPoolSize <= 0) {
+            String msg = MsgUtils.getMsg("TAPIS_INVALID_PARAMETER", "validate", "outChannelPoolSize", 
+                                         outChannelPoolSize);
+            throw new TapisRuntimeException(msg);
+        }
+        if (outConnectionShards <= 0) {
+            String msg = MsgUtils.getMsg("TAPIS_INVALID_PARAMETER", "validate", "outConnectionShards", 
+                                         outConnectionShards);
+            throw new TapisRuntimeException(msg);
+        }
+        if (compressionThreshold < 0) {
+            String msg = MsgUtils.getMsg("TAPIS_INVALID_PARAMETER", "validate", "compressionThreshold", 
+                                         compressionThreshold);
+            throw new TapisRuntimeException(msg);
+        }
     }
     
     // Accessors.
@@ -103,4 +131,34 @@ public class QueueManagerParms
     public void setVhost(String vhost) {
         this.vhost = vhost;
     }
+    public int getOutChannelPoolSize() {
+        return outChannelPoolSize;
+    }
+    public void setOutChannelPoolSize(int outChannelPoolSize) {
+        this.outChannelPoolSize = outChannelPoolSize;
+    }
+    public long getOutChannelPoolTimeoutMs() {
+        return outChannelPoolTimeoutMs;
+    }
+    public void setOutChannelPoolTimeoutMs(long outChannelPoolTimeoutMs) {
+        this.outChannelPoolTimeoutMs = outChannelPoolTimeoutMs;
+    }
+    public int getOutConnectionShards() {
+        return outConnectionShards;
+    }
+    public void setOutConnectionShards(int outConnectionShards) {
+        this.outConnectionShards = outConnectionShards;
+    }
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+    public void setMetrics(QueueMetrics metrics) {
+        this.metrics = metrics;
+    }
 }
@@ -0,0 +1,313 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.jmx.JmxReporter;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.impl.StandardMetricsCollector;
+
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+
+/** Queue metrics kept in a Dropwizard registry, the same kind of registry the
+ * database pools report to.  One instance is shared by the queue manager and
+ * the publishers and dispatchers created from it.  It provides:
+ *
+ *  - the amqp-client's collector, which counts connections, channels, and
+ *    published, confirmed, returned, consumed and acknowledged messages
+ *  - publish and confirm latency timers per exchange
+ *  - handler latency timers per queue
+ *  - gauges for unconfirmed publishes and unacknowledged deliveries, summed
+ *    over the publishers with the same name and the subscriptions to the
+ *    same queue
+ *  - blocked connection counts and durations, fed by connection listeners
+ *
+ * Metric names start with the prefix, "tapis.queue" by default.  Call
+ * startJmxReporter() to export everything through JMX.
+ */
+public final class QueueMetrics
+{
+  /* ********************************************************************** */
+  /*                               Constants                                */
+  /* ********************************************************************** */
+  // Tracing.
+  private static final Logger _log = LoggerFactory.getLogger(QueueMetrics.class);
+
+  // Naming.
+  public static final String DEFAULT_PREFIX   = "tapis.queue";
+  public static final String DEFAULT_EXCHANGE = "default";
+  public static final String JMX_DOMAIN       = "edu.utexas.tacc.tapis.sharedq";
+
+  /* ********************************************************************** */
+  /*                                 Fields                                 */
+  /* ********************************************************************** */
+  private final MetricRegistry            _registry;
+  private final String                    _prefix;
+  private final StandardMetricsCollector  _collector;
+
+  // Timers by exchange or queue name, so that names are only built once.
+  private final Map<String,Timer>         _publishTimers = new ConcurrentHashMap<>();
+  private final Map<String,Timer>         _confirmTimers = new ConcurrentHashMap<>();
+  private final Map<String,Timer>         _handlerTimers = new ConcurrentHashMap<>();
+
+  // Gauges that sum the counts of everything registered under their name.
+  private final Map<String,SumGauge>      _sums = new ConcurrentHashMap<>();
+
+  // Blocked connections and the nanoTime they were blocked at.
+  private final Map<String,Long>          _blockedSince = new ConcurrentHashMap<>();
+  private final Meter                     _blockedEvents;
+  private final Timer                     _blockedTime;
+
+  /* ********************************************************************** */
+  /*                                 Types                                  */
+  /* ********************************************************************** */
+  /** A gauge of the total count of its owners. */
+  private static final class SumGauge
+   implements Gauge<Long>
+  {
+    private final Map<Object,IntSupplier> counts = new ConcurrentHashMap<>();
+
+    @Override
+    public Long getValue()
+    {
+      long sum = 0;
+      for (IntSupplier count : counts.values()) sum += count.getAsInt();
+      return sum;
+    }
+  }
+
+  /* ********************************************************************** */
+  /*                             Constructors                               */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  public QueueMetrics(MetricRegistry registry)
+  {
+    this(registry, DEFAULT_PREFIX);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* constructor:                                                           */
+  /* ---------------------------------------------------------------------- */
+  /** Keep queue metrics in the registry under the prefix.
+   *
+   * @param registry the registry, usually the service's only one
+   * @param prefix the first part of every metric name
+   */
+  public QueueMetrics(MetricRegistry registry, String prefix)
+  {
+    if (registry == null) {
+      String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "QueueMetrics", "registry");
+      throw new IllegalArgumentException(msg);
+    }
+    _registry = registry;
+    _prefix = prefix == null || prefix.isEmpty() ? DEFAULT_PREFIX : prefix;
+    _collector = new StandardMetricsCollector(registry, MetricRegistry.name(_prefix, "client"));
+    _blockedEvents = registry.meter(MetricRegistry.name(_prefix, "blocked", "events"));
+    _blockedTime = registry.timer(MetricRegistry.name(_prefix, "blocked", "time"));
+    register(MetricRegistry.name(_prefix, "blocked", "connections"), _blockedSince::size);
+  }
+
+  /* ********************************************************************** */
+  /*                             Public Methods                             */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* startJmxReporter:                                                      */
+  /* ---------------------------------------------------------------------- */
+  /** Export the whole registry as MBeans in the sharedq domain.  The caller
+   * stops the reporter at shutdown.
+   *
+   * @return the started reporter
+   */
+  public JmxReporter startJmxReporter()
+  {
+    JmxReporter reporter = JmxReporter.forRegistry(_registry).inDomain(JMX_DOMAIN)
+                             .convertDurationsTo(TimeUnit.MILLISECONDS)
+                             .convertRatesTo(TimeUnit.SECONDS).build();
+    reporter.start();
+    return reporter;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* getPublishTimer:                                                       */
+  /* ---------------------------------------------------------------------- */
+  /** Time from calling publish until the message is handed to the client. */
+  public Timer getPublishTimer(String exchangeName)
+  {
+    return _publishTimers.computeIfAbsent(exchange(exchangeName),
+        name -> _registry.timer(MetricRegistry.name(_prefix, "publish", name)));
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* getConfirmTimer:                                                       */
+  /* ---------------------------------------------------------------------- */
+  /** Time from calling publish until the broker confirms the message. */
+  public Timer getConfirmTimer(String exchangeName)
+  {
+    return _confirmTimers.computeIfAbsent(exchange(exchangeName),
+        name -> _registry.timer(MetricRegistry.name(_prefix, "confirm", name)));
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* getHandlerTimer:                                                       */
+  /* ---------------------------------------------------------------------- */
+  /** Time spent in a dispatcher's handler for a queue's deliveries. */
+  public Timer getHandlerTimer(String queueName)
+  {
+    return _handlerTimers.computeIfAbsent(queueName,
+        name -> _registry.timer(MetricRegistry.name(_prefix, "handler", name)));
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* registerUnconfirmed:                                                   */
+  /* ---------------------------------------------------------------------- */
+  /** Add the publisher's unconfirmed messages to the gauge for its name.
+   * Publishers created from the same queue manager share a name, so the
+   * gauge is their total.
+   *
+   * @return the gauge's name, for remove(name, publisher)
+   */
+  public String registerUnconfirmed(ConfirmingPublisher publisher)
+  {
+    return addToSum(MetricRegistry.name(_prefix, "unconfirmed", publisher.getName()),
+                    publisher, publisher::getInFlightCount);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* registerUnacked:                                                       */
+  /* ---------------------------------------------------------------------- */
+  /** Add the subscription's delivered but unsettled messages to the gauge
+   * for its queue, which is the total over competing subscriptions.
+   *
+   * @return the gauge's name, for remove(name, subscription)
+   */
+  public String registerUnacked(DeliveryDispatcher.Subscription subscription)
+  {
+    return addToSum(MetricRegistry.name(_prefix, "unacked", subscription.getQueueName()),
+                    subscription, subscription::getUnsettledCount);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* register:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** Add or replace a gauge.
+   *
+   * @return the gauge's name
+   */
+  public String register(String name, Gauge<? extends Number> gauge)
+  {
+    _registry.remove(name);
+    _registry.register(name, gauge);
+    return name;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* remove:                                                                */
+  /* ---------------------------------------------------------------------- */
+  /** Remove a gauge when the object it reads is closed. */
+  public void remove(String name) {if (name != null) _registry.remove(name);}
+
+  /* ---------------------------------------------------------------------- */
+  /* remove:                                                                */
+  /* ---------------------------------------------------------------------- */
+  /** Take a closed publisher or subscription out of a summed gauge.  The
+   * gauge is removed with its last owner, unless something else has since
+   * been registered under its name.
+   *
+   * @param name the name returned when the owner was registered
+   * @param owner the publisher or subscription
+   */
+  public synchronized void remove(String name, Object owner)
+  {
+    SumGauge sum = name == null ? null : _sums.get(name);
+    if (sum == null || sum.counts.remove(owner) == null || !sum.counts.isEmpty()) return;
+    _sums.remove(name);
+    if (_registry.getMetrics().get(name) == sum) _registry.remove(name);
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* watch:                                                                 */
+  /* ---------------------------------------------------------------------- */
+  /** Track the connection's blocked and unblocked notifications, which the
+   * broker sends when a memory or disk alarm stops publishing.
+   *
+   * @param conn a new connection
+   * @param name the connection's name
+   */
+  public void watch(Connection conn, String name)
+  {
+    conn.addBlockedListener(new BlockedListener() {
+      @Override
+      public void handleBlocked(String reason)
+      {
+        if (_blockedSince.putIfAbsent(name, System.nanoTime()) != null) return;
+        _blockedEvents.mark();
+        _log.warn(MsgUtils.getMsg("QMGR_CONNECTION_BLOCKED", name, reason));
+      }
+
+      @Override
+      public void handleUnblocked()
+      {
+        Long since = _blockedSince.remove(name);
+        if (since == null) return;
+        long nanos = System.nanoTime() - since;
+        _blockedTime.update(nanos, TimeUnit.NANOSECONDS);
+        _log.info(MsgUtils.getMsg("QMGR_CONNECTION_UNBLOCKED", name, TimeUnit.NANOSECONDS.toMillis(nanos)));
+      }
+    });
+
+    // A closed connection is no longer blocked.
+    conn.addShutdownListener(sig -> _blockedSince.remove(name));
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* accessors:                                                             */
+  /* ---------------------------------------------------------------------- */
+  public MetricRegistry getRegistry() {return _registry;}
+  public String getPrefix() {return _prefix;}
+  public StandardMetricsCollector getCollector() {return _collector;}
+  public int getBlockedConnectionCount() {return _blockedSince.size();}
+  public long getBlockedEventCount() {return _blockedEvents.getCount();}
+
+  /* ********************************************************************** */
+  /*                             Private Methods                            */
+  /* ********************************************************************** */
+  /* ---------------------------------------------------------------------- */
+  /* addToSum:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** Add an owner's count to the summed gauge with the name, creating the
+   * gauge if needed.
+   */
+  private synchronized String addToSum(String name, Object owner, IntSupplier count)
+  {
+    SumGauge sum = _sums.get(name);
+    if (sum == null || _registry.getMetrics().get(name) != sum)
+    {
+      sum = new SumGauge();
+      register(name, sum);
+      _sums.put(name, sum);
+    }
+    sum.counts.put(owner, count);
+    return name;
+  }
+
+  /* ---------------------------------------------------------------------- */
+  /* exchange:                                                              */
+  /* ---------------------------------------------------------------------- */
+  /** The default exchange has an empty name. */
+  private static String exchange(String exchangeName)
+  {
+    return exchangeName == null || exchangeName.isEmpty() ? DEFAULT_EXCHANGE : exchangeName;
+  }
+}
@@ -1,43 +1,84 @@
 package edu.utexas.tacc.tapis.sharedq;
 
-import java.io.IOException;
-import java.net.Authenticator;
-import java.net.PasswordAuthentication;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.lang3.StringUtils;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
-import edu.utexas.tacc.tapis.shared.exceptions.TapisException;
 import edu.utexas.tacc.tapis.shared.exceptions.runtime.TapisRuntimeException;
 import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
 import edu.utexas.tacc.tapis.shared.utils.TapisGsonUtils;
 import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
 
-public class VHostManager 
+/** Create virtual hosts and their administrative users through the RabbitMQ
+ * management API.  Requests are sent asynchronously on an HTTP client shared
+ * by all managers, with the administrator's credentials sent preemptively so
+ * that each request takes a single round-trip.  The vhost and user of a pair
+ * are checked and created concurrently, and many pairs can be initialized at
+ * once with a limit on the number of outstanding requests.
+ */
+public class VHostManager
 {
     /* **************************************************************************** */
     /*                                   Constants                                  */
     /* **************************************************************************** */
     public static final String ALL_PERMISSIONS  = ".*";
-    
+
+    // Limits on management api requests.
+    public static final int      DEFAULT_MAX_CONCURRENT_REQUESTS = 16;
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
     /* **************************************************************************** */
     /*                                    Fields                                    */
     /* **************************************************************************** */
     // Constructor parameters.
     private final VHostParms _parms;
-    
-    // Values cached on first use.
-    private String     _cmdPrefix;
-    private HttpClient _client;
+    private final int        _maxConcurrentRequests;
+
+    // Values computed once.
+    private final String     _cmdPrefix;
+    private final String     _authorization;
+
+    // Requests waiting for a slot, guarded by this.
+    private final ArrayDeque<Runnable> _waiting = new ArrayDeque<>();
+    private int                        _running;
+
+    /* **************************************************************************** */
+    /*                                 Inner Classes                                */
+    /* **************************************************************************** */
+    /** A vhost and its administrative user. */
+    public record VHostSpec(String vhost, String user, String userPassword) {}
+
+    /** The client is created on first use and shared by all managers.  The
+     * management api only speaks http/1.1, so don't offer an upgrade.
+     */
+    private static final class ClientHolder
+    {
+        private static final HttpClient CLIENT = HttpClient.newBuilder()
+                                                   .version(HttpClient.Version.HTTP_1_1)
+                                                   .connectTimeout(Duration.ofSeconds(10))
+                                                   .build();
+    }
 
     /* **************************************************************************** */
     /*                                Constructors                                  */
@@ -46,14 +87,38 @@ public class VHostManager
     /* constructor:                                                                 */
     /* ---------------------------------------------------------------------------- */
     public VHostManager(VHostParms parms)
+    {
+        this(parms, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* constructor:                                                                 */
+    /* ---------------------------------------------------------------------------- */
+    /** Create a manager that has at most maxConcurrentRequests requests
+     * outstanding at a time.  Further requests wait their turn.
+     *
+     * @param parms the management api connection parameters
+     * @param maxConcurrentRequests the request limit
+     */
+    public VHostManager(VHostParms parms, int maxConcurrentRequests)
     {
         if (parms == null) {
             String msg = MsgUtils.getMsg("TAPIS_NULL_PARAMETER", "VHostManager", "parms");
             throw new TapisRuntimeException(msg);
         }
+        if (maxConcurrentRequests <= 0) {
+            String msg = MsgUtils.getMsg("TAPIS_INVALID_PARAMETER", "VHostManager",
+                                         "maxConcurrentRequests", maxConcurrentRequests);
+            throw new TapisRuntimeException(msg);
+        }
         _parms = parms;
+        _maxConcurrentRequests = maxConcurrentRequests;
+        _cmdPrefix = "http://" + _parms.getHost() + ":" + _parms.getAdminPort() + "/api/";
+        String credentials = _parms.getAdminUser() + ":" + _parms.getAdminPassword();
+        _authorization = "Basic " +
+            Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
     }
-    
+
     /* **************************************************************************** */
     /*                                Public Methods                                */
     /* **************************************************************************** */
@@ -61,10 +126,10 @@ public class VHostManager
     /* initVHost:                                                                   */
     /* ---------------------------------------------------------------------------- */
     /** Create a new vhost with its own administrative user.  The administrative
-     * user is assigned all permissions.  
-     * 
+     * user is assigned all permissions.
+     *
      * It is not an error if the vhost or user already exist.
-     * 
+     *
      * @param vhost the new vhost to be created
      * @param user the admin user for that vhost
      * @param the user's password
@@ -72,270 +137,307 @@ public class VHostManager
     public void initVHost(String vhost, String user, String userPassword)
      throws Exception
     {
-        // Create the vhost if necessary.
-        if (!hasVHost(vhost)) createVHost(vhost);
-        
-        // Create the admin user if necessary.
-        if (!hasUser(user)) createUser(user, userPassword);
-        
-        // Assign permissions if necessary.
-        if (!hasPerms(vhost, user)) assignPerms(vhost, user);
+        try {initVHostAsync(vhost, user, userPassword).get();}
+        catch (ExecutionException e) {throw unwrap(e.getCause());}
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* initVHostAsync:                                                              */
+    /* ---------------------------------------------------------------------------- */
+    /** Asynchronously create a vhost and its administrative user as initVHost()
+     * does.  The vhost and user are created concurrently, then the user is
+     * given all permissions on the vhost.
+     *
+     * @param vhost the new vhost to be created
+     * @param user the admin user for that vhost
+     * @param the user's password
+     * @return a future that completes when the vhost is ready or fails with a
+     *         TapisQueueException or the http client's exception
+     */
+    public CompletableFuture<Void> initVHostAsync(String vhost, String user, String userPassword)
+    {
+        return initVHostAsync(vhost, user, initUserAsync(user, userPassword));
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* initVHosts:                                                                  */
+    /* ---------------------------------------------------------------------------- */
+    /** Initialize many vhosts at once and wait for them all.  A failure doesn't
+     * stop the other vhosts from being initialized.
+     *
+     * @param specs the vhosts and their administrative users
+     * @return the failures keyed by vhost, empty if all succeeded
+     * @throws InterruptedException if the caller is interrupted
+     */
+    public Map<String,Throwable> initVHosts(Collection<VHostSpec> specs)
+     throws InterruptedException
+    {
+        try {return initVHostsAsync(specs).get();}
+        catch (ExecutionException e) {throw new CompletionException(e.getCause());} // not expected
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* initVHostsAsync:                                                             */
+    /* ---------------------------------------------------------------------------- */
+    /** Asynchronously initialize many vhosts.  All pairs proceed concurrently
+     * within the manager's request limit.  A user named in several specs is
+     * created once, with the password from its first spec.
+     *
+     * @param specs the vhosts and their administrative users
+     * @return a future with the failures keyed by vhost, empty if all succeeded
+     */
+    public CompletableFuture<Map<String,Throwable>> initVHostsAsync(Collection<VHostSpec> specs)
+    {
+        // Start every vhost, sharing user creation.
+        var users = new HashMap<String,CompletableFuture<Void>>();
+        var vhosts = new ArrayList<String>(specs.size());
+        var futures = new ArrayList<CompletableFuture<Throwable>>(specs.size());
+        for (var spec : specs) {
+            var userDone = users.computeIfAbsent(spec.user(),
+                                                 u -> initUserAsync(u, spec.userPassword()));
+            vhosts.add(spec.vhost());
+            futures.add(initVHostAsync(spec.vhost(), spec.user(), userDone)
+                          .handle((v, t) -> t == null ? null : unwrapCompletion(t)));
+        }
+
+        // Collect the failures.
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            var failures = new LinkedHashMap<String,Throwable>();
+            for (int i = 0; i < futures.size(); i++) {
+                Throwable t = futures.get(i).join();
+                if (t != null) failures.put(vhosts.get(i), t);
+            }
+            return failures;
+        });
     }
 
     /* **************************************************************************** */
     /*                               Private Methods                                */
     /* **************************************************************************** */
     /* ---------------------------------------------------------------------------- */
-    /* hasVHost:                                                                    */
+    /* initVHostAsync:                                                              */
     /* ---------------------------------------------------------------------------- */
-    private boolean hasVHost(String vhost) 
-     throws Exception
+    private CompletableFuture<Void> initVHostAsync(String vhost, String user,
+                                                   CompletableFuture<Void> userDone)
     {
-        // List the existing vhosts.
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(makeListVHostsUri()))
-                .header("Accept", "application/json")
-                .build();
-        HttpResponse<String> response = getClient().send(request, BodyHandlers.ofString());
-        
-        // Check http status code.
-        int code = response.statusCode();
-        if (code != 200 && code != 201) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_LIST_ERROR", "virtual hosts", code);
-            throw new TapisQueueException(msg);
-        }
-            
-        // Retrieve response payload.
-        String vhosts = response.body();
-        if (StringUtils.isBlank(vhosts)) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_NO_LIST_ERROR", "virtual hosts");
-            throw new TapisQueueException(msg);
-        }
-        
-        // Parse the json payload.
-        var gsonArray = TapisGsonUtils.getGson().fromJson(vhosts, JsonArray.class);
-        for (JsonElement obj : gsonArray) {
-            if (!obj.isJsonObject()) continue;
-            var nameElem = ((JsonObject)obj).get("name");
-            if (nameElem == null) continue;
-            if (nameElem.getAsString().equals(vhost)) return true;
-        }
-        
-        // Not found if we get here.
-        return false;
+        // Create the vhost if necessary while the user is being created.
+        var vhostDone = exists(makeVHostUri(vhost), "virtual host", vhost)
+            .thenCompose(found -> found ? CompletableFuture.completedFuture(null) : createVHost(vhost));
+
+        // Assign permissions if necessary.
+        return CompletableFuture.allOf(vhostDone, userDone)
+            .thenCompose(v -> hasPerms(vhost, user))
+            .thenCompose(has -> has ? CompletableFuture.completedFuture(null) : assignPerms(vhost, user));
     }
-    
+
     /* ---------------------------------------------------------------------------- */
-    /* hasUser:                                                                     */
+    /* initUserAsync:                                                               */
     /* ---------------------------------------------------------------------------- */
-    private boolean hasUser(String user) 
-     throws Exception
+    private CompletableFuture<Void> initUserAsync(String user, String userPassword)
     {
-        // List the existing vhosts.
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(makeListUsersUri()))
-                .header("Accept", "application/json")
-                .build();
-        HttpResponse<String> response = getClient().send(request, BodyHandlers.ofString());
-        
-        // Check http status code.
-        int code = response.statusCode();
-        if (code != 200 && code != 201) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_LIST_ERROR", "users", code);
-            throw new TapisQueueException(msg);
-        }
-            
-        // Retrieve response payload.
-        String users = response.body();
-        if (StringUtils.isBlank(users)) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_NO_LIST_ERROR", "users");
-            throw new TapisQueueException(msg);
-        }
-        
-        // Parse the json payload.
-        var gsonArray = TapisGsonUtils.getGson().fromJson(users, JsonArray.class);
-        for (JsonElement obj : gsonArray) {
-            if (!obj.isJsonObject()) continue;
-            var nameElem = ((JsonObject)obj).get("name");
-            if (nameElem == null) continue;
-            if (nameElem.getAsString().equals(user)) return true;
-        }
-        
-        // Not found if we get here.
-        return false;
+        return exists(makeUserUri(user), "user", user)
+            .thenCompose(found -> found ? CompletableFuture.completedFuture(null)
+                                        : createUser(user, userPassword));
     }
-    
+
+    /* ---------------------------------------------------------------------------- */
+    /* exists:                                                                      */
+    /* ---------------------------------------------------------------------------- */
+    /** Check whether a single item exists. */
+    private CompletableFuture<Boolean> exists(String uri, String itemType, String name)
+    {
+        return send(newRequest(uri).GET().build()).thenApply(response -> {
+            int code = response.statusCode();
+            if (code == 404) return false;
+            if (code == 200) return true;
+            String msg = MsgUtils.getMsg("QMG_HTTP_GET_ERROR", itemType, name, code);
+            throw new CompletionException(new TapisQueueException(msg));
+        });
+    }
+
     /* ---------------------------------------------------------------------------- */
     /* hasPerms:                                                                    */
     /* ---------------------------------------------------------------------------- */
-    private boolean hasPerms(String vhost, String user)
-     throws IOException, InterruptedException, TapisException
+    private CompletableFuture<Boolean> hasPerms(String vhost, String user)
     {
-        // List the existing vhosts.
-        HttpRequest request = HttpRequest.newBuilder()
-                      .uri(URI.create(makeListUserPermsUri(user)))
-                      .header("Accept", "application/json")
-                      .build();
-        HttpResponse<String> response = getClient().send(request, BodyHandlers.ofString());
-        
-        // Check http status code.
-        int code = response.statusCode();
-        if (code != 200 && code != 201) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_LIST_ERROR", "users", code);
-            throw new TapisQueueException(msg);
-        }
+        return send(newRequest(makePermsUri(vhost, user)).GET().build()).thenApply(response -> {
+            // Check http status code.
+            int code = response.statusCode();
+            if (code == 404) return false;
+            if (code != 200) {
+                String msg = MsgUtils.getMsg("QMG_HTTP_GET_ERROR", "permissions", user + "@" + vhost, code);
+                throw new CompletionException(new TapisQueueException(msg));
+            }
+
+            // Retrieve response payload.
+            String perms = response.body();
+            if (StringUtils.isBlank(perms)) {
+                String msg = MsgUtils.getMsg("QMG_HTTP_NO_LIST_ERROR", "permissions");
+                throw new CompletionException(new TapisQueueException(msg));
+            }
 
-        // Retrieve response payload.
-        String users = response.body();
-        if (StringUtils.isBlank(users)) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_NO_LIST_ERROR", "users");
-            throw new TapisQueueException(msg);
-        }
-               
-        // Parse the json payload.
-        var gsonArray = TapisGsonUtils.getGson().fromJson(users, JsonArray.class);
-        for (JsonElement obj : gsonArray) {
-            if (!obj.isJsonObject()) continue;
-            var userElem = ((JsonObject)obj).get("user");
-            if (userElem == null || !userElem.getAsString().equals(user)) continue;
-            var vhostElem = ((JsonObject)obj).get("vhost");
-            if (vhostElem == null || !vhostElem.getAsString().equals(vhost)) continue;
-                  
-            // We have the user@vhost record.
-            var configElem = ((JsonObject)obj).get("configure");
-            var writeElem  = ((JsonObject)obj).get("write");
-            var readElem   = ((JsonObject)obj).get("read");
-                  
             // Make sure all perms are allowed.
-            if (configElem == null || !configElem.getAsString().equals(ALL_PERMISSIONS)) return false;
-            if (writeElem == null  || !writeElem.getAsString().equals(ALL_PERMISSIONS)) return false;
-            if (readElem == null   || !readElem.getAsString().equals(ALL_PERMISSIONS)) return false;
-            return true;
-        }
-                      
-        // Not found if we get here.
-        return false;
-    }    
-    
+            var obj = TapisGsonUtils.getGson().fromJson(perms, JsonObject.class);
+            return isAll(obj.get("configure")) && isAll(obj.get("write")) && isAll(obj.get("read"));
+        });
+    }
+
     /* ---------------------------------------------------------------------------- */
     /* createVHost:                                                                 */
     /* ---------------------------------------------------------------------------- */
-    private void createVHost(String vhost)
-     throws Exception
+    private CompletableFuture<Void> createVHost(String vhost)
     {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(makeCreateVHostUri(vhost)))
-                .header("Accept", "application/json")
-                .header("Content-Type", "application/json")
-                .PUT(BodyPublishers.ofString(""))
-                .build();
-        HttpResponse<String> response = getClient().send(request, BodyHandlers.ofString());
-        int code = response.statusCode();
-        if (code != 200 && code != 201) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_CREATE_ERROR", "virtual host", vhost, code);
-            throw new TapisQueueException(msg);
-        }
+        return put(makeVHostUri(vhost), "", code ->
+                   MsgUtils.getMsg("QMG_HTTP_CREATE_ERROR", "virtual host", vhost, code));
     }
-    
+
     /* ---------------------------------------------------------------------------- */
     /* createUser:                                                                  */
     /* ---------------------------------------------------------------------------- */
-    private void createUser(String user, String userPassword)
-     throws Exception
+    private CompletableFuture<Void> createUser(String user, String userPassword)
     {
-        String body = """
-            {"password":%s, "tags":"administrator"}
-            """.formatted("\"" + userPassword + "\"");
-            
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(makeCreateUserUri(user)))
-                .header("Accept", "application/json")
-                .header("Content-Type", "application/json")
-                .PUT(BodyPublishers.ofString(body))
-                .build();
-        HttpResponse<String> response = getClient().send(request, BodyHandlers.ofString());
-        int code = response.statusCode();
-        if (code != 200 && code != 201) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_CREATE_ERROR", "user", user, code);
-            throw new TapisQueueException(msg);
-        }
+        var body = new JsonObject();
+        body.addProperty("password", userPassword);
+        body.addProperty("tags", "administrator");
+        return put(makeUserUri(user), body.toString(), code ->
+                   MsgUtils.getMsg("QMG_HTTP_CREATE_ERROR", "user", user, code));
     }
-    
+
     /* ---------------------------------------------------------------------------- */
     /* assignPerms:                                                                 */
     /* ---------------------------------------------------------------------------- */
-    private void assignPerms(String vhost, String user)
-     throws IOException, InterruptedException, TapisException
+    private CompletableFuture<Void> assignPerms(String vhost, String user)
     {
-        // Hardcoded the ALL_PERMISSIONS here for simplicity.
-        String body = """
-            {"configure":".*", "write":".*", "read":".*"}
-            """;
-                   
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(makeAssignUserPermsUri(vhost, user)))
-                .header("Accept", "application/json")
-                .header("Content-Type", "application/json")
-                .PUT(BodyPublishers.ofString(body))
-                .build();
-        HttpResponse<String> response = getClient().send(request, BodyHandlers.ofString());
-        int code = response.statusCode();
-        if (code != 200 && code != 201) {
-            String msg = MsgUtils.getMsg("QMG_HTTP_ASSIGN_ERROR", "permissions", vhost, user, code);
-            throw new TapisQueueException(msg);
+        var body = new JsonObject();
+        body.addProperty("configure", ALL_PERMISSIONS);
+        body.addProperty("write", ALL_PERMISSIONS);
+        body.addProperty("read", ALL_PERMISSIONS);
+        return put(makePermsUri(vhost, user), body.toString(), code ->
+                   MsgUtils.getMsg("QMG_HTTP_ASSIGN_ERROR", "permissions", vhost, user, code));
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* put:                                                                         */
+    /* ---------------------------------------------------------------------------- */
+    /** Put a resource.  The api returns 201 for new resources and 204 when an
+     * existing one is unchanged or updated.
+     */
+    private CompletableFuture<Void> put(String uri, String body, ErrorMessage errorMessage)
+    {
+        var request = newRequest(uri).header("Content-Type", "application/json")
+                                     .PUT(BodyPublishers.ofString(body)).build();
+        return send(request).thenAccept(response -> {
+            int code = response.statusCode();
+            if (code != 200 && code != 201 && code != 204)
+                throw new CompletionException(new TapisQueueException(errorMessage.get(code)));
+        });
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* send:                                                                        */
+    /* ---------------------------------------------------------------------------- */
+    /** Send a request when there's a free slot. */
+    private CompletableFuture<HttpResponse<String>> send(HttpRequest request)
+    {
+        var result = new CompletableFuture<HttpResponse<String>>();
+        Runnable task = () ->
+            ClientHolder.CLIENT.sendAsync(request, BodyHandlers.ofString()).whenComplete((response, t) -> {
+                release();
+                if (t == null) result.complete(response);
+                  else result.completeExceptionally(unwrapCompletion(t));
+            });
+
+        // Run now or wait for a running request to finish.
+        synchronized (this) {
+            if (_running >= _maxConcurrentRequests) {
+                _waiting.add(task);
+                return result;
+            }
+            _running++;
         }
+        task.run();
+        return result;
     }
-           
+
     /* ---------------------------------------------------------------------------- */
-    /* getClient:                                                                   */
+    /* release:                                                                     */
     /* ---------------------------------------------------------------------------- */
-    private HttpClient getClient()
+    /** Hand a finished request's slot to the next waiting one. */
+    private void release()
     {
-        if (_client == null)
-            _client = HttpClient.newBuilder()
-                        .authenticator(new PasswordAuth())
-                        .build();
-        return _client;
+        Runnable next;
+        synchronized (this) {
+            next = _waiting.poll();
+            if (next == null) {
+                _running--;
+                return;
+            }
+        }
+        next.run();
     }
-    
+
+    /* ---------------------------------------------------------------------------- */
+    /* newRequest:                                                                  */
+    /* ---------------------------------------------------------------------------- */
+    private HttpRequest.Builder newRequest(String uri)
+    {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(uri))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Accept", "application/json")
+                .header("Authorization", _authorization);
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* isAll:                                                                       */
+    /* ---------------------------------------------------------------------------- */
+    private static boolean isAll(JsonElement elem)
+    {
+        return elem != null && !elem.isJsonNull() && elem.getAsString().equals(ALL_PERMISSIONS);
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* unwrapCompletion:                                                            */
+    /* ---------------------------------------------------------------------------- */
+    private static Throwable unwrapCompletion(Throwable t)
+    {
+        while (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        return t;
+    }
+
+    /* ---------------------------------------------------------------------------- */
+    /* unwrap:                                                                      */
+    /* ---------------------------------------------------------------------------- */
+    private static Exception unwrap(Throwable t)
+    {
+        t = unwrapCompletion(t);
+        if (t instanceof Exception e) return e;
+        if (t instanceof Error e) throw e;
+        return new TapisRuntimeException(t.getMessage(), t);
+    }
+
     /* **************************************************************************** */
     /*                             URL Parsing Methods                              */
     /* **************************************************************************** */
-    private String makeListUserPermsUri(String user)
-    {return makeHttpCmdPrefix() + "users" + "/" + user + "/permissions";}
-
-    private String makeAssignUserPermsUri(String vhost, String user)
-    {return makeHttpCmdPrefix() + "permissions" + "/" + vhost + "/" + user;}
-    
-    private String makeListUsersUri()
-    {return makeHttpCmdPrefix() + "users";}
-    
-    private String makeCreateUserUri(String user)
-    {return makeHttpCmdPrefix() + "users" + "/" + user;}
-    
-    private String makeListVHostsUri()
-    {return makeHttpCmdPrefix() + "vhosts";}
-    
-    private String makeCreateVHostUri(String vhost)
-    {return makeHttpCmdPrefix() + "vhosts" + "/" + vhost;}
-    
-    private String makeHttpCmdPrefix() 
-    {
-        if (_cmdPrefix == null)
-            _cmdPrefix = "http://" + _parms.getHost() + ":" + _parms.getAdminPort() + "/api/";
-        return _cmdPrefix;
-    }
-    
+    private String makePermsUri(String vhost, String user)
+    {return _cmdPrefix + "permissions" + "/" + encode(vhost) + "/" + encode(user);}
+
+    private String makeUserUri(String user)
+    {return _cmdPrefix + "users" + "/" + encode(user);}
+
+    private String makeVHostUri(String vhost)
+    {return _cmdPrefix + "vhosts" + "/" + encode(vhost);}
+
+    /** Encode a path segment, so that the default vhost "/" becomes %2F. */
+    private static String encode(String segment)
+    {return URLEncoder.encode(segment, StandardCharsets.UTF_8).replace("+", "%20");}
+
     /* **************************************************************************** */
-    /*                             PasswordAuth Class                               */
+    /*                             ErrorMessage Interface                           */
     /* **************************************************************************** */
-    private final class PasswordAuth
-    extends Authenticator
-   {
-       @Override
-       public PasswordAuthentication getPasswordAuthentication()
-       {
-           return new PasswordAuthentication(_parms.getAdminUser(), _parms.getAdminPassword().toCharArray());
-       }
-   }
+    @FunctionalInterface
+    private interface ErrorMessage
+    {
+        String get(int statusCode);
+    }
 }
@@ -0,0 +1,99 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConnectionFactory;
+
+/** Compare publishing on a temporary channel per message with publishing on
+ * pooled channels.  The benchmark publishes to a transient queue that it 
+ * deletes when done.  Use "memory" as the host to run against the in-memory
+ * broker, which has no channel round-trip cost, instead of a real broker.
+ * 
+ * Usage: ChannelPoolBenchmark [host [port [user [password [messages [threads]]]]]]
+ */
+public class ChannelPoolBenchmark 
+{
+    private static final String QUEUE = "tapis.benchmark.channelPool";
+    
+    public static void main(String[] args) throws Exception
+    {
+        var parms = new QueueManagerParms();
+        parms.setInstanceName("ChannelPoolBenchmark");
+        parms.setService("benchmark");
+        parms.setQueueHost(args.length > 0 ? args[0] : "localhost");
+        parms.setQueuePort(args.length > 1 ? Integer.parseInt(args[1]) : 5672);
+        parms.setQueueUser(args.length > 2 ? args[2] : "guest");
+        parms.setQueuePassword(args.length > 3 ? args[3] : "guest");
+        int messages = args.length > 4 ? Integer.parseInt(args[4]) : 20000;
+        int threads  = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+        parms.setOutChannelPoolSize(threads);
+        
+        var broker = "memory".equals(parms.getQueueHost()) ? new InMemoryBroker() : null;
+        var qm = new BenchmarkQueueManager(parms, broker);
+        Channel setup = qm.getNewOutChannel();
+        setup.queueDeclare(QUEUE, false, false, false, null);
+        byte[] body = "{\"event\":\"benchmark\",\"payload\":\"0123456789\"}".getBytes(StandardCharsets.UTF_8);
+        
+        try {
+            // Warm up both paths.
+            run(qm, body, 1000, threads, false);
+            run(qm, body, 1000, threads, true);
+            
+            double unpooled = run(qm, body, messages, threads, false);
+            double pooled   = run(qm, body, messages, threads, true);
+            System.out.printf("messages=%d threads=%d%n", messages, threads);
+            System.out.printf("channel per message: %,.0f msg/s%n", unpooled);
+            System.out.printf("pooled channels:     %,.0f msg/s (%.1fx)%n", pooled, pooled / unpooled);
+            System.out.println(qm.getOutChannelPool());
+        } finally {
+            setup.queueDelete(QUEUE);
+            setup.close();
+            qm.closeConnections(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);
+            if (broker != null) broker.close();
+        }
+    }
+    
+    /** Publish the messages from the threads and return messages per second. */
+    private static double run(BenchmarkQueueManager qm, byte[] body, int messages, int threads, 
+                              boolean pooled) 
+     throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+            executor.execute(() -> {
+                try {
+                    if (pooled) qm.publish("", QUEUE, QueueManagerNames.PERSISTENT_JSON, body);
+                    else {
+                        Channel channel = qm.getNewOutChannel();
+                        channel.basicPublish("", QUEUE, QueueManagerNames.PERSISTENT_JSON, body);
+                        channel.close();
+                    }
+                } catch (Exception e) {throw new RuntimeException(e);}
+            });
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        return messages / ((System.nanoTime() - start) / 1e9);
+    }
+    
+    private static final class BenchmarkQueueManager extends AbstractQueueManager
+    {
+        private final InMemoryBroker _broker;
+        
+        private BenchmarkQueueManager(QueueManagerParms parms, InMemoryBroker broker) 
+        {
+            super(parms);
+            _broker = broker;
+        }
+        
+        @Override
+        protected ConnectionFactory createConnectionFactory()
+        {
+            return _broker == null ? super.createConnectionFactory() : _broker.getConnectionFactory();
+        }
+    }
+}
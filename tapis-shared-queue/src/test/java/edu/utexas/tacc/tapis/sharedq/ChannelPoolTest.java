@@ -0,0 +1,153 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.Channel;
+
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+@Test(groups={"unit"})
+public class ChannelPoolTest 
+{
+    @Test
+    public void reuseTest() throws Exception
+    {
+        var channels = new ArrayList<StubChannel>();
+        var pool = new ChannelPool("test", () -> newChannel(channels), 2, 1000);
+        
+        // The same channel is reused when returned.
+        Channel ch1 = pool.borrow();
+        pool.release(ch1);
+        Assert.assertSame(pool.borrow(), ch1);
+        
+        // A second concurrent borrower gets a second channel.
+        Channel ch2 = pool.borrow();
+        Assert.assertNotSame(ch2, ch1);
+        Assert.assertEquals(pool.getActiveCount(), 2);
+        Assert.assertEquals(pool.getCreatedCount(), 2);
+        pool.release(ch1);
+        pool.release(ch2);
+        Assert.assertEquals(pool.getIdleCount(), 2);
+        
+        // Closing the pool closes idle channels.
+        pool.close();
+        Assert.assertEquals(channels.get(0).closes, 1);
+        Assert.assertEquals(channels.get(1).closes, 1);
+        Assert.expectThrows(TapisQueueException.class, pool::borrow);
+    }
+    
+    @Test
+    public void brokenChannelTest() throws Exception
+    {
+        var channels = new ArrayList<StubChannel>();
+        var pool = new ChannelPool("test", () -> newChannel(channels), 2, 1000);
+        
+        // A channel that closed while idle is replaced.
+        Channel ch1 = pool.borrow();
+        pool.release(ch1);
+        channels.get(0).open = false;
+        Channel ch2 = pool.borrow();
+        Assert.assertNotSame(ch2, ch1);
+        Assert.assertEquals(channels.get(0).aborts, 1);
+        
+        // A failed operation invalidates the channel.
+        channels.get(1).failPublish = true;
+        pool.release(ch2);
+        Assert.expectThrows(TapisQueueException.class, 
+            () -> pool.execute(ch -> {ch.basicPublish("x", "k", null, new byte[0]); return null;}));
+        Assert.assertEquals(channels.get(1).aborts, 1);
+        Assert.assertEquals(pool.getDiscardedCount(), 2);
+        Assert.assertEquals(pool.getActiveCount(), 0);
+        Assert.assertEquals(pool.getIdleCount(), 0);
+        
+        // A factory failure doesn't leak the slot.
+        var failing = new ChannelPool("failing", () -> {throw new TapisQueueException("no");}, 1, 100);
+        Assert.expectThrows(TapisQueueException.class, failing::borrow);
+        Assert.assertEquals(failing.getActiveCount(), 0);
+    }
+    
+    @Test
+    public void boundedTest() throws Exception
+    {
+        var channels = new ArrayList<StubChannel>();
+        var pool = new ChannelPool("test", () -> newChannel(channels), 3, 100);
+        
+        // Exhausted pools time out.
+        Channel ch1 = pool.borrow(), ch2 = pool.borrow(), ch3 = pool.borrow();
+        Assert.expectThrows(TapisQueueException.class, pool::borrow);
+        pool.release(ch1);
+        pool.release(ch2);
+        pool.release(ch3);
+        
+        // Many threads never hold more than the maximum.
+        var pool2 = new ChannelPool("test2", () -> newChannel(channels), 3, 10000);
+        var inUse = new AtomicInteger();
+        var maxInUse = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(12);
+        var done = new CountDownLatch(600);
+        for (int i = 0; i < 600; i++)
+            executor.execute(() -> {
+                try {
+                    pool2.execute(ch -> {
+                        maxInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+                        Thread.yield();
+                        inUse.decrementAndGet();
+                        return null;
+                    });
+                } catch (TapisQueueException e) {Assert.fail(e.getMessage());}
+                done.countDown();
+            });
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        Assert.assertTrue(maxInUse.get() <= 3);
+        Assert.assertTrue(pool2.getCreatedCount() <= 3);
+        Assert.assertEquals(pool2.getBorrowedCount(), 600);
+    }
+    
+    /** Just enough of a channel to exercise the pool. */
+    private static final class StubChannel
+    {
+        private final int        number;
+        private volatile boolean open = true;
+        private volatile boolean failPublish;
+        private int              closes;
+        private int              aborts;
+        
+        private StubChannel(int number) {this.number = number;}
+        
+        private Object invoke(String method) throws IOException
+        {
+            switch (method) {
+                case "isOpen":           return open;
+                case "getChannelNumber": return number;
+                case "close":            closes++; open = false; return null;
+                case "abort":            aborts++; open = false; return null;
+                case "basicPublish":     if (failPublish) throw new IOException("boom"); return null;
+                case "hashCode":         return number;
+                case "toString":         return "StubChannel" + number;
+                default: throw new UnsupportedOperationException(method);
+            }
+        }
+    }
+    
+    private static synchronized Channel newChannel(List<StubChannel> channels)
+    {
+        var stub = new StubChannel(channels.size() + 1);
+        channels.add(stub);
+        return (Channel) Proxy.newProxyInstance(ChannelPoolTest.class.getClassLoader(), 
+            new Class<?>[] {Channel.class}, 
+            (proxy, method, args) -> method.getName().equals("equals") ? proxy == args[0] 
+                                                                       : stub.invoke(method.getName()));
+    }
+}
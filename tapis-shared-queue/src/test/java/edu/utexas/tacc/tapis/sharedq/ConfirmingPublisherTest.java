@@ -0,0 +1,280 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Drive the publisher with a stub channel that confirms messages on its own
+ * thread.  The routing key tells the stub what to do with each message.
+ */
+@Test(groups={"unit"})
+public class ConfirmingPublisherTest
+{
+    @Test
+    public void confirmTest() throws Exception
+    {
+        var broker = new StubBroker();
+        try (var publisher = new ConfirmingPublisher("test", broker::newChannel, 50, 3, 1)) {
+            // Many threads publish through a window smaller than the message count.
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            var futures = new CopyOnWriteArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 2000; i++)
+                executor.execute(() -> {
+                    try {futures.add(publisher.publish("x", "ack", null, new byte[10]));}
+                        catch (TapisQueueException e) {Assert.fail(e.getMessage());}
+                });
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+            Assert.assertEquals(publisher.getConfirmedCount(), 2000);
+            Assert.assertEquals(publisher.getInFlightCount(), 0);
+            Assert.assertTrue(broker.maxUnconfirmed.get() <= 50, "max " + broker.maxUnconfirmed);
+            Assert.assertTrue(broker.multipleAcks.get() > 0);
+            Assert.assertEquals(broker.channels.size(), 1);
+        }
+    }
+
+    @Test
+    public void retryTest() throws Exception
+    {
+        var broker = new StubBroker();
+        try (var publisher = new ConfirmingPublisher("test", broker::newChannel, 50, 2, 1)) {
+            // Nacked and returned messages are retried until they succeed.
+            var nackOnce   = publisher.publish("x", "nackOnce", null, new byte[1]);
+            var returnOnce = publisher.publish("x", "returnOnce", null, new byte[1]);
+            var ok         = publisher.publish("x", "ack", null, new byte[1]);
+            nackOnce.get(10, TimeUnit.SECONDS);
+            returnOnce.get(10, TimeUnit.SECONDS);
+            ok.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(publisher.getRetriedCount(), 2);
+
+            // Messages that are always nacked fail after the last retry.
+            var nack = publisher.publish("x", "nack", null, new byte[1]);
+            var e = Assert.expectThrows(ExecutionException.class, () -> nack.get(10, TimeUnit.SECONDS));
+            Assert.assertTrue(e.getCause() instanceof TapisQueueException);
+            Assert.assertEquals(broker.publishes("nack"), 3);
+            Assert.assertEquals(publisher.getFailedCount(), 1);
+            Assert.assertEquals(publisher.getInFlightCount(), 0);
+        }
+    }
+
+    @Test
+    public void channelFailureTest() throws Exception
+    {
+        var broker = new StubBroker();
+        try (var publisher = new ConfirmingPublisher("test", broker::newChannel, 50, 3, 1)) {
+            // Messages outstanding when the channel dies are republished on a new channel.
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 10; i++) futures.add(publisher.publish("x", "holdOnFirst", null, new byte[1]));
+            Assert.assertEquals(publisher.getInFlightCount(), 10);
+            broker.channels.get(0).kill();
+            for (var future : futures) future.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(broker.channels.size(), 2);
+            Assert.assertEquals(publisher.getConfirmedCount(), 10);
+        }
+    }
+
+    @Test
+    public void channelClosedDuringSendTest() throws Exception
+    {
+        var broker = new StubBroker();
+        try (var publisher = new ConfirmingPublisher("test", broker::newChannel, 50, 3, 1)) {
+            publisher.publish("x", "ack", null, new byte[1]).get(10, TimeUnit.SECONDS);
+
+            // The broker closes the channel, but the connection's main loop doesn't run the
+            // shutdown listener until the next send is opening the replacement channel.  The
+            // replacement's confirm.select is answered by the same main loop after the listener.
+            var resume = new CountDownLatch(1);
+            broker.mainLoop.execute(() -> {
+                try {resume.await();} catch (InterruptedException e) {Thread.currentThread().interrupt();}
+            });
+            broker.openingChannel = resume;
+            broker.channels.get(0).closeOnMainLoop();
+
+            publisher.publish("x", "ack", null, new byte[1]).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(broker.rpcTimeouts.get(), 0);
+            Assert.assertEquals(broker.channels.size(), 2);
+            Assert.assertEquals(publisher.getConfirmedCount(), 2);
+            Assert.assertEquals(publisher.getRetriedCount(), 0);
+        }
+    }
+
+    @Test
+    public void closeTest() throws Exception
+    {
+        var broker = new StubBroker();
+        var publisher = new ConfirmingPublisher("test", broker::newChannel, 50, 3, 1);
+        var held = publisher.publish("x", "hold", null, new byte[1]);
+        publisher.close(100);
+        Assert.expectThrows(ExecutionException.class, () -> held.get(1, TimeUnit.SECONDS));
+        Assert.expectThrows(TapisQueueException.class, () -> publisher.publish("x", "ack", null, new byte[1]));
+        Assert.assertFalse(broker.channels.get(0).open);
+    }
+
+    /* ********************************************************************** */
+    /*                              Stub Broker                               */
+    /* ********************************************************************** */
+    private static final class StubBroker
+    {
+        private final List<StubChannel>   channels = new CopyOnWriteArrayList<>();
+        private final Map<String,Integer> counts = new ConcurrentHashMap<>();
+        private final AtomicInteger       maxUnconfirmed = new AtomicInteger();
+        private final AtomicInteger       multipleAcks = new AtomicInteger();
+        private final AtomicInteger       rpcTimeouts = new AtomicInteger();
+
+        // Plays the connection's main loop, which answers round-trips and runs shutdown listeners.
+        private final ExecutorService     mainLoop = Executors.newSingleThreadExecutor();
+        private volatile CountDownLatch   openingChannel;
+
+        private int publishes(String routingKey) {return counts.getOrDefault(routingKey, 0);}
+
+        private Channel newChannel()
+        {
+            CountDownLatch opening = openingChannel;
+            if (opening != null) opening.countDown();
+            var stub = new StubChannel(this, channels.size() + 1);
+            channels.add(stub);
+            return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Channel.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "equals"               -> proxy == args[0];
+                    case "hashCode"             -> stub.number;
+                    case "toString"             -> "StubChannel" + stub.number;
+                    case "getChannelNumber"     -> stub.number;
+                    case "isOpen"               -> stub.open;
+                    case "confirmSelect"        -> {rpc(); yield null;}
+                    case "getNextPublishSeqNo"  -> stub.nextTag;
+                    case "addConfirmListener"   -> {stub.confirmListener = (ConfirmListener) args[0]; yield null;}
+                    case "addReturnListener"    -> {stub.returnListener = (ReturnListener) args[0]; yield null;}
+                    case "addShutdownListener"  -> {stub.shutdownListener = (ShutdownListener) args[0]; yield null;}
+                    case "basicPublish"         -> {stub.publish((String) args[1], (AMQP.BasicProperties) args[3]); yield null;}
+                    case "close", "abort"       -> {stub.kill(); yield null;}
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+        }
+
+        /** Wait for the main loop to answer a round-trip, as the client library does. */
+        private void rpc() throws IOException
+        {
+            try {mainLoop.submit(() -> {}).get(2, TimeUnit.SECONDS);}
+            catch (TimeoutException e) {
+                rpcTimeouts.incrementAndGet();
+                throw new IOException("rpc timeout");
+            }
+            catch (Exception e) {throw new IOException(e);}
+        }
+    }
+
+    private static final class StubChannel
+    {
+        private final StubBroker       broker;
+        private final int              number;
+        private final ExecutorService  connectionThread = Executors.newSingleThreadExecutor();
+        private final List<Long>       pendingAcks = new ArrayList<>();
+        private final AtomicInteger    queued = new AtomicInteger();
+        private final Map<Object,Boolean> seen = new ConcurrentHashMap<>();
+        private volatile boolean       open = true;
+        private long                   nextTag = 1;
+        private int                    unconfirmed;
+        private ConfirmListener        confirmListener;
+        private ReturnListener         returnListener;
+        private ShutdownListener       shutdownListener;
+
+        private StubChannel(StubBroker broker, int number) {this.broker = broker; this.number = number;}
+
+        private void publish(String routingKey, AMQP.BasicProperties props)
+        {
+            if (!open) throw new IllegalStateException("closed");
+            long tag = nextTag++;
+            broker.counts.merge(routingKey, 1, Integer::sum);
+            queued.incrementAndGet();
+            connectionThread.execute(() -> confirm(tag, routingKey, props));
+        }
+
+        /** Runs on the stub's connection thread in publish order. */
+        private void confirm(long tag, String routingKey, AMQP.BasicProperties props)
+        {
+            try {
+                unconfirmed++;
+                broker.maxUnconfirmed.accumulateAndGet(unconfirmed, Math::max);
+                boolean first = seen.put(props.getHeaders().get(ConfirmingPublisher.PUBLISH_ID_HEADER), true) == null;
+                switch (routingKey) {
+                    case "nack" -> nack(tag);
+                    case "nackOnce" -> {if (first) nack(tag); else pendingAcks.add(tag);}
+                    case "returnOnce" -> {
+                        if (first) returnListener.handleReturn(312, "NO_ROUTE", "x", routingKey, props, new byte[0]);
+                        pendingAcks.add(tag);
+                    }
+                    case "hold" -> {}
+                    case "holdOnFirst" -> {if (number > 1) pendingAcks.add(tag);}
+                    default -> pendingAcks.add(tag);
+                }
+                if (queued.decrementAndGet() == 0 || pendingAcks.size() >= 8) flushAcks();
+            } catch (Exception e) {throw new RuntimeException(e);}
+        }
+
+        private void nack(long tag) throws Exception
+        {
+            flushAcks();
+            unconfirmed--;
+            confirmListener.handleNack(tag, false);
+        }
+
+        private void flushAcks() throws Exception
+        {
+            if (pendingAcks.isEmpty()) return;
+            long last = pendingAcks.get(pendingAcks.size() - 1);
+
+            // Acks are cumulative only when no held message sits in the range.
+            boolean contiguous = last - pendingAcks.get(0) + 1 == pendingAcks.size();
+            if (contiguous && pendingAcks.size() > 1) {
+                broker.multipleAcks.incrementAndGet();
+                confirmListener.handleAck(last, true);
+            } else for (long tag : pendingAcks) confirmListener.handleAck(tag, false);
+            unconfirmed -= pendingAcks.size();
+            pendingAcks.clear();
+        }
+
+        /** Close the channel and let the main loop tell the listener, as a broker initiated close does. */
+        private void closeOnMainLoop()
+        {
+            open = false;
+            connectionThread.shutdownNow();
+            broker.mainLoop.execute(() ->
+                shutdownListener.shutdownCompleted(new ShutdownSignalException(false, false, null, this)));
+        }
+
+        private void kill()
+        {
+            if (!open) return;
+            open = false;
+            connectionThread.shutdownNow();
+            if (shutdownListener != null)
+                shutdownListener.shutdownCompleted(new ShutdownSignalException(false, true, null, this));
+        }
+    }
+}
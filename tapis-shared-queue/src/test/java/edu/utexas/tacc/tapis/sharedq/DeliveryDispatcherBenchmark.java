@@ -0,0 +1,92 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.Outcome;
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.SubscriptionParms;
+
+/** Measure consumer throughput and latency for different prefetch, concurrency
+ * and ack batching settings.  Messages are published to a queue on the
+ * in-memory broker and each handler waits for the given number of
+ * microseconds to stand in for real work.  Latency is measured from publish
+ * to the start of handling.
+ *
+ * Usage: DeliveryDispatcherBenchmark [messages [workMicros]]
+ */
+public class DeliveryDispatcherBenchmark
+{
+    private static final String QUEUE = "tapis.benchmark.dispatcher";
+
+    public static void main(String[] args) throws Exception
+    {
+        int messages   = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int workMicros = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        System.out.printf("messages=%d work=%dus%n", messages, workMicros);
+
+        try (var broker = new InMemoryBroker(); var dispatcher = new DeliveryDispatcher(32)) {
+            var conn = broker.newConnection("benchmark");
+            Channel publisher = conn.createChannel();
+            publisher.queueDeclare(QUEUE, false, false, false, null);
+
+            // Warm up.
+            run(dispatcher, conn, publisher, messages / 10, workMicros, 50, 8, 20);
+
+            // One at a time with an ack per message, as a simple consumer would.
+            var base = run(dispatcher, conn, publisher, messages, workMicros, 1, 1, 1);
+            report("prefetch=1 concurrency=1 batch=1", base, base);
+            report("prefetch=50 concurrency=1 batch=1",
+                   run(dispatcher, conn, publisher, messages, workMicros, 50, 1, 1), base);
+            report("prefetch=50 concurrency=8 batch=1",
+                   run(dispatcher, conn, publisher, messages, workMicros, 50, 8, 1), base);
+            report("prefetch=50 concurrency=8 batch=20",
+                   run(dispatcher, conn, publisher, messages, workMicros, 50, 8, 20), base);
+            report("prefetch=200 concurrency=32 batch=50",
+                   run(dispatcher, conn, publisher, messages, workMicros, 200, 32, 50), base);
+        }
+    }
+
+    private record Result(double rate, long p50Micros, long p99Micros) {}
+
+    /** Publish and consume the messages. */
+    private static Result run(DeliveryDispatcher dispatcher, Connection conn,
+                              Channel publisher, int messages, int workMicros,
+                              int prefetch, int concurrency, int batch)
+     throws Exception
+    {
+        var latencies = new long[messages];
+        var count = new AtomicInteger();
+        var done = new CountDownLatch(messages);
+        var parms = new SubscriptionParms().setPrefetch(prefetch).setConcurrency(concurrency)
+                                           .setAckBatchSize(batch);
+        var sub = dispatcher.subscribe(conn.createChannel(), QUEUE, parms, d -> {
+            latencies[count.getAndIncrement()] = System.nanoTime() - ByteBuffer.wrap(d.body).getLong();
+            if (workMicros > 0) LockSupport.parkNanos(workMicros * 1000L);
+            done.countDown();
+            return Outcome.ACK;
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+            publisher.basicPublish("", QUEUE, null, ByteBuffer.allocate(64).putLong(System.nanoTime()).array());
+        done.await(10, TimeUnit.MINUTES);
+        double rate = messages / ((System.nanoTime() - start) / 1e9);
+        sub.close();
+
+        Arrays.sort(latencies);
+        return new Result(rate, latencies[messages / 2] / 1000, latencies[(int) (messages * 0.99)] / 1000);
+    }
+
+    private static void report(String label, Result result, Result base)
+    {
+        System.out.printf("%-40s %,10.0f msg/s (%.1fx)  latency p50=%,dus p99=%,dus%n", label, result.rate(),
+                          result.rate() / base.rate(), result.p50Micros(), result.p99Micros());
+    }
+}
@@ -0,0 +1,140 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.FailurePolicy;
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.Outcome;
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.SubscriptionParms;
+
+@Test(groups={"unit"})
+public class DeliveryDispatcherTest
+{
+    @Test
+    public void batchAckTest() throws Exception
+    {
+        var stub = new StubConsumerChannel();
+        var parms = new SubscriptionParms().setPrefetch(100).setConcurrency(4).setAckBatchSize(10);
+        try (var dispatcher = new DeliveryDispatcher(8);
+             var sub = dispatcher.subscribe(stub.channel, "q", parms, d -> Outcome.ACK))
+        {
+            for (int i = 0; i < 5000; i++) stub.deliver(new byte[1], false);
+            Assert.assertTrue(stub.awaitSettled(10000), "unsettled " + stub.getUnsettledCount());
+            Assert.assertEquals(stub.prefetch, 100);
+            Assert.assertEquals(stub.getAckedCount(), 5000);
+            Assert.assertTrue(stub.maxUnsettled <= 100);
+
+            // The counts are final once the last flush is done.
+            sub.close(5000);
+            Assert.assertEquals(sub.getAckedCount(), 5000);
+
+            // Most acks should cover several deliveries.
+            Assert.assertTrue(sub.getAckFrameCount() < 5000 / 2, "ack frames " + sub.getAckFrameCount());
+            Assert.assertTrue(stub.multipleAcks.get() > 0);
+        }
+    }
+
+    @Test
+    public void concurrencyLimitTest() throws Exception
+    {
+        var stub = new StubConsumerChannel();
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var parms = new SubscriptionParms().setPrefetch(50).setConcurrency(3);
+        try (var dispatcher = new DeliveryDispatcher(16)) {
+            var sub = dispatcher.subscribe(stub.channel, "q", parms, d -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(2);
+                running.decrementAndGet();
+                return Outcome.ACK;
+            });
+            try {
+                for (int i = 0; i < 300; i++) stub.deliver(new byte[1], false);
+                Assert.assertTrue(stub.awaitSettled(10000));
+                Assert.assertEquals(maxRunning.get(), 3);
+            }
+            finally {sub.close();}
+        }
+    }
+
+    @Test
+    public void failureTest() throws Exception
+    {
+        var stub = new StubConsumerChannel();
+        var parms = new SubscriptionParms().setFailurePolicy(FailurePolicy.REQUEUE_ONCE);
+        try (var dispatcher = new DeliveryDispatcher(4);
+             var sub = dispatcher.subscribe(stub.channel, "q", parms, d -> switch (d.body[0]) {
+                 case 1 -> Outcome.REQUEUE;
+                 case 2 -> Outcome.DEAD_LETTER;
+                 case 3 -> throw new IllegalStateException("handler failure");
+                 default -> Outcome.ACK;
+             }))
+        {
+            stub.deliver(new byte[] {0}, false);  // 1 acked
+            stub.deliver(new byte[] {1}, false);  // 2 requeued
+            stub.deliver(new byte[] {2}, false);  // 3 dead-lettered
+            stub.deliver(new byte[] {3}, false);  // 4 fails and is requeued
+            stub.deliver(new byte[] {3}, true);   // 5 fails again and is dead-lettered
+            Assert.assertTrue(stub.awaitSettled(5000));
+            Assert.assertEquals(stub.requeued, List.of(2L, 4L));
+            Assert.assertEquals(stub.deadLettered, List.of(3L, 5L));
+            Assert.assertEquals(stub.getAckedCount(), 1);
+
+            // The counts are final once the last settlement is done.
+            sub.close(5000);
+            Assert.assertEquals(sub.getRequeuedCount(), 2);
+            Assert.assertEquals(sub.getDeadLetteredCount(), 2);
+        }
+    }
+
+    @Test
+    public void slowDeliveryTest() throws Exception
+    {
+        // One delivery blocks while the rest complete.  The timer acks the
+        // completed ones individually so the prefetch window doesn't fill up.
+        var stub = new StubConsumerChannel();
+        var release = new CountDownLatch(1);
+        var parms = new SubscriptionParms().setPrefetch(20).setConcurrency(4).setAckBatchSize(5)
+                                           .setAckIntervalMs(20);
+        try (var dispatcher = new DeliveryDispatcher(4)) {
+            var sub = dispatcher.subscribe(stub.channel, "q", parms, d -> {
+                if (d.body[0] == 1) release.await();
+                return Outcome.ACK;
+            });
+            try {
+                stub.deliver(new byte[] {1}, false);
+                for (int i = 0; i < 200; i++) stub.deliver(new byte[1], false);
+                for (int i = 0; i < 100 && stub.getUnsettledCount() > 1; i++) Thread.sleep(10);
+                Assert.assertEquals(stub.getUnsettledCount(), 1);
+                Assert.assertEquals(stub.getAckedCount(), 200);
+
+                release.countDown();
+                Assert.assertTrue(stub.awaitSettled(5000));
+            }
+            finally {sub.close();}
+        }
+    }
+
+    @Test
+    public void closeTest() throws Exception
+    {
+        // Close waits for running handlers and flushes their acks.
+        var stub = new StubConsumerChannel();
+        var parms = new SubscriptionParms().setAckBatchSize(1000).setAckIntervalMs(60000);
+        try (var dispatcher = new DeliveryDispatcher(4)) {
+            var sub = dispatcher.subscribe(stub.channel, "q", parms, d -> {Thread.sleep(50); return Outcome.ACK;});
+            for (int i = 0; i < 10; i++) stub.deliver(new byte[1], false);
+            sub.close(5000);
+            Assert.assertTrue(stub.cancelled);
+            Assert.assertEquals(stub.getAckedCount(), 10);
+            Assert.assertEquals(stub.getUnsettledCount(), 0);
+
+            // The caller owns the channel.
+            Assert.assertTrue(stub.open);
+        }
+    }
+}
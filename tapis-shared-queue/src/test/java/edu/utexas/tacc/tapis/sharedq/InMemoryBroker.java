@@ -0,0 +1,1355 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AddressResolver;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedCallback;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.CancelCallback;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ConsumerShutdownSignalCallback;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.Return;
+import com.rabbitmq.client.ReturnCallback;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.UnblockedCallback;
+import com.rabbitmq.client.impl.AMQImpl;
+
+/** An in-memory stand-in for a RabbitMQ broker that lets queue code run
+ * without a real broker.  Connections come from getConnectionFactory() and
+ * behave like amqp-client connections to a single virtual host:
+ *
+ *  - direct, fanout, topic and headers exchanges, the default exchange and
+ *    the alternate-exchange argument
+ *  - queue declaration with durable, exclusive and auto-delete semantics,
+ *    bindings, purge and delete
+ *  - dead lettering of rejected messages and of messages dropped by
+ *    x-max-length, following x-dead-letter-exchange and
+ *    x-dead-letter-routing-key and recording x-death headers
+ *  - per-consumer basicQos prefetch, acks, nacks, rejects and recovery, with
+ *    unacknowledged messages requeued when their channel closes
+ *  - publisher confirms, including multiple acks, nacks injected with
+ *    nackPublishes(), and mandatory returns
+ *
+ * Consumer callbacks, confirms and returns are delivered on one thread per
+ * channel, in order, as the real client does.  Errors that a broker reports
+ * by closing the channel, such as acking an unknown delivery tag, close the
+ * channel here with the same reply code.  Nothing is persistent and message
+ * TTLs, priorities, transactions and exchange-to-exchange bindings are not
+ * supported.
+ */
+public final class InMemoryBroker
+ implements AutoCloseable
+{
+    /* ********************************************************************** */
+    /*                               Constants                                */
+    /* ********************************************************************** */
+    // Tracing.
+    private static final Logger _log = LoggerFactory.getLogger(InMemoryBroker.class);
+
+    // AMQP reply codes.
+    private static final int REPLY_SUCCESS       = 200;
+    private static final int CONNECTION_FORCED   = 320;
+    private static final int NO_ROUTE            = 312;
+    private static final int ACCESS_REFUSED      = 403;
+    private static final int NOT_FOUND           = 404;
+    private static final int RESOURCE_LOCKED     = 405;
+    private static final int PRECONDITION_FAILED = 406;
+    private static final int COMMAND_INVALID     = 503;
+
+    private static final String VHOST = "/";
+
+    /* ********************************************************************** */
+    /*                                 Fields                                 */
+    /* ********************************************************************** */
+    // Broker state guarded by this object's monitor.
+    private final Map<String,Exchange>   _exchanges = new HashMap<>();
+    private final Map<String,Queue>      _queues = new HashMap<>();
+    private final List<BrokerConnection> _connections = new ArrayList<>();
+    private int                          _nackPublishes;
+    private boolean                      _closed;
+
+    private final AtomicInteger _ids = new AtomicInteger();
+    
+    // Simulated time to write a publish frame to a connection's socket.
+    private volatile long _publishCostNanos;
+
+    // Statistics.
+    private final AtomicLong _published    = new AtomicLong();
+    private final AtomicLong _delivered    = new AtomicLong();
+    private final AtomicLong _deadLettered = new AtomicLong();
+
+    /* ********************************************************************** */
+    /*                             Constructors                               */
+    /* ********************************************************************** */
+    /** Create a broker with the default and amq.* exchanges. */
+    public InMemoryBroker()
+    {
+        _exchanges.put("", new Exchange("", "direct", true, false, Map.of()));
+        for (var type : BuiltinExchangeType.values()) {
+            String name = "amq." + type.getType();
+            _exchanges.put(name, new Exchange(name, type.getType(), true, false, Map.of()));
+        }
+    }
+
+    /* ********************************************************************** */
+    /*                             Public Methods                             */
+    /* ********************************************************************** */
+    /** A connection factory whose connections are to this broker.  Host, port
+     * and credential settings on the factory are ignored.  A metrics
+     * collector set on the factory only sees connections open and close.
+     */
+    public ConnectionFactory getConnectionFactory()
+    {
+        return new ConnectionFactory() {
+            @Override
+            public Connection newConnection(ExecutorService executor, AddressResolver resolver,
+                                            String clientProvidedName)
+             throws IOException
+            {
+                Connection conn = InMemoryBroker.this.newConnection(clientProvidedName);
+                var collector = getMetricsCollector();
+                if (collector != null) {
+                    collector.newConnection(conn);
+                    conn.addShutdownListener(sig -> collector.closeConnection(conn));
+                }
+                return conn;
+            }
+        };
+    }
+
+    /** Open a connection to this broker. */
+    public synchronized Connection newConnection(String name) throws IOException
+    {
+        if (_closed) throw new IOException("The in-memory broker is closed.");
+        var conn = new BrokerConnection(name == null ? "connection-" + _ids.incrementAndGet() : name);
+        _connections.add(conn);
+        return conn._proxy;
+    }
+
+    /** Fail the next count confirmed publishes with a nack. */
+    public synchronized void nackPublishes(int count) {_nackPublishes = count;}
+
+    /** Make each publish hold its connection for the given time, as writing
+     * to the connection's socket would.  Publishes on the channels of one
+     * connection are serialized, so throughput is limited per connection.
+     */
+    public void setPublishCostNanos(long nanos) {_publishCostNanos = nanos;}
+
+    /** Block publishing on every connection, as a resource alarm would. */
+    public void blockConnections(String reason)
+    {
+        for (var conn : connections())
+            for (var listener : conn._blockedListeners)
+                try {listener.handleBlocked(reason);}
+                  catch (IOException e) {_log.warn("Blocked listener failed: " + e.getMessage(), e);}
+    }
+
+    /** Clear the alarm raised by blockConnections(). */
+    public void unblockConnections()
+    {
+        for (var conn : connections())
+            for (var listener : conn._blockedListeners)
+                try {listener.handleUnblocked();}
+                  catch (IOException e) {_log.warn("Unblocked listener failed: " + e.getMessage(), e);}
+    }
+
+    /** Close every connection as if the broker had gone away. */
+    public void dropConnections()
+    {
+        for (var conn : connections()) conn.shutdown(forcedClose());
+    }
+
+    /** Close the connections with the given client-provided name. */
+    public void dropConnection(String name)
+    {
+        List<BrokerConnection> conns = new ArrayList<>();
+        synchronized (this) {for (var conn : _connections) if (conn._name.equals(name)) conns.add(conn);}
+        for (var conn : conns) conn.shutdown(forcedClose());
+    }
+
+    /** Drop all connections and refuse new ones. */
+    @Override
+    public void close()
+    {
+        synchronized (this) {_closed = true;}
+        dropConnections();
+    }
+
+    private synchronized List<BrokerConnection> connections() {return new ArrayList<>(_connections);}
+
+    private ShutdownSignalException forcedClose()
+    {
+        return new ShutdownSignalException(true, false,
+            new AMQImpl.Connection.Close(CONNECTION_FORCED,
+                "CONNECTION_FORCED - broker forced connection closure with reason 'shutdown'", 0, 0), this);
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* inspection:                                                            */
+    /* ---------------------------------------------------------------------- */
+    public synchronized boolean queueExists(String name) {return _queues.containsKey(name);}
+    public synchronized boolean exchangeExists(String name) {return _exchanges.containsKey(name);}
+    public synchronized Set<String> getQueueNames() {return new TreeSet<>(_queues.keySet());}
+    public synchronized int getConnectionCount() {return _connections.size();}
+
+    /** The number of messages ready for delivery, or -1 if there's no queue. */
+    public synchronized int getMessageCount(String queueName)
+    {
+        Queue q = _queues.get(queueName);
+        return q == null ? -1 : q.ready.size();
+    }
+
+    /** The number of delivered messages awaiting an ack, or -1 if there's no queue. */
+    public synchronized int getUnackedCount(String queueName)
+    {
+        Queue q = _queues.get(queueName);
+        return q == null ? -1 : q.unacked;
+    }
+
+    public synchronized int getConsumerCount(String queueName)
+    {
+        Queue q = _queues.get(queueName);
+        return q == null ? -1 : q.consumers.size();
+    }
+
+    /** The routing keys that bind the queue to the exchange. */
+    public synchronized Set<String> getBindingKeys(String exchangeName, String queueName)
+    {
+        var keys = new TreeSet<String>();
+        Exchange ex = _exchanges.get(exchangeName);
+        if (ex != null) for (var b : ex.bindings) if (b.queue.equals(queueName)) keys.add(b.key);
+        return keys;
+    }
+
+    public long getPublishedCount() {return _published.get();}
+    public long getDeliveredCount() {return _delivered.get();}
+    public long getDeadLetteredCount() {return _deadLettered.get();}
+
+    /* ********************************************************************** */
+    /*                            Broker Internals                            */
+    /* ********************************************************************** */
+    /* ---------------------------------------------------------------------- */
+    /* route:                                                                 */
+    /* ---------------------------------------------------------------------- */
+    private Set<Queue> route(Exchange ex, String routingKey, AMQP.BasicProperties props,
+                             Set<String> visited)
+    {
+        var result = new LinkedHashSet<Queue>();
+        if (ex.name.isEmpty()) {
+            Queue q = _queues.get(routingKey);
+            if (q != null) result.add(q);
+            return result;
+        }
+
+        for (var b : ex.bindings)
+            if (matches(ex.type, b, routingKey, props)) {
+                Queue q = _queues.get(b.queue);
+                if (q != null) result.add(q);
+            }
+
+        // Unroutable messages go to the alternate exchange if there is one.
+        Object alt = ex.args.get("alternate-exchange");
+        if (result.isEmpty() && alt != null && visited.add(ex.name)) {
+            Exchange altEx = _exchanges.get(alt.toString());
+            if (altEx != null) result.addAll(route(altEx, routingKey, props, visited));
+        }
+        return result;
+    }
+
+    private static boolean matches(String type, Binding b, String routingKey, AMQP.BasicProperties props)
+    {
+        return switch (type) {
+            case "fanout"  -> true;
+            case "topic"   -> topicMatches(b.key.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+            case "headers" -> headersMatch(b.args, props.getHeaders());
+            default        -> b.key.equals(routingKey);
+        };
+    }
+
+    /** Match topic words, where * is one word and # is zero or more. */
+    private static boolean topicMatches(String[] pattern, int i, String[] key, int j)
+    {
+        if (i == pattern.length) return j == key.length;
+        if (pattern[i].equals("#")) {
+            for (int k = j; k <= key.length; k++)
+                if (topicMatches(pattern, i + 1, key, k)) return true;
+            return false;
+        }
+        if (j == key.length) return false;
+        if (!pattern[i].equals("*") && !pattern[i].equals(key[j])) return false;
+        return topicMatches(pattern, i + 1, key, j + 1);
+    }
+
+    private static boolean headersMatch(Map<String,Object> bindingArgs, Map<String,Object> headers)
+    {
+        boolean any = "any".equals(String.valueOf(bindingArgs.get("x-match")));
+        boolean matchedAny = false;
+        for (var entry : bindingArgs.entrySet()) {
+            if (entry.getKey().startsWith("x-")) continue;
+            Object value = headers == null ? null : headers.get(entry.getKey());
+            boolean match = value != null && String.valueOf(value).equals(String.valueOf(entry.getValue()));
+            if (match) matchedAny = true;
+              else if (!any) return false;
+        }
+        return !any || matchedAny;
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* enqueue:                                                               */
+    /* ---------------------------------------------------------------------- */
+    private void enqueue(Queue q, Message msg)
+    {
+        q.ready.add(msg);
+
+        // Drop from the head when over the length limit.
+        if (q.args.get("x-max-length") instanceof Number max)
+            while (q.ready.size() > max.longValue()) deadLetter(q, q.ready.poll(), "maxlen");
+        dispatch(q);
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* dispatch:                                                              */
+    /* ---------------------------------------------------------------------- */
+    /** Deliver ready messages round-robin to consumers that have room. */
+    private void dispatch(Queue q)
+    {
+        while (!q.ready.isEmpty() && !q.consumers.isEmpty()) {
+            ConsumerReg reg = null;
+            int size = q.consumers.size();
+            for (int i = 0; i < size; i++) {
+                var candidate = q.consumers.get((q.nextConsumer + i) % size);
+                if (candidate.hasRoom()) {
+                    reg = candidate;
+                    q.nextConsumer = (q.nextConsumer + i + 1) % size;
+                    break;
+                }
+            }
+            if (reg == null) return;
+            reg.channel.deliver(reg, q, q.ready.poll());
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* requeue:                                                               */
+    /* ---------------------------------------------------------------------- */
+    /** Put settled messages back at the front of their queues in their
+     * original order and redeliver them.
+     */
+    private void requeue(List<Unacked> settled)
+    {
+        var queues = new LinkedHashSet<Queue>();
+        for (int i = settled.size() - 1; i >= 0; i--) {
+            var u = settled.get(i);
+            if (_queues.get(u.queue.name) != u.queue) continue;
+            u.queue.ready.addFirst(u.msg.redelivered());
+            queues.add(u.queue);
+        }
+        for (var q : queues) dispatch(q);
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* deadLetter:                                                            */
+    /* ---------------------------------------------------------------------- */
+    /** Republish a message to its queue's dead letter exchange, if any. */
+    private void deadLetter(Queue q, Message msg, String reason)
+    {
+        Object dlx = q.args.get("x-dead-letter-exchange");
+        Exchange ex = dlx == null ? null : _exchanges.get(dlx.toString());
+        if (ex == null) return;
+        Object dlrk = q.args.get("x-dead-letter-routing-key");
+        String routingKey = dlrk == null ? msg.routingKey : dlrk.toString();
+
+        // Record the death, counting repeats from the same queue for the same reason.
+        var headers = new HashMap<String,Object>();
+        if (msg.props.getHeaders() != null) headers.putAll(msg.props.getHeaders());
+        var deaths = new ArrayList<Object>();
+        long count = 1;
+        if (headers.get("x-death") instanceof List<?> previous)
+            for (Object death : previous) {
+                if (death instanceof Map<?,?> d && q.name.equals(String.valueOf(d.get("queue"))) &&
+                    reason.equals(String.valueOf(d.get("reason"))))
+                    count += ((Number) d.get("count")).longValue();
+                else deaths.add(death);
+            }
+        var death = new LinkedHashMap<String,Object>();
+        death.put("count", count);
+        death.put("reason", reason);
+        death.put("queue", q.name);
+        death.put("time", new Date());
+        death.put("exchange", msg.exchange);
+        death.put("routing-keys", List.of(msg.routingKey));
+        deaths.add(0, death);
+        headers.put("x-death", deaths);
+        headers.putIfAbsent("x-first-death-reason", reason);
+        headers.putIfAbsent("x-first-death-queue", q.name);
+        headers.putIfAbsent("x-first-death-exchange", msg.exchange);
+
+        _deadLettered.incrementAndGet();
+        var props = msg.props.builder().headers(headers).build();
+        for (var target : route(ex, routingKey, props, new HashSet<>()))
+            enqueue(target, new Message(ex.name, routingKey, props, msg.body, false));
+    }
+
+    /* ---------------------------------------------------------------------- */
+    /* deleteQueue:                                                           */
+    /* ---------------------------------------------------------------------- */
+    private void deleteQueue(Queue q)
+    {
+        if (_queues.get(q.name) != q) return;
+        _queues.remove(q.name);
+        for (var ex : new ArrayList<>(_exchanges.values())) {
+            boolean removed = ex.bindings.removeIf(b -> b.queue.equals(q.name));
+            if (removed) autoDeleteExchange(ex);
+        }
+
+        // Consumers are told the broker cancelled them.
+        for (var reg : new ArrayList<>(q.consumers)) reg.channel.brokerCancel(reg);
+        q.consumers.clear();
+    }
+
+    private void autoDeleteExchange(Exchange ex)
+    {
+        if (ex.autoDelete && ex.bindings.isEmpty()) _exchanges.remove(ex.name);
+    }
+
+    private void removeConsumer(ConsumerReg reg)
+    {
+        Queue q = reg.queue;
+        q.consumers.remove(reg);
+        if (q.consumers.isEmpty()) q.nextConsumer = 0;
+          else q.nextConsumer %= q.consumers.size();
+        if (q.autoDelete && q.consumers.isEmpty()) deleteQueue(q);
+    }
+
+    private static ShutdownSignalException channelClose(int code, String text, Object ref)
+    {
+        return new ShutdownSignalException(false, false, new AMQImpl.Channel.Close(code, text, 0, 0), ref);
+    }
+
+    /* ********************************************************************** */
+    /*                              Broker State                              */
+    /* ********************************************************************** */
+    private static final class Exchange
+    {
+        private final String              name;
+        private final String              type;
+        private final boolean             durable;
+        private final boolean             autoDelete;
+        private final Map<String,Object>  args;
+        private final List<Binding>       bindings = new ArrayList<>();
+
+        private Exchange(String name, String type, boolean durable, boolean autoDelete,
+                         Map<String,Object> args)
+        {
+            this.name = name;
+            this.type = type;
+            this.durable = durable;
+            this.autoDelete = autoDelete;
+            this.args = args == null ? Map.of() : new HashMap<>(args);
+        }
+    }
+
+    private record Binding(String queue, String key, Map<String,Object> args) {}
+
+    private static final class Queue
+    {
+        private final String               name;
+        private final boolean              durable;
+        private final boolean              exclusive;
+        private final boolean              autoDelete;
+        private final Map<String,Object>   args;
+        private final BrokerConnection     owner;
+        private final ArrayDeque<Message>  ready = new ArrayDeque<>();
+        private final List<ConsumerReg>    consumers = new ArrayList<>();
+        private int                        nextConsumer;
+        private int                        unacked;
+
+        private Queue(String name, boolean durable, boolean exclusive, boolean autoDelete,
+                      Map<String,Object> args, BrokerConnection owner)
+        {
+            this.name = name;
+            this.durable = durable;
+            this.exclusive = exclusive;
+            this.autoDelete = autoDelete;
+            this.args = args == null ? Map.of() : new HashMap<>(args);
+            this.owner = owner;
+        }
+    }
+
+    private record Message(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body,
+                           boolean redeliver)
+    {
+        private Message redelivered() {return new Message(exchange, routingKey, props, body, true);}
+    }
+
+    private static final class ConsumerReg
+    {
+        private final BrokerChannel channel;
+        private final String        tag;
+        private final Queue         queue;
+        private final boolean       autoAck;
+        private final int           prefetch;
+        private final Consumer      consumer;
+        private int                 unacked;
+
+        private ConsumerReg(BrokerChannel channel, String tag, Queue queue, boolean autoAck, int prefetch,
+                            Consumer consumer)
+        {
+            this.channel = channel;
+            this.tag = tag;
+            this.queue = queue;
+            this.autoAck = autoAck;
+            this.prefetch = prefetch;
+            this.consumer = consumer;
+        }
+
+        private boolean hasRoom() {return autoAck || prefetch == 0 || unacked < prefetch;}
+    }
+
+    /** A delivered message awaiting settlement.  The consumer is null for basicGet. */
+    private record Unacked(Queue queue, Message msg, ConsumerReg reg) {}
+
+    /* ********************************************************************** */
+    /*                               Connection                               */
+    /* ********************************************************************** */
+    private final class BrokerConnection
+     implements InvocationHandler
+    {
+        private final String                         _name;
+        private final Connection                     _proxy;
+        private final Map<Integer,BrokerChannel>     _channels = new TreeMap<>();
+        private final List<ShutdownListener>         _listeners = new CopyOnWriteArrayList<>();
+        private final List<BlockedListener>          _blockedListeners = new CopyOnWriteArrayList<>();
+        private volatile ShutdownSignalException     _closeReason;
+        private String                               _id;
+        private final Object                         _writeLock = new Object();
+
+        private BrokerConnection(String name)
+        {
+            _name = name;
+            _proxy = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                         new Class<?>[] {Connection.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            int n = args == null ? 0 : args.length;
+            switch (method.getName()) {
+                case "equals":                 return proxy == args[0];
+                case "hashCode":               return System.identityHashCode(this);
+                case "toString":               return "InMemoryConnection(" + _name + ")";
+                case "isOpen":                 return _closeReason == null;
+                case "getCloseReason":         return _closeReason;
+                case "addShutdownListener":    _listeners.add((ShutdownListener) args[0]); return null;
+                case "removeShutdownListener": _listeners.remove(args[0]); return null;
+                case "notifyListeners":        return null;
+                case "getClientProvidedName":  return _name;
+                case "getId":                  return _id;
+                case "setId":                  _id = (String) args[0]; return null;
+                case "getAddress":             return InetAddress.getLoopbackAddress();
+                case "getPort":                return ConnectionFactory.DEFAULT_AMQP_PORT;
+                case "getChannelMax":          return ConnectionFactory.DEFAULT_CHANNEL_MAX;
+                case "getFrameMax":            return ConnectionFactory.DEFAULT_FRAME_MAX;
+                case "getHeartbeat":           return ConnectionFactory.DEFAULT_HEARTBEAT;
+                case "getClientProperties":
+                case "getServerProperties":    return Map.of("product", "InMemoryBroker");
+                case "getExceptionHandler":    return null;
+                case "addBlockedListener":     return addBlockedListener(args);
+                case "removeBlockedListener":  return _blockedListeners.remove(args[0]);
+                case "clearBlockedListeners":  _blockedListeners.clear(); return null;
+                case "createChannel":          return createChannel(n == 0 ? 0 : (Integer) args[0]);
+                case "openChannel":            return Optional.ofNullable(createChannel(n == 0 ? 0 : (Integer) args[0]));
+                case "close":
+                case "abort": {
+                    boolean isClose = method.getName().equals("close");
+                    if (_closeReason != null) {
+                        if (isClose) throw new AlreadyClosedException(_closeReason);
+                        return null;
+                    }
+                    int code = n >= 2 ? (Integer) args[0] : REPLY_SUCCESS;
+                    String text = n >= 2 ? (String) args[1] : "OK";
+                    shutdown(new ShutdownSignalException(true, true,
+                                 new AMQImpl.Connection.Close(code, text, 0, 0), _proxy));
+                    return null;
+                }
+                default: throw new UnsupportedOperationException("Connection." + method.getName());
+            }
+        }
+
+        private BlockedListener addBlockedListener(Object[] args)
+        {
+            BlockedListener listener = args.length == 1 ? (BlockedListener) args[0] : new BlockedListener() {
+                @Override
+                public void handleBlocked(String reason) throws IOException {((BlockedCallback) args[0]).handle(reason);}
+                @Override
+                public void handleUnblocked() throws IOException {((UnblockedCallback) args[1]).handle();}
+            };
+            _blockedListeners.add(listener);
+            return args.length == 1 ? null : listener;
+        }
+
+        private Channel createChannel(int number)
+        {
+            synchronized (InMemoryBroker.this) {
+                if (_closeReason != null) throw new AlreadyClosedException(_closeReason);
+                if (number == 0) {
+                    number = 1;
+                    while (_channels.containsKey(number)) number++;
+                }
+                else if (_channels.containsKey(number)) return null;
+                var channel = new BrokerChannel(this, number);
+                _channels.put(number, channel);
+                return channel._proxy;
+            }
+        }
+
+        /** Close the channels, delete exclusive queues and notify listeners. */
+        private void shutdown(ShutdownSignalException sig)
+        {
+            List<BrokerChannel> channels;
+            synchronized (InMemoryBroker.this) {
+                if (_closeReason != null) return;
+                _closeReason = sig;
+                _connections.remove(this);
+                channels = new ArrayList<>(_channels.values());
+            }
+            for (var channel : channels) channel.shutdown(sig);
+            synchronized (InMemoryBroker.this) {
+                for (var q : new ArrayList<>(_queues.values())) if (q.exclusive && q.owner == this) deleteQueue(q);
+            }
+            for (var listener : _listeners)
+                try {listener.shutdownCompleted(sig);}
+                  catch (Exception e) {_log.warn("Connection shutdown listener failed: " + e.getMessage(), e);}
+        }
+    }
+
+    /* ********************************************************************** */
+    /*                                Channel                                 */
+    /* ********************************************************************** */
+    private final class BrokerChannel
+     implements InvocationHandler
+    {
+        private final BrokerConnection               _connection;
+        private final int                            _number;
+        private final Channel                        _proxy;
+        private final ExecutorService                _executor;
+        private volatile ShutdownSignalException     _closeReason;
+
+        // Listeners.
+        private final List<ShutdownListener>         _shutdownListeners = new CopyOnWriteArrayList<>();
+        private final List<ConfirmListener>          _confirmListeners = new CopyOnWriteArrayList<>();
+        private final List<ReturnListener>           _returnListeners = new CopyOnWriteArrayList<>();
+
+        // Consumer state guarded by the broker monitor.
+        private final Map<String,ConsumerReg>        _consumers = new LinkedHashMap<>();
+        private final TreeMap<Long,Unacked>          _unacked = new TreeMap<>();
+        private long                                 _deliveryTag;
+        private int                                  _prefetch;
+
+        // Confirm state guarded by the confirm lock.
+        private final Object                         _confirmLock = new Object();
+        private boolean                              _confirmMode;
+        private long                                 _nextPublishSeqNo;
+        private List<Long>                           _pendingAcks = new ArrayList<>();
+        private long                                 _confirmed;
+        private boolean                              _nacked;
+
+        private BrokerChannel(BrokerConnection connection, int number)
+        {
+            _connection = connection;
+            _number = number;
+            _proxy = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                      new Class<?>[] {Channel.class}, this);
+            _executor = Executors.newSingleThreadExecutor(r -> {
+                var t = new Thread(r, "InMemoryBroker-" + connection._name + "-" + number);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            int n = args == null ? 0 : args.length;
+
+            // Methods that work on closed channels.
+            switch (name) {
+                case "equals":                 return proxy == args[0];
+                case "hashCode":               return System.identityHashCode(this);
+                case "toString":               return "InMemoryChannel(" + _connection._name + "#" + _number + ")";
+                case "getChannelNumber":       return _number;
+                case "getConnection":          return _connection._proxy;
+                case "isOpen":                 return _closeReason == null;
+                case "getCloseReason":         return _closeReason;
+                case "addShutdownListener":    _shutdownListeners.add((ShutdownListener) args[0]); return null;
+                case "removeShutdownListener": _shutdownListeners.remove(args[0]); return null;
+                case "notifyListeners":        return null;
+                case "addConfirmListener":     return addConfirmListener(args);
+                case "removeConfirmListener":  return _confirmListeners.remove(args[0]);
+                case "clearConfirmListeners":  _confirmListeners.clear(); return null;
+                case "addReturnListener":      return addReturnListener(args[0]);
+                case "removeReturnListener":   return _returnListeners.remove(args[0]);
+                case "clearReturnListeners":   _returnListeners.clear(); return null;
+                case "getDefaultConsumer":     return null;
+                case "setDefaultConsumer":     return null;
+                case "getNextPublishSeqNo":    synchronized (_confirmLock) {return _confirmMode ? _nextPublishSeqNo : 0L;}
+                case "waitForConfirms":        return waitForConfirms(n == 0 ? 0 : (Long) args[0]);
+                case "waitForConfirmsOrDie": {
+                    if (!waitForConfirms(n == 0 ? 0 : (Long) args[0])) {
+                        shutdown(channelClose(REPLY_SUCCESS, "NACKS RECEIVED", _proxy));
+                        throw new IOException("nacks received");
+                    }
+                    return null;
+                }
+                case "close":
+                case "abort": {
+                    if (_closeReason != null) {
+                        if (name.equals("close")) throw new AlreadyClosedException(_closeReason);
+                        return null;
+                    }
+                    int code = n >= 2 ? (Integer) args[0] : REPLY_SUCCESS;
+                    String text = n >= 2 ? (String) args[1] : "OK";
+                    shutdown(new ShutdownSignalException(false, true,
+                                 new AMQImpl.Channel.Close(code, text, 0, 0), _proxy));
+                    return null;
+                }
+            }
+
+            // Everything else needs an open channel.
+            if (_closeReason != null) throw new AlreadyClosedException(_closeReason);
+            switch (name) {
+                case "exchangeDeclare":
+                case "exchangeDeclareNoWait": {
+                    String type = args[1] instanceof BuiltinExchangeType bt ? bt.getType() : (String) args[1];
+                    boolean durable = n >= 3 && (Boolean) args[2];
+                    boolean autoDelete = n >= 5 && (Boolean) args[3];
+                    @SuppressWarnings("unchecked")
+                    var xargs = n >= 5 ? (Map<String,Object>) args[n - 1] : null;
+                    exchangeDeclare((String) args[0], type, durable, autoDelete, xargs);
+                    return name.endsWith("NoWait") ? null : new AMQImpl.Exchange.DeclareOk();
+                }
+                case "exchangeDeclarePassive": {
+                    synchronized (InMemoryBroker.this) {
+                        if (!_exchanges.containsKey(args[0]))
+                            throw error(NOT_FOUND, "NOT_FOUND - no exchange '" + args[0] + "' in vhost '" + VHOST + "'");
+                    }
+                    return new AMQImpl.Exchange.DeclareOk();
+                }
+                case "exchangeDelete":
+                case "exchangeDeleteNoWait": {
+                    exchangeDelete((String) args[0], n >= 2 && (Boolean) args[1]);
+                    return name.endsWith("NoWait") ? null : new AMQImpl.Exchange.DeleteOk();
+                }
+                case "queueDeclare":
+                case "queueDeclareNoWait": {
+                    @SuppressWarnings("unchecked")
+                    var ok = n == 0 ? queueDeclare("", false, true, true, null)
+                                    : queueDeclare((String) args[0], (Boolean) args[1], (Boolean) args[2],
+                                                   (Boolean) args[3], (Map<String,Object>) args[4]);
+                    return name.endsWith("NoWait") ? null : ok;
+                }
+                case "queueDeclarePassive": {
+                    synchronized (InMemoryBroker.this) {
+                        Queue q = getQueue((String) args[0]);
+                        return new AMQImpl.Queue.DeclareOk(q.name, q.ready.size(), q.consumers.size());
+                    }
+                }
+                case "queueDelete":
+                case "queueDeleteNoWait": {
+                    int count = queueDelete((String) args[0], n >= 2 && (Boolean) args[1], n >= 3 && (Boolean) args[2]);
+                    return name.endsWith("NoWait") ? null : new AMQImpl.Queue.DeleteOk(count);
+                }
+                case "queuePurge": {
+                    synchronized (InMemoryBroker.this) {
+                        Queue q = getQueue((String) args[0]);
+                        int count = q.ready.size();
+                        q.ready.clear();
+                        return new AMQImpl.Queue.PurgeOk(count);
+                    }
+                }
+                case "queueBind":
+                case "queueBindNoWait": {
+                    @SuppressWarnings("unchecked")
+                    var bargs = n >= 4 ? (Map<String,Object>) args[3] : null;
+                    queueBind((String) args[0], (String) args[1], (String) args[2], bargs, true);
+                    return name.endsWith("NoWait") ? null : new AMQImpl.Queue.BindOk();
+                }
+                case "queueUnbind": {
+                    @SuppressWarnings("unchecked")
+                    var bargs = n >= 4 ? (Map<String,Object>) args[3] : null;
+                    queueBind((String) args[0], (String) args[1], (String) args[2], bargs, false);
+                    return new AMQImpl.Queue.UnbindOk();
+                }
+                case "messageCount":
+                    synchronized (InMemoryBroker.this) {return (long) getQueue((String) args[0]).ready.size();}
+                case "consumerCount":
+                    synchronized (InMemoryBroker.this) {return (long) getQueue((String) args[0]).consumers.size();}
+                case "basicQos":
+                    synchronized (InMemoryBroker.this) {_prefetch = (Integer) args[n == 3 ? 1 : 0];}
+                    return null;
+                case "basicPublish": {
+                    long cost = _publishCostNanos;
+                    if (cost > 0) synchronized (_connection._writeLock) {LockSupport.parkNanos(cost);}
+                    boolean mandatory = n >= 5 && (Boolean) args[2];
+                    publish((String) args[0], (String) args[1], mandatory,
+                            (AMQP.BasicProperties) args[n - 2], (byte[]) args[n - 1]);
+                    return null;
+                }
+                case "basicConsume":   return basicConsume(args);
+                case "basicCancel":    basicCancel((String) args[0]); return null;
+                case "basicGet":       return basicGet((String) args[0], (Boolean) args[1]);
+                case "basicAck":       settle((Long) args[0], (Boolean) args[1], null); return null;
+                case "basicNack":      settle((Long) args[0], (Boolean) args[1], (Boolean) args[2]); return null;
+                case "basicReject":    settle((Long) args[0], false, (Boolean) args[1]); return null;
+                case "basicRecover": {
+                    synchronized (InMemoryBroker.this) {
+                        var settled = new ArrayList<>(_unacked.values());
+                        _unacked.clear();
+                        for (var u : settled) release(u);
+                        requeue(settled);
+                    }
+                    return new AMQImpl.Basic.RecoverOk();
+                }
+                case "confirmSelect": {
+                    synchronized (_confirmLock) {
+                        if (!_confirmMode) {
+                            _confirmMode = true;
+                            _nextPublishSeqNo = 1;
+                        }
+                    }
+                    return new AMQImpl.Confirm.SelectOk();
+                }
+                default: throw new UnsupportedOperationException("Channel." + name);
+            }
+        }
+
+        /* ---------------------------------------------------------------------- */
+        /* exchanges and queues:                                                  */
+        /* ---------------------------------------------------------------------- */
+        private void exchangeDeclare(String name, String type, boolean durable, boolean autoDelete,
+                                     Map<String,Object> args)
+         throws IOException
+        {
+            synchronized (InMemoryBroker.this) {
+                if (!Set.of("direct", "fanout", "topic", "headers").contains(type))
+                    throw error(COMMAND_INVALID, "COMMAND_INVALID - unknown exchange type '" + type + "'");
+                Exchange ex = _exchanges.get(name);
+                if (ex != null) {
+                    if (!ex.type.equals(type))
+                        throw inequivalent("type", "exchange", name, type, ex.type);
+                    if (ex.durable != durable)
+                        throw inequivalent("durable", "exchange", name, durable, ex.durable);
+                    return;
+                }
+                if (name.startsWith("amq."))
+                    throw error(ACCESS_REFUSED, "ACCESS_REFUSED - exchange name '" + name +
+                                "' contains reserved prefix 'amq.*'");
+                _exchanges.put(name, new Exchange(name, type, durable, autoDelete, args));
+            }
+        }
+
+        private void exchangeDelete(String name, boolean ifUnused) throws IOException
+        {
+            synchronized (InMemoryBroker.this) {
+                if (name.isEmpty() || name.startsWith("amq."))
+                    throw error(ACCESS_REFUSED, "ACCESS_REFUSED - operation not permitted on exchange '" + name + "'");
+                Exchange ex = _exchanges.get(name);
+                if (ex == null) return;
+                if (ifUnused && !ex.bindings.isEmpty())
+                    throw error(PRECONDITION_FAILED, "PRECONDITION_FAILED - exchange '" + name + "' in use");
+                _exchanges.remove(name);
+            }
+        }
+
+        private AMQP.Queue.DeclareOk queueDeclare(String name, boolean durable, boolean exclusive,
+                                                  boolean autoDelete, Map<String,Object> args)
+         throws IOException
+        {
+            synchronized (InMemoryBroker.this) {
+                if (name.isEmpty()) name = "amq.gen-" + UUID.randomUUID();
+                else if (name.startsWith("amq.") && !_queues.containsKey(name))
+                    throw error(ACCESS_REFUSED, "ACCESS_REFUSED - queue name '" + name +
+                                "' contains reserved prefix 'amq.*'");
+                Queue q = _queues.get(name);
+                if (q != null) {
+                    checkOwner(q);
+                    if (q.durable != durable) throw inequivalent("durable", "queue", name, durable, q.durable);
+                    if (q.exclusive != exclusive) throw inequivalent("exclusive", "queue", name, exclusive, q.exclusive);
+                    if (q.autoDelete != autoDelete)
+                        throw inequivalent("auto_delete", "queue", name, autoDelete, q.autoDelete);
+                    var newArgs = args == null ? Map.<String,Object>of() : args;
+                    for (String key : union(q.args.keySet(), newArgs.keySet()))
+                        if (!Objects.equals(String.valueOf(q.args.get(key)), String.valueOf(newArgs.get(key))))
+                            throw inequivalent(key, "queue", name, newArgs.get(key), q.args.get(key));
+                }
+                else {
+                    q = new Queue(name, durable, exclusive, autoDelete, args, exclusive ? _connection : null);
+                    _queues.put(name, q);
+                }
+                return new AMQImpl.Queue.DeclareOk(q.name, q.ready.size(), q.consumers.size());
+            }
+        }
+
+        private int queueDelete(String name, boolean ifUnused, boolean ifEmpty) throws IOException
+        {
+            synchronized (InMemoryBroker.this) {
+                Queue q = _queues.get(name);
+                if (q == null) return 0;
+                checkOwner(q);
+                if (ifUnused && !q.consumers.isEmpty())
+                    throw error(PRECONDITION_FAILED, "PRECONDITION_FAILED - queue '" + name + "' in use");
+                if (ifEmpty && !q.ready.isEmpty())
+                    throw error(PRECONDITION_FAILED, "PRECONDITION_FAILED - queue '" + name + "' not empty");
+                int count = q.ready.size();
+                deleteQueue(q);
+                return count;
+            }
+        }
+
+        private void queueBind(String queueName, String exchangeName, String key, Map<String,Object> args,
+                               boolean bind)
+         throws IOException
+        {
+            synchronized (InMemoryBroker.this) {
+                if (exchangeName.isEmpty())
+                    throw error(ACCESS_REFUSED, "ACCESS_REFUSED - operation not permitted on the default exchange");
+                Queue q = getQueue(queueName);
+                Exchange ex = _exchanges.get(exchangeName);
+                if (ex == null)
+                    throw error(NOT_FOUND, "NOT_FOUND - no exchange '" + exchangeName + "' in vhost '" + VHOST + "'");
+                var binding = new Binding(q.name, key, args == null ? Map.of() : Map.copyOf(args));
+                if (bind) {
+                    if (!ex.bindings.contains(binding)) ex.bindings.add(binding);
+                }
+                else if (ex.bindings.remove(binding)) autoDeleteExchange(ex);
+            }
+        }
+
+        private Queue getQueue(String name) throws IOException
+        {
+            Queue q = _queues.get(name);
+            if (q == null) throw error(NOT_FOUND, "NOT_FOUND - no queue '" + name + "' in vhost '" + VHOST + "'");
+            checkOwner(q);
+            return q;
+        }
+
+        private void checkOwner(Queue q) throws IOException
+        {
+            if (q.exclusive && q.owner != _connection)
+                throw error(RESOURCE_LOCKED, "RESOURCE_LOCKED - cannot obtain exclusive access to locked queue '" +
+                            q.name + "' in vhost '" + VHOST + "'");
+        }
+
+        /* ---------------------------------------------------------------------- */
+        /* publish:                                                               */
+        /* ---------------------------------------------------------------------- */
+        private void publish(String exchangeName, String routingKey, boolean mandatory,
+                             AMQP.BasicProperties props, byte[] body)
+        {
+            final var properties = props == null ? new AMQP.BasicProperties() : props;
+            synchronized (InMemoryBroker.this) {
+                checkOpen();
+                long seqNo;
+                synchronized (_confirmLock) {seqNo = _confirmMode ? _nextPublishSeqNo++ : 0;}
+
+                // Publishing to a missing exchange closes the channel asynchronously.
+                Exchange ex = _exchanges.get(exchangeName);
+                if (ex == null) {
+                    shutdown(channelClose(NOT_FOUND, "NOT_FOUND - no exchange '" + exchangeName +
+                                          "' in vhost '" + VHOST + "'", _proxy));
+                    return;
+                }
+                _published.incrementAndGet();
+
+                var queues = route(ex, routingKey, properties, new HashSet<>());
+                if (queues.isEmpty() && mandatory)
+                    _executor.execute(() -> {
+                        for (var listener : _returnListeners)
+                            try {listener.handleReturn(NO_ROUTE, "NO_ROUTE", exchangeName, routingKey, properties, body);}
+                              catch (Exception e) {_log.warn("Return listener failed: " + e.getMessage(), e);}
+                    });
+                boolean first = true;
+                for (var q : queues) {
+                    enqueue(q, new Message(exchangeName, routingKey, properties, first ? body : body.clone(), false));
+                    first = false;
+                }
+
+                if (seqNo > 0) {
+                    boolean nack = _nackPublishes > 0;
+                    if (nack) _nackPublishes--;
+                    confirm(seqNo, !nack);
+                }
+            }
+        }
+
+        /* ---------------------------------------------------------------------- */
+        /* confirm:                                                               */
+        /* ---------------------------------------------------------------------- */
+        /** Queue a confirm.  Acks that accumulate before the channel thread gets
+         * to them are sent together, as a single multiple ack when they're
+         * contiguous.
+         */
+        private void confirm(long seqNo, boolean ack)
+        {
+            if (ack) {
+                boolean schedule;
+                synchronized (_confirmLock) {
+                    _pendingAcks.add(seqNo);
+                    schedule = _pendingAcks.size() == 1;
+                }
+                if (schedule) _executor.execute(this::flushAcks);
+            }
+            else _executor.execute(() -> {
+                for (var listener : _confirmListeners)
+                    try {listener.handleNack(seqNo, false);}
+                      catch (Exception e) {_log.warn("Confirm listener failed: " + e.getMessage(), e);}
+                synchronized (_confirmLock) {
+                    _confirmed++;
+                    _nacked = true;
+                    _confirmLock.notifyAll();
+                }
+            });
+        }
+
+        private void flushAcks()
+        {
+            List<Long> acks;
+            synchronized (_confirmLock) {
+                acks = _pendingAcks;
+                _pendingAcks = new ArrayList<>();
+            }
+            long last = acks.get(acks.size() - 1);
+            boolean contiguous = acks.size() > 1 && last - acks.get(0) + 1 == acks.size();
+            for (var listener : _confirmListeners)
+                try {
+                    if (contiguous) listener.handleAck(last, true);
+                      else for (long seqNo : acks) listener.handleAck(seqNo, false);
+                }
+                catch (Exception e) {_log.warn("Confirm listener failed: " + e.getMessage(), e);}
+            synchronized (_confirmLock) {
+                _confirmed += acks.size();
+                _confirmLock.notifyAll();
+            }
+        }
+
+        private boolean waitForConfirms(long timeoutMs) throws InterruptedException, TimeoutException
+        {
+            synchronized (_confirmLock) {
+                if (!_confirmMode) throw new IllegalStateException("Confirms not selected");
+                long deadline = System.currentTimeMillis() + timeoutMs;
+                while (_confirmed < _nextPublishSeqNo - 1) {
+                    if (_closeReason != null) return false;
+                    if (timeoutMs <= 0) _confirmLock.wait();
+                    else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) throw new TimeoutException();
+                        _confirmLock.wait(remaining);
+                    }
+                }
+                boolean ok = !_nacked;
+                _nacked = false;
+                return ok;
+            }
+        }
+
+        private Object addConfirmListener(Object[] args)
+        {
+            if (args.length == 1) {
+                _confirmListeners.add((ConfirmListener) args[0]);
+                return null;
+            }
+            var ackCallback = (ConfirmCallback) args[0];
+            var nackCallback = (ConfirmCallback) args[1];
+            var listener = new ConfirmListener() {
+                @Override
+                public void handleAck(long deliveryTag, boolean multiple) throws IOException
+                {ackCallback.handle(deliveryTag, multiple);}
+                @Override
+                public void handleNack(long deliveryTag, boolean multiple) throws IOException
+                {nackCallback.handle(deliveryTag, multiple);}
+            };
+            _confirmListeners.add(listener);
+            return listener;
+        }
+
+        private Object addReturnListener(Object arg)
+        {
+            if (arg instanceof ReturnListener listener) {
+                _returnListeners.add(listener);
+                return null;
+            }
+            var callback = (ReturnCallback) arg;
+            ReturnListener listener = (code, text, exchange, routingKey, props, body) ->
+                callback.handle(new Return(code, text, exchange, routingKey, props, body));
+            _returnListeners.add(listener);
+            return listener;
+        }
+
+        /* ---------------------------------------------------------------------- */
+        /* consumers:                                                             */
+        /* ---------------------------------------------------------------------- */
+        /** Handles the Consumer overloads and the callback overloads. */
+        private String basicConsume(Object[] args) throws IOException
+        {
+            String queueName = (String) args[0];
+            boolean autoAck = args.length > 1 && args[1] instanceof Boolean b && b;
+            String tag = args.length > 2 && args[2] instanceof String s && !s.isEmpty() ? s : null;
+
+            Consumer consumer = null;
+            DeliverCallback deliverCallback = null;
+            CancelCallback cancelCallback = null;
+            ConsumerShutdownSignalCallback shutdownCallback = null;
+            for (Object arg : args) {
+                if (arg instanceof Consumer c) consumer = c;
+                if (arg instanceof DeliverCallback c) deliverCallback = c;
+                if (arg instanceof CancelCallback c) cancelCallback = c;
+                if (arg instanceof ConsumerShutdownSignalCallback c) shutdownCallback = c;
+            }
+            if (consumer == null) consumer = callbackConsumer(deliverCallback, cancelCallback, shutdownCallback);
+
+            ConsumerReg reg;
+            synchronized (InMemoryBroker.this) {
+                checkOpen();
+                Queue q = getQueue(queueName);
+                if (tag == null) tag = "amq.ctag-" + UUID.randomUUID();
+                reg = new ConsumerReg(this, tag, q, autoAck, _prefetch, consumer);
+                _consumers.put(tag, reg);
+                q.consumers.add(reg);
+
+                // The consume-ok callback precedes any delivery.
+                final var c = consumer;
+                final var t = tag;
+                _executor.execute(() -> c.handleConsumeOk(t));
+                dispatch(q);
+            }
+            return reg.tag;
+        }
+
+        private Consumer callbackConsumer(DeliverCallback deliverCallback, CancelCallback cancelCallback,
+                                          ConsumerShutdownSignalCallback shutdownCallback)
+        {
+            return new DefaultConsumer(_proxy) {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                           byte[] body)
+                 throws IOException
+                {
+                    if (deliverCallback != null)
+                        deliverCallback.handle(consumerTag, new Delivery(envelope, properties, body));
+                }
+                @Override
+                public void handleCancel(String consumerTag) throws IOException
+                {
+                    if (cancelCallback != null) cancelCallback.handle(consumerTag);
+                }
+                @Override
+                public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig)
+                {
+                    if (shutdownCallback != null) shutdownCallback.handleShutdownSignal(consumerTag, sig);
+                }
+            };
+        }
+
+        private void basicCancel(String tag) throws IOException
+        {
+            ConsumerReg reg;
+            synchronized (InMemoryBroker.this) {
+                reg = _consumers.remove(tag);
+                if (reg == null) throw new IOException("Unknown consumerTag");
+                removeConsumer(reg);
+                _executor.execute(() -> reg.consumer.handleCancelOk(tag));
+            }
+        }
+
+        /** The queue was deleted out from under the consumer. */
+        private void brokerCancel(ConsumerReg reg)
+        {
+            _consumers.remove(reg.tag);
+            _executor.execute(() -> {
+                try {reg.consumer.handleCancel(reg.tag);}
+                  catch (Exception e) {_log.warn("Consumer cancel callback failed: " + e.getMessage(), e);}
+            });
+        }
+
+        /** Called by the broker with its monitor held. */
+        private void deliver(ConsumerReg reg, Queue q, Message msg)
+        {
+            long tag = ++_deliveryTag;
+            if (!reg.autoAck) {
+                _unacked.put(tag, new Unacked(q, msg, reg));
+                reg.unacked++;
+                q.unacked++;
+            }
+            _delivered.incrementAndGet();
+            var envelope = new Envelope(tag, msg.redeliver, msg.exchange, msg.routingKey);
+            _executor.execute(() -> {
+                try {reg.consumer.handleDelivery(reg.tag, envelope, msg.props, msg.body);}
+                  catch (Exception e) {_log.warn("Consumer " + reg.tag + " failed: " + e.getMessage(), e);}
+            });
+        }
+
+        private GetResponse basicGet(String queueName, boolean autoAck) throws IOException
+        {
+            synchronized (InMemoryBroker.this) {
+                Queue q = getQueue(queueName);
+                Message msg = q.ready.poll();
+                if (msg == null) return null;
+                long tag = ++_deliveryTag;
+                if (!autoAck) {
+                    _unacked.put(tag, new Unacked(q, msg, null));
+                    q.unacked++;
+                }
+                _delivered.incrementAndGet();
+                return new GetResponse(new Envelope(tag, msg.redeliver, msg.exchange, msg.routingKey),
+                                       msg.props, msg.body, q.ready.size());
+            }
+        }
+
+        /* ---------------------------------------------------------------------- */
+        /* settle:                                                                */
+        /* ---------------------------------------------------------------------- */
+        /** Ack when requeue is null, otherwise nack or reject.  Unknown delivery
+         * tags close the channel as they would on a real broker.
+         */
+        private void settle(long tag, boolean multiple, Boolean requeue)
+        {
+            synchronized (InMemoryBroker.this) {
+                if (!(multiple && tag == 0) && !_unacked.containsKey(tag)) {
+                    shutdown(channelClose(PRECONDITION_FAILED, "PRECONDITION_FAILED - unknown delivery tag " + tag,
+                                          _proxy));
+                    return;
+                }
+                var range = multiple ? _unacked.headMap(tag == 0 ? Long.MAX_VALUE : tag, true)
+                                     : _unacked.subMap(tag, true, tag, true);
+                var settled = new ArrayList<>(range.values());
+                range.clear();
+
+                var queues = new LinkedHashSet<Queue>();
+                for (var u : settled) {
+                    release(u);
+                    queues.add(u.queue);
+                }
+                if (Boolean.TRUE.equals(requeue)) requeue(settled);
+                else if (requeue != null) for (var u : settled) if (_queues.get(u.queue.name) == u.queue) deadLetter(u.queue, u.msg, "rejected");
+
+                // Freed prefetch slots may allow more deliveries.
+                for (var q : queues) if (_queues.get(q.name) == q) dispatch(q);
+            }
+        }
+
+        private void release(Unacked u)
+        {
+            u.queue.unacked--;
+            if (u.reg != null) u.reg.unacked--;
+        }
+
+        /* ---------------------------------------------------------------------- */
+        /* shutdown:                                                              */
+        /* ---------------------------------------------------------------------- */
+        /** Cancel consumers, requeue unacked messages and notify listeners. */
+        private void shutdown(ShutdownSignalException sig)
+        {
+            List<ConsumerReg> consumers;
+            synchronized (InMemoryBroker.this) {
+                if (_closeReason != null) return;
+                _closeReason = sig;
+                _connection._channels.remove(_number);
+                consumers = new ArrayList<>(_consumers.values());
+                _consumers.clear();
+                for (var reg : consumers) removeConsumer(reg);
+
+                var settled = new ArrayList<>(_unacked.values());
+                _unacked.clear();
+                for (var u : settled) release(u);
+                requeue(settled);
+            }
+
+            _executor.execute(() -> {
+                for (var reg : consumers)
+                    try {reg.consumer.handleShutdownSignal(reg.tag, sig);}
+                      catch (Exception e) {_log.warn("Consumer shutdown callback failed: " + e.getMessage(), e);}
+                for (var listener : _shutdownListeners)
+                    try {listener.shutdownCompleted(sig);}
+                      catch (Exception e) {_log.warn("Channel shutdown listener failed: " + e.getMessage(), e);}
+            });
+            _executor.shutdown();
+            synchronized (_confirmLock) {_confirmLock.notifyAll();}
+        }
+
+        /** Called with the broker monitor held before using the channel thread. */
+        private void checkOpen()
+        {
+            if (_closeReason != null) throw new AlreadyClosedException(_closeReason);
+        }
+
+        /** Close the channel with an error and return the exception that a
+         * synchronous method would throw.
+         */
+        private IOException error(int code, String text)
+        {
+            var sig = channelClose(code, text, _proxy);
+            shutdown(sig);
+            return new IOException(text, sig);
+        }
+
+        private IOException inequivalent(String arg, String kind, String name, Object received, Object current)
+        {
+            return error(PRECONDITION_FAILED, "PRECONDITION_FAILED - inequivalent arg '" + arg + "' for " + kind +
+                         " '" + name + "' in vhost '" + VHOST + "': received '" + received +
+                         "' but current is '" + current + "'");
+        }
+
+        private Set<String> union(Set<String> a, Set<String> b)
+        {
+            var result = new HashSet<>(a);
+            result.addAll(b);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.FailurePolicy;
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.Outcome;
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.SubscriptionParms;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Check that the in-memory broker behaves like RabbitMQ for the features the
+ * queue module uses, and run the module's classes against it.
+ */
+@Test(groups={"unit"})
+public class InMemoryBrokerTest
+{
+    private InMemoryBroker _broker;
+    private Connection     _conn;
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        _broker = new InMemoryBroker();
+        _conn = _broker.getConnectionFactory().newConnection("test");
+    }
+
+    @AfterMethod
+    public void teardown()
+    {
+        _broker.close();
+    }
+
+    @Test
+    public void queueManagerTest() throws Exception
+    {
+        var qm = new InMemoryQueueManager(_broker);
+        qm.createStandardQueues();
+        Assert.assertTrue(_broker.queueExists(QueueManagerNames.getDeadLetterQueueName()));
+        Assert.assertTrue(_broker.queueExists(QueueManagerNames.getAltQueueName()));
+
+        // Pooled publishing to the dead letter queue.
+        qm.postDeadLetterQueue("{\"msg\":\"dead\"}");
+        Assert.assertEquals(_broker.getMessageCount(QueueManagerNames.getDeadLetterQueueName()), 1);
+
+        // A durable queue bound with its own name.
+        Channel channel = qm.getNewInChannel();
+        channel.exchangeDeclare("test.direct", BuiltinExchangeType.DIRECT, true);
+        qm.createAndBindQueue(channel, "test.direct", "test.queue");
+        Assert.assertEquals(_broker.getBindingKeys("test.direct", "test.queue"), Set.of("test.queue"));
+        qm.publish("test.direct", "test.queue", QueueManagerNames.PERSISTENT_JSON, new byte[1]);
+        Assert.assertEquals(_broker.getMessageCount("test.queue"), 1);
+
+        // An auto-delete topic goes away when its consumer is cancelled.
+        channel.exchangeDeclare("test.topic", BuiltinExchangeType.TOPIC, true);
+        qm.createAndBindAutoDeleteTopic(channel, "test.topic", "job.topic", "job.*.cmd");
+        var received = new CountDownLatch(1);
+        String tag = channel.basicConsume("job.topic", true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties props,
+                                       byte[] body)
+            {received.countDown();}
+        });
+        qm.publish("test.topic", "job.123.cmd", null, new byte[1]);
+        Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+        qm.cancelConsumer(channel, tag, "job.topic");
+        Assert.assertFalse(_broker.queueExists("job.topic"));
+
+        qm.closeConnections(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);
+        Assert.assertEquals(_broker.getConnectionCount(), 1);
+        Assert.assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void routingTest() throws Exception
+    {
+        Channel ch = _conn.createChannel();
+        for (String q : List.of("all", "one", "many", "any", "alt")) ch.queueDeclare(q, false, false, false, null);
+
+        ch.exchangeDeclare("fan", BuiltinExchangeType.FANOUT);
+        ch.queueBind("all", "fan", "");
+        ch.exchangeDeclare("alt", BuiltinExchangeType.FANOUT);
+        ch.queueBind("alt", "alt", "");
+        ch.exchangeDeclare("topics", "topic", false, false, Map.of("alternate-exchange", "alt"));
+        ch.queueBind("one", "topics", "a.*.c");
+        ch.queueBind("many", "topics", "a.#");
+        ch.exchangeDeclare("hdrs", BuiltinExchangeType.HEADERS);
+        ch.queueBind("any", "hdrs", "", Map.of("x-match", "any", "k1", "v1", "k2", "v2"));
+
+        ch.basicPublish("fan", "ignored", null, new byte[1]);
+        ch.basicPublish("topics", "a.b.c", null, new byte[1]);   // one, many
+        ch.basicPublish("topics", "a", null, new byte[1]);       // many
+        ch.basicPublish("topics", "x.y", null, new byte[1]);     // alt
+        ch.basicPublish("hdrs", "", new AMQP.BasicProperties.Builder().headers(Map.of("k2", "v2")).build(),
+                        new byte[1]);
+        ch.basicPublish("", "all", null, new byte[1]);           // default exchange
+
+        Assert.assertEquals(_broker.getMessageCount("all"), 2);
+        Assert.assertEquals(_broker.getMessageCount("one"), 1);
+        Assert.assertEquals(_broker.getMessageCount("many"), 2);
+        Assert.assertEquals(_broker.getMessageCount("alt"), 1);
+        Assert.assertEquals(_broker.getMessageCount("any"), 1);
+
+        // Unroutable mandatory messages are returned.
+        var returned = new CompletableFuture<String>();
+        ch.addReturnListener(r -> returned.complete(r.getReplyText() + " " + r.getRoutingKey()));
+        ch.basicPublish("amq.direct", "nowhere", true, null, new byte[1]);
+        Assert.assertEquals(returned.get(5, TimeUnit.SECONDS), "NO_ROUTE nowhere");
+
+        // Redeclaring with a different type fails and closes the channel.
+        var e = Assert.expectThrows(IOException.class, () -> ch.exchangeDeclare("fan", BuiltinExchangeType.DIRECT));
+        Assert.assertEquals(((ShutdownSignalException) e.getCause()).getReason().protocolMethodName(), "channel.close");
+        Assert.assertFalse(ch.isOpen());
+    }
+
+    @Test
+    public void deadLetterTest() throws Exception
+    {
+        Channel ch = _conn.createChannel();
+        ch.exchangeDeclare("dlx", BuiltinExchangeType.FANOUT);
+        ch.queueDeclare("dlq", false, false, false, null);
+        ch.queueBind("dlq", "dlx", "");
+        ch.queueDeclare("work", false, false, false, Map.of("x-dead-letter-exchange", "dlx"));
+        ch.queueDeclare("short", false, false, false, Map.of("x-dead-letter-exchange", "dlx", "x-max-length", 2));
+
+        // Requeued messages come back marked as redelivered.
+        ch.basicPublish("", "work", null, "m1".getBytes(StandardCharsets.UTF_8));
+        var get = ch.basicGet("work", false);
+        Assert.assertFalse(get.getEnvelope().isRedeliver());
+        ch.basicNack(get.getEnvelope().getDeliveryTag(), false, true);
+        get = ch.basicGet("work", false);
+        Assert.assertTrue(get.getEnvelope().isRedeliver());
+
+        // Rejected messages are dead lettered with their history.
+        ch.basicReject(get.getEnvelope().getDeliveryTag(), false);
+        Assert.assertEquals(_broker.getMessageCount("work"), 0);
+        var dead = ch.basicGet("dlq", true);
+        Assert.assertEquals(new String(dead.getBody(), StandardCharsets.UTF_8), "m1");
+        var death = (Map<?,?>) ((List<?>) dead.getProps().getHeaders().get("x-death")).get(0);
+        Assert.assertEquals(death.get("reason"), "rejected");
+        Assert.assertEquals(death.get("queue"), "work");
+        Assert.assertEquals(death.get("count"), 1L);
+
+        // Overflowing a length-limited queue dead letters the oldest message.
+        for (int i = 0; i < 3; i++) ch.basicPublish("", "short", null, new byte[] {(byte) i});
+        Assert.assertEquals(_broker.getMessageCount("short"), 2);
+        dead = ch.basicGet("dlq", true);
+        Assert.assertEquals(dead.getBody()[0], (byte) 0);
+        Assert.assertEquals(_broker.getDeadLetteredCount(), 2);
+    }
+
+    @Test
+    public void prefetchTest() throws Exception
+    {
+        Channel ch = _conn.createChannel();
+        ch.queueDeclare("q", false, false, false, null);
+        for (int i = 0; i < 20; i++) ch.basicPublish("", "q", null, new byte[1]);
+
+        // Only the prefetch count is delivered until something is acked.
+        ch.basicQos(5);
+        var tags = new CopyOnWriteArrayList<Long>();
+        ch.basicConsume("q", false, new DefaultConsumer(ch) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties props,
+                                       byte[] body)
+            {tags.add(envelope.getDeliveryTag());}
+        });
+        awaitSize(tags, 5);
+        Thread.sleep(50);
+        Assert.assertEquals(tags.size(), 5);
+        Assert.assertEquals(_broker.getUnackedCount("q"), 5);
+
+        ch.basicAck(tags.get(2), true);
+        awaitSize(tags, 8);
+        Assert.assertEquals(_broker.getUnackedCount("q"), 5);
+
+        // Closing the channel requeues what's outstanding.
+        ch.close();
+        Assert.assertEquals(_broker.getUnackedCount("q"), 0);
+        Assert.assertEquals(_broker.getMessageCount("q"), 17);
+
+        // Acking an unknown tag is a channel error.
+        Channel ch2 = _conn.createChannel();
+        var closed = new CompletableFuture<ShutdownSignalException>();
+        ch2.addShutdownListener(closed::complete);
+        ch2.basicAck(99, false);
+        Assert.assertTrue(closed.get(5, TimeUnit.SECONDS).getMessage().contains("PRECONDITION_FAILED"));
+    }
+
+    @Test
+    public void exclusiveTest() throws Exception
+    {
+        Channel ch = _conn.createChannel();
+        String name = ch.queueDeclare().getQueue();
+        Assert.assertTrue(name.startsWith("amq.gen-"));
+
+        // Other connections can't use it and it goes away with its connection.
+        Connection other = _broker.newConnection("other");
+        Channel och = other.createChannel();
+        Assert.expectThrows(IOException.class, () -> och.queueDeclarePassive(name));
+        Assert.expectThrows(IOException.class, () -> other.createChannel().queueDeclarePassive("missing"));
+        _conn.close();
+        Assert.assertFalse(_broker.queueExists(name));
+        Assert.assertFalse(ch.isOpen());
+    }
+
+    @Test
+    public void confirmsTest() throws Exception
+    {
+        Channel ch = _conn.createChannel();
+        ch.queueDeclare("q", false, false, false, null);
+        ch.confirmSelect();
+        for (int i = 0; i < 100; i++) ch.basicPublish("", "q", null, new byte[1]);
+        Assert.assertTrue(ch.waitForConfirms(5000));
+        _broker.nackPublishes(1);
+        ch.basicPublish("", "q", null, new byte[1]);
+        Assert.assertFalse(ch.waitForConfirms(5000));
+
+        // The confirming publisher retries nacked messages.
+        _broker.nackPublishes(3);
+        try (var publisher = new ConfirmingPublisher("test", this::newChannel, 50, 5, 1)) {
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 500; i++) futures.add(publisher.publish("", "q", null, new byte[1]));
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(publisher.getConfirmedCount(), 500);
+            Assert.assertEquals(publisher.getRetriedCount(), 3);
+        }
+        Assert.assertEquals(_broker.getMessageCount("q"), 101 + 503);
+    }
+
+    @Test
+    public void dispatcherTest() throws Exception
+    {
+        Channel ch = _conn.createChannel();
+        ch.exchangeDeclare("dlx", BuiltinExchangeType.FANOUT);
+        ch.queueDeclare("dlq", false, false, false, null);
+        ch.queueBind("dlq", "dlx", "");
+        ch.queueDeclare("work", false, false, false, Map.of("x-dead-letter-exchange", "dlx"));
+
+        // Message 0 always fails, so it's requeued once and then dead lettered.
+        var parms = new SubscriptionParms().setPrefetch(20).setConcurrency(4)
+                                           .setFailurePolicy(FailurePolicy.REQUEUE_ONCE);
+        try (var dispatcher = new DeliveryDispatcher(4);
+             var sub = dispatcher.subscribe(_conn.createChannel(), "work", parms, d -> {
+                 if (d.body[0] == 0) throw new IllegalStateException("poison");
+                 return Outcome.ACK;
+             }))
+        {
+            for (int i = 0; i < 1000; i++) ch.basicPublish("", "work", null, new byte[] {(byte) (i % 100)});
+            // Closing drains whatever has been delivered.
+            for (int i = 0; i < 500 && (_broker.getMessageCount("dlq") < 10 || _broker.getMessageCount("work") > 0); i++)
+                Thread.sleep(10);
+            sub.close(5000);
+            Assert.assertEquals(sub.getAckedCount(), 990);
+            Assert.assertEquals(sub.getRequeuedCount(), 10);
+            Assert.assertEquals(sub.getDeadLetteredCount(), 10);
+        }
+        Assert.assertEquals(_broker.getMessageCount("dlq"), 10);
+        Assert.assertEquals(_broker.getMessageCount("work"), 0);
+        Assert.assertEquals(_broker.getUnackedCount("work"), 0);
+    }
+
+    private Channel newChannel() throws TapisQueueException
+    {
+        try {return _conn.createChannel();}
+          catch (IOException e) {throw new TapisQueueException(e.getMessage(), e);}
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException
+    {
+        for (int i = 0; i < 500 && list.size() < size; i++) Thread.sleep(10);
+        Assert.assertEquals(list.size(), size);
+    }
+
+    /** A queue manager whose connections are to the in-memory broker. */
+    static final class InMemoryQueueManager extends AbstractQueueManager
+    {
+        private final InMemoryBroker _broker;
+
+        InMemoryQueueManager(InMemoryBroker broker)
+        {
+            this(broker, 1);
+        }
+
+        InMemoryQueueManager(InMemoryBroker broker, int outConnectionShards)
+        {
+            this(broker, parms(outConnectionShards));
+        }
+
+        InMemoryQueueManager(InMemoryBroker broker, QueueManagerParms parms)
+        {
+            super(parms);
+            _broker = broker;
+        }
+
+        @Override
+        protected ConnectionFactory createConnectionFactory() {return _broker.getConnectionFactory();}
+
+        static QueueManagerParms parms(int outConnectionShards)
+        {
+            var parms = new QueueManagerParms();
+            parms.setOutConnectionShards(outConnectionShards);
+            parms.setInstanceName("InMemoryBrokerTest");
+            parms.setService("test");
+            parms.setQueueHost("localhost");
+            parms.setQueuePort(5672);
+            parms.setQueueUser("guest");
+            parms.setQueuePassword("guest");
+            return parms;
+        }
+    }
+}
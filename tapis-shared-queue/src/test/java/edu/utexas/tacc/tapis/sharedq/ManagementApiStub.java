@@ -0,0 +1,144 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.utexas.tacc.tapis.shared.utils.TapisGsonUtils;
+
+/** A local stand-in for the parts of the RabbitMQ management api that
+ * VHostManager uses.  It checks basic authentication, keeps vhosts, users and
+ * permissions in memory, and counts requests.  Each request can be delayed to
+ * make concurrency visible.
+ */
+final class ManagementApiStub
+ implements AutoCloseable
+{
+    final Set<String>             vhosts = ConcurrentHashMap.newKeySet();
+    final Map<String,String>      users = new ConcurrentHashMap<>();
+    final Map<String,JsonObject>  perms = new ConcurrentHashMap<>();
+    final Set<String>             failingVHosts = ConcurrentHashMap.newKeySet();
+    final Map<String,AtomicInteger> requests = new ConcurrentHashMap<>();
+    final AtomicInteger           maxConcurrent = new AtomicInteger();
+    volatile long                 latencyMs;
+
+    private final HttpServer      _server;
+    private final ExecutorService _executor = Executors.newFixedThreadPool(64);
+    private final String          _authorization;
+    private final AtomicInteger   _concurrent = new AtomicInteger();
+
+    ManagementApiStub(String adminUser, String adminPassword) throws IOException
+    {
+        _authorization = "Basic " + Base64.getEncoder().encodeToString(
+                             (adminUser + ":" + adminPassword).getBytes(StandardCharsets.UTF_8));
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+        _server.setExecutor(_executor);
+        _server.createContext("/api/", this::handle);
+        _server.start();
+    }
+
+    int getPort() {return _server.getAddress().getPort();}
+
+    /** The number of requests with the method and the first path segment,
+     * such as "PUT users".
+     */
+    int getCount(String key)
+    {
+        var count = requests.get(key);
+        return count == null ? 0 : count.get();
+    }
+
+    int getTotalCount() {return requests.values().stream().mapToInt(AtomicInteger::get).sum();}
+
+    @Override
+    public void close()
+    {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        // The request stops counting as concurrent before the response is sent, since the
+        // client can send its next request as soon as it has the response.
+        maxConcurrent.accumulateAndGet(_concurrent.incrementAndGet(), Math::max);
+        Response response;
+        try {response = route(exchange);}
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        finally {_concurrent.decrementAndGet();}
+        respond(exchange, response.code(), response.body());
+    }
+
+    private record Response(int code, JsonObject body) {}
+
+    private Response route(HttpExchange exchange) throws IOException, InterruptedException
+    {
+        if (latencyMs > 0) Thread.sleep(latencyMs);
+        if (!_authorization.equals(exchange.getRequestHeaders().getFirst("Authorization")))
+            return new Response(401, null);
+
+        // Paths are /api/<type>/<name>[/<name>].
+        String[] parts = exchange.getRequestURI().getRawPath().split("/");
+        for (int i = 0; i < parts.length; i++) parts[i] = URLDecoder.decode(parts[i], StandardCharsets.UTF_8);
+        String method = exchange.getRequestMethod();
+        requests.computeIfAbsent(method + " " + parts[2], k -> new AtomicInteger()).incrementAndGet();
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+        return switch (parts[2] + " " + method) {
+            case "vhosts GET" -> new Response(vhosts.contains(parts[3]) ? 200 : 404, named(parts[3]));
+            case "vhosts PUT" -> {
+                if (failingVHosts.contains(parts[3])) yield new Response(500, null);
+                yield new Response(vhosts.add(parts[3]) ? 201 : 204, null);
+            }
+            case "users GET"  -> new Response(users.containsKey(parts[3]) ? 200 : 404, named(parts[3]));
+            case "users PUT"  -> {
+                var password = TapisGsonUtils.getGson().fromJson(body, JsonObject.class).get("password");
+                yield new Response(users.put(parts[3], password.getAsString()) == null ? 201 : 204, null);
+            }
+            case "permissions GET" -> {
+                var p = perms.get(parts[3] + "/" + parts[4]);
+                yield new Response(p == null ? 404 : 200, p);
+            }
+            case "permissions PUT" -> {
+                if (!vhosts.contains(parts[3]) || !users.containsKey(parts[4])) yield new Response(400, null);
+                var p = TapisGsonUtils.getGson().fromJson(body, JsonObject.class);
+                p.addProperty("vhost", parts[3]);
+                p.addProperty("user", parts[4]);
+                yield new Response(perms.put(parts[3] + "/" + parts[4], p) == null ? 201 : 204, null);
+            }
+            default -> new Response(405, null);
+        };
+    }
+
+    private static JsonObject named(String name)
+    {
+        var obj = new JsonObject();
+        obj.addProperty("name", name);
+        return obj;
+    }
+
+    private static void respond(HttpExchange exchange, int code, JsonObject body) throws IOException
+    {
+        byte[] bytes = code == 200 && body != null ? body.toString().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+}
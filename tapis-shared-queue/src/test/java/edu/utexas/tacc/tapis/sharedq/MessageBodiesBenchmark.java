@@ -0,0 +1,64 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import edu.utexas.tacc.tapis.shared.utils.TapisGsonUtils;
+import edu.utexas.tacc.tapis.sharedq.MessageBodiesTest.JobMsg;
+
+/** Compare the bytes allocated and the time taken to bind 1 KB and 1 MB job
+ * messages the usual way, through a String and a new gson instance, with
+ * binding through a String and a shared gson, and with binding straight from
+ * the delivered bytes.
+ *
+ * Usage: MessageBodiesBenchmark [iterations]
+ */
+public class MessageBodiesBenchmark
+{
+    private static final int[] SIZES = {1024, 1024 * 1024};
+
+    private interface Binder {Object bind(DeliveryResponse delivery) throws Exception;}
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Gson shared = TapisGsonUtils.getGson();
+        System.out.printf("%8s %-22s %14s %14s %10s%n", "size", "method", "alloc B/msg", "alloc/body",
+                          "us/msg");
+
+        for (int size : SIZES) {
+            var delivery = new DeliveryResponse();
+            delivery.body = MessageCompressionTest.json(size);
+            int n = Math.max(20, (int) ((long) iterations * 1024 / size));
+
+            run(delivery, n, "string+new gson", d ->
+                TapisGsonUtils.getGson().fromJson(new String(d.body, StandardCharsets.UTF_8), JobMsg.class));
+            run(delivery, n, "string+shared gson", d ->
+                shared.fromJson(new String(d.body, StandardCharsets.UTF_8), JobMsg.class));
+            run(delivery, n, "bodyAs", d -> d.bodyAs(JobMsg.class));
+            run(delivery, n, "string tree", d ->
+                shared.fromJson(new String(d.body, StandardCharsets.UTF_8), JsonObject.class));
+            run(delivery, n, "bodyAsJson", DeliveryResponse::bodyAsJson);
+        }
+    }
+
+    /** Warm up, then measure the calling thread's allocations and time. */
+    private static void run(DeliveryResponse delivery, int n, String name, Binder binder) throws Exception
+    {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        for (int i = 0; i < n; i++) binder.bind(delivery);
+
+        long bytes = threads.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) binder.bind(delivery);
+        double micros = (System.nanoTime() - start) / 1e3 / n;
+        double allocated = (double) (threads.getThreadAllocatedBytes(tid) - bytes) / n;
+
+        System.out.printf("%8d %-22s %,14.0f %14.2f %10.1f%n", delivery.body.length, name, allocated,
+                          allocated / delivery.body.length, micros);
+    }
+}
@@ -0,0 +1,146 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonNull;
+import com.google.gson.reflect.TypeToken;
+import com.rabbitmq.client.AMQP;
+
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+@Test(groups={"unit"})
+public class MessageBodiesTest
+{
+    // A job message shaped like MessageCompressionTest.json().
+    static final class JobMsg
+    {
+        String       jobType;
+        String       tenant;
+        String       owner;
+        String       status;
+        ParameterSet parameterSet;
+    }
+    static final class ParameterSet {List<Arg> appArgs;}
+    static final class Arg
+    {
+        String  name;
+        String  arg;
+        boolean include;
+    }
+
+    @Test
+    public void viewTest() throws Exception
+    {
+        byte[] body = "hello".getBytes(StandardCharsets.UTF_8);
+        var delivery = new DeliveryResponse();
+        delivery.body = body;
+
+        var buffer = delivery.bodyBuffer();
+        Assert.assertTrue(buffer.isReadOnly());
+        Assert.assertEquals(buffer.remaining(), 5);
+        Assert.assertEquals(buffer.get(1), 'e');
+        Assert.assertThrows(ReadOnlyBufferException.class, () -> buffer.put(0, (byte) 'j'));
+        Assert.assertEquals(delivery.bodyStream().readAllBytes(), body);
+
+        // Views share the delivered bytes.
+        body[0] = 'j';
+        Assert.assertEquals(buffer.get(0), 'j');
+
+        delivery.body = null;
+        Assert.assertEquals(delivery.bodyBuffer().remaining(), 0);
+        Assert.assertEquals(delivery.bodyStream().read(), -1);
+        Assert.assertNull(delivery.bodyAsString());
+    }
+
+    @Test
+    public void utf8Test() throws Exception
+    {
+        // Multi-byte characters, including a surrogate pair split across reads.
+        String text = "{\"name\":\"caf\u00e9 \u4e2d\u6587 \ud83d\ude80 end\"}";
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        for (int chunk = 1; chunk <= 4; chunk++)
+            Assert.assertEquals(readAll(MessageBodies.asReader(null, body), chunk), text);
+
+        // Every code point, and malformed input, decode as new String() does.
+        var all = new StringBuilder();
+        for (int cp = 0; cp <= Character.MAX_CODE_POINT; cp++)
+            if (cp < Character.MIN_SURROGATE || cp > Character.MAX_SURROGATE) all.appendCodePoint(cp);
+        byte[] allBytes = all.toString().getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(readAll(MessageBodies.asReader(null, allBytes), 1024), all.toString());
+        var random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            byte[] bytes = new byte[random.nextInt(12)];
+            random.nextBytes(bytes);
+            Assert.assertEquals(readAll(MessageBodies.asReader(null, bytes), 1 + i % 3),
+                                new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void fromJsonTest() throws Exception
+    {
+        var delivery = new DeliveryResponse();
+        delivery.body = MessageCompressionTest.json(4096);
+        JobMsg job = delivery.bodyAs(JobMsg.class);
+        Assert.assertEquals(job.jobType, "BATCH");
+        Assert.assertEquals(job.status, "PENDING");
+        Assert.assertEquals(job.parameterSet.appArgs.get(1).name, "arg1");
+        Assert.assertTrue(job.parameterSet.appArgs.get(1).include);
+        Assert.assertEquals(delivery.bodyAsJson().getAsJsonObject().get("tenant").getAsString(), "dev");
+
+        // Generic types.
+        delivery.body = "[{\"name\":\"a\"},{\"name\":\"b\"}]".getBytes(StandardCharsets.UTF_8);
+        List<Arg> args = delivery.bodyAs(new TypeToken<List<Arg>>() {}.getType());
+        Assert.assertEquals(args.size(), 2);
+        Assert.assertEquals(args.get(1).name, "b");
+
+        // Empty bodies.
+        delivery.body = new byte[0];
+        Assert.assertNull(delivery.bodyAs(JobMsg.class));
+        Assert.assertEquals(delivery.bodyAsJson(), JsonNull.INSTANCE);
+
+        // Bad JSON.
+        for (String bad : new String[] {"{\"jobType\":", "{\"owner\":{}}", "{} {}"}) {
+            delivery.body = bad.getBytes(StandardCharsets.UTF_8);
+            var e = Assert.expectThrows(TapisQueueException.class, () -> delivery.bodyAs(JobMsg.class));
+            Assert.assertTrue(e.getMessage().startsWith("QMGR_BODY_PARSE_ERROR"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void propertiesTest() throws Exception
+    {
+        // The charset comes from the content type.
+        var latin1 = new AMQP.BasicProperties.Builder()
+                         .contentType("application/json; charset=\"ISO-8859-1\"").build();
+        byte[] body = "{\"owner\":\"Jos\u00e9\"}".getBytes(StandardCharsets.ISO_8859_1);
+        Assert.assertEquals(MessageBodies.fromJson(latin1, body, JobMsg.class).owner, "Jos\u00e9");
+        Assert.assertEquals(MessageBodies.asString(latin1, body), "{\"owner\":\"Jos\u00e9\"}");
+
+        var unknown = new AMQP.BasicProperties.Builder().contentType("text/plain;charset=klingon").build();
+        Assert.assertThrows(TapisQueueException.class, () -> MessageBodies.asString(unknown, body));
+
+        // Compressed bodies are decompressed.
+        byte[] json = MessageCompressionTest.json(8192);
+        var encoded = MessageCompression.compress(null, json, 1);
+        Assert.assertNotEquals(encoded.body().length, json.length);
+        var job = MessageBodies.fromJson(encoded.properties(), encoded.body(), JobMsg.class);
+        Assert.assertEquals(job.status, "PENDING");
+    }
+
+    private static String readAll(Reader reader, int chunk) throws IOException
+    {
+        var buf = new StringBuilder();
+        var chars = new char[chunk];
+        for (int n; (n = reader.read(chars, 0, chunk)) != -1; ) buf.append(chars, 0, n);
+        return buf.toString();
+    }
+}
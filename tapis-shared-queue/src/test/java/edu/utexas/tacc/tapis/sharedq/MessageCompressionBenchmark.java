@@ -0,0 +1,49 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.util.zip.Deflater;
+
+/** Measure the CPU cost of compressing and decompressing job-like JSON
+ * messages against the bytes saved, for message sizes typical of Tapis job
+ * submissions and notifications.  The results help choose a compression
+ * threshold and level.
+ *
+ * Usage: MessageCompressionBenchmark [iterations]
+ */
+public class MessageCompressionBenchmark
+{
+    private static final int[] SIZES  = {256, 1024, 4096, 16384, 65536, 262144};
+    private static final int[] LEVELS = {Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION};
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        System.out.printf("%8s %5s %9s %7s %13s %15s %12s%n", "size", "level", "wire", "saved",
+                          "compress us", "decompress us", "MB/s in");
+
+        for (int size : SIZES) {
+            byte[] body = MessageCompressionTest.json(size);
+            for (int level : LEVELS) {
+                // Warm up, then time each direction separately.
+                int n = Math.max(20, iterations * 1024 / Math.max(size, 1024));
+                var encoded = MessageCompression.compress(null, body, 1, level);
+                for (int i = 0; i < n; i++) {
+                    encoded = MessageCompression.compress(null, body, 1, level);
+                    MessageCompression.decompress(encoded.properties(), encoded.body());
+                }
+
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++) encoded = MessageCompression.compress(null, body, 1, level);
+                double compressMicros = (System.nanoTime() - start) / 1e3 / n;
+
+                start = System.nanoTime();
+                for (int i = 0; i < n; i++) MessageCompression.decompress(encoded.properties(), encoded.body());
+                double decompressMicros = (System.nanoTime() - start) / 1e3 / n;
+
+                int wire = encoded.body().length;
+                System.out.printf("%8d %5d %9d %6.1f%% %13.1f %15.1f %12.1f%n", body.length, level, wire,
+                                  100.0 * (body.length - wire) / body.length, compressMicros,
+                                  decompressMicros, body.length / compressMicros);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.Outcome;
+import edu.utexas.tacc.tapis.sharedq.InMemoryBrokerTest.InMemoryQueueManager;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+@Test(groups={"unit"})
+public class MessageCompressionTest
+{
+    @Test
+    public void roundTripTest() throws Exception
+    {
+        byte[] body = json(4096);
+        var encoded = MessageCompression.compress(QueueManagerNames.PERSISTENT_JSON, body, 1024);
+        Assert.assertEquals(encoded.properties().getContentEncoding(), MessageCompression.GZIP);
+        Assert.assertTrue(encoded.body().length < body.length / 2, "compressed to " + encoded.body().length);
+
+        // The other properties are kept.
+        Assert.assertEquals(encoded.properties().getContentType(), QueueManagerNames.PERSISTENT_JSON.getContentType());
+        Assert.assertEquals(encoded.properties().getDeliveryMode(), QueueManagerNames.PERSISTENT_JSON.getDeliveryMode());
+        Assert.assertNull(QueueManagerNames.PERSISTENT_JSON.getContentEncoding());
+
+        Assert.assertEquals(MessageCompression.decompress(encoded.properties(), encoded.body()), body);
+
+        // Deliveries are decoded in place, once.
+        var delivery = new DeliveryResponse();
+        delivery.properties = encoded.properties();
+        delivery.body = encoded.body();
+        MessageCompression.decompress(delivery);
+        MessageCompression.decompress(delivery);
+        Assert.assertEquals(delivery.body, body);
+        Assert.assertNull(delivery.properties.getContentEncoding());
+        Assert.assertEquals(delivery.properties.getContentType(), QueueManagerNames.PERSISTENT_JSON.getContentType());
+    }
+
+    @Test
+    public void passThroughTest() throws Exception
+    {
+        // Below the threshold, disabled, or already encoded.
+        byte[] body = json(4096);
+        Assert.assertSame(MessageCompression.compress(null, body, body.length + 1).body(), body);
+        Assert.assertSame(MessageCompression.compress(null, body, 0).body(), body);
+        var deflated = new AMQP.BasicProperties.Builder().contentEncoding("deflate").build();
+        Assert.assertSame(MessageCompression.compress(deflated, body, 1).body(), body);
+        Assert.assertNull(MessageCompression.compress(null, null, 1).body());
+
+        // Random bytes don't get smaller, so they're sent as is.
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        var encoded = MessageCompression.compress(null, random, 1024);
+        Assert.assertSame(encoded.body(), random);
+        Assert.assertNull(encoded.properties());
+
+        // Unencoded messages are accepted.
+        Assert.assertSame(MessageCompression.decompress(null, body), body);
+        Assert.assertSame(MessageCompression.decompress(QueueManagerNames.PERSISTENT_JSON, body), body);
+        var identity = new AMQP.BasicProperties.Builder().contentEncoding("identity").build();
+        Assert.assertSame(MessageCompression.decompress(identity, body), body);
+    }
+
+    @Test
+    public void badEncodingTest()
+    {
+        var deflated = new AMQP.BasicProperties.Builder().contentEncoding("deflate").build();
+        Assert.assertThrows(TapisQueueException.class, () -> MessageCompression.decompress(deflated, new byte[10]));
+        var gzip = new AMQP.BasicProperties.Builder().contentEncoding("gzip").build();
+        Assert.assertThrows(TapisQueueException.class, () -> MessageCompression.decompress(gzip, new byte[10]));
+    }
+
+    @Test
+    public void queueManagerTest() throws Exception
+    {
+        // Large messages are compressed on the wire and decompressed for the handler.
+        byte[] small = json(100);
+        byte[] large = json(8192);
+        try (var broker = new InMemoryBroker(); var dispatcher = new DeliveryDispatcher(2)) {
+            var qm = new InMemoryQueueManager(broker);
+            qm._parms.setCompressionThreshold(1024);
+            Channel channel = qm.getNewInChannel();
+            channel.queueDeclare("compressed", false, false, false, null);
+
+            qm.publish("", "compressed", QueueManagerNames.PERSISTENT_JSON, large);
+            var wire = channel.basicGet("compressed", true);
+            Assert.assertEquals(wire.getProps().getContentEncoding(), MessageCompression.GZIP);
+            Assert.assertTrue(wire.getBody().length < large.length);
+
+            var received = new AtomicReference<DeliveryResponse>();
+            var done = new CountDownLatch(2);
+            var sub = dispatcher.subscribe(qm, "compressed", new DeliveryDispatcher.SubscriptionParms(), d -> {
+                if (d.body.length > 1024) received.set(d);
+                done.countDown();
+                return Outcome.ACK;
+            });
+            qm.publish("", "compressed", QueueManagerNames.PERSISTENT_JSON, small);
+            qm.publish("", "compressed", QueueManagerNames.PERSISTENT_JSON, large);
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(received.get().body, large);
+            Assert.assertNull(received.get().properties.getContentEncoding());
+            sub.close();
+            qm.closeConnections(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);
+        }
+    }
+
+    /** A job-like JSON document of about the given size. */
+    static byte[] json(int size)
+    {
+        var buf = new StringBuilder("{\"jobType\":\"BATCH\",\"tenant\":\"dev\",\"owner\":\"testuser\",\"parameterSet\":{\"appArgs\":[");
+        for (int i = 0; buf.length() < size - 40; i++)
+            buf.append(i == 0 ? "" : ",").append("{\"name\":\"arg").append(i).append("\",\"arg\":\"--input=/scratch/data/file")
+               .append(i * 7919 % 1000).append(".dat\",\"include\":true}");
+        return buf.append("]},\"status\":\"PENDING\"}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
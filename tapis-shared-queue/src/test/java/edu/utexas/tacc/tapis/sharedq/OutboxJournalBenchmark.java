@@ -0,0 +1,102 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import edu.utexas.tacc.tapis.sharedq.OutboxJournal.JournalParms;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Measure the outbox journal's append throughput with and without durable
+ * appends, and the rate at which it drains to the in-memory broker.  Appends
+ * are timed with the broker unreachable so that only the journal is measured.
+ * The journal directory should be on the disk a service would use.
+ *
+ * Usage: OutboxJournalBenchmark [directory [messages [bodySize]]]
+ */
+public class OutboxJournalBenchmark
+{
+    private static final String QUEUE = "tapis.benchmark.outbox";
+
+    public static void main(String[] args) throws Exception
+    {
+        Path parent = Path.of(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int bodySize = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        System.out.printf("messages=%d body=%dB dir=%s%n", messages, bodySize, parent);
+
+        try (var broker = new InMemoryBroker()) {
+            Connection conn = broker.newConnection("benchmark");
+            conn.createChannel().queueDeclare(QUEUE, false, false, false, null);
+
+            // Warm up.
+            run(parent, conn, messages / 10, bodySize, 1, false, false);
+
+            run(parent, conn, messages, bodySize, 1, false, true);
+            run(parent, conn, messages, bodySize, 8, false, true);
+            run(parent, conn, messages / 10, bodySize, 1, true, true);
+            run(parent, conn, messages / 2, bodySize, 8, true, true);
+            run(parent, conn, messages, bodySize, 64, true, true);
+            conn.createChannel().queuePurge(QUEUE);
+        }
+    }
+
+    /** Append the messages from the threads, then let the journal drain. */
+    private static void run(Path parent, Connection conn, int messages, int bodySize, int threads,
+                            boolean durable, boolean report)
+     throws Exception
+    {
+        Path dir = Files.createTempDirectory(parent, "outbox");
+        var down = new AtomicBoolean(true);
+        var parms = new JournalParms().setDurableAppends(durable).setRetryDelayMs(10).setMaxSegments(0);
+        try (var journal = new OutboxJournal("benchmark", dir, () -> {
+                if (down.get()) throw new TapisQueueException("benchmark broker down");
+                try {return conn.createChannel();}
+                  catch (IOException e) {throw new TapisQueueException(e.getMessage(), e);}
+             }, parms))
+        {
+            byte[] body = new byte[bodySize];
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++)
+                executor.execute(() -> {
+                    try {for (int i = 0; i < messages / threads; i++) journal.publish("", QUEUE, null, body);}
+                      catch (TapisQueueException e) {throw new RuntimeException(e);}
+                });
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.HOURS);
+            double appendSecs = (System.nanoTime() - start) / 1e9;
+            long appended = journal.getAppendedSeq();
+            long syncs = journal.getSyncCount();
+
+            down.set(false);
+            start = System.nanoTime();
+            journal.awaitDrained(TimeUnit.MINUTES.toMillis(10));
+            double drainSecs = (System.nanoTime() - start) / 1e9;
+
+            if (report)
+                System.out.printf("%-8s threads=%-3d append %,10.0f msg/s %7.1f MB/s  %,7.1f us/msg  " +
+                                  "syncs=%-6d drain %,10.0f msg/s%n",
+                                  durable ? "durable" : "async", threads, appended / appendSecs,
+                                  appended * bodySize / appendSecs / 1e6, appendSecs * 1e6 * threads / appended,
+                                  syncs, appended / drainSecs);
+        }
+        finally {
+            Channel channel = conn.createChannel();
+            channel.queuePurge(QUEUE);
+            channel.close();
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+            }
+        }
+    }
+}
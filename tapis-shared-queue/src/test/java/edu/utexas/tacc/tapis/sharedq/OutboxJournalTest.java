@@ -0,0 +1,381 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+
+import edu.utexas.tacc.tapis.sharedq.ChannelPool.ChannelFactory;
+import edu.utexas.tacc.tapis.sharedq.InMemoryBrokerTest.InMemoryQueueManager;
+import edu.utexas.tacc.tapis.sharedq.OutboxJournal.JournalParms;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Run the journal against the in-memory broker.  A crash is simulated by
+ * stopping the journal's threads and closing its files without saving
+ * anything, then opening a new journal on the same directory.
+ */
+@Test(groups={"unit"})
+public class OutboxJournalTest
+{
+    private static final String EXCHANGE = "test.outbox";
+    private static final String QUEUE    = "test.outbox.queue";
+
+    private InMemoryBroker       _broker;
+    private InMemoryQueueManager _qm;
+    private Channel              _channel;
+    private Path                 _dir;
+
+    // Simulate an unreachable broker.
+    private final AtomicBoolean  _down = new AtomicBoolean();
+    private final ChannelFactory _factory = () -> {
+        if (_down.get()) throw new TapisQueueException("broker down");
+        return _qm.getNewOutChannel();
+    };
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        _broker = new InMemoryBroker();
+        _qm = new InMemoryQueueManager(_broker);
+        _channel = _broker.newConnection("test").createChannel();
+        _channel.exchangeDeclare(EXCHANGE, BuiltinExchangeType.FANOUT);
+        _channel.queueDeclare(QUEUE, false, false, false, null);
+        _channel.queueBind(QUEUE, EXCHANGE, "");
+        _dir = Files.createTempDirectory("outbox");
+        _down.set(false);
+    }
+
+    @AfterMethod
+    public void teardown() throws IOException
+    {
+        _broker.close();
+        try (Stream<Path> files = Files.walk(_dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+
+    @Test
+    public void drainTest() throws Exception
+    {
+        var props = new AMQP.BasicProperties.Builder().contentType("application/json").deliveryMode(2)
+                        .headers(Map.of("tenant", "dev", "attempt", 3)).build();
+        try (var journal = new OutboxJournal(_dir, _qm, new JournalParms())) {
+            for (int i = 0; i < 1000; i++) journal.publish(EXCHANGE, "key" + i % 10, props, body(i % 10, i));
+            Assert.assertTrue(journal.awaitDrained(10000), journal.toString());
+            Assert.assertEquals(journal.getPendingCount(), 0);
+            Assert.assertEquals(journal.getConfirmedSeq(), 1000);
+        }
+
+        List<GetResponse> messages = receive();
+        Assert.assertEquals(messages.size(), 1000);
+        Assert.assertEquals(messages.get(0).getEnvelope().getRoutingKey(), "key0");
+        Assert.assertEquals(messages.get(0).getProps().getContentType(), "application/json");
+        Assert.assertEquals(messages.get(0).getProps().getDeliveryMode(), Integer.valueOf(2));
+        Assert.assertEquals(messages.get(0).getProps().getHeaders().get("attempt"), 3);
+        Assert.assertEquals(messages.get(0).getProps().getHeaders().get("tenant").toString(), "dev");
+        assertOrdered(messages, 1000);
+    }
+
+    @Test
+    public void propertiesTest() throws Exception
+    {
+        // Every property and each kind of header value survives the journal.
+        var headers = new HashMap<String,Object>();
+        headers.put("string", "dev");
+        headers.put("int", 3);
+        headers.put("long", 1L << 40);
+        headers.put("bool", true);
+        headers.put("double", 0.5);
+        headers.put("decimal", new BigDecimal("12.345"));
+        headers.put("date", new Date(1700000000000L));
+        headers.put("bytes", new byte[] {1, 2, 3});
+        headers.put("null", null);
+        headers.put("list", List.of("a", 1));
+        headers.put("table", Map.of("nested", 7L));
+        var props = new AMQP.BasicProperties.Builder().contentType("application/json").contentEncoding("utf-8")
+                        .headers(headers).deliveryMode(2).priority(5).correlationId("corr").replyTo("reply")
+                        .expiration("60000").messageId("msg").timestamp(new Date(1700000000000L)).type("type")
+                        .userId("user").appId("app").clusterId("cluster").build();
+        try (var journal = new OutboxJournal(_dir, _qm, new JournalParms())) {
+            journal.publish(EXCHANGE, "key", props, body(0, 0));
+            journal.publish(EXCHANGE, "key", null, body(0, 1));
+            Assert.assertTrue(journal.awaitDrained(10000), journal.toString());
+
+            // Headers the journal can't store are rejected when the message is added.
+            var bad = new AMQP.BasicProperties.Builder().headers(Map.of("thread", Thread.currentThread())).build();
+            Assert.expectThrows(IllegalArgumentException.class, () -> journal.publish(EXCHANGE, "key", bad, new byte[1]));
+        }
+
+        List<GetResponse> messages = receive();
+        Assert.assertEquals(messages.size(), 2);
+        AMQP.BasicProperties got = messages.get(0).getProps();
+        Assert.assertEquals(got.getContentType(), "application/json");
+        Assert.assertEquals(got.getContentEncoding(), "utf-8");
+        Assert.assertEquals(got.getDeliveryMode(), Integer.valueOf(2));
+        Assert.assertEquals(got.getPriority(), Integer.valueOf(5));
+        Assert.assertEquals(got.getCorrelationId(), "corr");
+        Assert.assertEquals(got.getReplyTo(), "reply");
+        Assert.assertEquals(got.getExpiration(), "60000");
+        Assert.assertEquals(got.getMessageId(), "msg");
+        Assert.assertEquals(got.getTimestamp(), new Date(1700000000000L));
+        Assert.assertEquals(got.getType(), "type");
+        Assert.assertEquals(got.getUserId(), "user");
+        Assert.assertEquals(got.getAppId(), "app");
+        Assert.assertEquals(got.getClusterId(), "cluster");
+
+        Map<String,Object> gotHeaders = got.getHeaders();
+        Assert.assertEquals(gotHeaders.get("string").toString(), "dev");
+        Assert.assertEquals(gotHeaders.get("int"), 3);
+        Assert.assertEquals(gotHeaders.get("long"), 1L << 40);
+        Assert.assertEquals(gotHeaders.get("bool"), true);
+        Assert.assertEquals(gotHeaders.get("double"), 0.5);
+        Assert.assertEquals(gotHeaders.get("decimal"), new BigDecimal("12.345"));
+        Assert.assertEquals(gotHeaders.get("date"), new Date(1700000000000L));
+        Assert.assertEquals((byte[]) gotHeaders.get("bytes"), new byte[] {1, 2, 3});
+        Assert.assertTrue(gotHeaders.containsKey("null"));
+        Assert.assertNull(gotHeaders.get("null"));
+        Assert.assertEquals(gotHeaders.get("list"), List.of("a", 1));
+        Assert.assertEquals(gotHeaders.get("table"), Map.of("nested", 7L));
+        Assert.assertNull(messages.get(1).getProps().getHeaders());
+    }
+
+    @Test
+    public void outageTest() throws Exception
+    {
+        // Publishing doesn't depend on the broker.
+        _down.set(true);
+        var parms = new JournalParms().setRetryDelayMs(10);
+        try (var journal = new OutboxJournal("outage", _dir, _factory, parms)) {
+            for (int i = 0; i < 500; i++) journal.publish(EXCHANGE, "key" + i % 5, null, body(i % 5, i));
+            Assert.assertFalse(journal.awaitDrained(100));
+            Assert.assertEquals(journal.getPendingCount(), 500);
+            Assert.assertEquals(_broker.getMessageCount(QUEUE), 0);
+
+            _down.set(false);
+            Assert.assertTrue(journal.awaitDrained(10000), journal.toString());
+        }
+        assertOrdered(receive(), 500);
+    }
+
+    @Test
+    public void crashRecoveryTest() throws Exception
+    {
+        // Small segments so that the journal spans several files.
+        _down.set(true);
+        var parms = new JournalParms().setSegmentSize(4096).setMaxSegments(0).setRetryDelayMs(10)
+                                      .setDurableAppends(true);
+        var journal = new OutboxJournal("crash", _dir, _factory, parms);
+        for (int i = 0; i < 300; i++) journal.publish(EXCHANGE, "key" + i % 3, null, body(i % 3, i));
+        Assert.assertTrue(journal.getSegmentCount() > 1);
+        Assert.assertEquals(journal.getSyncedSeq(), 300);
+        crash(journal);
+
+        // The new journal publishes everything and removes the old segments.
+        _down.set(false);
+        try (var recovered = new OutboxJournal("crash", _dir, _factory, parms)) {
+            Assert.assertEquals(recovered.getAppendedSeq(), 300);
+            Assert.assertTrue(recovered.awaitDrained(10000), recovered.toString());
+            recovered.publish(EXCHANGE, "key0", null, body(0, 300));
+            Assert.assertTrue(recovered.awaitDrained(10000));
+        }
+        assertOrdered(receive(), 301);
+        Assert.assertEquals(segmentFiles().size(), 1);
+    }
+
+    @Test
+    public void tornWriteTest() throws Exception
+    {
+        _down.set(true);
+        var parms = new JournalParms().setRetryDelayMs(10).setSegmentSize(1 << 16);
+        var journal = new OutboxJournal("torn", _dir, _factory, parms);
+        for (int i = 0; i < 50; i++) journal.publish(EXCHANGE, "key", null, body(0, i));
+        journal.sync();
+        crash(journal);
+
+        // Damage the last record's payload.
+        try (var file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+            int pos = 0, last = 0;
+            for (int length; (length = readInt(file, pos)) > 0; pos += length) last = pos;
+            file.seek(last + 20);
+            file.write(0xFF);
+        }
+
+        // The damaged record is dropped and its sequence number reused.
+        _down.set(false);
+        try (var recovered = new OutboxJournal("torn", _dir, _factory, parms)) {
+            Assert.assertEquals(recovered.getAppendedSeq(), 49);
+            Assert.assertEquals(recovered.publish(EXCHANGE, "key", null, body(0, 49)), 50);
+            Assert.assertTrue(recovered.awaitDrained(10000), recovered.toString());
+        }
+        assertOrdered(receive(), 50);
+    }
+
+    @Test
+    public void badRecordTest() throws Exception
+    {
+        _down.set(true);
+        var parms = new JournalParms().setRetryDelayMs(10);
+        var journal = new OutboxJournal("bad", _dir, _factory, parms);
+        for (int i = 0; i < 10; i++) journal.publish(EXCHANGE, "key", null, body(0, i));
+        journal.sync();
+        crash(journal);
+
+        // Give two records a format version this journal can't read, with
+        // valid checksums so that recovery keeps them.
+        try (var file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+            int pos = 0;
+            for (int i = 0, length; (length = readInt(file, pos)) > 0; i++, pos += length) {
+                if (i != 4 && i != 9) continue;
+                file.seek(pos + 16);
+                file.write(99);
+                byte[] checked = new byte[length - 8];
+                file.seek(pos + 8);
+                file.readFully(checked);
+                var crc = new CRC32C();
+                crc.update(checked);
+                file.seek(pos + 4);
+                file.writeInt((int) crc.getValue());
+            }
+        }
+
+        // The bad records are skipped instead of blocking the ones after them.
+        _down.set(false);
+        try (var recovered = new OutboxJournal("bad", _dir, _factory, parms)) {
+            Assert.assertEquals(recovered.getAppendedSeq(), 10);
+            Assert.assertTrue(recovered.awaitDrained(10000), recovered.toString());
+            Assert.assertEquals(recovered.getSkippedCount(), 2);
+            Assert.assertEquals(recovered.getPublishedCount(), 8);
+        }
+        var indexes = new ArrayList<String>();
+        for (var message : receive()) indexes.add(new String(message.getBody(), StandardCharsets.UTF_8));
+        Assert.assertEquals(indexes, List.of("0:0", "0:1", "0:2", "0:3", "0:5", "0:6", "0:7", "0:8"));
+
+        // The checkpoint moved past them.
+        try (var reopened = new OutboxJournal("bad", _dir, _factory, parms)) {
+            Assert.assertEquals(reopened.getPendingCount(), 0);
+            Assert.assertEquals(reopened.getSkippedCount(), 0);
+        }
+    }
+
+    @Test
+    public void checkpointTest() throws Exception
+    {
+        // Confirmed messages aren't published again after a restart.
+        try (var journal = new OutboxJournal(_dir, _qm, new JournalParms())) {
+            for (int i = 0; i < 100; i++) journal.publish(EXCHANGE, "key", null, body(0, i));
+            Assert.assertTrue(journal.awaitDrained(10000));
+        }
+        try (var journal = new OutboxJournal(_dir, _qm, new JournalParms())) {
+            Assert.assertEquals(journal.getPendingCount(), 0);
+            Assert.assertEquals(journal.getAppendedSeq(), 100);
+            Assert.assertEquals(journal.publish(EXCHANGE, "key", null, body(0, 100)), 101);
+            Assert.assertTrue(journal.awaitDrained(10000));
+        }
+        Assert.assertEquals(_broker.getMessageCount(QUEUE), 101);
+    }
+
+    @Test
+    public void failureTest() throws Exception
+    {
+        // Nacks and a dropped connection cause republishing but not reordering.
+        var parms = new JournalParms().setRetryDelayMs(10).setMaxInFlight(20);
+        try (var journal = new OutboxJournal("failure", _dir, _factory, parms)) {
+            _broker.nackPublishes(3);
+            for (int i = 0; i < 1000; i++) {
+                journal.publish(EXCHANGE, "key" + i % 4, null, body(i % 4, i));
+                if (i == 500) _broker.dropConnection(_qm.getOutConnectionName());
+            }
+            Assert.assertTrue(journal.awaitDrained(10000), journal.toString());
+            Assert.assertTrue(journal.getRepublishedCount() > 0);
+        }
+        assertOrdered(receive(), 1000);
+    }
+
+    @Test
+    public void limitsTest() throws Exception
+    {
+        _down.set(true);
+        var parms = new JournalParms().setSegmentSize(4096).setMaxSegments(2);
+        try (var journal = new OutboxJournal("limits", _dir, _factory, parms)) {
+            Assert.assertThrows(TapisQueueException.class,
+                                () -> journal.publish(EXCHANGE, "key", null, new byte[5000]));
+            Assert.assertThrows(TapisQueueException.class, () -> {
+                for (int i = 0; i < 1000; i++) journal.publish(EXCHANGE, "key", null, new byte[100]);
+            });
+            Assert.assertEquals(journal.getSegmentCount(), 2);
+            journal.close(0);
+            Assert.assertThrows(TapisQueueException.class, () -> journal.publish(EXCHANGE, "key", null, null));
+        }
+    }
+
+    /** Stop the journal without saving anything. */
+    private static void crash(OutboxJournal journal)
+    {
+        journal.halt();
+        journal.closeFiles();
+    }
+
+    private static byte[] body(int key, int index)
+    {
+        return (key + ":" + index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<GetResponse> receive() throws IOException
+    {
+        var messages = new ArrayList<GetResponse>();
+        for (GetResponse r; (r = _channel.basicGet(QUEUE, true)) != null; ) messages.add(r);
+        return messages;
+    }
+
+    /** Check that every message arrived and that, ignoring repeats, each key's
+     * messages arrived in publish order.
+     */
+    private static void assertOrdered(List<GetResponse> messages, int count)
+    {
+        var last = new HashMap<String,Integer>();
+        var seen = new boolean[count];
+        for (var message : messages) {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            int index = Integer.parseInt(parts[1]);
+            if (seen[index]) continue;
+            Assert.assertTrue(index > last.getOrDefault(parts[0], -1), "out of order " + index);
+            last.put(parts[0], index);
+            seen[index] = true;
+        }
+        for (int i = 0; i < count; i++) Assert.assertTrue(seen[i], "missing " + i);
+    }
+
+    private List<Path> segmentFiles() throws IOException
+    {
+        try (Stream<Path> files = Files.list(_dir)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+
+    private static int readInt(RandomAccessFile file, int pos) throws IOException
+    {
+        file.seek(pos);
+        return file.readInt();
+    }
+}
@@ -0,0 +1,173 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.Outcome;
+import edu.utexas.tacc.tapis.sharedq.DeliveryDispatcher.SubscriptionParms;
+import edu.utexas.tacc.tapis.sharedq.InMemoryBrokerTest.InMemoryQueueManager;
+
+/** Run the queue manager, publisher and dispatcher against the in-memory
+ * broker with metrics turned on.
+ */
+@Test(groups={"unit"})
+public class QueueMetricsTest
+{
+    private static final String EXCHANGE = "test.metrics";
+    private static final String QUEUE    = "test.metrics.queue";
+
+    private InMemoryBroker       _broker;
+    private MetricRegistry       _registry;
+    private QueueMetrics         _metrics;
+    private InMemoryQueueManager _qm;
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        _broker = new InMemoryBroker();
+        _registry = new MetricRegistry();
+        _metrics = new QueueMetrics(_registry);
+        var parms = InMemoryQueueManager.parms(1);
+        parms.setMetrics(_metrics);
+        _qm = new InMemoryQueueManager(_broker, parms);
+
+        Channel channel = _broker.newConnection("setup").createChannel();
+        channel.exchangeDeclare(EXCHANGE, BuiltinExchangeType.FANOUT);
+        channel.queueDeclare(QUEUE, false, false, false, null);
+        channel.queueBind(QUEUE, EXCHANGE, "");
+    }
+
+    @AfterMethod
+    public void teardown() {_broker.close();}
+
+    @Test
+    public void publishTest() throws Exception
+    {
+        for (int i = 0; i < 10; i++) _qm.publish(EXCHANGE, "key", null, new byte[10]);
+        _qm.publish("", QUEUE, null, new byte[10]);
+        Assert.assertEquals(_registry.timer("tapis.queue.publish." + EXCHANGE).getCount(), 10);
+        Assert.assertEquals(_registry.timer("tapis.queue.publish.default").getCount(), 1);
+        Assert.assertEquals(_metrics.getCollector().getConnections().getCount(), 1);
+
+        // Confirm latency and the unconfirmed gauge.
+        String gauge = "tapis.queue.unconfirmed." + _qm.getOutConnectionName();
+        try (var publisher = new ConfirmingPublisher(_qm)) {
+            var futures = new CompletableFuture<?>[5];
+            for (int i = 0; i < 5; i++) futures[i] = publisher.publish(EXCHANGE, "key", null, new byte[10]);
+            CompletableFuture.allOf(futures).join();
+            Assert.assertEquals(_registry.timer("tapis.queue.confirm." + EXCHANGE).getCount(), 5);
+            Assert.assertEquals(gaugeValue(gauge), 0);
+        }
+        Assert.assertFalse(_registry.getGauges().containsKey(gauge));
+
+        _qm.closeConnections(1000);
+        Assert.assertEquals(_metrics.getCollector().getConnections().getCount(), 0);
+    }
+
+    @Test
+    public void sharedNameTest() throws Exception
+    {
+        // Publishers from the same queue manager share a gauge that outlives
+        // all but the last of them.
+        String gauge = "tapis.queue.unconfirmed." + _qm.getOutConnectionName();
+        var first = new ConfirmingPublisher(_qm);
+        try (var second = new ConfirmingPublisher(_qm)) {
+            first.publish(EXCHANGE, "key", null, new byte[10]).join();
+            second.publish(EXCHANGE, "key", null, new byte[10]).join();
+            Assert.assertEquals(gaugeValue(gauge), 0);
+            first.close();
+            Assert.assertEquals(gaugeValue(gauge), 0);
+        }
+        Assert.assertFalse(_registry.getGauges().containsKey(gauge));
+
+        // A gauge registered over the summed one is left in place.
+        var publisher = new ConfirmingPublisher(_qm);
+        publisher.publish(EXCHANGE, "key", null, new byte[10]).join();
+        _metrics.register(gauge, () -> 7);
+        publisher.close();
+        Assert.assertEquals(gaugeValue(gauge), 7);
+    }
+
+    @Test
+    public void dispatcherTest() throws Exception
+    {
+        for (int i = 0; i < 20; i++) _qm.publish(EXCHANGE, "key", null, new byte[10]);
+
+        // Hold the handlers so that deliveries stay unsettled.
+        var release = new CountDownLatch(1);
+        var parms = new SubscriptionParms().setConcurrency(4).setPrefetch(10);
+        String gauge = "tapis.queue.unacked." + QUEUE;
+        try (var dispatcher = new DeliveryDispatcher(4);
+             var sub = dispatcher.subscribe(_qm, QUEUE, parms, d -> {release.await(); return Outcome.ACK;}))
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (gaugeValue(gauge) < 10 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            Assert.assertEquals(gaugeValue(gauge), 10);
+
+            release.countDown();
+            while (sub.getAckedCount() < 20 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            Assert.assertEquals(sub.getAckedCount(), 20);
+            Assert.assertEquals(_registry.timer("tapis.queue.handler." + QUEUE).getCount(), 20);
+        }
+        Assert.assertFalse(_registry.getGauges().containsKey(gauge));
+    }
+
+    @Test
+    public void blockedTest() throws Exception
+    {
+        _qm.publish(EXCHANGE, "key", null, new byte[10]);
+        _qm.getNewInChannel().close();
+        var gauge = "tapis.queue.blocked.connections";
+
+        // Both of the manager's connections are blocked, once each.
+        _broker.blockConnections("low on memory");
+        _broker.blockConnections("low on memory");
+        Assert.assertEquals(gaugeValue(gauge), 2);
+        Assert.assertEquals(_metrics.getBlockedEventCount(), 2);
+
+        _broker.unblockConnections();
+        Assert.assertEquals(gaugeValue(gauge), 0);
+        Assert.assertEquals(_registry.timer("tapis.queue.blocked.time").getCount(), 2);
+
+        // Closing a blocked connection unblocks it.
+        _broker.blockConnections("low on disk");
+        _broker.dropConnection(_qm.getOutConnectionName());
+        Assert.assertEquals(gaugeValue(gauge), 1);
+    }
+
+    @Test
+    public void jmxTest() throws Exception
+    {
+        _qm.publish(EXCHANGE, "key", null, new byte[10]);
+        var reporter = _metrics.startJmxReporter();
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var names = server.queryNames(new ObjectName(QueueMetrics.JMX_DOMAIN + ":*"), null);
+            Assert.assertTrue(names.stream().anyMatch(n -> n.toString().contains("tapis.queue.publish." + EXCHANGE)),
+                              names.toString());
+            Assert.assertTrue(names.stream().anyMatch(n -> n.toString().contains("tapis.queue.client.connections")),
+                              names.toString());
+        }
+        finally {reporter.stop();}
+    }
+
+    private int gaugeValue(String name)
+    {
+        Gauge<?> gauge = _registry.getGauges().get(name);
+        Assert.assertNotNull(gauge, name);
+        return ((Number) gauge.getValue()).intValue();
+    }
+}
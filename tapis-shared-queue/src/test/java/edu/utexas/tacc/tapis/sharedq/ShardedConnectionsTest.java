@@ -0,0 +1,101 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.util.HashSet;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+
+import edu.utexas.tacc.tapis.shared.exceptions.runtime.TapisRuntimeException;
+import edu.utexas.tacc.tapis.sharedq.InMemoryBrokerTest.InMemoryQueueManager;
+
+@Test(groups={"unit"})
+public class ShardedConnectionsTest
+{
+    private static final String EXCHANGE = "test.sharded";
+    private static final String QUEUE    = "test.sharded.queue";
+
+    private InMemoryBroker _broker;
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        _broker = new InMemoryBroker();
+        try (var conn = _broker.newConnection("setup")) {
+            Channel ch = conn.createChannel();
+            ch.exchangeDeclare(EXCHANGE, BuiltinExchangeType.FANOUT);
+            ch.queueDeclare(QUEUE, false, false, false, null);
+            ch.queueBind(QUEUE, EXCHANGE, "");
+        }
+    }
+
+    @AfterMethod
+    public void teardown() {_broker.close();}
+
+    @Test
+    public void namesTest()
+    {
+        // The first shard keeps the unsharded name.
+        Assert.assertEquals(QueueManagerNames.getOutConnectionName("svc", 0),
+                            QueueManagerNames.getOutConnectionName("svc"));
+        Assert.assertEquals(QueueManagerNames.getOutConnectionName("svc", 3),
+                            QueueManagerNames.getOutConnectionName("svc") + "-3");
+        Assert.assertThrows(TapisRuntimeException.class, () -> new InMemoryQueueManager(_broker, 0));
+    }
+
+    @Test
+    public void shardingTest() throws Exception
+    {
+        var qm = new InMemoryQueueManager(_broker, 4);
+        Assert.assertEquals(qm.getOutConnectionShards(), 4);
+        try {
+            // Keys map to the same shard every time and spread over all of them.
+            var shards = new HashSet<Integer>();
+            for (int i = 0; i < 100; i++) {
+                String key = "job." + i;
+                int shard = qm.selectOutShard(key);
+                Assert.assertEquals(qm.selectOutShard(key), shard);
+                shards.add(shard);
+                qm.publish(EXCHANGE, key, null, new byte[1]);
+            }
+            Assert.assertEquals(shards.size(), 4);
+            Assert.assertEquals(_broker.getMessageCount(QUEUE), 100);
+            Assert.assertEquals(_broker.getConnectionCount(), 4);
+            for (int i = 0; i < 4; i++) Assert.assertTrue(qm.getOutChannelPool(i).getCreatedCount() > 0);
+
+            // Without a key, publishing goes round-robin.
+            shards.clear();
+            for (int i = 0; i < 4; i++) shards.add(qm.selectOutShard(null));
+            Assert.assertEquals(shards.size(), 4);
+        }
+        finally {qm.closeConnections(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);}
+        Assert.assertEquals(_broker.getConnectionCount(), 0);
+    }
+
+    @Test
+    public void droppedShardTest() throws Exception
+    {
+        var qm = new InMemoryQueueManager(_broker, 3);
+        try {
+            for (int i = 0; i < 30; i++) qm.publish(EXCHANGE, "key." + i, null, new byte[1]);
+            Assert.assertEquals(_broker.getConnectionCount(), 3);
+
+            // The dropped shard's connection is replaced on its next use and
+            // its pool discards the dead channels.
+            int shard = qm.selectOutShard("key.0");
+            _broker.dropConnection(qm.getOutConnectionName(shard));
+            Assert.assertEquals(_broker.getConnectionCount(), 2);
+            Assert.assertTrue(qm.isOutShardHealthy(shard));
+            qm.publish(EXCHANGE, "key.0", null, new byte[1]);
+            Assert.assertEquals(qm.selectOutShard("key.0"), shard);
+            Assert.assertEquals(_broker.getConnectionCount(), 3);
+            Assert.assertTrue(qm.getOutChannelPool(shard).getDiscardedCount() > 0);
+            Assert.assertEquals(_broker.getMessageCount(QUEUE), 31);
+        }
+        finally {qm.closeConnections(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);}
+    }
+}
@@ -0,0 +1,107 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConnectionFactory;
+
+/** Compare pooled publishing throughput over 1, 2, 4 and 8 outbound
+ * connections.  Each message has its own routing key so that publishing is
+ * spread over the shards.  Use "memory" as the host to run against the
+ * in-memory broker, where each publish holds its connection for the given
+ * number of microseconds to stand in for a connection's single socket writer.
+ *
+ * Usage: ShardedPublishBenchmark [host [port [user [password [messages [threads [frameMicros]]]]]]]
+ */
+public class ShardedPublishBenchmark
+{
+    private static final String EXCHANGE = "tapis.benchmark.sharded";
+    private static final String QUEUE    = "tapis.benchmark.sharded";
+
+    public static void main(String[] args) throws Exception
+    {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port    = args.length > 1 ? Integer.parseInt(args[1]) : 5672;
+        String user = args.length > 2 ? args[2] : "guest";
+        String pass = args.length > 3 ? args[3] : "guest";
+        int messages    = args.length > 4 ? Integer.parseInt(args[4]) : 50000;
+        int threads     = args.length > 5 ? Integer.parseInt(args[5]) : 16;
+        int frameMicros = args.length > 6 ? Integer.parseInt(args[6]) : 20;
+        byte[] body = "{\"event\":\"benchmark\",\"payload\":\"0123456789\"}".getBytes(StandardCharsets.UTF_8);
+        System.out.printf("messages=%d threads=%d%n", messages, threads);
+
+        var broker = "memory".equals(host) ? new InMemoryBroker() : null;
+        if (broker != null) broker.setPublishCostNanos(frameMicros * 1000L);
+        try {
+            double base = 0;
+            for (int shards : new int[] {1, 2, 4, 8}) {
+                var parms = new QueueManagerParms();
+                parms.setInstanceName("ShardedPublishBenchmark");
+                parms.setService("benchmark");
+                parms.setQueueHost(host);
+                parms.setQueuePort(port);
+                parms.setQueueUser(user);
+                parms.setQueuePassword(pass);
+                parms.setOutConnectionShards(shards);
+                parms.setOutChannelPoolSize(threads);
+
+                var qm = new BenchmarkQueueManager(parms, broker);
+                Channel setup = qm.getNewOutChannel(0);
+                setup.exchangeDeclare(EXCHANGE, "fanout");
+                setup.queueDeclare(QUEUE, false, false, false, null);
+                setup.queueBind(QUEUE, EXCHANGE, "");
+                try {
+                    run(qm, body, messages / 10, threads);
+                    double rate = run(qm, body, messages, threads);
+                    if (base == 0) base = rate;
+                    System.out.printf("shards=%d: %,10.0f msg/s (%.1fx)%n", shards, rate, rate / base);
+                } finally {
+                    setup.queueDelete(QUEUE);
+                    setup.exchangeDelete(EXCHANGE);
+                    setup.close();
+                    qm.closeConnections(AbstractQueueManager.DEFAULT_CONN_CLOSE_TIMEOUT_MS);
+                }
+            }
+        } finally {
+            if (broker != null) broker.close();
+        }
+    }
+
+    /** Publish the messages from the threads and return messages per second. */
+    private static double run(BenchmarkQueueManager qm, byte[] body, int messages, int threads)
+     throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            String key = "job." + i;
+            executor.execute(() -> {
+                try {qm.publish(EXCHANGE, key, QueueManagerNames.PERSISTENT_JSON, body);}
+                  catch (Exception e) {throw new RuntimeException(e);}
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        return messages / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static final class BenchmarkQueueManager extends AbstractQueueManager
+    {
+        private final InMemoryBroker _broker;
+
+        private BenchmarkQueueManager(QueueManagerParms parms, InMemoryBroker broker)
+        {
+            super(parms);
+            _broker = broker;
+        }
+
+        @Override
+        protected ConnectionFactory createConnectionFactory()
+        {
+            return _broker == null ? super.createConnectionFactory() : _broker.getConnectionFactory();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+/** A channel that delivers messages to a single consumer and keeps track of
+ * how they're settled.  Like a broker, it stops delivering when the prefetch
+ * limit is reached and rejects acks for unknown delivery tags.
+ */
+final class StubConsumerChannel
+{
+    final Channel        channel;
+    final List<Long>     requeued = new CopyOnWriteArrayList<>();
+    final List<Long>     deadLettered = new CopyOnWriteArrayList<>();
+    final AtomicInteger  multipleAcks = new AtomicInteger();
+    final AtomicInteger  singleAcks = new AtomicInteger();
+    volatile int         prefetch;
+    volatile boolean     open = true;
+    volatile boolean     cancelled;
+    volatile int         maxUnsettled;
+
+    private final TreeSet<Long> _unsettled = new TreeSet<>();
+    private Consumer            _consumer;
+    private long                _nextTag = 1;
+    private int                 _acked;
+
+    StubConsumerChannel()
+    {
+        channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Channel.class},
+            (proxy, method, args) -> switch (method.getName()) {
+                case "equals"           -> proxy == args[0];
+                case "hashCode"         -> 1;
+                case "toString"         -> "StubConsumerChannel";
+                case "getChannelNumber" -> 1;
+                case "isOpen"           -> open;
+                case "basicQos"         -> {prefetch = (Integer) args[0]; yield null;}
+                case "basicConsume"     -> {consume((Consumer) args[args.length - 1]); yield "ctag-1";}
+                case "basicCancel"      -> {cancelled = true; yield null;}
+                case "basicAck"         -> {ack((Long) args[0], (Boolean) args[1]); yield null;}
+                case "basicReject"      -> {reject((Long) args[0], (Boolean) args[1]); yield null;}
+                case "close", "abort"   -> {open = false; yield null;}
+                default -> throw new UnsupportedOperationException(method.getName());
+            });
+    }
+
+    /** Deliver a message, waiting while the prefetch window is full. */
+    void deliver(byte[] body, boolean redeliver) throws Exception
+    {
+        long tag;
+        Consumer consumer;
+        synchronized (this) {
+            while (prefetch > 0 && _unsettled.size() >= prefetch) wait();
+            tag = _nextTag++;
+            _unsettled.add(tag);
+            maxUnsettled = Math.max(maxUnsettled, _unsettled.size());
+            consumer = _consumer;
+        }
+        consumer.handleDelivery("ctag-1", new Envelope(tag, redeliver, "ex", "rk"),
+                                new AMQP.BasicProperties(), body);
+    }
+
+    synchronized int getAckedCount() {return _acked;}
+    synchronized int getUnsettledCount() {return _unsettled.size();}
+
+    /** Wait until everything delivered has been settled. */
+    synchronized boolean awaitSettled(long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!_unsettled.isEmpty() && System.currentTimeMillis() < deadline) wait(10);
+        return _unsettled.isEmpty();
+    }
+
+    private synchronized void consume(Consumer consumer) {_consumer = consumer;}
+
+    private synchronized void ack(long tag, boolean multiple)
+    {
+        if (!_unsettled.contains(tag)) throw new IllegalStateException("unknown delivery tag " + tag);
+        if (multiple) {
+            var acked = _unsettled.headSet(tag, true);
+            _acked += acked.size();
+            acked.clear();
+            multipleAcks.incrementAndGet();
+        } else {
+            _unsettled.remove(tag);
+            _acked++;
+            singleAcks.incrementAndGet();
+        }
+        notifyAll();
+    }
+
+    private synchronized void reject(long tag, boolean requeue)
+    {
+        if (!_unsettled.remove(tag)) throw new IllegalStateException("unknown delivery tag " + tag);
+        if (requeue) requeued.add(tag);
+          else deadLettered.add(tag);
+        notifyAll();
+    }
+}
@@ -0,0 +1,111 @@
+package edu.utexas.tacc.tapis.sharedq;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.gson.JsonObject;
+
+import edu.utexas.tacc.tapis.sharedq.VHostManager.VHostSpec;
+import edu.utexas.tacc.tapis.sharedq.exceptions.TapisQueueException;
+
+/** Run VHostManager against a local stub of the management api. */
+@Test(groups={"unit"})
+public class VHostManagerAsyncTest
+{
+    private static final String ADMIN_USER = "tapis";
+    private static final String ADMIN_PASS = "password";
+
+    private ManagementApiStub _stub;
+
+    @BeforeMethod
+    public void setup() throws Exception {_stub = new ManagementApiStub(ADMIN_USER, ADMIN_PASS);}
+
+    @AfterMethod
+    public void teardown() {_stub.close();}
+
+    @Test
+    public void initVHostTest() throws Exception
+    {
+        var mgr = newManager(ADMIN_PASS, 4);
+        mgr.initVHost("JobsHost", "jobs", "pass\"word");
+        Assert.assertEquals(_stub.vhosts, Set.of("JobsHost"));
+        Assert.assertEquals(_stub.users.get("jobs"), "pass\"word");
+        var perms = _stub.perms.get("JobsHost/jobs");
+        Assert.assertEquals(perms.get("configure").getAsString(), VHostManager.ALL_PERMISSIONS);
+        Assert.assertEquals(perms.get("read").getAsString(), VHostManager.ALL_PERMISSIONS);
+        Assert.assertEquals(_stub.getTotalCount(), 6);
+
+        // Nothing is changed the second time.
+        mgr.initVHost("JobsHost", "jobs", "other");
+        Assert.assertEquals(_stub.users.get("jobs"), "pass\"word");
+        Assert.assertEquals(_stub.getTotalCount(), 9);
+        Assert.assertEquals(_stub.getCount("PUT users"), 1);
+
+        // Incomplete permissions are replaced.
+        var readOnly = new JsonObject();
+        readOnly.addProperty("configure", "");
+        readOnly.addProperty("write", "");
+        readOnly.addProperty("read", ".*");
+        _stub.perms.put("JobsHost/jobs", readOnly);
+        mgr.initVHost("JobsHost", "jobs", "pass\"word");
+        Assert.assertEquals(_stub.perms.get("JobsHost/jobs").get("write").getAsString(), VHostManager.ALL_PERMISSIONS);
+    }
+
+    @Test
+    public void encodingTest() throws Exception
+    {
+        // The default vhost name has to be escaped in paths.
+        newManager(ADMIN_PASS, 4).initVHost("/", "default admin", "pw");
+        Assert.assertTrue(_stub.vhosts.contains("/"));
+        Assert.assertTrue(_stub.perms.containsKey("//default admin"));
+    }
+
+    @Test
+    public void errorTest() throws Exception
+    {
+        var e = Assert.expectThrows(TapisQueueException.class,
+                                    () -> newManager("wrong", 4).initVHost("JobsHost", "jobs", "pw"));
+        Assert.assertTrue(e.getMessage().contains("401"), e.getMessage());
+        Assert.assertTrue(_stub.vhosts.isEmpty());
+
+        _stub.failingVHosts.add("JobsHost");
+        e = Assert.expectThrows(TapisQueueException.class,
+                                () -> newManager(ADMIN_PASS, 4).initVHost("JobsHost", "jobs", "pw"));
+        Assert.assertTrue(e.getMessage().startsWith("QMG_HTTP_CREATE_ERROR"), e.getMessage());
+    }
+
+    @Test
+    public void bulkTest() throws Exception
+    {
+        // 100 vhosts whose admins are 10 shared users, one of which fails.
+        _stub.latencyMs = 50;
+        _stub.failingVHosts.add("tenant7");
+        var specs = new ArrayList<VHostSpec>();
+        for (int i = 0; i < 100; i++) specs.add(new VHostSpec("tenant" + i, "admin" + i % 10, "pw" + i % 10));
+
+        var mgr = newManager(ADMIN_PASS, 16);
+        var failures = mgr.initVHosts(specs);
+
+        Assert.assertEquals(failures.keySet(), Set.of("tenant7"));
+        Assert.assertTrue(failures.get("tenant7") instanceof TapisQueueException);
+        Assert.assertEquals(_stub.vhosts.size(), 99);
+        Assert.assertEquals(_stub.perms.size(), 99);
+        Assert.assertEquals(_stub.getCount("PUT users"), 10);
+        Assert.assertEquals(_stub.users.get("admin3"), "pw3");
+
+        // Requests overlap up to the limit.
+        Assert.assertTrue(_stub.maxConcurrent.get() <= 16, "max " + _stub.maxConcurrent);
+        Assert.assertTrue(_stub.maxConcurrent.get() > 4, "max " + _stub.maxConcurrent);
+    }
+
+    private VHostManager newManager(String adminPassword, int maxConcurrentRequests)
+    {
+        var parms = new VHostParms("localhost", _stub.getPort(), ADMIN_USER, adminPassword);
+        return new VHostManager(parms, maxConcurrentRequests);
+    }
+}
@@ -0,0 +1,377 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.search.parser.ParseCache;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import edu.utexas.tacc.tapis.shared.threadlocal.OrderBy;
+import edu.utexas.tacc.tapis.shared.threadlocal.OrderBy.OrderByDir;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keyset pagination for searches sorted by any list of OrderBy entries.
+ *
+ * Instead of skipping rows with OFFSET, each page starts after the sort key of the last row of the
+ *   previous page, so every page costs the same no matter how deep it is. The sort key is the orderBy
+ *   columns followed by a unique key column, which breaks ties so that no row is skipped or repeated.
+ *
+ * A service pages through results as follows:
+ *   - sort with getOrderBySql(), which includes the unique key
+ *   - for the first page use no condition, for later pages add the condition from compileAfter() for
+ *     the cursor given by the client, e.g. in the startAfter query parameter
+ *   - return encodeCursor() with the getKeyColumns() values of the last row of the page to the client
+ *
+ * Cursors are opaque and tamper-evident: the key values are signed with HMAC-SHA256 over the sort
+ *   key, so a cursor that was altered, signed with another secret or created for a different orderBy
+ *   is rejected. Cursors are not encrypted, the key values can be decoded by a client.
+ *
+ * When all columns sort in the same direction the condition is a row value comparison, e.g.
+ *   "owner" >= ? AND ("owner", "id") > (?, ?). Mixed directions are expanded:
+ *   "owner" >= ? AND ("owner" > ? OR ("owner" = ? AND "id" < ?)).
+ * The bound on the leading column is redundant but lets databases that do not match row values or
+ *   OR conditions to an index, such as H2, start an index range scan at the cursor.
+ * Sort key columns should be NOT NULL. Null key values are rejected when encoding a cursor.
+ *
+ * Attribute names are matched to column names as by SearchSqlCompiler. Instances are thread safe.
+ */
+public final class KeysetPagination
+{
+  // ************************************************************************
+  // *********************** Constants **************************************
+  // ************************************************************************
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final int MIN_SECRET_LENGTH = 16;
+  // Bytes of the MAC kept in a cursor
+  private static final int MAC_LENGTH = 16;
+  private static final byte CURSOR_VERSION = 1;
+  private static final char CURSOR_SEPARATOR = '.';
+
+  // ************************************************************************
+  // *********************** Fields *****************************************
+  // ************************************************************************
+
+  // Column name to java.sql.Types code
+  private final Map<String, Integer> columnTypes;
+  private final String uniqueKey;
+  private final SecretKeySpec macKey;
+
+  // Sort key signature to SQL condition
+  private final ParseCache<String, IllegalArgumentException> conditions =
+          new ParseCache<>("KeysetPagination", IllegalArgumentException.class);
+
+  // ************************************************************************
+  // *********************** Constructors ***********************************
+  // ************************************************************************
+
+  /**
+   * @param columnTypes map of sortable column name to java.sql.Types code
+   * @param uniqueKey column that is unique for each row, appended to every sort key to break ties
+   * @param secret key for signing cursors, at least 16 bytes, the same for all instances of a service
+   * @throws IllegalArgumentException if the unique key is not a column or the secret is too short
+   */
+  public KeysetPagination(Map<String, Integer> columnTypes, String uniqueKey, byte[] secret)
+    throws IllegalArgumentException
+  {
+    this.columnTypes = new HashMap<>(columnTypes);
+    if (uniqueKey == null || !this.columnTypes.containsKey(uniqueKey))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_KEYSET_UNKNOWN_ATTR", uniqueKey));
+    if (secret == null || secret.length < MIN_SECRET_LENGTH)
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_KEYSET_SHORT_SECRET", MIN_SECRET_LENGTH));
+    this.uniqueKey = uniqueKey;
+    this.macKey = new SecretKeySpec(secret, MAC_ALGORITHM);
+  }
+
+  // ************************************************************************
+  // *********************** Public methods *********************************
+  // ************************************************************************
+
+  /**
+   * The columns of the sort key, whose values for the last row of a page are passed to encodeCursor()
+   * @param orderByList the orderBy entries of the request
+   * @return the orderBy columns followed by the unique key if not already included
+   * @throws IllegalArgumentException if an attribute is not a column
+   */
+  public List<String> getKeyColumns(List<OrderBy> orderByList) throws IllegalArgumentException
+  {
+    var columns = new ArrayList<String>();
+    for (Key key : keys(orderByList)) columns.add(key.column);
+    return columns;
+  }
+
+  /**
+   * The ORDER BY list for the sort key, without the ORDER BY keywords
+   * @param orderByList the orderBy entries of the request
+   * @return e.g. "owner" ASC, "created" DESC, "id" ASC
+   * @throws IllegalArgumentException if an attribute is not a column
+   */
+  public String getOrderBySql(List<OrderBy> orderByList) throws IllegalArgumentException
+  {
+    var sql = new StringBuilder(64);
+    for (Key key : keys(orderByList))
+    {
+      if (sql.length() > 0) sql.append(", ");
+      sql.append('"').append(key.column).append(key.descending ? "\" DESC" : "\" ASC");
+    }
+    return sql.toString();
+  }
+
+  /**
+   * Create a cursor for the page following a row
+   * @param orderByList the orderBy entries of the request
+   * @param keyValues values of the getKeyColumns() columns for the last row of the page. Timestamps may be
+   *                  LocalDateTime in UTC, Timestamp, Instant or OffsetDateTime, enums are stored by name.
+   * @return the cursor, safe for use in a URL
+   * @throws IllegalArgumentException if an attribute is not a column or a value is null or of the wrong type
+   */
+  public String encodeCursor(List<OrderBy> orderByList, List<?> keyValues) throws IllegalArgumentException
+  {
+    List<Key> keys = keys(orderByList);
+    if (keyValues.size() != keys.size())
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_KEYSET_VALUE_COUNT", keys.size(), keyValues.size()));
+    var bytes = new ByteArrayOutputStream(64);
+    try (var out = new DataOutputStream(bytes))
+    {
+      out.writeByte(CURSOR_VERSION);
+      for (int i = 0; i < keys.size(); i++)
+      {
+        Key key = keys.get(i);
+        String value = toCursorString(key, keyValues.get(i));
+        // Check that the value converts back for its column
+        key.toValue(value);
+        out.writeUTF(value);
+      }
+    }
+    catch (IOException e) { throw new IllegalStateException(e); }
+    byte[] payload = bytes.toByteArray();
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return encoder.encodeToString(payload) + CURSOR_SEPARATOR + encoder.encodeToString(mac(keys, payload));
+  }
+
+  /**
+   * Compile the condition selecting the rows after a cursor in the sort order
+   * @param orderByList the orderBy entries of the request, which must be those the cursor was created for
+   * @param cursor a cursor from encodeCursor()
+   * @return SQL condition and bind values
+   * @throws IllegalArgumentException if an attribute is not a column or the cursor is not valid
+   */
+  public SearchSql compileAfter(List<OrderBy> orderByList, String cursor) throws IllegalArgumentException
+  {
+    List<Key> keys = keys(orderByList);
+    List<Object> values = decodeCursor(keys, cursor);
+    String sql = conditions.get(signature(keys), s -> toSql(keys));
+
+    var binds = new ArrayList<SearchSql.Bind>();
+    if (keys.size() > 1) addBind(binds, keys.get(0), values.get(0));
+    boolean sameDirection = sameDirection(keys);
+    for (int i = 0; i < keys.size(); i++)
+    {
+      addBind(binds, keys.get(i), values.get(i));
+      if (!sameDirection && i < keys.size() - 1) addBind(binds, keys.get(i), values.get(i));
+    }
+    return new SearchSql(sql, binds);
+  }
+
+  /** Statistics of the condition cache */
+  public ParseCache.Stats getConditionCacheStats() { return conditions.getStats(); }
+
+  // ************************************************************************
+  // **************************  Private Methods  ***************************
+  // ************************************************************************
+
+  /*
+   * Resolve the orderBy entries to columns, dropping repeated columns and appending the unique key
+   */
+  private List<Key> keys(List<OrderBy> orderByList)
+  {
+    var keys = new ArrayList<Key>(orderByList.size() + 1);
+    var seen = new ArrayList<String>(orderByList.size() + 1);
+    for (OrderBy orderBy : orderByList)
+    {
+      String column = SearchSqlCompiler.columnName(columnTypes, orderBy.getOrderByAttr());
+      if (column == null)
+        throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_KEYSET_UNKNOWN_ATTR", orderBy.getOrderByAttr()));
+      if (seen.contains(column)) continue;
+      seen.add(column);
+      keys.add(new Key(column, columnTypes.get(column), orderBy.getOrderByDir() == OrderByDir.DESC));
+    }
+    if (!seen.contains(uniqueKey)) keys.add(new Key(uniqueKey, columnTypes.get(uniqueKey), false));
+    return keys;
+  }
+
+  // The sort key as a string, e.g. owner:A,created:D,id:A
+  private static String signature(List<Key> keys)
+  {
+    var sig = new StringBuilder(64);
+    for (Key key : keys)
+    {
+      if (sig.length() > 0) sig.append(',');
+      sig.append(key.column).append(key.descending ? ":D" : ":A");
+    }
+    return sig.toString();
+  }
+
+  private static boolean sameDirection(List<Key> keys)
+  {
+    for (Key key : keys) if (key.descending != keys.get(0).descending) return false;
+    return true;
+  }
+
+  /*
+   * Build the SQL text of the condition, only called for a sort key not yet cached
+   */
+  private static String toSql(List<Key> keys)
+  {
+    var sql = new StringBuilder(128);
+    if (keys.size() == 1)
+    {
+      Key key = keys.get(0);
+      return sql.append(key.quoted()).append(key.after()).toString();
+    }
+    // k1 >= ? AND ...
+    Key first = keys.get(0);
+    sql.append(first.quoted()).append(first.descending ? " <= ?" : " >= ?").append(" AND ");
+    if (sameDirection(keys))
+    {
+      // (k1, k2, k3) > (?, ?, ?)
+      sql.append('(');
+      for (int i = 0; i < keys.size(); i++) sql.append(i == 0 ? "" : ", ").append(keys.get(i).quoted());
+      sql.append(keys.get(0).descending ? ") < (" : ") > (");
+      for (int i = 0; i < keys.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+      return sql.append(')').toString();
+    }
+    // (k1 > ? OR (k1 = ? AND (k2 < ? OR (k2 = ? AND k3 > ?))))
+    for (int i = 0; i < keys.size(); i++)
+    {
+      Key key = keys.get(i);
+      sql.append('(').append(key.quoted()).append(key.after());
+      if (i < keys.size() - 1) sql.append(" OR (").append(key.quoted()).append(" = ? AND ");
+    }
+    for (int i = 0; i < keys.size() - 1; i++) sql.append("))");
+    return sql.append(')').toString();
+  }
+
+  private static void addBind(List<SearchSql.Bind> binds, Key key, Object value)
+  {
+    binds.add(new SearchSql.Bind(key.column, key.sqlType, value));
+  }
+
+  /*
+   * Verify a cursor and convert its values for their columns
+   */
+  private List<Object> decodeCursor(List<Key> keys, String cursor)
+  {
+    int sep = cursor == null ? -1 : cursor.indexOf(CURSOR_SEPARATOR);
+    if (sep < 0) throw invalidCursor();
+    byte[] payload, mac;
+    try
+    {
+      Base64.Decoder decoder = Base64.getUrlDecoder();
+      payload = decoder.decode(cursor.substring(0, sep));
+      mac = decoder.decode(cursor.substring(sep + 1));
+    }
+    catch (IllegalArgumentException e) { throw invalidCursor(); }
+    if (!MessageDigest.isEqual(mac, mac(keys, payload))) throw invalidCursor();
+
+    var values = new ArrayList<Object>(keys.size());
+    try (var in = new DataInputStream(new ByteArrayInputStream(payload)))
+    {
+      if (in.readByte() != CURSOR_VERSION) throw invalidCursor();
+      for (Key key : keys) values.add(key.toValue(in.readUTF()));
+      if (in.available() > 0) throw invalidCursor();
+    }
+    catch (IOException e) { throw invalidCursor(); }
+    return Collections.unmodifiableList(values);
+  }
+
+  // The truncated MAC of the sort key and payload
+  private byte[] mac(List<Key> keys, byte[] payload)
+  {
+    try
+    {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(macKey);
+      mac.update(signature(keys).getBytes(StandardCharsets.UTF_8));
+      mac.update((byte) 0);
+      mac.update(payload);
+      byte[] full = mac.doFinal();
+      byte[] truncated = new byte[MAC_LENGTH];
+      System.arraycopy(full, 0, truncated, 0, MAC_LENGTH);
+      return truncated;
+    }
+    catch (GeneralSecurityException e) { throw new IllegalStateException(e); }
+  }
+
+  private static IllegalArgumentException invalidCursor()
+  {
+    return new IllegalArgumentException(MsgUtils.getMsg("SEARCH_KEYSET_INVALID_CURSOR"));
+  }
+
+  /*
+   * Convert a row value to the string stored in a cursor. Timestamps are stored in UTC.
+   */
+  private static String toCursorString(Key key, Object value)
+  {
+    if (value == null) throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_KEYSET_NULL_VALUE", key.column));
+    if (value instanceof Timestamp) return ((Timestamp) value).toLocalDateTime().toString();
+    if (value instanceof Instant) return LocalDateTime.ofInstant((Instant) value, ZoneOffset.UTC).toString();
+    if (value instanceof OffsetDateTime)
+      return ((OffsetDateTime) value).withOffsetSameInstant(ZoneOffset.UTC).toLocalDateTime().toString();
+    if (value instanceof Enum) return ((Enum<?>) value).name();
+    return value.toString();
+  }
+
+  // ************************************************************************
+  // *********************** Key ********************************************
+  // ************************************************************************
+  /*
+   * A column of the sort key and its direction
+   */
+  private static final class Key
+  {
+    private final String column;
+    private final int sqlType;
+    private final boolean descending;
+
+    private Key(String column, int sqlType, boolean descending)
+    {
+      this.column = column;
+      this.sqlType = sqlType;
+      this.descending = descending;
+    }
+
+    private String quoted() { return '"' + column + '"'; }
+
+    // Comparison selecting values after the cursor value
+    private String after() { return descending ? " < ?" : " > ?"; }
+
+    // Convert a cursor value for the column. Strings are used as given, including blank ones.
+    private Object toValue(String value)
+    {
+      if (sqlType == Types.CHAR || sqlType == Types.VARCHAR) return value;
+      Object typed = SearchValueParser.parse(sqlType, value);
+      if (typed == null || sqlType == Types.ARRAY)
+        throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_KEYSET_INVALID_VALUE", column, value));
+      return typed;
+    }
+  }
+}
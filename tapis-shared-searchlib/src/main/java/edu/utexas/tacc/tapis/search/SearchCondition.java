@@ -0,0 +1,165 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.search.SearchUtils.SearchOperator;
+import edu.utexas.tacc.tapis.search.parser.ASTBinaryExpression;
+import edu.utexas.tacc.tapis.search.parser.ASTLeaf;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTUnaryExpression;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A single <attribute> <operator> <value> comparison taken from an ASTParser tree or from a
+ *   condition string of the form <attr>.<op>.<value>, with list values split out.
+ * Shared by the search compilers.
+ */
+final class SearchCondition
+{
+  final String attribute;
+  final SearchOperator op;
+  final List<String> values;
+
+  private SearchCondition(String attribute, SearchOperator op, List<String> values)
+  {
+    this.attribute = attribute;
+    this.op = op;
+    this.values = values;
+  }
+
+  /**
+   * Extract a comparison from an AST node. The left side must be an attribute and the right
+   *   side a value. The parser joins list values with commas.
+   * @param b the comparison node
+   * @return the condition
+   * @throws IllegalArgumentException if the node is not a supported comparison
+   */
+  static SearchCondition fromAst(ASTBinaryExpression b) throws IllegalArgumentException
+  {
+    ASTNode left = b.getLeft();
+    ASTNode right = b.getRight();
+    SearchOperator op = SearchUtils.getSearchOperator(b.getOp());
+    if (op == null || !(right instanceof ASTLeaf) || !(left instanceof ASTUnaryExpression)
+        || !StringUtils.isBlank(((ASTUnaryExpression) left).getOp())
+        || !(((ASTUnaryExpression) left).getNode() instanceof ASTLeaf))
+      throw unsupported(b);
+
+    String attribute = ((ASTLeaf) ((ASTUnaryExpression) left).getNode()).getValue();
+    String value = ((ASTLeaf) right).getValue();
+    List<String> values = isListOp(op) ? Arrays.asList(value.split(",", -1)) : List.of(value);
+    if (isRangeOp(op) && values.size() != 2)
+    {
+      String msg = MsgUtils.getMsg("SEARCH_COND_INVALID_OP2", op.name(), b.toString());
+      throw new IllegalArgumentException(msg);
+    }
+    return new SearchCondition(attribute, op, values);
+  }
+
+  /**
+   * Extract a comparison from a condition string of the form <attr>.<op>.<value> such as those
+   *   returned by SearchUtils.extractAndValidateSearchList(). The condition is validated and
+   *   processed by SearchUtils.validateAndProcessSearchCondition(), so LIKE values use the SQL
+   *   wildcards with \ escapes and other values are unescaped.
+   * @param cond the condition
+   * @return the condition
+   * @throws IllegalArgumentException if the condition is invalid
+   */
+  static SearchCondition fromString(String cond) throws IllegalArgumentException
+  {
+    if (StringUtils.isBlank(cond))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID", cond));
+    var scanned = SearchConditionScanner.scan(cond, true);
+    List<String> values;
+    if (isListOp(scanned.op))
+    {
+      // Commas are left escaped in list values
+      values = new ArrayList<>();
+      for (String v : SearchUtils.getValueList(scanned.processedValue)) values.add(v.replace("\\,", ","));
+      if (values.isEmpty())
+        throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID_NOVAL", cond));
+    }
+    else values = List.of(scanned.processedValue);
+    return new SearchCondition(scanned.attribute, scanned.op, values);
+  }
+
+  /**
+   * Convert a value to the Java type for a java.sql.Types code. Timestamps are UTC LocalDateTime.
+   * @param sqlType the type
+   * @param val the value
+   * @return the converted value
+   * @throws IllegalArgumentException if the value does not convert
+   */
+  Object toValue(int sqlType, String val) throws IllegalArgumentException
+  {
+    // String values are used as given, including blank ones
+    if (sqlType == Types.CHAR || sqlType == Types.VARCHAR || sqlType == Types.ARRAY) return val;
+    Object value = SearchValueParser.parse(sqlType, val);
+    if (value != null) return value;
+    String msg = MsgUtils.getMsg("SEARCH_AST_INVALID_VALUE", op.name(), sqlType, val, attribute);
+    throw new IllegalArgumentException(msg);
+  }
+
+  /**
+   * Check that the operator is allowed for a java.sql.Types code
+   * @param sqlType the type
+   * @throws IllegalArgumentException if not allowed
+   */
+  void checkOperator(int sqlType) throws IllegalArgumentException
+  {
+    var allowed = SearchUtils.ALLOWED_OPS_BY_TYPE.get(sqlType);
+    if (allowed == null || !allowed.contains(op))
+    {
+      String msg = MsgUtils.getMsg("SEARCH_AST_INVALID_OP", op.name(), attribute, sqlType);
+      throw new IllegalArgumentException(msg);
+    }
+  }
+
+  // Operators whose value is a list of values
+  static boolean isListOp(SearchOperator op) { return SearchUtils.listOpSet.contains(op); }
+
+  static boolean isRangeOp(SearchOperator op)
+  {
+    return op == SearchOperator.BETWEEN || op == SearchOperator.NBETWEEN;
+  }
+
+  // The operator that matches where the given one does not, NOT (a op b) = a negate(op) b
+  static SearchOperator negate(SearchOperator op)
+  {
+    switch (op)
+    {
+      case EQ: return SearchOperator.NEQ;
+      case NEQ: return SearchOperator.EQ;
+      case LT: return SearchOperator.GTE;
+      case LTE: return SearchOperator.GT;
+      case GT: return SearchOperator.LTE;
+      case GTE: return SearchOperator.LT;
+      case LIKE: return SearchOperator.NLIKE;
+      case NLIKE: return SearchOperator.LIKE;
+      case BETWEEN: return SearchOperator.NBETWEEN;
+      case NBETWEEN: return SearchOperator.BETWEEN;
+      case IN: return SearchOperator.NIN;
+      case NIN: return SearchOperator.IN;
+      case CONTAINS: return SearchOperator.NCONTAINS;
+      default: return SearchOperator.CONTAINS;
+    }
+  }
+
+  static boolean isLogical(String op) { return "AND".equals(op) || "OR".equals(op); }
+
+  static boolean isNot(ASTNode node)
+  {
+    return node instanceof ASTUnaryExpression && "NOT".equals(((ASTUnaryExpression) node).getOp());
+  }
+
+  static IllegalArgumentException unsupported(ASTNode node)
+  {
+    return new IllegalArgumentException(MsgUtils.getMsg("SEARCH_AST_UNSUPPORTED", String.valueOf(node)));
+  }
+
+  @Override
+  public String toString() { return attribute + "." + op.name() + "." + String.join(",", values); }
+}
@@ -0,0 +1,280 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.search.SearchUtils.SearchOperator;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Hand-written scanner for search lists of the form (<cond>)~(<cond>)~ ... and conditions of the form
+ *   <attr>.<op>.<value>, used by SearchUtils in place of regular expressions.
+ * A condition is tokenized once and its value is validated, split, unescaped and translated in a single
+ *   traversal. Results are the same as those of the former regular expressions, including their edge cases:
+ *   - A character counts as escaped when the character before it is \, even if that \ is itself escaped.
+ *   - When splitting a search list \ does not escape a line terminator.
+ *   - An attribute name may end with a single line terminator.
+ *   - Splitting a value list drops trailing empty values.
+ */
+final class SearchConditionScanner
+{
+  // Private constructor to make it non-instantiable
+  private SearchConditionScanner() { throw new AssertionError(); }
+
+  // ************************************************************************
+  // *********************** Constants **************************************
+  // ************************************************************************
+  private static final char ESCAPE = '\\';
+  private static final char CONDITION_DELIMITER = '~';
+  private static final char LIST_DELIMITER = ',';
+
+  // ************************************************************************
+  // *********************** Methods ****************************************
+  // ************************************************************************
+
+  /**
+   * Split a search list on unescaped ~ characters, skipping empty conditions
+   * @param searchListStr search list, not null
+   * @return list of conditions as given, with surrounding parentheses if present
+   */
+  static List<String> splitSearchList(String searchListStr)
+  {
+    var conditions = new ArrayList<String>();
+    int n = searchListStr.length();
+    int i = 0;
+    while (i < n)
+    {
+      int start = i;
+      while (i < n)
+      {
+        char c = searchListStr.charAt(i);
+        if (c == ESCAPE)
+        {
+          // An escape at the end or before a line terminator ends the condition and is dropped
+          if (i + 1 >= n || isLineTerminator(searchListStr.charAt(i + 1))) break;
+          i += 2;
+        }
+        else if (c == CONDITION_DELIMITER) break;
+        else i++;
+      }
+      if (i > start) conditions.add(searchListStr.substring(start, i));
+      else i++;
+    }
+    return conditions;
+  }
+
+  /**
+   * Split a comma separated list of values on unescaped commas, dropping trailing empty values
+   * @param valStr list of values, not null
+   * @return the values with escapes left in place
+   */
+  static List<String> splitValueList(String valStr)
+  {
+    var values = new ArrayList<String>();
+    int n = valStr.length();
+    int start = 0;
+    for (int i = 0; i < n; i++)
+    {
+      if (valStr.charAt(i) == LIST_DELIMITER && !isEscaped(valStr, i))
+      {
+        values.add(valStr.substring(start, i));
+        start = i + 1;
+      }
+    }
+    values.add(valStr.substring(start));
+    int size = values.size();
+    while (size > 0 && values.get(size - 1).isEmpty()) values.remove(--size);
+    return values;
+  }
+
+  /**
+   * Check that an attribute name starts with [a-zA-Z] and contains only [a-zA-Z0-9_]
+   * @param attr attribute name, not null
+   * @return true if valid
+   */
+  static boolean isValidAttributeName(String attr)
+  {
+    int n = attr.length();
+    if (n > 1 && attr.charAt(n - 2) == '\r' && attr.charAt(n - 1) == '\n') n -= 2;
+    else if (n > 0 && isLineTerminator(attr.charAt(n - 1))) n--;
+    if (n == 0 || !isAsciiLetter(attr.charAt(0))) return false;
+    for (int i = 1; i < n; i++)
+    {
+      char c = attr.charAt(i);
+      if (!isAsciiLetter(c) && !(c >= '0' && c <= '9') && c != '_') return false;
+    }
+    return true;
+  }
+
+  /**
+   * Tokenize and validate a condition of the form <attr>.<op>.<value>
+   * @param cond the condition, not blank
+   * @param process true to also build the processed value, see scanValue()
+   * @return the scanned condition
+   * @throws IllegalArgumentException if the condition is invalid
+   */
+  static Condition scan(String cond, boolean process) throws IllegalArgumentException
+  {
+    int dot1 = cond.indexOf('.');
+    int dot2 = dot1 < 0 ? -1 : cond.indexOf('.', dot1 + 1);
+    String attr = attribute(cond, dot1);
+    SearchOperator op = operator(cond, dot1, dot2);
+    String value = value(cond, dot2);
+    return new Condition(attr, op, value, scanValue(cond, value, op, process));
+  }
+
+  /**
+   * Extract and validate the attribute of a condition
+   * @param cond the condition
+   * @param dot1 index of the first dot
+   * @return the attribute
+   * @throws IllegalArgumentException if missing or invalid
+   */
+  static String attribute(String cond, int dot1) throws IllegalArgumentException
+  {
+    String attr = dot1 < 0 ? null : cond.substring(0, dot1);
+    if (StringUtils.isBlank(attr))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID_NOATTR", cond));
+    if (!isValidAttributeName(attr))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID_ATTR", cond));
+    return attr;
+  }
+
+  /**
+   * Extract and validate the operator of a condition
+   * @param cond the condition
+   * @param dot1 index of the first dot
+   * @param dot2 index of the second dot
+   * @return the operator
+   * @throws IllegalArgumentException if missing or not supported
+   */
+  static SearchOperator operator(String cond, int dot1, int dot2) throws IllegalArgumentException
+  {
+    String op = dot2 < 0 ? null : cond.substring(dot1 + 1, dot2);
+    if (StringUtils.isBlank(op))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID_NOOPER", cond));
+    SearchOperator operator = SearchUtils.getSearchOperator(op.toUpperCase());
+    if (operator == null)
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID_OP", op, cond));
+    return operator;
+  }
+
+  /**
+   * Extract the value of a condition, which may be a list
+   * @param cond the condition
+   * @param dot2 index of the second dot
+   * @return the full value
+   * @throws IllegalArgumentException if missing
+   */
+  static String value(String cond, int dot2) throws IllegalArgumentException
+  {
+    String value = dot2 < 0 ? null : cond.substring(dot2 + 1);
+    if (StringUtils.isBlank(value))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID_NOVAL", cond));
+    return value;
+  }
+
+  /**
+   * Validate a value in one traversal and optionally process it:
+   *   - the special characters ~ , ( ) must be escaped, except for commas separating list values
+   *   - for BETWEEN/NBETWEEN the value must be a 2 element list
+   *   - for LIKE/NLIKE unescaped % and _ are escaped and then * and ! are translated to % and _
+   *   - for other operators escapes are removed from the special characters, except from commas for
+   *     list operators, and trailing empty list values are dropped
+   * @param cond the condition, for messages
+   * @param value the value
+   * @param op the operator
+   * @param process true to return the processed value
+   * @return the processed value or null if process is false
+   * @throws IllegalArgumentException if the value is invalid
+   */
+  static String scanValue(String cond, String value, SearchOperator op, boolean process)
+    throws IllegalArgumentException
+  {
+    boolean like = op == SearchOperator.LIKE || op == SearchOperator.NLIKE;
+    boolean list = SearchUtils.listOpSet.contains(op);
+    StringBuilder out = process ? new StringBuilder(value.length() + 8) : null;
+    boolean invalid = false;
+    int element = 0;   // index of the current list value
+    int elements = 0;  // number of list values up to the last non-empty one
+    int outEnd = 0;    // length of the output at the end of the last non-empty list value
+    int n = value.length();
+    for (int i = 0; i < n; i++)
+    {
+      char c = value.charAt(i);
+      boolean escaped = isEscaped(value, i);
+      if (list && c == LIST_DELIMITER && !escaped)
+      {
+        element++;
+        if (process) out.append(c);
+        continue;
+      }
+      if (!escaped && isSpecialChar(c)) invalid = true;
+      elements = element + 1;
+      if (!process) continue;
+
+      if (like)
+      {
+        if (escaped) out.append(c);
+        else if (c == '%') out.append("\\%");
+        else if (c == '_') out.append("\\_");
+        else if (c == '*') out.append('%');
+        else if (c == '!') out.append('_');
+        else out.append(c);
+      }
+      // Drop an escape before a special character, except before a comma in a list
+      else if (c != ESCAPE || i + 1 >= n || !isSpecialChar(value.charAt(i + 1))
+               || (list && value.charAt(i + 1) == LIST_DELIMITER))
+        out.append(c);
+      outEnd = out.length();
+    }
+
+    if (invalid) throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID_VAL", cond));
+    if ((op == SearchOperator.BETWEEN || op == SearchOperator.NBETWEEN) && elements != 2)
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_COND_INVALID_OP2", op.name(), cond));
+    if (!process) return null;
+    if (list) out.setLength(outEnd);
+    return out.toString();
+  }
+
+  // A character is escaped when the one before it is the escape character
+  private static boolean isEscaped(String s, int i) { return i > 0 && s.charAt(i - 1) == ESCAPE; }
+
+  // Characters that must be escaped when appearing in a value
+  private static boolean isSpecialChar(char c) { return c == '~' || c == ',' || c == '(' || c == ')'; }
+
+  private static boolean isAsciiLetter(char c) { return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'); }
+
+  // Line terminators as defined by java.util.regex.Pattern
+  private static boolean isLineTerminator(char c)
+  {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  // ************************************************************************
+  // *********************** Condition **************************************
+  // ************************************************************************
+  /*
+   * A scanned condition
+   */
+  static final class Condition
+  {
+    final String attribute;
+    final SearchOperator op;
+    final String value;
+    final String processedValue;
+
+    private Condition(String attribute, SearchOperator op, String value, String processedValue)
+    {
+      this.attribute = attribute;
+      this.op = op;
+      this.value = value;
+      this.processedValue = processedValue;
+    }
+
+    // The processed condition as returned by SearchUtils.validateAndProcessSearchCondition()
+    @Override
+    public String toString() { return attribute + "." + op.name() + "." + processedValue; }
+  }
+}
@@ -0,0 +1,346 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.search.SearchUtils.SearchOperator;
+import edu.utexas.tacc.tapis.search.parser.ASTBinaryExpression;
+import edu.utexas.tacc.tapis.search.parser.ASTLeaf;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTParser;
+import edu.utexas.tacc.tapis.search.parser.ASTUnaryExpression;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Complexity limits for searches, checked before a search is validated against its columns and
+ *   sent to the database so that oversized searches are rejected early and cheaply.
+ *
+ * The limits are:
+ *   - maxLength: characters in the search text, checked before it is parsed or split
+ *   - maxLeaves: leaves of the AST as counted by ASTNode.countLeaves(), two per condition
+ *   - maxDepth: nesting levels of the AST. Each comparison, each NOT and each chain of the same
+ *     operator such as a AND b AND c counts as one level, so a AND (b OR NOT c) has 4 levels.
+ *   - maxListValues: values in the list of one IN or NIN condition
+ *   - maxWildcards: unescaped wildcards in the pattern of one LIKE or NLIKE condition
+ *   - maxCost: the cost estimate of the whole search, see Complexity
+ * A limit of 0 or less is not checked. Defaults can be overridden with the system properties
+ *   tapis.search.limits.<limit>, e.g. tapis.search.limits.maxLeaves, or by the setters.
+ *
+ * Searches in the list form (<cond>)~(<cond>)~ ... are measured by their conditions, two leaves each,
+ *   and maxDepth does not apply to them.
+ * Limits are checked in a single pass over the AST or the conditions, without recursion, and a
+ *   search that exceeds a limit is rejected with an IllegalArgumentException naming the limit.
+ *
+ * Configure an instance before sharing it, after that it is thread safe.
+ */
+public final class SearchLimits
+{
+  // ************************************************************************
+  // *********************** Constants **************************************
+  // ************************************************************************
+  public static final int DEFAULT_MAX_LENGTH = 8192;
+  public static final int DEFAULT_MAX_LEAVES = 200;
+  public static final int DEFAULT_MAX_DEPTH = 20;
+  public static final int DEFAULT_MAX_LIST_VALUES = 1000;
+  public static final int DEFAULT_MAX_WILDCARDS = 10;
+  public static final int DEFAULT_MAX_COST = 500;
+  public static final String PROPERTY_PREFIX = "tapis.search.limits.";
+
+  // Cost estimate weights, see Complexity
+  private static final int CONDITION_COST = 1;
+  private static final int LIST_VALUES_PER_COST = 10;
+  private static final int WILDCARD_COST = 2;
+  private static final int LEADING_WILDCARD_COST = 10;
+  private static final int OR_COST = 1;
+  private static final int NOT_COST = 1;
+
+  private static final char ESCAPE = '\\';
+
+  // ************************************************************************
+  // *********************** Fields *****************************************
+  // ************************************************************************
+  private int maxLength;
+  private int maxLeaves;
+  private int maxDepth;
+  private int maxListValues;
+  private int maxWildcards;
+  private int maxCost;
+
+  // ************************************************************************
+  // *********************** Constructors ***********************************
+  // ************************************************************************
+  private SearchLimits()
+  {
+    maxLength = Integer.getInteger(PROPERTY_PREFIX + "maxLength", DEFAULT_MAX_LENGTH);
+    maxLeaves = Integer.getInteger(PROPERTY_PREFIX + "maxLeaves", DEFAULT_MAX_LEAVES);
+    maxDepth = Integer.getInteger(PROPERTY_PREFIX + "maxDepth", DEFAULT_MAX_DEPTH);
+    maxListValues = Integer.getInteger(PROPERTY_PREFIX + "maxListValues", DEFAULT_MAX_LIST_VALUES);
+    maxWildcards = Integer.getInteger(PROPERTY_PREFIX + "maxWildcards", DEFAULT_MAX_WILDCARDS);
+    maxCost = Integer.getInteger(PROPERTY_PREFIX + "maxCost", DEFAULT_MAX_COST);
+  }
+
+  /** Limits with the default values, or those of the system properties if set */
+  public static SearchLimits defaultLimits() { return new SearchLimits(); }
+
+  /** Limits that are never exceeded */
+  public static SearchLimits unlimited()
+  {
+    return new SearchLimits().setMaxLength(0).setMaxLeaves(0).setMaxDepth(0).setMaxListValues(0)
+                             .setMaxWildcards(0).setMaxCost(0);
+  }
+
+  // ************************************************************************
+  // *********************** Public methods *********************************
+  // ************************************************************************
+
+  /**
+   * Check the length of search text, before it is parsed or split into conditions
+   * @param search the search text, may be null
+   * @throws IllegalArgumentException if the text is too long
+   */
+  public void checkLength(String search) throws IllegalArgumentException
+  {
+    if (search != null && exceeds(search.length(), maxLength))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_LIMIT_LENGTH", search.length(), maxLength));
+  }
+
+  /**
+   * Check the length of search text, parse it with ASTParser and check the AST
+   * @param search the search text
+   * @return the AST
+   * @throws IllegalArgumentException if a limit is exceeded
+   * @throws UnsupportedOperationException if the text does not parse
+   */
+  public ASTNode parse(String search) throws IllegalArgumentException, UnsupportedOperationException
+  {
+    checkLength(search);
+    ASTNode ast = ASTParser.parse(search);
+    check(ast);
+    return ast;
+  }
+
+  /**
+   * Check a search parsed by ASTParser
+   * @param ast the search
+   * @return the measured complexity
+   * @throws IllegalArgumentException if a limit is exceeded
+   */
+  public Complexity check(ASTNode ast) throws IllegalArgumentException
+  {
+    Complexity c = measure(ast);
+    if (exceeds(c.leaves, maxLeaves))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_LIMIT_LEAVES", c.leaves, maxLeaves));
+    if (exceeds(c.depth, maxDepth))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_LIMIT_DEPTH", c.depth, maxDepth));
+    checkConditionsAndCost(c);
+    return c;
+  }
+
+  /**
+   * Check a search list of the form (<cond>)~(<cond>)~ ... given as conditions of the form
+   *   <attr>.<op>.<value>, such as those returned by SearchUtils.extractAndValidateSearchList().
+   *   The conditions must be valid in form, their values are not processed.
+   * @param searchList the conditions
+   * @return the measured complexity
+   * @throws IllegalArgumentException if a limit is exceeded or a condition is not valid in form
+   */
+  public Complexity check(List<String> searchList) throws IllegalArgumentException
+  {
+    Complexity c = measure(searchList);
+    if (exceeds(c.length, maxLength))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_LIMIT_LENGTH", c.length, maxLength));
+    if (exceeds(c.leaves, maxLeaves))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_LIMIT_LEAVES", c.leaves, maxLeaves));
+    checkConditionsAndCost(c);
+    return c;
+  }
+
+  /**
+   * Measure the complexity of a search parsed by ASTParser without checking any limits
+   * @param ast the search
+   * @return the complexity
+   */
+  public static Complexity measure(ASTNode ast)
+  {
+    var c = new Complexity();
+    // Depth first, each node with the levels above it and the operator of the AND or OR group it is in
+    var frames = new ArrayDeque<Frame>();
+    frames.push(new Frame(ast, 0, null));
+    while (!frames.isEmpty())
+    {
+      Frame f = frames.pop();
+      if (f.node instanceof ASTLeaf) c.leaves++;
+      else if (f.node instanceof ASTUnaryExpression)
+      {
+        var u = (ASTUnaryExpression) f.node;
+        if ("NOT".equals(u.getOp()))
+        {
+          c.cost += NOT_COST;
+          c.depth = Math.max(c.depth, f.depth + 1);
+          frames.push(new Frame(u.getNode(), f.depth + 1, null));
+        }
+        else frames.push(new Frame(u.getNode(), f.depth, f.group));
+      }
+      else if (f.node instanceof ASTBinaryExpression)
+      {
+        var b = (ASTBinaryExpression) f.node;
+        String group = null;
+        int depth = f.depth + 1;
+        if (SearchCondition.isLogical(b.getOp()))
+        {
+          // A chain such as a AND b AND c is one level
+          group = b.getOp();
+          if (group.equals(f.group)) depth = f.depth;
+          if ("OR".equals(group)) c.cost += OR_COST;
+        }
+        else if (b.getRight() instanceof ASTLeaf)
+          addCondition(c, SearchUtils.getSearchOperator(b.getOp()), ((ASTLeaf) b.getRight()).getValue(), false);
+        c.depth = Math.max(c.depth, depth);
+        frames.push(new Frame(b.getRight(), depth, group));
+        frames.push(new Frame(b.getLeft(), depth, group));
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Measure the complexity of a search list without checking any limits, see check(List)
+   * @param searchList the conditions
+   * @return the complexity
+   * @throws IllegalArgumentException if a condition is not valid in form
+   */
+  public static Complexity measure(List<String> searchList) throws IllegalArgumentException
+  {
+    var c = new Complexity();
+    for (String cond : searchList)
+    {
+      c.length += cond.length();
+      var scanned = SearchConditionScanner.scan(cond, false);
+      c.leaves += 2;
+      addCondition(c, scanned.op, scanned.value, true);
+    }
+    return c;
+  }
+
+  // Getters and setters, setters return this for chaining
+  public int getMaxLength() { return maxLength; }
+  public SearchLimits setMaxLength(int maxLength) { this.maxLength = maxLength; return this; }
+  public int getMaxLeaves() { return maxLeaves; }
+  public SearchLimits setMaxLeaves(int maxLeaves) { this.maxLeaves = maxLeaves; return this; }
+  public int getMaxDepth() { return maxDepth; }
+  public SearchLimits setMaxDepth(int maxDepth) { this.maxDepth = maxDepth; return this; }
+  public int getMaxListValues() { return maxListValues; }
+  public SearchLimits setMaxListValues(int maxListValues) { this.maxListValues = maxListValues; return this; }
+  public int getMaxWildcards() { return maxWildcards; }
+  public SearchLimits setMaxWildcards(int maxWildcards) { this.maxWildcards = maxWildcards; return this; }
+  public int getMaxCost() { return maxCost; }
+  public SearchLimits setMaxCost(int maxCost) { this.maxCost = maxCost; return this; }
+
+  // ************************************************************************
+  // **************************  Private Methods  ***************************
+  // ************************************************************************
+
+  private void checkConditionsAndCost(Complexity c)
+  {
+    if (exceeds(c.maxListValues, maxListValues))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_LIMIT_LIST_VALUES", c.maxListValues, maxListValues));
+    if (exceeds(c.maxWildcards, maxWildcards))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_LIMIT_WILDCARDS", c.maxWildcards, maxWildcards));
+    if (exceeds(c.cost, maxCost))
+      throw new IllegalArgumentException(MsgUtils.getMsg("SEARCH_LIMIT_COST", c.cost, maxCost));
+  }
+
+  private static boolean exceeds(long value, int limit) { return limit > 0 && value > limit; }
+
+  /*
+   * Add the cost of a condition. Values from ASTParser join list values with commas and use the SQL
+   *   wildcards % and _. Unprocessed values of a search list escape commas with \ and use the Tapis
+   *   wildcards * and !.
+   */
+  private static void addCondition(Complexity c, SearchOperator op, String value, boolean tapisWildcards)
+  {
+    c.conditions++;
+    c.cost += CONDITION_COST;
+    if (op == null || value == null) return;
+    if (op == SearchOperator.IN || op == SearchOperator.NIN)
+    {
+      int values = 1;
+      for (int i = 0; i < value.length(); i++)
+        if (value.charAt(i) == ',' && !(tapisWildcards && isEscaped(value, i))) values++;
+      c.maxListValues = Math.max(c.maxListValues, values);
+      c.cost += (values + LIST_VALUES_PER_COST - 1) / LIST_VALUES_PER_COST;
+    }
+    else if (op == SearchOperator.LIKE || op == SearchOperator.NLIKE)
+    {
+      char many = tapisWildcards ? '*' : '%';
+      char one = tapisWildcards ? '!' : '_';
+      int wildcards = 0;
+      for (int i = 0; i < value.length(); i++)
+      {
+        char ch = value.charAt(i);
+        if ((ch == many || ch == one) && !isEscaped(value, i)) wildcards++;
+      }
+      c.maxWildcards = Math.max(c.maxWildcards, wildcards);
+      c.cost += wildcards * WILDCARD_COST;
+      // A pattern that starts with a wildcard cannot use an index
+      if (!value.isEmpty() && (value.charAt(0) == many || value.charAt(0) == one)) c.cost += LEADING_WILDCARD_COST;
+    }
+  }
+
+  // A character is escaped when the character before it is \, as in SearchConditionScanner
+  private static boolean isEscaped(String s, int i) { return i > 0 && s.charAt(i - 1) == ESCAPE; }
+
+  // A node of the AST waiting to be measured
+  private static final class Frame
+  {
+    private final ASTNode node;
+    private final int depth;
+    private final String group;
+    private Frame(ASTNode node, int depth, String group) { this.node = node; this.depth = depth; this.group = group; }
+  }
+
+  // ************************************************************************
+  // *********************** Complexity *************************************
+  // ************************************************************************
+  /**
+   * The measured complexity of a search.
+   *
+   * The cost is a rough estimate of the work the search gives the database, for rejecting searches
+   *   that pass the other limits but are expensive as a whole:
+   *   - 1 for each condition
+   *   - 1 for each 10 values, rounded up, in an IN or NIN list
+   *   - 2 for each wildcard in a LIKE or NLIKE pattern, and 10 more if the pattern starts with one
+   *   - 1 for each OR and each NOT
+   */
+  public static final class Complexity
+  {
+    private long length;
+    private int leaves;
+    private int depth;
+    private int conditions;
+    private int maxListValues;
+    private int maxWildcards;
+    private long cost;
+
+    private Complexity() { }
+
+    /** Characters in the conditions of a search list, 0 for an AST */
+    public long getLength() { return length; }
+    public int getLeaves() { return leaves; }
+    /** Depth of an AST, 0 for a search list */
+    public int getDepth() { return depth; }
+    public int getConditions() { return conditions; }
+    /** Values in the longest IN or NIN list */
+    public int getMaxListValues() { return maxListValues; }
+    /** Wildcards in the LIKE or NLIKE pattern with the most */
+    public int getMaxWildcards() { return maxWildcards; }
+    public long getCost() { return cost; }
+
+    @Override
+    public String toString()
+    {
+      return "leaves=" + leaves + " depth=" + depth + " conditions=" + conditions + " maxListValues=" + maxListValues +
+             " maxWildcards=" + maxWildcards + " cost=" + cost;
+    }
+  }
+}
@@ -0,0 +1,594 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.search.SearchUtils.SearchOperator;
+import edu.utexas.tacc.tapis.search.parser.ASTBinaryExpression;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTUnaryExpression;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoublePredicate;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Compile a search into a Predicate that matches objects of a class in memory, for filtering
+ *   objects that have already been loaded without going back to the database.
+ * A search is either an ASTNode from ASTParser or a list of <attr>.<op>.<value> conditions such
+ *   as those returned by SearchUtils.extractAndValidateSearchList(), which are ANDed together.
+ *
+ * Work is done once at compile time, not per object:
+ *   - Attributes are resolved to a getter (getX() or isX()), accessor method (x()) or field through
+ *     method handles. Attribute names may be camelCase or snake_case. Members must be accessible
+ *     to the lookup, which by default only allows public members of public classes.
+ *   - Values are converted to the attribute's type. Primitive numeric and boolean attributes are
+ *     compared without boxing.
+ *   - LIKE patterns are reduced to equals, startsWith, endsWith or contains when possible and
+ *     otherwise compiled to a regex.
+ *   - NOT is pushed down to the comparisons.
+ *
+ * Matching follows SQL: a comparison with a null attribute is never true, including NEQ, NIN,
+ *   NLIKE and NBETWEEN, and NOT of such a comparison is not true either. Operators must be allowed
+ *   for the attribute's type by SearchUtils.ALLOWED_OPS_BY_TYPE. Strings compare by String.compareTo,
+ *   which may order differently than a database collation.
+ *
+ * Attribute types and the SQL types they are treated as:
+ *   String, enums (by name)                       -> VARCHAR
+ *   byte, short, int, long and their wrappers     -> BIGINT
+ *   float, double and their wrappers              -> DOUBLE
+ *   BigDecimal                                    -> DECIMAL
+ *   boolean, Boolean                              -> BOOLEAN
+ *   Instant, LocalDateTime (UTC), OffsetDateTime,
+ *     ZonedDateTime, Date                         -> TIMESTAMP
+ *   Collection, Object[] (elements by toString()) -> ARRAY
+ *
+ * Instances are thread safe and the predicates they return may be shared.
+ */
+public final class SearchPredicateCompiler<T>
+{
+  // ************************************************************************
+  // *********************** Enums ******************************************
+  // ************************************************************************
+
+  // Attribute categories and the sql type used to check operators and convert values
+  private enum Kind
+  {
+    STRING(Types.VARCHAR), ENUM(Types.VARCHAR), LONG(Types.BIGINT), DOUBLE(Types.DOUBLE),
+    DECIMAL(Types.DECIMAL), BOOLEAN(Types.BOOLEAN), TIMESTAMP(Types.TIMESTAMP), ARRAY(Types.ARRAY);
+
+    private final int sqlType;
+    Kind(int sqlType) { this.sqlType = sqlType; }
+  }
+
+  // ************************************************************************
+  // *********************** Fields *****************************************
+  // ************************************************************************
+  private final Class<T> type;
+  private final MethodHandles.Lookup lookup;
+
+  // Attribute name to accessor, resolved once per compiler
+  private final Map<String, Accessor> accessors = new ConcurrentHashMap<>();
+
+  // ************************************************************************
+  // *********************** Constructors ***********************************
+  // ************************************************************************
+
+  /**
+   * Compiler for a public class
+   * @param type class of the objects to match
+   */
+  public SearchPredicateCompiler(Class<T> type)
+  {
+    this(type, MethodHandles.publicLookup());
+  }
+
+  /**
+   * Compiler using the caller's lookup, so that classes and members the caller can access are
+   *   supported, e.g. pass MethodHandles.lookup() for a package-private class.
+   * @param type class of the objects to match
+   * @param lookup lookup used to access attributes
+   */
+  public SearchPredicateCompiler(Class<T> type, MethodHandles.Lookup lookup)
+  {
+    this.type = type;
+    this.lookup = lookup;
+  }
+
+  // ************************************************************************
+  // *********************** Public methods *********************************
+  // ************************************************************************
+
+  /**
+   * Compile a search parsed by ASTParser
+   * @param ast the search
+   * @return predicate matching objects that satisfy the search
+   * @throws IllegalArgumentException if the search is not supported or a value is invalid
+   */
+  public Predicate<T> compile(ASTNode ast) throws IllegalArgumentException
+  {
+    return node(ast, false);
+  }
+
+  /**
+   * Compile a list of conditions of the form <attr>.<op>.<value>, all of which must match
+   * @param conditions the conditions, an empty list matches everything
+   * @return predicate matching objects that satisfy every condition
+   * @throws IllegalArgumentException if a condition is invalid
+   */
+  public Predicate<T> compile(List<String> conditions) throws IllegalArgumentException
+  {
+    Predicate<T> result = null;
+    if (conditions != null)
+      for (String cond : conditions)
+      {
+        Predicate<T> p = condition(SearchCondition.fromString(cond), false);
+        result = result == null ? p : result.and(p);
+      }
+    return result == null ? obj -> true : result;
+  }
+
+  // ************************************************************************
+  // **************************  Private Methods  ***************************
+  // ************************************************************************
+
+  /*
+   * Compile a node, negating it if it is under an odd number of NOTs
+   */
+  private Predicate<T> node(ASTNode node, boolean negate)
+  {
+    if (SearchCondition.isNot(node)) return node(((ASTUnaryExpression) node).getNode(), !negate);
+    if (!(node instanceof ASTBinaryExpression)) throw SearchCondition.unsupported(node);
+    var b = (ASTBinaryExpression) node;
+    if (!SearchCondition.isLogical(b.getOp())) return condition(SearchCondition.fromAst(b), negate);
+
+    // De Morgan: NOT (a AND b) = NOT a OR NOT b
+    Predicate<T> left = node(b.getLeft(), negate);
+    Predicate<T> right = node(b.getRight(), negate);
+    return "AND".equals(b.getOp()) != negate ? left.and(right) : left.or(right);
+  }
+
+  /*
+   * Compile a comparison
+   */
+  private Predicate<T> condition(SearchCondition cond, boolean negate)
+  {
+    Accessor a = accessor(cond);
+    cond.checkOperator(a.kind.sqlType);
+    SearchOperator op = negate ? SearchCondition.negate(cond.op) : cond.op;
+    switch (a.kind)
+    {
+      case LONG:
+      {
+        long[] values = new long[cond.values.size()];
+        for (int i = 0; i < values.length; i++) values[i] = (Long) cond.toValue(Types.BIGINT, cond.values.get(i));
+        LongPredicate test = longTest(op, values);
+        MethodHandle h = a.handle;
+        if (a.primitive) return obj -> test.test(getLong(h, obj));
+        return obj -> { Object v = get(h, obj); return v != null && test.test(((Number) v).longValue()); };
+      }
+      case DOUBLE:
+      {
+        double[] values = new double[cond.values.size()];
+        for (int i = 0; i < values.length; i++) values[i] = (Double) cond.toValue(Types.DOUBLE, cond.values.get(i));
+        DoublePredicate test = doubleTest(op, values);
+        MethodHandle h = a.handle;
+        if (a.primitive) return obj -> test.test(getDouble(h, obj));
+        return obj -> { Object v = get(h, obj); return v != null && test.test(((Number) v).doubleValue()); };
+      }
+      case BOOLEAN:
+      {
+        boolean value = (Boolean) cond.toValue(Types.BOOLEAN, cond.values.get(0));
+        boolean match = (op == SearchOperator.EQ) == value;
+        MethodHandle h = a.handle;
+        if (a.primitive) return obj -> getBoolean(h, obj) == match;
+        return obj -> { Object v = get(h, obj); return v != null && (Boolean) v == match; };
+      }
+      case ARRAY:
+        return arrayTest(a.handle, op, new HashSet<>(cond.values));
+      case DECIMAL:
+        return comparableTest(a.handle, op, cond, v -> (BigDecimal) cond.toValue(Types.DECIMAL, v), v -> (BigDecimal) v);
+      case TIMESTAMP:
+        return comparableTest(a.handle, op, cond,
+                              v -> ((LocalDateTime) cond.toValue(Types.TIMESTAMP, v)).toInstant(ZoneOffset.UTC),
+                              SearchPredicateCompiler::toInstant);
+      case ENUM:
+        return stringTest(a.handle, op, cond, v -> ((Enum<?>) v).name());
+      default:
+        return stringTest(a.handle, op, cond, v -> (String) v);
+    }
+  }
+
+  /*
+   * Tests of a long attribute value
+   */
+  private static LongPredicate longTest(SearchOperator op, long[] values)
+  {
+    long v0 = values[0];
+    long v1 = values.length > 1 ? values[1] : 0;
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    switch (op)
+    {
+      case EQ: return v -> v == v0;
+      case NEQ: return v -> v != v0;
+      case LT: return v -> v < v0;
+      case LTE: return v -> v <= v0;
+      case GT: return v -> v > v0;
+      case GTE: return v -> v >= v0;
+      case BETWEEN: return v -> v >= v0 && v <= v1;
+      case NBETWEEN: return v -> v < v0 || v > v1;
+      case IN: return v -> Arrays.binarySearch(sorted, v) >= 0;
+      default: return v -> Arrays.binarySearch(sorted, v) < 0;
+    }
+  }
+
+  /*
+   * Tests of a double attribute value
+   */
+  private static DoublePredicate doubleTest(SearchOperator op, double[] values)
+  {
+    double v0 = values[0];
+    double v1 = values.length > 1 ? values[1] : 0;
+    switch (op)
+    {
+      case EQ: return v -> v == v0;
+      case NEQ: return v -> v != v0;
+      case LT: return v -> v < v0;
+      case LTE: return v -> v <= v0;
+      case GT: return v -> v > v0;
+      case GTE: return v -> v >= v0;
+      case BETWEEN: return v -> v >= v0 && v <= v1;
+      case NBETWEEN: return v -> v < v0 || v > v1;
+      case IN: return v -> { for (double x : values) if (v == x) return true; return false; };
+      default: return v -> { for (double x : values) if (v == x) return false; return true; };
+    }
+  }
+
+  /*
+   * Tests of an attribute with a natural order, whose values are converted by normalize
+   */
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private Predicate<T> comparableTest(MethodHandle h, SearchOperator op, SearchCondition cond,
+                                      Function<String, Comparable> parse, Function<Object, Comparable> normalize)
+  {
+    Comparable[] values = new Comparable[cond.values.size()];
+    for (int i = 0; i < values.length; i++) values[i] = parse.apply(cond.values.get(i));
+    Predicate<Comparable> test = compareTest(op, values);
+    return obj -> { Object v = get(h, obj); return v != null && test.test(normalize.apply(v)); };
+  }
+
+  /*
+   * Tests of a string or enum attribute, which may also use LIKE
+   */
+  private Predicate<T> stringTest(MethodHandle h, SearchOperator op, SearchCondition cond, Function<Object, String> str)
+  {
+    Predicate<String> test;
+    if (op == SearchOperator.LIKE) test = like(cond.values.get(0));
+    else if (op == SearchOperator.NLIKE) test = like(cond.values.get(0)).negate();
+    else if (op == SearchOperator.IN || op == SearchOperator.NIN)
+    {
+      Set<String> set = Set.copyOf(cond.values);
+      test = op == SearchOperator.IN ? set::contains : v -> !set.contains(v);
+    }
+    else
+    {
+      @SuppressWarnings({"rawtypes", "unchecked"})
+      Predicate<String> cmp = (Predicate) compareTest(op, cond.values.toArray(new String[0]));
+      test = cmp;
+    }
+    Predicate<String> t = test;
+    return obj -> { Object v = get(h, obj); return v != null && t.test(str.apply(v)); };
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private static Predicate<Comparable> compareTest(SearchOperator op, Comparable[] values)
+  {
+    Comparable v0 = values[0];
+    Comparable v1 = values.length > 1 ? values[1] : null;
+    switch (op)
+    {
+      case EQ: return v -> v.compareTo(v0) == 0;
+      case NEQ: return v -> v.compareTo(v0) != 0;
+      case LT: return v -> v.compareTo(v0) < 0;
+      case LTE: return v -> v.compareTo(v0) <= 0;
+      case GT: return v -> v.compareTo(v0) > 0;
+      case GTE: return v -> v.compareTo(v0) >= 0;
+      case BETWEEN: return v -> v.compareTo(v0) >= 0 && v.compareTo(v1) <= 0;
+      case NBETWEEN: return v -> v.compareTo(v0) < 0 || v.compareTo(v1) > 0;
+      case IN: return v -> { for (Comparable x : values) if (v.compareTo(x) == 0) return true; return false; };
+      default: return v -> { for (Comparable x : values) if (v.compareTo(x) == 0) return false; return true; };
+    }
+  }
+
+  /*
+   * Tests of a collection or array attribute. IN matches when any element is in the list,
+   *   CONTAINS when every value in the list is an element.
+   */
+  private Predicate<T> arrayTest(MethodHandle h, SearchOperator op, Set<String> values)
+  {
+    Predicate<Object> test;
+    switch (op)
+    {
+      case IN: test = v -> anyElementIn(v, values); break;
+      case NIN: test = v -> !anyElementIn(v, values); break;
+      case CONTAINS: test = v -> containsAll(v, values); break;
+      default: test = v -> !containsAll(v, values); break;
+    }
+    return obj -> { Object v = get(h, obj); return v != null && test.test(v); };
+  }
+
+  private static boolean anyElementIn(Object array, Set<String> values)
+  {
+    for (Object e : elements(array)) if (e != null && values.contains(e.toString())) return true;
+    return false;
+  }
+
+  private static boolean containsAll(Object array, Set<String> values)
+  {
+    var found = new HashSet<String>();
+    for (Object e : elements(array)) if (e != null && values.contains(e.toString())) found.add(e.toString());
+    return found.size() == values.size();
+  }
+
+  private static Iterable<?> elements(Object array)
+  {
+    return array instanceof Collection ? (Collection<?>) array : Arrays.asList((Object[]) array);
+  }
+
+  /*
+   * Compile an SQL LIKE pattern, where % matches any characters, _ matches one character
+   *   and \ escapes the next character
+   */
+  static Predicate<String> like(String pattern)
+  {
+    var literal = new StringBuilder();
+    var regex = new StringBuilder();
+    int percents = 0;
+    boolean underscore = false, leading = false, trailing = false;
+    for (int i = 0; i < pattern.length(); i++)
+    {
+      char c = pattern.charAt(i);
+      if (c == '\\' && i + 1 < pattern.length())
+      {
+        c = pattern.charAt(++i);
+        literal.append(c);
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+      else if (c == '%')
+      {
+        percents++;
+        if (i == 0) leading = true;
+        if (i == pattern.length() - 1) trailing = true;
+        regex.append(".*");
+      }
+      else if (c == '_')
+      {
+        underscore = true;
+        regex.append('.');
+      }
+      else
+      {
+        literal.append(c);
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+
+    // Most patterns only have wildcards at the ends
+    String s = literal.toString();
+    if (!underscore && percents == 0) return v -> v.equals(s);
+    if (!underscore && percents == 1 && trailing) return v -> v.startsWith(s);
+    if (!underscore && percents == 1 && leading) return v -> v.endsWith(s);
+    if (!underscore && percents == 2 && leading && trailing && pattern.length() > 1) return v -> v.contains(s);
+    Pattern p = Pattern.compile(regex.toString(), Pattern.DOTALL);
+    return v -> p.matcher(v).matches();
+  }
+
+  private static Comparable<?> toInstant(Object v)
+  {
+    if (v instanceof Instant) return (Instant) v;
+    if (v instanceof LocalDateTime) return ((LocalDateTime) v).toInstant(ZoneOffset.UTC);
+    if (v instanceof OffsetDateTime) return ((OffsetDateTime) v).toInstant();
+    if (v instanceof ZonedDateTime) return ((ZonedDateTime) v).toInstant();
+    if (v instanceof Timestamp) return ((Timestamp) v).toInstant();
+    return Instant.ofEpochMilli(((Date) v).getTime());
+  }
+
+  // ------------------------------------------------------------------------
+  // Attribute access
+  // ------------------------------------------------------------------------
+
+  /*
+   * A resolved attribute. The handle takes an Object and returns a primitive long, double or
+   *   boolean when primitive is set and an Object otherwise.
+   */
+  private static final class Accessor
+  {
+    private final Kind kind;
+    private final MethodHandle handle;
+    private final boolean primitive;
+
+    private Accessor(Kind kind, MethodHandle handle, boolean primitive)
+    {
+      this.kind = kind;
+      this.handle = handle;
+      this.primitive = primitive;
+    }
+  }
+
+  private Accessor accessor(SearchCondition cond)
+  {
+    Accessor a = accessors.get(cond.attribute);
+    if (a == null)
+    {
+      a = resolve(cond);
+      accessors.putIfAbsent(cond.attribute, a);
+    }
+    return a;
+  }
+
+  /*
+   * Find the getter, accessor method or field for an attribute and adapt its handle
+   */
+  private Accessor resolve(SearchCondition cond)
+  {
+    String attr = cond.attribute;
+    String camel = snakeToCamel(attr);
+    MethodHandle mh = null;
+    Class<?> rt = null;
+    try
+    {
+      for (String name : camel.equals(attr) ? List.of(attr) : List.of(attr, camel))
+      {
+        String cap = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (String methodName : List.of("get" + cap, "is" + cap, name))
+        {
+          Method m = findMethod(methodName);
+          if (m == null || (methodName.startsWith("is") && !methodName.equals(name) && m.getReturnType() != boolean.class
+                            && m.getReturnType() != Boolean.class)) continue;
+          mh = lookup.unreflect(m);
+          rt = m.getReturnType();
+          break;
+        }
+        if (mh != null) break;
+        Field f = findField(name);
+        if (f != null)
+        {
+          mh = lookup.unreflectGetter(f);
+          rt = f.getType();
+          break;
+        }
+      }
+    }
+    catch (IllegalAccessException e)
+    {
+      String msg = MsgUtils.getMsg("SEARCH_PRED_INACCESSIBLE_ATTR", attr, type.getName());
+      throw new IllegalArgumentException(msg, e);
+    }
+    if (mh == null)
+    {
+      String msg = MsgUtils.getMsg("SEARCH_AST_UNKNOWN_ATTR", attr, cond.toString());
+      throw new IllegalArgumentException(msg);
+    }
+
+    Kind kind = kindOf(rt);
+    if (kind == null)
+    {
+      String msg = MsgUtils.getMsg("SEARCH_PRED_UNSUPPORTED_TYPE", attr, rt.getName());
+      throw new IllegalArgumentException(msg);
+    }
+    boolean primitive = rt.isPrimitive();
+    Class<?> adapted = !primitive ? Object.class : kind == Kind.LONG ? long.class : kind == Kind.DOUBLE ? double.class : boolean.class;
+    return new Accessor(kind, mh.asType(MethodType.methodType(adapted, Object.class)), primitive);
+  }
+
+  /*
+   * Find an instance method or field by name, public ones first and then any declared by the class
+   *   or a superclass. Access is checked when the lookup unreflects it.
+   */
+  private Method findMethod(String name)
+  {
+    Method m = null;
+    try { m = type.getMethod(name); }
+    catch (NoSuchMethodException e)
+    {
+      for (Class<?> c = type; c != null && m == null; c = c.getSuperclass())
+        try { m = c.getDeclaredMethod(name); } catch (NoSuchMethodException e2) { /* try the superclass */ }
+    }
+    if (m == null || Modifier.isStatic(m.getModifiers()) || m.getReturnType() == void.class) return null;
+    return m;
+  }
+
+  private Field findField(String name)
+  {
+    Field f = null;
+    try { f = type.getField(name); }
+    catch (NoSuchFieldException e)
+    {
+      for (Class<?> c = type; c != null && f == null; c = c.getSuperclass())
+        try { f = c.getDeclaredField(name); } catch (NoSuchFieldException e2) { /* try the superclass */ }
+    }
+    return f == null || Modifier.isStatic(f.getModifiers()) ? null : f;
+  }
+
+  private static Kind kindOf(Class<?> c)
+  {
+    if (c == String.class) return Kind.STRING;
+    if (c.isEnum()) return Kind.ENUM;
+    if (c == long.class || c == int.class || c == short.class || c == byte.class || c == Long.class
+        || c == Integer.class || c == Short.class || c == Byte.class) return Kind.LONG;
+    if (c == double.class || c == float.class || c == Double.class || c == Float.class) return Kind.DOUBLE;
+    if (c == BigDecimal.class) return Kind.DECIMAL;
+    if (c == boolean.class || c == Boolean.class) return Kind.BOOLEAN;
+    if (c == Instant.class || c == LocalDateTime.class || c == OffsetDateTime.class || c == ZonedDateTime.class
+        || Date.class.isAssignableFrom(c)) return Kind.TIMESTAMP;
+    if (Collection.class.isAssignableFrom(c) || (c.isArray() && !c.getComponentType().isPrimitive())) return Kind.ARRAY;
+    return null;
+  }
+
+  private static String snakeToCamel(String s)
+  {
+    if (s.indexOf('_') < 0) return s;
+    var sb = new StringBuilder(s.length());
+    boolean upper = false;
+    for (char c : s.toCharArray())
+    {
+      if (c == '_') { upper = sb.length() > 0; continue; }
+      sb.append(upper ? Character.toUpperCase(c) : c);
+      upper = false;
+    }
+    return sb.toString();
+  }
+
+  // Invoke adapted handles, passing on what the attribute accessor throws
+  private static Object get(MethodHandle h, Object obj)
+  {
+    try { return (Object) h.invokeExact(obj); }
+    catch (RuntimeException | Error e) { throw e; }
+    catch (Throwable t) { throw new UndeclaredThrowableException(t); }
+  }
+
+  private static long getLong(MethodHandle h, Object obj)
+  {
+    try { return (long) h.invokeExact(obj); }
+    catch (RuntimeException | Error e) { throw e; }
+    catch (Throwable t) { throw new UndeclaredThrowableException(t); }
+  }
+
+  private static double getDouble(MethodHandle h, Object obj)
+  {
+    try { return (double) h.invokeExact(obj); }
+    catch (RuntimeException | Error e) { throw e; }
+    catch (Throwable t) { throw new UndeclaredThrowableException(t); }
+  }
+
+  private static boolean getBoolean(MethodHandle h, Object obj)
+  {
+    try { return (boolean) h.invokeExact(obj); }
+    catch (RuntimeException | Error e) { throw e; }
+    catch (Throwable t) { throw new UndeclaredThrowableException(t); }
+  }
+}
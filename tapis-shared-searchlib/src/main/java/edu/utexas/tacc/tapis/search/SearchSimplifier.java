@@ -0,0 +1,694 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.search.SearchUtils.SearchOperator;
+import edu.utexas.tacc.tapis.search.parser.ASTBinaryExpression;
+import edu.utexas.tacc.tapis.search.parser.ASTLeaf;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTUnaryExpression;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Normalize and simplify an ASTNode from ASTParser into an equivalent search with fewer terms and
+ *   one canonical form, so that searches that differ only in how they are written compile to the
+ *   same SQL and can share a cache entry keyed by getCanonicalKey().
+ *
+ * The rewrites are:
+ *   - NOT is pushed down to the comparisons by negating their operators, NOT port > 5 -> port <= 5
+ *   - nested AND and OR are flattened and their terms sorted, redundant parentheses disappear
+ *   - duplicate terms are removed, a AND a -> a, and so are absorbed ones, a AND (a OR b) -> a
+ *   - IN and NIN lists are sorted without duplicates, lists of one value become EQ and NEQ
+ *   - comparisons of the same numeric, timestamp or boolean column are merged:
+ *       AND: port > 5 AND port > 10     -> port > 10
+ *            port >= 1 AND port <= 9    -> port BETWEEN 1 AND 9
+ *            port IN (1,2,3) AND port <> 2 -> port IN (1,3)
+ *       OR:  port > 5 OR port > 10      -> port > 5
+ *            port = 1 OR port IN (2,3)  -> port IN (1,2,3)
+ *   - EQ and IN of the same string column are merged under OR, owner = 'a' OR owner = 'b' -> owner IN ('a','b')
+ *   - contradictions such as port > 10 AND port < 5 match nothing, they are dropped from an OR and
+ *     make an AND match nothing
+ *
+ * The result is true for exactly the same rows as the original under SQL three valued logic, where a
+ *   comparison with a null column is unknown, and so matches the same objects in SearchPredicateCompiler.
+ *   The rewrites keep unknown results unknown, except that a contradiction becomes false. Once NOT is
+ *   pushed down a contradiction is only ever under AND and OR, where that cannot change which rows
+ *   are selected. To be safe under any database collation and precision:
+ *   - strings are only compared for equality, and only merged under OR
+ *   - NaN, timestamps with digits past microseconds and values that don't convert to the column
+ *     type are not merged
+ *
+ * Attributes are replaced by their column names and merged values are written in one form, port = '022'
+ *   -> port = 22. Terms that are not comparisons of a known column are kept as they are, and the
+ *   contents of a NOT that cannot be pushed down are not simplified. The result is not validated,
+ *   compile it with SearchSqlCompiler or SearchPredicateCompiler as usual. Note that a contradiction
+ *   may remove terms that would have failed validation.
+ *
+ * Instances are thread safe.
+ */
+public final class SearchSimplifier
+{
+  // ************************************************************************
+  // *********************** Constants **************************************
+  // ************************************************************************
+
+  // Types whose values are ordered the same way in Java and in the database
+  private static final Set<Integer> ORDERED_TYPES =
+          Set.of(Types.INTEGER, Types.BIGINT, Types.SMALLINT, Types.TINYINT, Types.FLOAT, Types.DOUBLE, Types.REAL,
+                 Types.NUMERIC, Types.DECIMAL, Types.DATE, Types.TIMESTAMP, Types.BOOLEAN);
+  private static final Set<Integer> STRING_TYPES = Set.of(Types.CHAR, Types.VARCHAR);
+
+  // Type of a comparison of an unknown attribute
+  private static final int NO_TYPE = Integer.MIN_VALUE;
+
+  private static final Comparator<Object> VALUE_ORDER = SearchSimplifier::compare;
+
+  // Matches nothing
+  private static final Term FALSE = new Term("F")
+  {
+    @Override
+    ASTNode toAst() { return null; }
+  };
+
+  // ************************************************************************
+  // *********************** Fields *****************************************
+  // ************************************************************************
+
+  // Column name to java.sql.Types code
+  private final Map<String, Integer> columnTypes;
+
+  // ************************************************************************
+  // *********************** Constructors ***********************************
+  // ************************************************************************
+
+  /**
+   * @param columnTypes map of searchable column name to java.sql.Types code
+   */
+  public SearchSimplifier(Map<String, Integer> columnTypes)
+  {
+    this.columnTypes = new HashMap<>(columnTypes);
+  }
+
+  // ************************************************************************
+  // *********************** Public methods *********************************
+  // ************************************************************************
+
+  /**
+   * Simplify a search
+   * @param ast search parsed by ASTParser
+   * @return the simplified search and its canonical key
+   * @throws IllegalArgumentException if the search is null
+   */
+  public Simplified simplify(ASTNode ast)
+  {
+    Term term = term(ast, false);
+    return new Simplified(term.toAst(), term.key);
+  }
+
+  /**
+   * The canonical key of a search, equal for searches that simplify to the same form
+   * @param ast search parsed by ASTParser
+   * @return the key
+   */
+  public String canonicalKey(ASTNode ast) { return term(ast, false).key; }
+
+  // ************************************************************************
+  // **************************  Private Methods  ***************************
+  // ************************************************************************
+
+  /*
+   * Simplify a node, negating it if it is under an odd number of NOTs
+   */
+  private Term term(ASTNode node, boolean negate)
+  {
+    if (node == null) throw SearchCondition.unsupported(null);
+    if (SearchCondition.isNot(node)) return term(((ASTUnaryExpression) node).getNode(), !negate);
+    if (!(node instanceof ASTBinaryExpression)) return new Other(node, negate);
+    var b = (ASTBinaryExpression) node;
+    if (SearchCondition.isLogical(b.getOp())) return junction(b, negate);
+    SearchCondition cond;
+    try { cond = SearchCondition.fromAst(b); }
+    catch (IllegalArgumentException e) { return new Other(node, negate); }
+    return comparison(cond, negate ? SearchCondition.negate(cond.op) : cond.op);
+  }
+
+  /*
+   * Collect the terms of a chain of the same operator without recursing down the chain, which the
+   *   parser builds left deep. Under NOT the chain of NOT (a OR b) is NOT a AND NOT b.
+   */
+  private Term junction(ASTBinaryExpression top, boolean negate)
+  {
+    boolean and = "AND".equals(top.getOp()) != negate;
+    var terms = new ArrayList<Term>();
+    Deque<ASTNode> nodes = new ArrayDeque<>();
+    Deque<Boolean> negates = new ArrayDeque<>();
+    nodes.push(top);
+    negates.push(negate);
+    while (!nodes.isEmpty())
+    {
+      ASTNode node = nodes.pop();
+      boolean neg = negates.pop();
+      while (SearchCondition.isNot(node))
+      {
+        node = ((ASTUnaryExpression) node).getNode();
+        neg = !neg;
+      }
+      if (node instanceof ASTBinaryExpression && SearchCondition.isLogical(((ASTBinaryExpression) node).getOp())
+          && ("AND".equals(((ASTBinaryExpression) node).getOp()) != neg) == and)
+      {
+        nodes.push(((ASTBinaryExpression) node).getRight());
+        negates.push(neg);
+        nodes.push(((ASTBinaryExpression) node).getLeft());
+        negates.push(neg);
+      }
+      else terms.add(term(node, neg));
+    }
+    return combine(and, terms);
+  }
+
+  /*
+   * Combine simplified terms with AND or OR
+   */
+  private static Term combine(boolean and, List<Term> terms)
+  {
+    // Flatten terms that simplified to the same operator, handle contradictions and remove duplicates
+    var unique = new LinkedHashMap<String, Term>();
+    for (Term t : terms)
+    {
+      if (t == FALSE)
+      {
+        if (and) return FALSE;
+        continue;
+      }
+      if (t instanceof Junction && ((Junction) t).and == and)
+        for (Term u : ((Junction) t).terms) unique.putIfAbsent(u.key, u);
+      else unique.putIfAbsent(t.key, t);
+    }
+
+    List<Term> merged = and ? mergeAnd(unique.values()) : mergeOr(unique.values());
+    if (merged == null) return FALSE;
+    var sorted = new TreeMap<String, Term>();
+    for (Term t : merged) sorted.putIfAbsent(t.key, t);
+
+    // Absorption: a AND (a OR b) = a and a OR (a AND b) = a
+    Set<String> keys = new HashSet<>(sorted.keySet());
+    sorted.values().removeIf(t -> t instanceof Junction && ((Junction) t).terms.stream().anyMatch(u -> keys.contains(u.key)));
+
+    if (sorted.isEmpty()) return FALSE;
+    if (sorted.size() == 1) return sorted.firstEntry().getValue();
+    return new Junction(and, new ArrayList<>(sorted.values()));
+  }
+
+  /*
+   * Merge the comparisons of each ordered column under AND, null for a contradiction
+   */
+  private static List<Term> mergeAnd(Collection<Term> terms)
+  {
+    var out = new ArrayList<Term>();
+    var groups = new LinkedHashMap<String, List<Comparison>>();
+    for (Term t : terms)
+    {
+      if (t instanceof Comparison && ((Comparison) t).typed != null && ((Comparison) t).op != SearchOperator.NBETWEEN)
+        groups.computeIfAbsent(((Comparison) t).attribute, k -> new ArrayList<>()).add((Comparison) t);
+      else out.add(t);
+    }
+    for (List<Comparison> group : groups.values())
+    {
+      if (group.size() == 1)
+      {
+        out.add(group.get(0));
+        continue;
+      }
+      List<Comparison> merged = intersect(group);
+      if (merged == null) return null;
+      out.addAll(merged);
+    }
+    return out;
+  }
+
+  /*
+   * Merge the EQ, IN and one sided range comparisons of each column under OR. String columns only merge EQ and
+   *   IN, and only values without commas, which would split the values of the merged list.
+   */
+  private static List<Term> mergeOr(Collection<Term> terms)
+  {
+    var out = new ArrayList<Term>();
+    var groups = new LinkedHashMap<String, List<Comparison>>();
+    for (Term t : terms)
+    {
+      if (t instanceof Comparison && mergesUnderOr((Comparison) t))
+        groups.computeIfAbsent(((Comparison) t).attribute, k -> new ArrayList<>()).add((Comparison) t);
+      else out.add(t);
+    }
+    for (List<Comparison> group : groups.values())
+    {
+      if (group.size() == 1) out.add(group.get(0));
+      else out.addAll(union(group));
+    }
+    return out;
+  }
+
+  private static boolean mergesUnderOr(Comparison c)
+  {
+    SearchOperator op = c.op;
+    if (c.typed != null)
+      return op == SearchOperator.EQ || op == SearchOperator.IN || op == SearchOperator.GT || op == SearchOperator.GTE
+             || op == SearchOperator.LT || op == SearchOperator.LTE;
+    return STRING_TYPES.contains(c.sqlType) && (op == SearchOperator.EQ || op == SearchOperator.IN)
+           && c.values.stream().noneMatch(v -> v.indexOf(',') >= 0);
+  }
+
+  /*
+   * The comparisons of one column that match where all of a group match, null if none can
+   */
+  private static List<Comparison> intersect(List<Comparison> group)
+  {
+    Comparison first = group.get(0);
+    Bound lo = null, hi = null;
+    TreeSet<Object> in = null;
+    var out = new TreeSet<>(VALUE_ORDER);
+    for (Comparison c : group)
+    {
+      switch (c.op)
+      {
+        case EQ, IN ->
+        {
+          var values = new TreeSet<>(VALUE_ORDER);
+          values.addAll(c.typed);
+          if (in == null) in = values;
+          else in.retainAll(values);
+        }
+        case NEQ, NIN -> out.addAll(c.typed);
+        case GT -> lo = stronger(lo, new Bound(c.typed.get(0), true), true);
+        case GTE -> lo = stronger(lo, new Bound(c.typed.get(0), false), true);
+        case LT -> hi = stronger(hi, new Bound(c.typed.get(0), true), false);
+        case LTE -> hi = stronger(hi, new Bound(c.typed.get(0), false), false);
+        default ->
+        {
+          lo = stronger(lo, new Bound(c.typed.get(0), false), true);
+          hi = stronger(hi, new Bound(c.typed.get(1), false), false);
+        }
+      }
+    }
+
+    final Bound low = lo, high = hi;
+    if (in != null)
+    {
+      in.removeIf(v -> !above(low, v) || !below(high, v) || out.contains(v));
+      return in.isEmpty() ? null : list(first, SearchOperator.IN, in);
+    }
+    if (lo != null && hi != null)
+    {
+      int c = compare(lo.value, hi.value);
+      if (c > 0 || c == 0 && (lo.open || hi.open)) return null;
+      if (c == 0) return out.contains(lo.value) ? null : List.of(first.with(SearchOperator.EQ, List.of(lo.value)));
+    }
+    out.removeIf(v -> !above(low, v) || !below(high, v));
+    var result = new ArrayList<Comparison>();
+    if (lo != null && hi != null && !lo.open && !hi.open)
+      result.add(first.with(SearchOperator.BETWEEN, List.of(lo.value, hi.value)));
+    else
+    {
+      if (lo != null) result.add(first.with(lo.open ? SearchOperator.GT : SearchOperator.GTE, List.of(lo.value)));
+      if (hi != null) result.add(first.with(hi.open ? SearchOperator.LT : SearchOperator.LTE, List.of(hi.value)));
+    }
+    if (!out.isEmpty()) result.addAll(list(first, SearchOperator.NIN, out));
+    return result;
+  }
+
+  /*
+   * The comparisons of one column that match where any of a group match
+   */
+  private static List<Comparison> union(List<Comparison> group)
+  {
+    Comparison first = group.get(0);
+    if (first.typed == null)
+    {
+      var values = new TreeSet<String>();
+      for (Comparison c : group) values.addAll(c.values);
+      return List.of(Comparison.ofStrings(first.attribute, first.sqlType, SearchOperator.IN, values));
+    }
+
+    Bound lo = null, hi = null;
+    var in = new TreeSet<>(VALUE_ORDER);
+    for (Comparison c : group)
+    {
+      switch (c.op)
+      {
+        case GT -> lo = weaker(lo, new Bound(c.typed.get(0), true), true);
+        case GTE -> lo = weaker(lo, new Bound(c.typed.get(0), false), true);
+        case LT -> hi = weaker(hi, new Bound(c.typed.get(0), true), false);
+        case LTE -> hi = weaker(hi, new Bound(c.typed.get(0), false), false);
+        default -> in.addAll(c.typed);
+      }
+    }
+    final Bound low = lo, high = hi;
+    in.removeIf(v -> low != null && above(low, v) || high != null && below(high, v));
+    var result = new ArrayList<Comparison>();
+    if (lo != null) result.add(first.with(lo.open ? SearchOperator.GT : SearchOperator.GTE, List.of(lo.value)));
+    if (hi != null) result.add(first.with(hi.open ? SearchOperator.LT : SearchOperator.LTE, List.of(hi.value)));
+    if (!in.isEmpty()) result.addAll(list(first, SearchOperator.IN, in));
+    return result;
+  }
+
+  /*
+   * IN or NIN of sorted values, EQ or NEQ of one value, or an EQ or NEQ per value for types that
+   *   don't allow lists
+   */
+  private static List<Comparison> list(Comparison like, SearchOperator op, Collection<Object> values)
+  {
+    if (values.size() > 1 && allowed(like.sqlType, op)) return List.of(like.with(op, values));
+    SearchOperator single = op == SearchOperator.IN ? SearchOperator.EQ : SearchOperator.NEQ;
+    var result = new ArrayList<Comparison>();
+    for (Object v : values) result.add(like.with(single, List.of(v)));
+    return result;
+  }
+
+  /*
+   * A comparison in canonical form. Values of ordered types are converted so that they can be merged.
+   */
+  private Term comparison(SearchCondition cond, SearchOperator op)
+  {
+    String column = SearchSqlCompiler.columnName(columnTypes, cond.attribute);
+    if (column == null) return new Comparison(cond.attribute, op, cond.values, NO_TYPE, null);
+    int sqlType = columnTypes.get(column);
+    boolean list = op == SearchOperator.IN || op == SearchOperator.NIN;
+    if (allowed(sqlType, op))
+    {
+      if (STRING_TYPES.contains(sqlType) && list) return Comparison.ofStrings(column, sqlType, op, new TreeSet<>(cond.values));
+      List<Object> typed = ORDERED_TYPES.contains(sqlType) ? convert(sqlType, cond.values) : null;
+      if (typed != null)
+      {
+        Comparison c = Comparison.of(column, sqlType, op, typed);
+        // Lists are sorted without duplicates and a range may be empty or a single value
+        if (!list && op != SearchOperator.BETWEEN) return c;
+        List<Comparison> result = intersect(List.of(c));
+        if (result == null) return FALSE;
+        return result.size() == 1 ? result.get(0) : combine(true, new ArrayList<>(result));
+      }
+    }
+    return new Comparison(column, op, cond.values, sqlType, null);
+  }
+
+  /*
+   * Convert values to the column type, null if any doesn't convert or should not be merged
+   */
+  private static List<Object> convert(int sqlType, List<String> values)
+  {
+    var typed = new ArrayList<Object>(values.size());
+    for (String v : values)
+    {
+      Object t = SearchValueParser.parse(sqlType, v);
+      if (t == null || t instanceof Double && ((Double) t).isNaN() || t instanceof Float && ((Float) t).isNaN())
+        return null;
+      // PostgreSQL rounds timestamps to microseconds, which could make values equal that are not in Java
+      if (t instanceof LocalDateTime && (((LocalDateTime) t).getNano() % 1000 != 0
+          || ((LocalDateTime) t).getYear() < 1 || ((LocalDateTime) t).getYear() > 9999))
+        return null;
+      typed.add(t);
+    }
+    return typed;
+  }
+
+  /*
+   * Compare converted values of the same type. -0.0 and 0.0 are equal as they are in SQL.
+   */
+  @SuppressWarnings("unchecked")
+  private static int compare(Object a, Object b)
+  {
+    if (a instanceof Double) return Double.compare((Double) a + 0.0, (Double) b + 0.0);
+    if (a instanceof Float) return Float.compare((Float) a + 0.0f, (Float) b + 0.0f);
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  /*
+   * Write a converted value in the one form used for it
+   */
+  private static String render(Object v)
+  {
+    if (v instanceof Double) return Double.toString((Double) v + 0.0);
+    if (v instanceof Float) return Float.toString((Float) v + 0.0f);
+    if (v instanceof BigDecimal)
+    {
+      BigDecimal d = ((BigDecimal) v).stripTrailingZeros();
+      return d.scale() < 0 && d.scale() > -20 ? d.toPlainString() : d.toString();
+    }
+    if (v instanceof LocalDateTime)
+    {
+      var t = (LocalDateTime) v;
+      var s = new StringBuilder(String.format("%04d-%02d-%02dT%02d:%02d:%02d", t.getYear(), t.getMonthValue(),
+                                              t.getDayOfMonth(), t.getHour(), t.getMinute(), t.getSecond()));
+      if (t.getNano() != 0)
+      {
+        String micros = String.format("%06d", t.getNano() / 1000);
+        int end = micros.length();
+        while (micros.charAt(end - 1) == '0') end--;
+        s.append('.').append(micros, 0, end);
+      }
+      return s.append('Z').toString();
+    }
+    return v.toString();
+  }
+
+  private static boolean allowed(int sqlType, SearchOperator op)
+  {
+    var allowed = SearchUtils.ALLOWED_OPS_BY_TYPE.get(sqlType);
+    return allowed != null && allowed.contains(op);
+  }
+
+  // The larger of two lower bounds or the smaller of two upper bounds
+  private static Bound stronger(Bound a, Bound b, boolean lower)
+  {
+    if (a == null) return b;
+    int c = compare(a.value, b.value);
+    if (c == 0) return a.open ? a : b;
+    return (c > 0) == lower ? a : b;
+  }
+
+  // The smaller of two lower bounds or the larger of two upper bounds
+  private static Bound weaker(Bound a, Bound b, boolean lower)
+  {
+    if (a == null) return b;
+    int c = compare(a.value, b.value);
+    if (c == 0) return a.open ? b : a;
+    return (c < 0) == lower ? a : b;
+  }
+
+  // A value is above a lower bound, or there is none
+  private static boolean above(Bound lo, Object v)
+  {
+    if (lo == null) return true;
+    int c = compare(v, lo.value);
+    return c > 0 || c == 0 && !lo.open;
+  }
+
+  // A value is below an upper bound, or there is none
+  private static boolean below(Bound hi, Object v)
+  {
+    if (hi == null) return true;
+    int c = compare(v, hi.value);
+    return c < 0 || c == 0 && !hi.open;
+  }
+
+  // Length prefixed so that keys are unambiguous for any value
+  private static void appendKey(StringBuilder key, String s) { key.append(s.length()).append(':').append(s); }
+
+  // ************************************************************************
+  // *********************** Classes ****************************************
+  // ************************************************************************
+
+  /**
+   * A simplified search
+   */
+  public static final class Simplified
+  {
+    private final ASTNode ast;
+    private final String canonicalKey;
+
+    private Simplified(ASTNode ast, String canonicalKey)
+    {
+      this.ast = ast;
+      this.canonicalKey = canonicalKey;
+    }
+
+    /** The simplified search, null if it matches nothing */
+    public ASTNode getAst() { return ast; }
+
+    /** The search is a contradiction, such as port > 10 AND port < 5 */
+    public boolean matchesNothing() { return ast == null; }
+
+    /** Key that is equal for searches that simplify to the same form */
+    public String getCanonicalKey() { return canonicalKey; }
+
+    @Override
+    public String toString() { return String.valueOf(ast); }
+  }
+
+  /*
+   * A simplified term and its canonical key. Keys are self delimiting, so that the key of a junction
+   *   can simply concatenate the keys of its terms.
+   */
+  private abstract static class Term
+  {
+    final String key;
+
+    Term(String key) { this.key = key; }
+
+    abstract ASTNode toAst();
+  }
+
+  /*
+   * AND or OR of two or more terms, sorted by key without duplicates
+   */
+  private static final class Junction extends Term
+  {
+    final boolean and;
+    final List<Term> terms;
+
+    Junction(boolean and, List<Term> terms)
+    {
+      super(key(and, terms));
+      this.and = and;
+      this.terms = terms;
+    }
+
+    private static String key(boolean and, List<Term> terms)
+    {
+      var key = new StringBuilder(and ? "A(" : "O(");
+      for (Term t : terms) key.append(t.key);
+      return key.append(')').toString();
+    }
+
+    // Left deep, as the parser builds it
+    @Override
+    ASTNode toAst()
+    {
+      ASTNode node = terms.get(0).toAst();
+      for (int i = 1; i < terms.size(); i++) node = ASTBinaryExpression.of(and ? "AND" : "OR", node, terms.get(i).toAst());
+      return node;
+    }
+  }
+
+  /*
+   * A comparison of an attribute. Typed holds the converted values of a comparison that can be merged.
+   */
+  private static final class Comparison extends Term
+  {
+    final String attribute;
+    final SearchOperator op;
+    final List<String> values;
+    final int sqlType;
+    final List<Object> typed;
+
+    Comparison(String attribute, SearchOperator op, List<String> values, int sqlType, List<Object> typed)
+    {
+      super(key(attribute, op, values));
+      this.attribute = attribute;
+      this.op = op;
+      this.values = values;
+      this.sqlType = sqlType;
+      this.typed = typed;
+    }
+
+    private static String key(String attribute, SearchOperator op, List<String> values)
+    {
+      var key = new StringBuilder(attribute.length() + 16 * values.size() + 8).append('C');
+      appendKey(key, attribute);
+      key.append(op.name());
+      for (String v : values) appendKey(key, v);
+      return key.toString();
+    }
+
+    // A comparison of converted values
+    static Comparison of(String attribute, int sqlType, SearchOperator op, Collection<Object> values)
+    {
+      var strings = new ArrayList<String>(values.size());
+      for (Object v : values) strings.add(render(v));
+      return new Comparison(attribute, op, strings, sqlType, new ArrayList<>(values));
+    }
+
+    // A comparison of sorted string values, EQ or NEQ for one value
+    static Comparison ofStrings(String attribute, int sqlType, SearchOperator op, TreeSet<String> values)
+    {
+      if (values.size() == 1) op = op == SearchOperator.IN ? SearchOperator.EQ : SearchOperator.NEQ;
+      return new Comparison(attribute, op, new ArrayList<>(values), sqlType, null);
+    }
+
+    // The same column with converted values
+    Comparison with(SearchOperator op, Collection<Object> values) { return of(attribute, sqlType, op, values); }
+
+    @Override
+    ASTNode toAst()
+    {
+      return ASTBinaryExpression.of(op.name(), ASTUnaryExpression.of("", ASTLeaf.of(attribute)),
+                                    ASTLeaf.of(String.join(",", values)));
+    }
+  }
+
+  /*
+   * Any other node, kept as it is
+   */
+  private static final class Other extends Term
+  {
+    final ASTNode node;
+
+    Other(ASTNode node, boolean negate)
+    {
+      this(negate ? ASTUnaryExpression.of("NOT", node) : node);
+    }
+
+    private Other(ASTNode node)
+    {
+      super(key(new StringBuilder("X"), node).toString());
+      this.node = node;
+    }
+
+    private static StringBuilder key(StringBuilder key, ASTNode node)
+    {
+      if (node instanceof ASTLeaf) appendKey(key.append('L'), String.valueOf(((ASTLeaf) node).getValue()));
+      else if (node instanceof ASTUnaryExpression)
+      {
+        appendKey(key.append('U'), String.valueOf(((ASTUnaryExpression) node).getOp()));
+        key(key, ((ASTUnaryExpression) node).getNode());
+      }
+      else if (node instanceof ASTBinaryExpression)
+      {
+        appendKey(key.append('B'), ((ASTBinaryExpression) node).getOp());
+        key(key, ((ASTBinaryExpression) node).getLeft());
+        key(key, ((ASTBinaryExpression) node).getRight());
+      }
+      else key.append('N');
+      return key;
+    }
+
+    @Override
+    ASTNode toAst() { return node; }
+  }
+
+  // A bound of a range of values
+  private static final class Bound
+  {
+    final Object value;
+    final boolean open;
+
+    Bound(Object value, boolean open)
+    {
+      this.value = value;
+      this.open = open;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A search compiled to a SQL condition with ? placeholders and the values to bind to them,
+ *   in placeholder order. See SearchSqlCompiler.
+ *
+ * The SQL text depends only on the shape of the search, so searches that differ only in their
+ *   values share one statement text and therefore one prepared statement and plan.
+ * Use bind() to set the values on a JDBC statement, or pass getSql() and getBindValues()
+ *   to jOOQ's DSL.condition(String, Object...).
+ */
+public final class SearchSql
+{
+  // ************************************************************************
+  // *********************** Fields *****************************************
+  // ************************************************************************
+  private final String sql;
+  private final List<Bind> binds;
+
+  // ************************************************************************
+  // *********************** Constructors ***********************************
+  // ************************************************************************
+  SearchSql(String sql, List<Bind> binds)
+  {
+    this.sql = sql;
+    this.binds = Collections.unmodifiableList(binds);
+  }
+
+  // ************************************************************************
+  // *********************** Public methods *********************************
+  // ************************************************************************
+
+  public String getSql() { return sql; }
+  public List<Bind> getBinds() { return binds; }
+
+  /**
+   * The bind values in placeholder order
+   * @return array of values
+   */
+  public Object[] getBindValues()
+  {
+    Object[] values = new Object[binds.size()];
+    for (int i = 0; i < values.length; i++) values[i] = binds.get(i).getValue();
+    return values;
+  }
+
+  /**
+   * Set the bind values on a statement whose SQL contains this condition.
+   * Array values are bound as SQL arrays created on the statement's connection.
+   * @param stmt the prepared statement
+   * @param firstIndex parameter index of the condition's first placeholder
+   * @return the parameter index following the condition's last placeholder
+   * @throws SQLException on error setting a value
+   */
+  public int bind(PreparedStatement stmt, int firstIndex) throws SQLException
+  {
+    int index = firstIndex;
+    for (Bind b : binds)
+    {
+      Object value = b.getValue();
+      if (value instanceof Object[])
+        stmt.setArray(index++, stmt.getConnection().createArrayOf(b.getArrayElementTypeName(), (Object[]) value));
+      else if (value instanceof LocalDateTime)
+        stmt.setTimestamp(index++, Timestamp.valueOf((LocalDateTime) value));
+      else
+        stmt.setObject(index++, value, b.getSqlType());
+    }
+    return index;
+  }
+
+  @Override
+  public String toString() { return sql + " " + binds; }
+
+  // ************************************************************************
+  // *********************** Bind *******************************************
+  // ************************************************************************
+  /*
+   * A value converted to the Java type matching its column's java.sql.Types code.
+   * Timestamps are LocalDateTime in UTC, as returned by TapisUtils.getUTCTimeFromString().
+   * Values bound as arrays are Object arrays of the element type.
+   */
+  public static final class Bind
+  {
+    private final String column;
+    private final int sqlType;
+    private final Object value;
+
+    Bind(String column, int sqlType, Object value)
+    {
+      this.column = column;
+      this.sqlType = sqlType;
+      this.value = value;
+    }
+
+    public String getColumn() { return column; }
+    public int getSqlType() { return sqlType; }
+    public Object getValue() { return value; }
+
+    // Database type name used to create an array of this bind's elements
+    String getArrayElementTypeName()
+    {
+      switch (sqlType)
+      {
+        case Types.INTEGER: return "integer";
+        case Types.BIGINT: return "bigint";
+        case Types.SMALLINT:
+        case Types.TINYINT: return "smallint";
+        case Types.FLOAT:
+        case Types.DOUBLE: return "float8";
+        case Types.REAL: return "float4";
+        case Types.NUMERIC:
+        case Types.DECIMAL: return "numeric";
+        case Types.BOOLEAN: return "boolean";
+        case Types.DATE:
+        case Types.TIMESTAMP: return "timestamp";
+        default: return "text";
+      }
+    }
+
+    @Override
+    public String toString()
+    {
+      String v = value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value);
+      return column + "=" + v;
+    }
+  }
+}
@@ -0,0 +1,305 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.search.SearchUtils.SearchOperator;
+import edu.utexas.tacc.tapis.search.parser.ASTBinaryExpression;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTUnaryExpression;
+import edu.utexas.tacc.tapis.search.parser.ParseCache;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compile an ASTNode from ASTParser into a SQL condition with ? placeholders and an ordered list
+ *   of typed bind values. Values are never inlined, so searches that differ only in their values
+ *   produce the same statement text and can share a prepared statement and its plan.
+ *
+ * The compiler is created with the searchable columns and their java.sql.Types codes. Attribute
+ *   names are matched to column names as given, then converted from camelCase to snake_case.
+ *   Operators must be allowed for the column's type by SearchUtils.ALLOWED_OPS_BY_TYPE and values
+ *   must convert to the type, otherwise an IllegalArgumentException is thrown.
+ *
+ * By default each value of an IN or NIN list has its own placeholder, so the SQL text grows with the
+ *   list and each list length is a separate shape. When created with bindListsAsArrays the list is
+ *   converted to the column's type and bound as a single array instead, so lists of every length share
+ *   one shape and one statement. This needs a database with = ANY on arrays, such as PostgreSQL or H2.
+ *   Both forms select the same rows: the list has no nulls, so NOT (col = ANY(?)) is equivalent to
+ *   col <> ALL(?) and to NOT IN.
+ *
+ * Searches are checked against SearchLimits before they are validated, by default the limits of
+ *   SearchLimits.defaultLimits().
+ *
+ * Each search is reduced to a shape: its structure with the values removed. The SQL text for a
+ *   shape is built once and cached, so equal-shaped searches return the same String.
+ *
+ * Operators map to SQL as follows:
+ *   EQ, NEQ, LT, LTE, GT, GTE -> =, <>, <, <=, >, >=
+ *   LIKE, NLIKE               -> LIKE, NOT LIKE (values use the SQL wildcards % and _)
+ *   BETWEEN, NBETWEEN         -> BETWEEN ? AND ?, NOT BETWEEN ? AND ?
+ *   IN, NIN                   -> IN (?, ...), NOT IN (?, ...)
+ *   IN, NIN with list arrays  -> col = ANY(?), NOT (col = ANY(?))  (the list bound as one array)
+ *   IN, NIN on ARRAY columns  -> col && ?, NOT (col && ?)   (the array overlaps the list)
+ *   CONTAINS, NCONTAINS       -> col @> ?, NOT (col @> ?)   (the array holds every value)
+ *   AND, OR, NOT              -> AND, OR, NOT
+ *
+ * Instances are thread safe.
+ */
+public final class SearchSqlCompiler
+{
+  // ************************************************************************
+  // *********************** Fields *****************************************
+  // ************************************************************************
+
+  // Column name to java.sql.Types code
+  private final Map<String, Integer> columnTypes;
+  private final SearchLimits limits;
+  // Bind IN and NIN lists as one array
+  private final boolean bindListsAsArrays;
+
+  // Shape to SQL text
+  private final ParseCache<String, IllegalArgumentException> shapes =
+          new ParseCache<>("SearchSqlCompiler", IllegalArgumentException.class);
+
+  // ************************************************************************
+  // *********************** Constructors ***********************************
+  // ************************************************************************
+
+  /**
+   * @param columnTypes map of searchable column name to java.sql.Types code
+   */
+  public SearchSqlCompiler(Map<String, Integer> columnTypes)
+  {
+    this(columnTypes, SearchLimits.defaultLimits());
+  }
+
+  /**
+   * @param columnTypes map of searchable column name to java.sql.Types code
+   * @param limits complexity limits checked before a search is compiled
+   */
+  public SearchSqlCompiler(Map<String, Integer> columnTypes, SearchLimits limits)
+  {
+    this(columnTypes, limits, false);
+  }
+
+  /**
+   * @param columnTypes map of searchable column name to java.sql.Types code
+   * @param limits complexity limits checked before a search is compiled
+   * @param bindListsAsArrays bind IN and NIN lists as one array with = ANY(?)
+   */
+  public SearchSqlCompiler(Map<String, Integer> columnTypes, SearchLimits limits, boolean bindListsAsArrays)
+  {
+    this.columnTypes = new HashMap<>(columnTypes);
+    this.limits = limits;
+    this.bindListsAsArrays = bindListsAsArrays;
+  }
+
+  // ************************************************************************
+  // *********************** Public methods *********************************
+  // ************************************************************************
+
+  /**
+   * Compile a search
+   * @param ast search parsed by ASTParser
+   * @return SQL condition and bind values
+   * @throws IllegalArgumentException if the search exceeds a limit, is not supported or a value is invalid
+   */
+  public SearchSql compile(ASTNode ast) throws IllegalArgumentException
+  {
+    limits.check(ast);
+    var shape = new StringBuilder(64);
+    var binds = new ArrayList<SearchSql.Bind>();
+    walk(ast, shape, binds);
+    String sql = shapes.get(shape.toString(), s -> toSql(ast));
+    return new SearchSql(sql, binds);
+  }
+
+  /** Statistics of the shape cache */
+  public ParseCache.Stats getShapeCacheStats() { return shapes.getStats(); }
+
+  // ************************************************************************
+  // **************************  Private Methods  ***************************
+  // ************************************************************************
+
+  /*
+   * Validate the tree, collecting its shape and bind values
+   */
+  private void walk(ASTNode node, StringBuilder shape, List<SearchSql.Bind> binds)
+  {
+    if (node instanceof ASTBinaryExpression)
+    {
+      var b = (ASTBinaryExpression) node;
+      if (SearchCondition.isLogical(b.getOp()))
+      {
+        shape.append('(');
+        walk(b.getLeft(), shape, binds);
+        shape.append(' ').append(b.getOp()).append(' ');
+        walk(b.getRight(), shape, binds);
+        shape.append(')');
+        return;
+      }
+      Column c = column(SearchCondition.fromAst(b));
+      shape.append(c.name).append('.').append(c.cond.op.name());
+      if (c.cond.values.size() > 1 && !c.bindsArray() && !c.bindsListArray()) shape.append('.').append(c.cond.values.size());
+      addBinds(c, binds);
+      return;
+    }
+    if (SearchCondition.isNot(node))
+    {
+      shape.append("NOT(");
+      walk(((ASTUnaryExpression) node).getNode(), shape, binds);
+      shape.append(')');
+      return;
+    }
+    throw SearchCondition.unsupported(node);
+  }
+
+  /*
+   * Build the SQL text, only called for a shape not yet cached
+   */
+  private String toSql(ASTNode ast)
+  {
+    var sql = new StringBuilder(128);
+    appendSql(ast, sql);
+    return sql.toString();
+  }
+
+  private void appendSql(ASTNode node, StringBuilder sql)
+  {
+    if (SearchCondition.isNot(node))
+    {
+      sql.append("NOT (");
+      appendSql(((ASTUnaryExpression) node).getNode(), sql);
+      sql.append(')');
+      return;
+    }
+    var b = (ASTBinaryExpression) node;
+    if (SearchCondition.isLogical(b.getOp()))
+    {
+      sql.append('(');
+      appendSql(b.getLeft(), sql);
+      sql.append(' ').append(b.getOp()).append(' ');
+      appendSql(b.getRight(), sql);
+      sql.append(')');
+      return;
+    }
+
+    Column c = column(SearchCondition.fromAst(b));
+    String col = '"' + c.name + '"';
+    SearchOperator op = c.cond.op;
+    if (c.bindsArray())
+    {
+      switch (op)
+      {
+        case IN -> sql.append(col).append(" && ?");
+        case NIN -> sql.append("NOT (").append(col).append(" && ?)");
+        case CONTAINS -> sql.append(col).append(" @> ?");
+        default -> sql.append("NOT (").append(col).append(" @> ?)");
+      }
+      return;
+    }
+    if (c.bindsListArray())
+    {
+      if (op == SearchOperator.IN) sql.append(col).append(" = ANY(?)");
+      else sql.append("NOT (").append(col).append(" = ANY(?))");
+      return;
+    }
+    switch (op)
+    {
+      case EQ -> sql.append(col).append(" = ?");
+      case NEQ -> sql.append(col).append(" <> ?");
+      case LT -> sql.append(col).append(" < ?");
+      case LTE -> sql.append(col).append(" <= ?");
+      case GT -> sql.append(col).append(" > ?");
+      case GTE -> sql.append(col).append(" >= ?");
+      case LIKE -> sql.append(col).append(" LIKE ?");
+      case NLIKE -> sql.append(col).append(" NOT LIKE ?");
+      case BETWEEN -> sql.append(col).append(" BETWEEN ? AND ?");
+      case NBETWEEN -> sql.append(col).append(" NOT BETWEEN ? AND ?");
+      default ->
+      {
+        sql.append(col).append(op == SearchOperator.IN ? " IN (" : " NOT IN (");
+        for (int i = 0; i < c.cond.values.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+        sql.append(')');
+      }
+    }
+  }
+
+  /*
+   * Convert the condition's values and add them as binds
+   */
+  private void addBinds(Column c, List<SearchSql.Bind> binds)
+  {
+    if (c.bindsArray())
+    {
+      binds.add(new SearchSql.Bind(c.name, c.sqlType, c.cond.values.toArray(new String[0])));
+      return;
+    }
+    if (c.bindsListArray())
+    {
+      Object[] values = new Object[c.cond.values.size()];
+      for (int i = 0; i < values.length; i++) values[i] = c.cond.toValue(c.sqlType, c.cond.values.get(i));
+      binds.add(new SearchSql.Bind(c.name, c.sqlType, values));
+      return;
+    }
+    for (String v : c.cond.values) binds.add(new SearchSql.Bind(c.name, c.sqlType, c.cond.toValue(c.sqlType, v)));
+  }
+
+  /*
+   * Find the condition's column and check the operator against its type
+   */
+  private Column column(SearchCondition cond)
+  {
+    String name = columnName(columnTypes, cond.attribute);
+    if (name == null)
+    {
+      String msg = MsgUtils.getMsg("SEARCH_AST_UNKNOWN_ATTR", cond.attribute, cond.toString());
+      throw new IllegalArgumentException(msg);
+    }
+    int sqlType = columnTypes.get(name);
+    cond.checkOperator(sqlType);
+    boolean listArray = bindListsAsArrays && (cond.op == SearchOperator.IN || cond.op == SearchOperator.NIN);
+    return new Column(cond, name, sqlType, listArray);
+  }
+
+  /**
+   * Match an attribute to a column name as given, then converted from camelCase to snake_case
+   * @param columnTypes map of column name to java.sql.Types code
+   * @param attribute the attribute
+   * @return the column name or null if there is no such column
+   */
+  static String columnName(Map<String, Integer> columnTypes, String attribute)
+  {
+    if (columnTypes.containsKey(attribute)) return attribute;
+    String name = SearchUtils.camelCaseToSnakeCase(attribute);
+    return columnTypes.containsKey(name) ? name : null;
+  }
+
+  /*
+   * A validated condition and its column
+   */
+  private static final class Column
+  {
+    private final SearchCondition cond;
+    private final String name;
+    private final int sqlType;
+    private final boolean listArray;
+
+    private Column(SearchCondition cond, String name, int sqlType, boolean listArray)
+    {
+      this.cond = cond;
+      this.name = name;
+      this.sqlType = sqlType;
+      this.listArray = listArray;
+    }
+
+    // Conditions on array columns bind the whole list as one array
+    private boolean bindsArray() { return sqlType == Types.ARRAY; }
+
+    // IN and NIN on other columns bind the list as one array of the column's type
+    private boolean bindsListArray() { return listArray && !bindsArray(); }
+  }
+}
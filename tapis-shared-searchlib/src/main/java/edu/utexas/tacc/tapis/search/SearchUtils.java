@@ -8,7 +8,6 @@ import edu.utexas.tacc.tapis.shared.threadlocal.OrderBy;
 import edu.utexas.tacc.tapis.shared.utils.TapisGsonUtils;
 import edu.utexas.tacc.tapis.shared.utils.TapisUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,17 +15,13 @@ import javax.ws.rs.core.MultivaluedMap;
 
 import java.sql.Types;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringJoiner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -51,20 +46,8 @@ public class SearchUtils
   // Local logger.
   private static final Logger _log = LoggerFactory.getLogger(SearchUtils.class);
 
-  // Our special characters. These must be escaped when appearing in a value
-  private static final List<Character> SEARCH_VAL_SPECIAL_CHARS = Arrays.asList('~', ',', '(', ')');
-
-  // Use static compiled regex patterns for performance
-  // Regex for parsing (<attr1>.<op>.<val1>)~(<attr2>.<op>.<val2>) ... See validateAndExtractSearchList
-  private static final Pattern SEARCH_PATTERN = Pattern.compile("(?:\\\\.|[^~\\\\]++)+");
-
-  // Regex for splitting a string containing a comma delimited list
-  //   Match "," but not "\," (i.e. match only an unescaped comma)
-  private static final Pattern COMMASPLIT_PATTERN = Pattern.compile("(?<!\\\\),");
-
-  // Regex for valid attribute name
-  // <attr> must start with [a-zA-Z] and contain only [a-zA-Z0-9_]
-  private static final Pattern VALIDATTR_PATTERN = Pattern.compile("^[a-zA-Z][a-zA-Z0-9_]*$");
+  // Our special characters ~ , ( ) must be escaped when appearing in a value.
+  // Search lists and conditions are processed by SearchConditionScanner.
 
   // ************************************************************************
   // *********************** Enums ******************************************
@@ -156,21 +139,27 @@ public class SearchUtils
    * @throws IllegalArgumentException if error encountered while parsing.
    */
   public static List<String> extractAndValidateSearchList(String searchListStr) throws IllegalArgumentException
+  {
+    return extractAndValidateSearchList(searchListStr, null);
+  }
+
+  /**
+   * Extract a list of search conditions provided as a single string, as above, and check the
+   *   search against complexity limits. The length is checked before the string is split and the
+   *   other limits once the form of each condition has been validated.
+   * @param searchListStr - String containing all search conditions
+   * @param limits - complexity limits, null for none
+   * @return the list of extracted search conditions
+   * @throws IllegalArgumentException if error encountered while parsing or a limit is exceeded.
+   */
+  public static List<String> extractAndValidateSearchList(String searchListStr, SearchLimits limits)
+    throws IllegalArgumentException
   {
     var searchList = new ArrayList<String>();
     if (StringUtils.isBlank(searchListStr)) return searchList;
-    // Parse search string into a list of conditions using a regex pattern to split
-    // Set delimiter as ~ and escape as \
-    //    SEARCH_REGEX = "(?:\\\\.|[^~\\\\]++)+"
-    //        "(" +          // start a match group
-    //        "?:" +         // match either of
-    //        escape + "." + // any escaped character
-    //        "|" +          // or
-    //        "[^" + delimiter + escape + "]++" + // match any char except delim or escape, possessive match
-    //        ")" +          // end a match group
-    //        "+";           // repeat any number of times, ignoring empty results. Use * instead of + to include empty results
-    Matcher regexMatcher = SEARCH_PATTERN.matcher(searchListStr);
-    while (regexMatcher.find()) { searchList.add(regexMatcher.group()); }
+    if (limits != null) limits.checkLength(searchListStr);
+    // Split search string into a list of conditions with delimiter ~ and escape \, ignoring empty results
+    searchList.addAll(SearchConditionScanner.splitSearchList(searchListStr));
     // If we found only one match the searchList string may be a single condition that may or may not
     // be surrounded by parentheses. So handle that case.
     if (searchList.size() == 1)
@@ -202,6 +191,7 @@ public class SearchUtils
     }
     // Remove any empty matches, e.g. () might have been included one or more times
     retList.removeIf(item -> StringUtils.isBlank(item));
+    if (limits != null) limits.check(retList);
     return retList;
   }
 
@@ -220,9 +210,7 @@ public class SearchUtils
     if (StringUtils.isBlank(cond)) return;
 
     // Validate the 3 components of a condition
-    extractAttribute(cond);
-    SearchOperator operator = extractOperator(cond);
-    extractFullValueStr(cond, operator);
+    SearchConditionScanner.scan(cond, false);
   }
 
   /**
@@ -239,61 +227,14 @@ public class SearchUtils
    */
   public static String validateAndProcessSearchCondition(String cond) throws IllegalArgumentException
   {
-    _log.trace("Validate and process search condition: " + cond);
-    String retCond = cond;
+    if (_log.isTraceEnabled()) _log.trace("Validate and process search condition: " + cond);
     // A blank string is OK at this point and means we are done
-    if (StringUtils.isBlank(retCond)) return retCond;
-
-    // Validate and extract the 3 components of a condition
-    String attr = extractAttribute(retCond);
-    SearchOperator operator = extractOperator(retCond);
-    String fullValueStr = extractFullValueStr(retCond, operator);
-
-    // <value> may be a list so always build a list to simplify the logic below
-    // If the operator takes a list set a flag since it will require special processing
-    List<String> valList;
-    boolean isListOperator = listOpSet.contains(operator);
-    if (isListOperator) valList = getValueList(fullValueStr); else valList = Collections.singletonList(fullValueStr);
+    if (StringUtils.isBlank(cond)) return cond;
 
-    // For all operators except LIKE/NLIKE we can now unescape our special characters
-    // LIKE/NLIKE deal with escaped characters (as opposed to EQ for example) but require special
-    //   processing because of *! and %_. So leaving in escapes for LIKE/NLIKE simplifies processing.
-    if (!operator.equals(SearchOperator.LIKE) && !operator.equals(SearchOperator.NLIKE))
-    {
-      var valListTmp = new ArrayList<String>();
-      for (String val : valList)
-      {
-        // Unescape our special chars. For list operators commas are left escaped
-        valListTmp.add(unescapeSpecialChars(val, isListOperator));
-      }
-      valList = valListTmp;
-    }
-
-    // For LIKE/NLIKE translate special characters as needed
-    // Not a list operator so only one value in valList
-    // * -> %
-    // ! -> _
-    if (operator.equals(SearchOperator.LIKE) || operator.equals(SearchOperator.NLIKE))
-    {
-      // Existing % and _ must be escaped before going to SQL
-      //  so escape any unescaped %, _ characters
-      fullValueStr = fullValueStr.replaceAll("(?<!\\\\)%", "\\\\%"); // match % but not \%
-      fullValueStr = fullValueStr.replaceAll("(?<!\\\\)_", "\\\\_"); // match _ but not \_
-      // Now do translations
-      // Use regex to skip escaped characters
-      fullValueStr = fullValueStr.replaceAll("(?<!\\\\)\\*", "%"); // match * but not \*
-      fullValueStr = fullValueStr.replaceAll("(?<!\\\\)!", "_"); // match ! but not \!
-      valList = Collections.singletonList(fullValueStr);
-    }
-
-    // Rebuild the list
-    // NOTE that at this point each individual value in the list should not have any unescaped commas,
-    //   because if it had then they would create separate items in the list when processed above.
-    StringJoiner sj = new StringJoiner(",");
-    for (String v : valList) { sj.add(v); }
-    fullValueStr = sj.toString();
-    retCond = attr + "." + operator.name() + "." + fullValueStr;
-    return retCond;
+    // Validate and extract the 3 components of a condition, then process the value in one pass.
+    // LIKE/NLIKE keep escapes and translate * -> % and ! -> _, escaping any existing % and _ for SQL.
+    // Other operators unescape our special characters. For list operators commas are left escaped.
+    return SearchConditionScanner.scan(cond, true).toString();
   }
 
   /**
@@ -305,7 +246,7 @@ public class SearchUtils
   public static List<String> getValueList(String valStr)
   {
     if (StringUtils.isBlank(valStr)) return new ArrayList<>();
-    else return Arrays.asList(COMMASPLIT_PATTERN.split(valStr));
+    else return SearchConditionScanner.splitValueList(valStr);
 
   }
 
@@ -364,6 +305,39 @@ public class SearchUtils
     return true;
   }
 
+  /**
+   * Check that value and sqlType are compatible for a value or list of values and convert the values
+   *   to typed values ready for binding, see SearchValueParser.parse().
+   * sqlTypeName, tableName and colName used only for logging
+   * @param sqlType sql type to check against
+   * @param op search operator, needed to determine if it might be a list of values
+   * @param valStr string containing a single value or CSV list for a list operator
+   * @param sqlTypeName name for sql type - logging only
+   * @param tableName name of table - logging only
+   * @param colName column name - logging only
+   * @return list of typed values, empty if valStr is blank, null if a value is not valid
+   */
+  public static List<Object> validateAndConvertValueList(int sqlType, SearchOperator op, String valStr,
+                                                         String sqlTypeName, String tableName, String colName)
+  {
+    if (StringUtils.isBlank(valStr)) return Collections.emptyList();
+    List<String> valList = listOpSet.contains(op) ? getValueList(valStr) : Collections.singletonList(valStr);
+    boolean supported = supportedType(sqlType, sqlTypeName);
+    var typedList = new ArrayList<>(valList.size());
+    for (String val : valList)
+    {
+      Object typedVal = supported ? SearchValueParser.parse(sqlType, val) : null;
+      if (typedVal == null)
+      {
+        String msg = MsgUtils.getMsg("SEARCH_DB_INVALID_SEARCH_VALUE", op.name(), sqlTypeName, val, tableName, colName);
+        _log.error(msg);
+        return null;
+      }
+      typedList.add(typedVal);
+    }
+    return typedList;
+  }
+
   /**
    * Build a search list from query parameters. Query parameters use the format <attr>.<op>=<value>
    * Reserved query parameters are ignored.
@@ -536,46 +510,6 @@ public class SearchUtils
   // **************************  Private Methods  ***************************
   // ************************************************************************
 
-  private static boolean isInteger(String valStr)
-  {
-    try { Integer.parseInt(valStr); } catch(NumberFormatException e) { return false; }
-    return true;
-  }
-
-  private static boolean isLong(String valStr)
-  {
-    try { Long.parseLong(valStr); } catch(NumberFormatException e) { return false; }
-    return true;
-  }
-
-  private static boolean isShort(String valStr)
-  {
-    try { Short.parseShort(valStr); } catch(NumberFormatException e) { return false; }
-    return true;
-  }
-
-  private static boolean isDouble(String valStr)
-  {
-    try { Double.parseDouble(valStr); } catch(NumberFormatException e) { return false; }
-    return true;
-  }
-
-  private static boolean isFloat(String valStr)
-  {
-    try { Float.parseFloat(valStr); } catch(NumberFormatException e) { return false; }
-    return true;
-  }
-
-  /**
-   * Check that value given as a string is a valid Tapis numeric
-   * @param valStr value to check
-   * @return true if valid, else false
-   */
-  private static boolean isNumeric(String valStr)
-  {
-    return NumberUtils.isCreatable(valStr);
-  }
-
   /**
    * Check that value given as a string is a valid Tapis Timestamp
    * Use default access instead of private for unit testing.
@@ -593,24 +527,7 @@ public class SearchUtils
    */
   static boolean isTimestamp(String valStr)
   {
-    // Use shared utility method to attempt to convert string to a timestamp
-    try { TapisUtils.getUTCTimeFromString(valStr); } catch(DateTimeParseException e) { return false; }
-    return true;
-  }
-
-  /**
-   * Check that value given as a string is a valid Tapis boolean
-   * Do a case insensitive match against "true" and "false"
-   * @param valStr value to check
-   * @return true if valid, else false
-   */
-  private static boolean isBoolean(String valStr)
-  {
-    if (StringUtils.isBlank(valStr)) return false;
-    if (valStr.equalsIgnoreCase("true") || valStr.equalsIgnoreCase("false"))
-      return true;
-    else
-      return false;
+    return SearchValueParser.parseTimestamp(valStr) != null;
   }
 
   /**
@@ -621,8 +538,7 @@ public class SearchUtils
   private static boolean invalidAttributeName(String attrStr)
   {
     // <attr> must start with [a-zA-Z] and contain only [a-zA-Z0-9_]
-    // Turn the pattern into a matcher and make sure attrStr matches
-    return !VALIDATTR_PATTERN.matcher(attrStr).find();
+    return !SearchConditionScanner.isValidAttributeName(attrStr);
   }
 
   /**
@@ -637,90 +553,23 @@ public class SearchUtils
    */
   private static boolean validTypeAndValue(int sqlType, String valStr, String sqlTypeName)
   {
-    if (StringUtils.isBlank(valStr)) return false;
-    switch (sqlType)
-    {
-      case Types.CHAR:
-      case Types.VARCHAR:
-        // NOTE: ARRAY support is for tags columns which are of type TEXT[], so only support string types.
-        //       Please also see notes on support for the CONTAINS operator/construct
-      case Types.ARRAY:
-        if (StringUtils.isNotBlank(valStr)) return true;
-        break;
-      case Types.INTEGER:
-        if (isInteger(valStr)) return true;
-        break;
-      case Types.BIGINT:
-        if (isLong(valStr)) return true;
-        break;
-      case Types.SMALLINT:
-      case Types.TINYINT:
-        if (isShort(valStr)) return true;
-        break;
-      case Types.FLOAT:
-      case Types.DOUBLE:
-        if (isDouble(valStr)) return true;
-        break;
-      case Types.REAL:
-        if (isFloat(valStr)) return true;
-        break;
-      case Types.BOOLEAN:
-        if (isBoolean(valStr)) return true;
-        break;
-      case Types.NUMERIC:
-      case Types.DECIMAL:
-        if (isNumeric(valStr)) return true;
-        break;
-      case Types.DATE:
-      case Types.TIMESTAMP:
-        if (SearchUtils.isTimestamp(valStr)) return true;
-        break;
-      default:
-        // Sql Type not supported, log a warning and return false
-        String msg = MsgUtils.getMsg("SEARCH_DB_UNSUPPORTED_SQLTYPE", sqlType, sqlTypeName);
-        _log.warn(msg);
-        break;
-    }
-    return false;
+    // NOTE: ARRAY support is for tags columns which are of type TEXT[], so only support string types.
+    //       Please also see notes on support for the CONTAINS operator/construct
+    return supportedType(sqlType, sqlTypeName) && SearchValueParser.isValid(sqlType, valStr);
   }
 
   /**
-   * Check for unescaped special characters in a value
-   * @param valStr value to check
-   * @return true if value contains no unescaped characters otherwise false
-   */
-  private static boolean validateValueSpecialChars(String valStr)
-  {
-    if (StringUtils.isBlank(valStr)) return true;
-
-    // regex=(?<!\\)<char> Match <char> but not \<char>
-    String regex = "(?<!" + Pattern.quote("\\") + ")";
-    for (Character c : SEARCH_VAL_SPECIAL_CHARS)
-    {
-      Pattern p = Pattern.compile(regex + Pattern.quote(c.toString()));
-      if (p.matcher(valStr).find()) return false;
-    }
-    return true;
-  }
-
-  /**
-   * Unescape Tapis special characters in a value
-   * Some operators take a list and for those commas must remain escaped
-   * @param valStr value to process
-   * @param isListOp indicates operator takes a list
-   * @return value with escape characters removed as appropriate
+   * Check that sqlType is supported for search values, logging a warning if not.
+   * @param sqlType sql type to check
+   * @param sqlTypeName name for sql type - logging only
+   * @return true if supported, else false
    */
-  private static String unescapeSpecialChars(String valStr, boolean isListOp)
+  private static boolean supportedType(int sqlType, String sqlTypeName)
   {
-    String retVal = valStr;
-    if (StringUtils.isBlank(valStr)) return valStr;
-    for (Character c : SEARCH_VAL_SPECIAL_CHARS)
-    {
-      if (isListOp &&  c.equals(',')) continue; // Commas remain escaped for list operators
-      String regex = "\\\\" + Pattern.quote(c.toString());
-      retVal = retVal.replaceAll(regex, c.toString()); // Replace \<char> with <char>
-    }
-    return retVal;
+    if (SearchValueParser.isSupported(sqlType)) return true;
+    String msg = MsgUtils.getMsg("SEARCH_DB_UNSUPPORTED_SQLTYPE", sqlType, sqlTypeName);
+    _log.warn(msg);
+    return false;
   }
 
   /**
@@ -731,27 +580,7 @@ public class SearchUtils
    */
   static String extractAttribute(String condStr)
   {
-    int dot1 = condStr.indexOf('.');
-    if (dot1 < 0)
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOATTR", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-    String attr = condStr.substring(0, dot1);
-    // <attr> must not be empty
-    if (StringUtils.isBlank(attr))
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOATTR", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-
-    // Validate <attr>
-    if (invalidAttributeName(attr))
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_ATTR", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-    return attr;
+    return SearchConditionScanner.attribute(condStr, condStr.indexOf('.'));
   }
 
   /**
@@ -763,33 +592,8 @@ public class SearchUtils
   static SearchOperator extractOperator(String condStr)
   {
     int dot1 = condStr.indexOf('.');
-    if (dot1 < 0)
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOOPER", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-    int dot2 = condStr.indexOf('.', dot1 + 1);
-    if (dot2 < 0)
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOOPER", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-    String op = condStr.substring(dot1 + 1, dot2);
-    // <op> must not be empty
-    if (StringUtils.isBlank(op))
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOOPER", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-
-    // Validate <op>
-    // Verify <op> is supported.
-    if (!SEARCH_OP_SET.contains(op.toUpperCase()))
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_OP", op, condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-    return SearchOperator.valueOf(op.toUpperCase());
+    int dot2 = dot1 < 0 ? -1 : condStr.indexOf('.', dot1 + 1);
+    return SearchConditionScanner.operator(condStr, dot1, dot2);
   }
 
   /**
@@ -801,47 +605,11 @@ public class SearchUtils
   static String extractFullValueStr(String condStr, SearchOperator operator)
   {
     int dot1 = condStr.indexOf('.');
-    if (dot1 < 0)
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOVAL", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-    int dot2 = condStr.indexOf('.', dot1 + 1);
-    if (dot2 < 0)
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOVAL", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-    String fullValueStr = condStr.substring(dot2 + 1);
-    // <val> must not be empty
-    if (StringUtils.isBlank(fullValueStr))
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOVAL", condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
-
-    // Validate and process <value>
-    // <value> may be a list so always build a list to simplify the logic below
-    List<String> valList;
-    if (listOpSet.contains(operator)) valList = getValueList(fullValueStr); else valList = Collections.singletonList(fullValueStr);
-
-    // Make sure each value does not have any of our special characters that are unescaped.
-    for (String val : valList)
-    {
-      if (!validateValueSpecialChars(val))
-      {
-        String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_VAL", condStr);
-        throw new IllegalArgumentException(errMsg);
-      }
-    }
-
-    // For BETWEEN/NBETWEEN the value must be a 2 element list
-    if ((operator.equals(SearchOperator.BETWEEN) || operator.equals(SearchOperator.NBETWEEN))
-            && valList.size() != 2)
-    {
-      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_OP2", operator.name(), condStr);
-      throw new IllegalArgumentException(errMsg);
-    }
+    int dot2 = dot1 < 0 ? -1 : condStr.indexOf('.', dot1 + 1);
+    String fullValueStr = SearchConditionScanner.value(condStr, dot2);
+    // Make sure the value has none of our special characters unescaped and that for BETWEEN/NBETWEEN
+    //   it is a 2 element list
+    SearchConditionScanner.scanValue(condStr, fullValueStr, operator, false);
     return fullValueStr;
   }
 }
@@ -0,0 +1,315 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.shared.utils.TapisUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.time.LocalDateTime;
+
+/**
+ * Validate search values and convert them to typed values for binding, by java.sql.Types code,
+ *   without throwing and catching exceptions for invalid values.
+ * Values are checked against the grammar of the parser for their type before it is called,
+ *   so a value is converted once and malformed user input does not cost an exception.
+ *
+ * Types and the values they convert to:
+ *   CHAR, VARCHAR, ARRAY -> String, any value that is not blank
+ *   INTEGER              -> Integer, as accepted by Integer.parseInt()
+ *   BIGINT               -> Long, as accepted by Long.parseLong()
+ *   SMALLINT, TINYINT    -> Short, as accepted by Short.parseShort()
+ *   FLOAT, DOUBLE        -> Double, as accepted by Double.parseDouble()
+ *   REAL                 -> Float, as accepted by Float.parseFloat()
+ *   NUMERIC, DECIMAL     -> BigDecimal, plain or exponent notation with ASCII digits
+ *   BOOLEAN              -> Boolean, true or false in any case
+ *   DATE, TIMESTAMP      -> LocalDateTime in UTC, as returned by TapisUtils.parseUTCTime()
+ */
+public final class SearchValueParser
+{
+  // Private constructor to make it non-instantiable
+  private SearchValueParser() { throw new AssertionError(); }
+
+  // ************************************************************************
+  // *********************** Constants **************************************
+  // ************************************************************************
+
+  // BigDecimal exponents with more digits than this are rejected rather than risk overflowing the scale
+  private static final int MAX_EXPONENT_DIGITS = 9;
+
+  // ************************************************************************
+  // *********************** Public methods *********************************
+  // ************************************************************************
+
+  /**
+   * Check whether values of a java.sql.Types code are supported
+   * @param sqlType the type
+   * @return true if supported
+   */
+  public static boolean isSupported(int sqlType)
+  {
+    switch (sqlType)
+    {
+      case Types.CHAR:
+      case Types.VARCHAR:
+      case Types.ARRAY:
+      case Types.INTEGER:
+      case Types.BIGINT:
+      case Types.SMALLINT:
+      case Types.TINYINT:
+      case Types.FLOAT:
+      case Types.DOUBLE:
+      case Types.REAL:
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+      case Types.BOOLEAN:
+      case Types.DATE:
+      case Types.TIMESTAMP:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Check that a value is valid for a java.sql.Types code. Apart from timestamps nothing is allocated.
+   * @param sqlType the type
+   * @param val the value
+   * @return true if valid, false if invalid, blank or the type is not supported
+   */
+  public static boolean isValid(int sqlType, String val)
+  {
+    if (val == null) return false;
+    switch (sqlType)
+    {
+      case Types.CHAR:
+      case Types.VARCHAR:
+      case Types.ARRAY:
+        return !StringUtils.isBlank(val);
+      case Types.INTEGER:
+        return isInteger(val, Integer.MIN_VALUE, Integer.MAX_VALUE);
+      case Types.BIGINT:
+        return isInteger(val, Long.MIN_VALUE, Long.MAX_VALUE);
+      case Types.SMALLINT:
+      case Types.TINYINT:
+        return isInteger(val, Short.MIN_VALUE, Short.MAX_VALUE);
+      case Types.FLOAT:
+      case Types.DOUBLE:
+      case Types.REAL:
+        return isFloatingPoint(val);
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return isDecimal(val);
+      case Types.BOOLEAN:
+        return isBoolean(val);
+      case Types.DATE:
+      case Types.TIMESTAMP:
+        return parseTimestamp(val) != null;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Convert a value to the Java type for a java.sql.Types code
+   * @param sqlType the type
+   * @param val the value
+   * @return the typed value, or null if the value is invalid, blank or the type is not supported
+   */
+  public static Object parse(int sqlType, String val)
+  {
+    if (val == null) return null;
+    switch (sqlType)
+    {
+      case Types.CHAR:
+      case Types.VARCHAR:
+      case Types.ARRAY:
+        return StringUtils.isBlank(val) ? null : val;
+      case Types.INTEGER:
+        return isInteger(val, Integer.MIN_VALUE, Integer.MAX_VALUE) ? Integer.valueOf(val) : null;
+      case Types.BIGINT:
+        return isInteger(val, Long.MIN_VALUE, Long.MAX_VALUE) ? Long.valueOf(val) : null;
+      case Types.SMALLINT:
+      case Types.TINYINT:
+        return isInteger(val, Short.MIN_VALUE, Short.MAX_VALUE) ? Short.valueOf(val) : null;
+      case Types.FLOAT:
+      case Types.DOUBLE:
+        return isFloatingPoint(val) ? Double.valueOf(val) : null;
+      case Types.REAL:
+        return isFloatingPoint(val) ? Float.valueOf(val) : null;
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return isDecimal(val) ? new BigDecimal(val) : null;
+      case Types.BOOLEAN:
+        if ("true".equalsIgnoreCase(val)) return Boolean.TRUE;
+        if ("false".equalsIgnoreCase(val)) return Boolean.FALSE;
+        return null;
+      case Types.DATE:
+      case Types.TIMESTAMP:
+        return parseTimestamp(val);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Convert a Tapis timestamp to a LocalDateTime in UTC, with the same results as
+   *   TapisUtils.getUTCTimeFromString()
+   * @param val the timestamp
+   * @return the time or null if not a valid Tapis timestamp
+   */
+  public static LocalDateTime parseTimestamp(String val)
+  {
+    return TapisUtils.parseUTCTime(val);
+  }
+
+  // ************************************************************************
+  // **************************  Private Methods  ***************************
+  // ************************************************************************
+
+  /*
+   * Check a value against the grammar of Long.parseLong() and a range, without converting it
+   */
+  private static boolean isInteger(String val, long min, long max)
+  {
+    int n = val.length();
+    if (n == 0) return false;
+    int i = 0;
+    boolean negative = false;
+    char first = val.charAt(0);
+    if (first == '-' || first == '+')
+    {
+      if (n == 1) return false;
+      negative = first == '-';
+      i = 1;
+    }
+    // Accumulate negatively, as Long.parseLong() does, so that Long.MIN_VALUE fits
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multmin = limit / 10;
+    long result = 0;
+    for (; i < n; i++)
+    {
+      int digit = Character.digit(val.charAt(i), 10);
+      if (digit < 0 || result < multmin) return false;
+      result *= 10;
+      if (result < limit + digit) return false;
+      result -= digit;
+    }
+    long value = negative ? result : -result;
+    return value >= min && value <= max;
+  }
+
+  /*
+   * Check a value against the grammar of Double.parseDouble(), which is also that of Float.parseFloat()
+   */
+  private static boolean isFloatingPoint(String val)
+  {
+    // Surrounding whitespace is trimmed as by String.trim()
+    int i = 0;
+    int n = val.length();
+    while (i < n && val.charAt(i) <= ' ') i++;
+    while (n > i && val.charAt(n - 1) <= ' ') n--;
+    if (i == n) return false;
+
+    char c = val.charAt(i);
+    if (c == '+' || c == '-')
+    {
+      if (++i == n) return false;
+      c = val.charAt(i);
+    }
+    if (c == 'N') return n - i == 3 && val.startsWith("NaN", i);
+    if (c == 'I') return n - i == 8 && val.startsWith("Infinity", i);
+    if (c == '0' && i + 1 < n && (val.charAt(i + 1) == 'x' || val.charAt(i + 1) == 'X'))
+      return isHexFloatingPoint(val, i + 2, n);
+
+    // Digits with at most one point, then an optional exponent
+    int digits = 0;
+    boolean point = false;
+    for (; i < n; i++)
+    {
+      c = val.charAt(i);
+      if (isDigit(c)) digits++;
+      else if (c == '.' && !point) point = true;
+      else break;
+    }
+    if (digits == 0) return false;
+    if (i < n && (c == 'e' || c == 'E'))
+    {
+      i = skipSign(val, i + 1, n);
+      int start = i;
+      while (i < n && isDigit(val.charAt(i))) i++;
+      if (i == start) return false;
+    }
+    return isFloatSuffix(val, i, n);
+  }
+
+  /*
+   * Hex floating point after 0x: hex digits with at most one point, then a binary exponent
+   */
+  private static boolean isHexFloatingPoint(String val, int i, int n)
+  {
+    int digits = 0;
+    boolean point = false;
+    for (; i < n; i++)
+    {
+      char c = val.charAt(i);
+      if (Character.digit(c, 16) >= 0 && c < 128) digits++;
+      else if (c == '.' && !point) point = true;
+      else break;
+    }
+    if (digits == 0 || i == n || (val.charAt(i) != 'p' && val.charAt(i) != 'P')) return false;
+    i = skipSign(val, i + 1, n);
+    int start = i;
+    while (i < n && isDigit(val.charAt(i))) i++;
+    if (i == start) return false;
+    return isFloatSuffix(val, i, n);
+  }
+
+  // The end of a floating point value, or an f, F, d or D suffix as its last character
+  private static boolean isFloatSuffix(String val, int i, int n)
+  {
+    if (i == n) return true;
+    char c = val.charAt(i);
+    return i == n - 1 && (c == 'f' || c == 'F' || c == 'd' || c == 'D');
+  }
+
+  /*
+   * Check a value against the BigDecimal grammar, limited to ASCII digits and exponents that cannot
+   *   overflow the scale
+   */
+  private static boolean isDecimal(String val)
+  {
+    int n = val.length();
+    int i = skipSign(val, 0, n);
+    int digits = 0;
+    boolean point = false;
+    char c = 0;
+    for (; i < n; i++)
+    {
+      c = val.charAt(i);
+      if (isDigit(c)) digits++;
+      else if (c == '.' && !point) point = true;
+      else break;
+    }
+    if (digits == 0) return false;
+    if (i < n && (c == 'e' || c == 'E'))
+    {
+      i = skipSign(val, i + 1, n);
+      int start = i;
+      while (i < n && isDigit(val.charAt(i))) i++;
+      if (i == start || i - start > MAX_EXPONENT_DIGITS) return false;
+    }
+    return i == n;
+  }
+
+  private static boolean isBoolean(String val)
+  {
+    return "true".equalsIgnoreCase(val) || "false".equalsIgnoreCase(val);
+  }
+
+  private static int skipSign(String s, int i, int n)
+  {
+    return i < n && (s.charAt(i) == '+' || s.charAt(i) == '-') ? i + 1 : i;
+  }
+
+  private static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+}
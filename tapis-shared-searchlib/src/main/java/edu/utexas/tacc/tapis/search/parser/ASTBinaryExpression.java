@@ -15,6 +15,9 @@ public class ASTBinaryExpression extends ASTNode
     right = r;
   }
 
+  // Build a node outside of the parser, such as when rewriting a tree
+  public static ASTBinaryExpression of(String o, ASTNode l, ASTNode r) { return new ASTBinaryExpression(o, l, r); }
+
   public String getOp() { return op; }
 
   public ASTNode getLeft() { return left; }
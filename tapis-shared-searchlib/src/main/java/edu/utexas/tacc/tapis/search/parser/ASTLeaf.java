@@ -8,6 +8,8 @@ public class ASTLeaf extends ASTNode
 {
   private String value;
   ASTLeaf(String v) { value = v; }
+  // Build a leaf outside of the parser, such as when rewriting a tree
+  public static ASTLeaf of(String v) { return new ASTLeaf(v); }
   public String getValue() { return value; }
   public String toString() { return value; }
 }
@@ -21,13 +21,10 @@ package edu.utexas.tacc.tapis.search.parser;
 
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.StringJoiner;
 
 import org.apache.activemq.filter.ConstantExpression;
-import org.apache.activemq.util.LRUCache;
 
 /*
  * DO NOTE EDIT
@@ -60,37 +57,20 @@ import org.apache.activemq.util.LRUCache;
  *      Unary operators (-, NOT)
  */
 public class ASTParser implements ASTParserConstants {
-  private static final Map<String, Object> cache = Collections.synchronizedMap(new LRUCache<>(100));
+  private static final ParseCache<ASTNode, UnsupportedOperationException> cache =
+      new ParseCache<>("ASTParser", UnsupportedOperationException.class);
 
   public static ASTNode parse(String sql) throws UnsupportedOperationException
   {
-    // Look for result in the cache
-    Object result = cache.get(sql);
-    // If result was an exception we are done
-    if (result instanceof UnsupportedOperationException) { throw (UnsupportedOperationException) result; }
-    // If we have already resolved the string to a node we are done
-    else if (result instanceof ASTNode) { return (ASTNode) result; }
-    else
-    {
-      // Result not in cache, convert sql string to a ASTNode
-      try
-      {
-        // Recursive call to continue processing
-        ASTNode node = new ASTParser(sql).parse();
-        // Cache the result
-        cache.put(sql, node);
-        return node;
-      }
-      catch (UnsupportedOperationException t)
-      {
-        cache.put(sql, t);
-        throw t;
-      }
-    }
+    // Look for the result in the cache, parsing on a miss. Failures are cached and rethrown.
+    return cache.get(sql, s -> new ASTParser(s).parse());
   }
 
   public static void clearCache() { cache.clear(); }
 
+  // The cache, for its statistics and to set its maximum size
+  public static ParseCache<ASTNode, UnsupportedOperationException> getCache() { return cache; }
+
   private String sql;
 
   protected ASTParser(String sql)
@@ -12,6 +12,9 @@ public class ASTUnaryExpression extends ASTNode {
   
   ASTUnaryExpression(String o, ASTNode n) {op = o; node = n;}
 
+  // Build a node outside of the parser, such as when rewriting a tree
+  public static ASTUnaryExpression of(String o, ASTNode n) { return new ASTUnaryExpression(o, n); }
+
   public String getOp() { return op; }
 
   public ASTNode getNode() { return node; }
@@ -0,0 +1,293 @@
+package edu.utexas.tacc.tapis.search.parser;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Concurrent cache of parse results keyed by the text that was parsed, shared by the
+ * generated parsers in place of a synchronized LRU map.
+ *
+ *   - Lookups of finished entries take no locks.
+ *   - Concurrent parses of the same text are coalesced: one caller parses, the others
+ *     wait for its result.
+ *   - Parse failures of the parser's exception type are cached and rethrown, so a
+ *     malformed query is only parsed once. Other exceptions are not cached.
+ *   - When the cache grows past its maximum size the least recently used entries are
+ *     evicted in a batch, by whichever caller gets there first.
+ *   - Hit, miss, failure, eviction and parse time statistics are kept.
+ *
+ * The default maximum size is DEFAULT_MAX_SIZE, overridden by the system property
+ * tapis.search.parse.cache.size or by calling setMaxSize().
+ */
+public final class ParseCache<T, E extends Exception>
+{
+  // ************************************************************************
+  // *********************** Constants **************************************
+  // ************************************************************************
+  public static final int    DEFAULT_MAX_SIZE  = 2000;
+  public static final String MAX_SIZE_PROPERTY = "tapis.search.parse.cache.size";
+
+  // Fraction of the maximum size kept after an eviction pass
+  private static final double EVICT_TO = 0.9;
+
+  // ************************************************************************
+  // *********************** Interfaces *************************************
+  // ************************************************************************
+  @FunctionalInterface
+  public interface Parser<T, E extends Exception>
+  {
+    T parse(String text) throws E;
+  }
+
+  // ************************************************************************
+  // *********************** Fields *****************************************
+  // ************************************************************************
+  private final String name;
+  private final Class<E> failureType;
+  private final Map<String, Entry<T>> map = new ConcurrentHashMap<>();
+  private final ReentrantLock evictLock = new ReentrantLock();
+  private final AtomicLong clock = new AtomicLong();  // advanced on each miss
+  private volatile int maxSize;
+
+  // Statistics
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder waits = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder parseNanos = new LongAdder();
+
+  // A parse result, completed with the value or the failure once the parse has run.
+  // The value is also kept in a field so that hits skip the future.
+  private static final class Entry<T>
+  {
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private volatile T value;
+    private volatile long lastUsed;  // clock at the last lookup
+    private Entry(long now) { lastUsed = now; }
+  }
+
+  // ************************************************************************
+  // *********************** Constructors ***********************************
+  // ************************************************************************
+  /**
+   * Create a cache with the configured maximum size.
+   *
+   * @param name name used in statistics
+   * @param failureType parse exceptions of this type are cached
+   */
+  public ParseCache(String name, Class<E> failureType)
+  {
+    this(name, failureType, Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+  }
+
+  public ParseCache(String name, Class<E> failureType, int maxSize)
+  {
+    this.name = name;
+    this.failureType = failureType;
+    setMaxSize(maxSize);
+  }
+
+  // ************************************************************************
+  // *********************** Public Methods *********************************
+  // ************************************************************************
+  /**
+   * Return the cached result for the text, parsing it if it has not been seen.
+   * A cached failure is rethrown.
+   *
+   * @param text the text to parse
+   * @param parser the parser to run on a miss
+   * @return the parse result
+   * @throws E the parse failed
+   */
+  public T get(String text, Parser<T, E> parser) throws E
+  {
+    Entry<T> entry = map.get(text);
+    if (entry != null)
+    {
+      // Only write the last use when it changes, to keep hits from contending
+      long now = clock.get();
+      if (entry.lastUsed != now) entry.lastUsed = now;
+      T value = entry.value;
+      if (value != null) { hits.increment(); return value; }
+    }
+    else
+    {
+      Entry<T> created = new Entry<>(clock.incrementAndGet());
+      entry = map.putIfAbsent(text, created);
+      if (entry == null)
+      {
+        misses.increment();
+        load(text, created, parser);
+        if (map.size() > maxSize) evict();
+        return result(created);
+      }
+    }
+
+    // A cached failure, or another caller is still parsing and we wait for it
+    if (entry.result.isDone()) hits.increment(); else waits.increment();
+    return result(entry);
+  }
+
+  /** Remove all entries, statistics are kept. */
+  public void clear() { map.clear(); }
+
+  /** Set the maximum number of entries, evicting now if there are more. */
+  public void setMaxSize(int size)
+  {
+    maxSize = Math.max(1, size);
+    if (map.size() > maxSize) evict();
+  }
+
+  public String getName() { return name; }
+  public int getMaxSize() { return maxSize; }
+  public int size() { return map.size(); }
+
+  /** Snapshot of the statistics. */
+  public Stats getStats()
+  {
+    return new Stats(name, map.size(), hits.sum(), misses.sum(), waits.sum(), failures.sum(),
+                     evictions.sum(), parseNanos.sum());
+  }
+
+  /*
+   * Point in time statistics. Hits count lookups of finished entries, waits count
+   * lookups that waited on a parse by another thread, misses count the parses run.
+   */
+  public static final class Stats
+  {
+    private final String name;
+    private final int size;
+    private final long hits, misses, waits, failures, evictions, parseNanos;
+
+    private Stats(String name, int size, long hits, long misses, long waits, long failures,
+                  long evictions, long parseNanos)
+    {
+      this.name = name;
+      this.size = size;
+      this.hits = hits;
+      this.misses = misses;
+      this.waits = waits;
+      this.failures = failures;
+      this.evictions = evictions;
+      this.parseNanos = parseNanos;
+    }
+
+    public int getSize() { return size; }
+    public long getHitCount() { return hits; }
+    public long getMissCount() { return misses; }
+    public long getWaitCount() { return waits; }
+    public long getFailureCount() { return failures; }
+    public long getEvictionCount() { return evictions; }
+    public long getTotalParseNanos() { return parseNanos; }
+
+    public double getHitRate()
+    {
+      long total = hits + waits + misses;
+      return total == 0 ? 0.0 : (double) (hits + waits) / total;
+    }
+
+    public double getAverageParseMicros()
+    {
+      return misses == 0 ? 0.0 : parseNanos / 1000.0 / misses;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%s: size=%d hits=%d waits=%d misses=%d failures=%d evictions=%d " +
+                           "hitRate=%.3f avgParseMicros=%.1f", name, size, hits, waits, misses,
+                           failures, evictions, getHitRate(), getAverageParseMicros());
+    }
+  }
+
+  // ************************************************************************
+  // *********************** Private Methods ********************************
+  // ************************************************************************
+  /*
+   * Run the parser and complete the entry. Exceptions other than the failure type
+   * are passed to the waiting callers but the entry is dropped so the next caller
+   * parses again.
+   */
+  private void load(String text, Entry<T> entry, Parser<T, E> parser)
+  {
+    long start = System.nanoTime();
+    try
+    {
+      T value = parser.parse(text);
+      entry.value = value;
+      entry.result.complete(value);
+    }
+    catch (Throwable t)
+    {
+      if (failureType.isInstance(t)) failures.increment();
+      else map.remove(text, entry);
+      entry.result.completeExceptionally(t);
+    }
+    finally
+    {
+      parseNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  // Return the value or throw the failure of a completed entry
+  private T result(Entry<T> entry) throws E
+  {
+    try
+    {
+      return entry.result.join();
+    }
+    catch (CompletionException e)
+    {
+      Throwable cause = e.getCause();
+      if (failureType.isInstance(cause)) throw failureType.cast(cause);
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+
+  /*
+   * Remove the least recently used entries until the cache is back under its
+   * maximum. Only one caller evicts at a time, the others carry on.
+   */
+  private void evict()
+  {
+    if (!evictLock.tryLock()) return;
+    try
+    {
+      int target = (int) (maxSize * EVICT_TO);
+      int excess = map.size() - target;
+      if (excess <= 0) return;
+
+      // Find the last use stamp of the oldest entries, then remove finished entries
+      // used no later than that. Entries still parsing are kept for their waiters.
+      long[] stamps = new long[map.size()];
+      int n = 0;
+      for (Entry<T> entry : map.values())
+        if (n < stamps.length && entry.result.isDone()) stamps[n++] = entry.lastUsed;
+      if (n == 0) return;
+      Arrays.sort(stamps, 0, n);
+      long cutoff = stamps[Math.min(excess, n) - 1];
+      int removed = 0;
+      for (var it = map.entrySet().iterator(); it.hasNext() && removed < excess; )
+      {
+        var e = it.next();
+        Entry<T> entry = e.getValue();
+        if (entry.lastUsed <= cutoff && entry.result.isDone() && map.remove(e.getKey(), entry))
+          removed++;
+      }
+      evictions.add(removed);
+    }
+    finally
+    {
+      evictLock.unlock();
+    }
+  }
+}
@@ -21,11 +21,11 @@ package org.apache.activemq.selector;
 
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Map;
 
 import javax.jms.InvalidSelectorException;
 
+import edu.utexas.tacc.tapis.search.parser.ParseCache;
+
 import org.apache.activemq.filter.ArithmeticExpression;
 import org.apache.activemq.filter.BooleanExpression;
 import org.apache.activemq.filter.ComparisonExpression;
@@ -34,7 +34,6 @@ import org.apache.activemq.filter.Expression;
 import org.apache.activemq.filter.LogicExpression;
 import org.apache.activemq.filter.PropertyExpression;
 import org.apache.activemq.filter.UnaryExpression;
-import org.apache.activemq.util.LRUCache;
 
 /**
  * JMS Selector Parser generated by JavaCC
@@ -43,37 +42,30 @@ import org.apache.activemq.util.LRUCache;
  */
 public class SelectorParser implements SelectorParserConstants {
 
-    private static final Map cache = Collections.synchronizedMap(new LRUCache(100));
+    private static final ParseCache<BooleanExpression, InvalidSelectorException> cache =
+        new ParseCache<>("SelectorParser", InvalidSelectorException.class);
     private static final String CONVERT_STRING_EXPRESSIONS_PREFIX = "convert_string_expressions:";
 
     public static BooleanExpression parse(String sql) throws InvalidSelectorException {
-        Object result = cache.get(sql);
-        if (result instanceof InvalidSelectorException) {
-            throw (InvalidSelectorException) result;
-        } else if (result instanceof BooleanExpression) {
-            return (BooleanExpression) result;
-        } else {
+        // Cached by the full text, so the prefix selects a separate entry
+        return cache.get(sql, SelectorParser::parseUncached);
+    }
 
-            boolean convertStringExpressions = false;
-            if( sql.startsWith(CONVERT_STRING_EXPRESSIONS_PREFIX)) {
-                convertStringExpressions = true;
-                sql = sql.substring(CONVERT_STRING_EXPRESSIONS_PREFIX.length());
-            }
+    private static BooleanExpression parseUncached(String sql) throws InvalidSelectorException {
+        boolean convertStringExpressions = false;
+        if( sql.startsWith(CONVERT_STRING_EXPRESSIONS_PREFIX)) {
+            convertStringExpressions = true;
+            sql = sql.substring(CONVERT_STRING_EXPRESSIONS_PREFIX.length());
+        }
 
+        if( convertStringExpressions ) {
+            ComparisonExpression.CONVERT_STRING_EXPRESSIONS.set(true);
+        }
+        try {
+            return new SelectorParser(sql).parse();
+        } finally {
             if( convertStringExpressions ) {
-                ComparisonExpression.CONVERT_STRING_EXPRESSIONS.set(true);
-            }
-            try {
-                BooleanExpression e = new SelectorParser(sql).parse();
-                cache.put(sql, e);
-                return e;
-            } catch (InvalidSelectorException t) {
-                cache.put(sql, t);
-                throw t;
-            } finally {
-                if( convertStringExpressions ) {
-                    ComparisonExpression.CONVERT_STRING_EXPRESSIONS.remove();
-                }
+                ComparisonExpression.CONVERT_STRING_EXPRESSIONS.remove();
             }
         }
     }
@@ -82,6 +74,11 @@ public class SelectorParser implements SelectorParserConstants {
         cache.clear();
     }
 
+    // The cache, for its statistics and to set its maximum size
+    public static ParseCache<BooleanExpression, InvalidSelectorException> getCache() {
+        return cache;
+    }
+
     private String sql;
 
     protected SelectorParser(String sql) {
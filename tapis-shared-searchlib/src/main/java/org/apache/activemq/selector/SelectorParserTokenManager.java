@@ -31,7 +31,6 @@ import org.apache.activemq.filter.Expression;
 import org.apache.activemq.filter.LogicExpression;
 import org.apache.activemq.filter.PropertyExpression;
 import org.apache.activemq.filter.UnaryExpression;
-import org.apache.activemq.util.LRUCache;
 
 /** Token Manager. */
 @SuppressWarnings ("unused")
@@ -0,0 +1,123 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.utexas.tacc.tapis.shared.threadlocal.OrderBy;
+
+/**
+ * Fetch a page at increasing depths of a sorted table in an embedded H2 database, with LIMIT/OFFSET
+ * and with a keyset cursor from KeysetPagination. The sort is mixed direction on indexed columns.
+ *
+ * Usage: KeysetPaginationBenchmark [rows [pageSize [rounds]]]
+ */
+public class KeysetPaginationBenchmark
+{
+  private static final Map<String, Integer> COLUMNS =
+    Map.of("id", Types.BIGINT, "owner", Types.VARCHAR, "created", Types.TIMESTAMP);
+  private static final List<OrderBy> ORDER_BY = List.of(OrderBy.fromString("owner"), OrderBy.fromString("created(desc)"));
+
+  public static void main(String[] args) throws Exception
+  {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    var keyset = new KeysetPagination(COLUMNS, "id", "benchmark-secret-0123456789".getBytes(StandardCharsets.UTF_8));
+    String order = keyset.getOrderBySql(ORDER_BY);
+
+    try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:keyset_benchmark;QUERY_CACHE_SIZE=0"))
+    {
+      try (var stmt = conn.createStatement())
+      {
+        stmt.execute("CREATE TABLE systems (\"id\" BIGINT PRIMARY KEY, \"owner\" VARCHAR(20) NOT NULL, " +
+                     "\"created\" TIMESTAMP NOT NULL, \"description\" VARCHAR(100))");
+        stmt.execute("CREATE INDEX systems_sort ON systems (\"owner\" ASC, \"created\" DESC, \"id\" ASC)");
+      }
+      // About 100 rows per owner, H2 range scans the index on the owner column only
+      int owners = Math.max(1, rows / 100);
+      var random = new Random(1);
+      var start = LocalDateTime.of(2021, 4, 29, 20, 15, 52);
+      try (var insert = conn.prepareStatement("INSERT INTO systems VALUES (?, ?, ?, ?)"))
+      {
+        for (int i = 0; i < rows; i++)
+        {
+          insert.setLong(1, i);
+          insert.setString(2, "user" + random.nextInt(owners));
+          insert.setTimestamp(3, Timestamp.valueOf(start.plusSeconds(random.nextInt(1_000_000))));
+          insert.setString(4, "system " + i);
+          insert.addBatch();
+          if (i % 10_000 == 9_999) insert.executeBatch();
+        }
+        insert.executeBatch();
+      }
+
+      // Walk the table once to collect the cursor after the last row before each depth, the first page has none
+      int[] depths = {0, rows / 100, rows / 10, rows / 2, rows - pageSize};
+      var cursors = new String[depths.length];
+      try (var stmt = conn.prepareStatement("SELECT \"owner\", \"created\", \"id\" FROM systems ORDER BY " + order);
+           ResultSet rs = stmt.executeQuery())
+      {
+        for (int row = 1, d = 1; d < depths.length && rs.next(); row++)
+          if (row == depths[d])
+            cursors[d++] = keyset.encodeCursor(ORDER_BY, List.of(rs.getString(1), rs.getTimestamp(2), rs.getLong(3)));
+      }
+
+      System.out.printf("%d rows, ORDER BY %s, %d rows per page%n%10s %14s %14s%n", rows, order, pageSize,
+                        "offset", "OFFSET us", "keyset us");
+      for (int i = 0; i < depths.length; i++)
+      {
+        long offsetNanos = Long.MAX_VALUE, keysetNanos = Long.MAX_VALUE;
+        for (int r = 0; r < rounds; r++)
+        {
+          long t0 = System.nanoTime();
+          List<Long> byOffset = pageByOffset(conn, order, depths[i], pageSize);
+          long t1 = System.nanoTime();
+          List<Long> byKeyset = pageByKeyset(conn, keyset, order, cursors[i], pageSize);
+          long t2 = System.nanoTime();
+          if (!byOffset.equals(byKeyset)) throw new IllegalStateException("Pages differ at offset " + depths[i]);
+          offsetNanos = Math.min(offsetNanos, t1 - t0);
+          keysetNanos = Math.min(keysetNanos, t2 - t1);
+        }
+        System.out.printf("%10d %,14.0f %,14.0f%n", depths[i], offsetNanos / 1e3, keysetNanos / 1e3);
+      }
+    }
+  }
+
+  private static List<Long> pageByOffset(Connection conn, String order, int offset, int pageSize) throws Exception
+  {
+    String sql = "SELECT * FROM systems ORDER BY " + order + " LIMIT " + pageSize + " OFFSET " + offset;
+    try (var stmt = conn.prepareStatement(sql); ResultSet rs = stmt.executeQuery())
+    {
+      return ids(rs);
+    }
+  }
+
+  private static List<Long> pageByKeyset(Connection conn, KeysetPagination keyset, String order, String cursor,
+                                         int pageSize) throws Exception
+  {
+    SearchSql after = cursor == null ? null : keyset.compileAfter(ORDER_BY, cursor);
+    String sql = "SELECT * FROM systems " + (after == null ? "" : "WHERE " + after.getSql()) +
+                 " ORDER BY " + order + " LIMIT " + pageSize;
+    try (var stmt = conn.prepareStatement(sql))
+    {
+      if (after != null) after.bind(stmt, 1);
+      try (ResultSet rs = stmt.executeQuery()) { return ids(rs); }
+    }
+  }
+
+  private static List<Long> ids(ResultSet rs) throws Exception
+  {
+    var ids = new ArrayList<Long>();
+    while (rs.next()) ids.add(rs.getLong("id"));
+    return ids;
+  }
+}
@@ -0,0 +1,210 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.shared.threadlocal.OrderBy;
+
+/**
+ *  Tests of KeysetPagination: SQL text, cursors and paging through a table in an embedded H2 database.
+ */
+@Test(groups= {"unit"})
+public class KeysetPaginationTest
+{
+  private static final Map<String, Integer> COLUMNS =
+    Map.of("id", Types.BIGINT, "owner", Types.VARCHAR, "created", Types.TIMESTAMP, "port", Types.INTEGER,
+           "load", Types.DOUBLE, "enabled", Types.BOOLEAN, "tags", Types.ARRAY);
+  private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+  private static final int ROWS = 500;
+  private static final int PAGE_SIZE = 13;
+
+  private final KeysetPagination keyset = new KeysetPagination(COLUMNS, "id", SECRET);
+  private Connection conn;
+
+  @BeforeClass
+  public void setUp() throws SQLException
+  {
+    conn = DriverManager.getConnection("jdbc:h2:mem:keyset_test");
+    try (var stmt = conn.createStatement())
+    {
+      stmt.execute("CREATE TABLE systems (\"id\" BIGINT PRIMARY KEY, \"owner\" VARCHAR(20) NOT NULL, " +
+                   "\"created\" TIMESTAMP NOT NULL, \"port\" INTEGER NOT NULL, \"load\" DOUBLE PRECISION NOT NULL, " +
+                   "\"enabled\" BOOLEAN NOT NULL)");
+    }
+    // Few distinct values per column so that there are many ties
+    var random = new Random(47);
+    var start = LocalDateTime.of(2021, 4, 29, 20, 15, 52);
+    try (var insert = conn.prepareStatement("INSERT INTO systems VALUES (?, ?, ?, ?, ?, ?)"))
+    {
+      for (int i = 0; i < ROWS; i++)
+      {
+        insert.setLong(1, i);
+        insert.setString(2, "user" + random.nextInt(5));
+        insert.setTimestamp(3, Timestamp.valueOf(start.plusSeconds(random.nextInt(8) * 3600L).withNano(random.nextInt(3) * 1000)));
+        insert.setInt(4, random.nextInt(4) * 1000);
+        insert.setDouble(5, random.nextInt(6) / 4.0);
+        insert.setBoolean(6, random.nextBoolean());
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    }
+  }
+
+  @AfterClass
+  public void tearDown() throws SQLException
+  {
+    if (conn != null) conn.close();
+  }
+
+  /*
+   * SQL text for a single column, the same direction and mixed directions
+   */
+  @Test(groups = {"unit"})
+  public void testSql()
+  {
+    Assert.assertEquals(keyset.getOrderBySql(List.of()), "\"id\" ASC");
+    Assert.assertEquals(keyset.compileAfter(List.of(), cursor(List.of(), 5L)).getSql(), "\"id\" > ?");
+
+    var same = orderBy("owner(desc)", "created(desc)");
+    Assert.assertEquals(keyset.getKeyColumns(same), List.of("owner", "created", "id"));
+    Assert.assertEquals(keyset.getOrderBySql(same), "\"owner\" DESC, \"created\" DESC, \"id\" ASC");
+    var mixed = orderBy("owner(asc)", "port(desc)");
+    SearchSql sql = keyset.compileAfter(mixed, cursor(mixed, "user1", 80, 7L));
+    Assert.assertEquals(sql.getSql(),
+      "\"owner\" >= ? AND (\"owner\" > ? OR (\"owner\" = ? AND (\"port\" < ? OR (\"port\" = ? AND (\"id\" > ?)))))");
+    Assert.assertEquals(sql.getBindValues(), new Object[] {"user1", "user1", "user1", 80, 80, 7L});
+
+    // The unique key is not repeated and its direction is kept, attributes may be camelCase
+    var withId = orderBy("id(desc)", "owner");
+    Assert.assertEquals(keyset.getKeyColumns(withId), List.of("id", "owner"));
+    Assert.assertEquals(keyset.getKeyColumns(orderBy("owner", "Owner", "owner(desc)")), List.of("owner", "id"));
+    sql = keyset.compileAfter(orderBy("port", "enabled"), cursor(orderBy("port", "enabled"), 22, true, 3L));
+    Assert.assertEquals(sql.getSql(), "\"port\" >= ? AND (\"port\", \"enabled\", \"id\") > (?, ?, ?)");
+    Assert.assertEquals(sql.getBindValues(), new Object[] {22, 22, true, 3L});
+    var allDesc = orderBy("owner(desc)", "created(desc)", "id(desc)");
+    sql = keyset.compileAfter(allDesc, cursor(allDesc, "user1", "2021-04-29T20:15:52Z", 3L));
+    Assert.assertEquals(sql.getSql(), "\"owner\" <= ? AND (\"owner\", \"created\", \"id\") < (?, ?, ?)");
+  }
+
+  /*
+   * Cursors round trip typed values and reject changes, other orderBy lists, other secrets and bad values
+   */
+  @Test(groups = {"unit"})
+  public void testCursor()
+  {
+    var orderBy = orderBy("created(desc)", "load");
+    var created = LocalDateTime.of(2021, 4, 29, 20, 15, 52, 123456000);
+    String cursor = cursor(orderBy, created, 0.25, 42L);
+    Assert.assertTrue(cursor.matches("[A-Za-z0-9_-]+\\.[A-Za-z0-9_-]+"), cursor);
+    Assert.assertEquals(keyset.compileAfter(orderBy, cursor).getBindValues(), new Object[] {created, created, created, 0.25, 0.25, 42L});
+    Assert.assertEquals(cursor(orderBy, Timestamp.valueOf(created), 0.25, 42), cursor);
+
+    // Any changed character is detected
+    for (int i = 0; i < cursor.length(); i++)
+    {
+      char c = cursor.charAt(i);
+      String changed = cursor.substring(0, i) + (c == 'A' ? 'B' : 'A') + cursor.substring(i + 1);
+      assertInvalid(() -> keyset.compileAfter(orderBy, changed), "SEARCH_KEYSET_INVALID_CURSOR");
+    }
+    assertInvalid(() -> keyset.compileAfter(orderBy, "abc"), "SEARCH_KEYSET_INVALID_CURSOR");
+    assertInvalid(() -> keyset.compileAfter(orderBy, null), "SEARCH_KEYSET_INVALID_CURSOR");
+    assertInvalid(() -> keyset.compileAfter(orderBy("created", "load"), cursor), "SEARCH_KEYSET_INVALID_CURSOR");
+    var other = new KeysetPagination(COLUMNS, "id", "fedcba9876543210".getBytes(StandardCharsets.UTF_8));
+    assertInvalid(() -> other.compileAfter(orderBy, cursor), "SEARCH_KEYSET_INVALID_CURSOR");
+
+    assertInvalid(() -> cursor(orderBy, null, 0.25, 42L), "SEARCH_KEYSET_NULL_VALUE");
+    assertInvalid(() -> cursor(orderBy, created, 0.25), "SEARCH_KEYSET_VALUE_COUNT");
+    assertInvalid(() -> cursor(orderBy, created, "heavy", 42L), "SEARCH_KEYSET_INVALID_VALUE");
+    assertInvalid(() -> keyset.getOrderBySql(orderBy("nosuch")), "SEARCH_KEYSET_UNKNOWN_ATTR");
+    assertInvalid(() -> new KeysetPagination(COLUMNS, "nosuch", SECRET), "SEARCH_KEYSET_UNKNOWN_ATTR");
+    assertInvalid(() -> new KeysetPagination(COLUMNS, "id", new byte[8]), "SEARCH_KEYSET_SHORT_SECRET");
+  }
+
+  /*
+   * Paging with cursors returns every row once, in the same order as a single sorted query
+   */
+  @Test(groups = {"unit"})
+  public void testPaging() throws SQLException
+  {
+    List<List<OrderBy>> orderByLists =
+      List.of(orderBy(), orderBy("owner"), orderBy("owner(desc)"), orderBy("owner", "created(desc)"),
+              orderBy("enabled(desc)", "port", "load(desc)"), orderBy("created(desc)", "owner(desc)", "load(desc)"),
+              orderBy("load", "id(desc)"), orderBy("port(desc)", "enabled", "created", "owner(desc)"));
+    for (List<OrderBy> orderBy : orderByLists)
+    {
+      String order = keyset.getOrderBySql(orderBy);
+      List<Long> expected = new ArrayList<>();
+      try (var stmt = conn.prepareStatement("SELECT \"id\" FROM systems ORDER BY " + order); var rs = stmt.executeQuery())
+      {
+        while (rs.next()) expected.add(rs.getLong(1));
+      }
+
+      List<Long> paged = new ArrayList<>();
+      String cursor = null;
+      int pages = 0;
+      while (true)
+      {
+        SearchSql after = cursor == null ? null : keyset.compileAfter(orderBy, cursor);
+        String sql = "SELECT * FROM systems " + (after == null ? "" : "WHERE " + after.getSql()) +
+                     " ORDER BY " + order + " LIMIT " + PAGE_SIZE;
+        List<Object> last = null;
+        try (PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+          if (after != null) after.bind(stmt, 1);
+          try (ResultSet rs = stmt.executeQuery())
+          {
+            while (rs.next())
+            {
+              paged.add(rs.getLong("id"));
+              last = new ArrayList<>();
+              for (String column : keyset.getKeyColumns(orderBy)) last.add(rs.getObject(column));
+            }
+          }
+        }
+        if (last == null) break;
+        cursor = keyset.encodeCursor(orderBy, last);
+        Assert.assertTrue(++pages <= ROWS / PAGE_SIZE + 1, "Too many pages for " + orderBy);
+      }
+      Assert.assertEquals(paged, expected, orderBy.toString());
+    }
+  }
+
+  private String cursor(List<OrderBy> orderBy, Object... values)
+  {
+    return keyset.encodeCursor(orderBy, Arrays.asList(values));
+  }
+
+  private static List<OrderBy> orderBy(String... entries)
+  {
+    var list = new ArrayList<OrderBy>();
+    for (String entry : entries) list.add(OrderBy.fromString(entry));
+    return list;
+  }
+
+  private static void assertInvalid(Runnable r, String msgKey)
+  {
+    try
+    {
+      r.run();
+      Assert.fail("Expected " + msgKey);
+    }
+    catch (IllegalArgumentException e) { Assert.assertTrue(e.getMessage().startsWith(msgKey), e.getMessage()); }
+  }
+}
@@ -0,0 +1,375 @@
+package edu.utexas.tacc.tapis.search;
+
+import edu.utexas.tacc.tapis.search.SearchUtils.SearchOperator;
+import edu.utexas.tacc.tapis.shared.i18n.MsgUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static edu.utexas.tacc.tapis.search.SearchUtils.SEARCH_OP_SET;
+import static edu.utexas.tacc.tapis.search.SearchUtils.listOpSet;
+
+/**
+ * The regular expression based condition processing that SearchUtils used before SearchConditionScanner,
+ * kept as the reference for SearchConditionScannerTest and SearchConditionBenchmark.
+ */
+final class RegexSearchConditions
+{
+  private RegexSearchConditions() { throw new AssertionError(); }
+
+  private static final List<Character> SEARCH_VAL_SPECIAL_CHARS = Arrays.asList('~', ',', '(', ')');
+  // Regex for parsing (<attr1>.<op>.<val1>)~(<attr2>.<op>.<val2>) ... See validateAndExtractSearchList
+  private static final Pattern SEARCH_PATTERN = Pattern.compile("(?:\\\\.|[^~\\\\]++)+");
+
+  // Regex for splitting a string containing a comma delimited list
+  //   Match "," but not "\," (i.e. match only an unescaped comma)
+  private static final Pattern COMMASPLIT_PATTERN = Pattern.compile("(?<!\\\\),");
+
+  // Regex for valid attribute name
+  // <attr> must start with [a-zA-Z] and contain only [a-zA-Z0-9_]
+  private static final Pattern VALIDATTR_PATTERN = Pattern.compile("^[a-zA-Z][a-zA-Z0-9_]*$");
+
+  /**
+   * Extract a list of search conditions provided as a single string
+   * Search list string must have the form  (<cond>)~(<cond>)~ ...
+   *    where <cond> = <attr>.<op>.<value>
+   * If there is only one condition the surrounding parentheses are optional
+   * This method is intended for use by the front end api. The back end translates the Tapis LIKE wildcard
+   *   characters (* and !) and deals with Tapis special characters.
+   * @param searchListStr - String containing all search conditions
+   * @return the list of extracted search conditions
+   * @throws IllegalArgumentException if error encountered while parsing.
+   */
+  static List<String> extractAndValidateSearchList(String searchListStr) throws IllegalArgumentException
+  {
+    var searchList = new ArrayList<String>();
+    if (StringUtils.isBlank(searchListStr)) return searchList;
+    // Parse search string into a list of conditions using a regex pattern to split
+    // Set delimiter as ~ and escape as \
+    //    SEARCH_REGEX = "(?:\\\\.|[^~\\\\]++)+"
+    //        "(" +          // start a match group
+    //        "?:" +         // match either of
+    //        escape + "." + // any escaped character
+    //        "|" +          // or
+    //        "[^" + delimiter + escape + "]++" + // match any char except delim or escape, possessive match
+    //        ")" +          // end a match group
+    //        "+";           // repeat any number of times, ignoring empty results. Use * instead of + to include empty results
+    Matcher regexMatcher = SEARCH_PATTERN.matcher(searchListStr);
+    while (regexMatcher.find()) { searchList.add(regexMatcher.group()); }
+    // If we found only one match the searchList string may be a single condition that may or may not
+    // be surrounded by parentheses. So handle that case.
+    if (searchList.size() == 1)
+    {
+      String cond = searchList.get(0);
+      // Add parentheses if not present, check start and end
+      // Check for unbalanced parentheses in below loop over the search list
+      if (!cond.startsWith("(") && !cond.endsWith(")")) cond = "(" + cond + ")";
+      searchList.set(0, cond);
+    }
+
+    var retList = new ArrayList<String>();
+    // Validate and process each condition. IllegalArg thrown if invalid
+    for (String cond : searchList)
+    {
+      // Check for unbalanced parens. At this point the condition should not be blank and should be surrounded
+      //   by parentheses
+      if (StringUtils.isBlank(cond) || !cond.startsWith("(") || !cond.endsWith(")"))
+      {
+        String errMsg = MsgUtils.getMsg("SEARCH_COND_UNBALANCED", cond);
+        throw new IllegalArgumentException(errMsg);
+      }
+
+      // At this point the condition must have surrounding parentheses. Strip them off.
+      String bareCond = cond.substring(1, cond.length() - 1);
+      // Validate the form of the condition
+      validateSearchConditionForm(bareCond);
+      retList.add(bareCond);
+    }
+    // Remove any empty matches, e.g. () might have been included one or more times
+    retList.removeIf(item -> StringUtils.isBlank(item));
+    return retList;
+  }
+
+  /**
+   * Validate a search condition that must have the form <attr>.<op>.<value>
+   * For operators that take a list (IN, NIN, BETWEEN, NBETWEEN) the value is processed as a CSV list
+   * For the value(s):
+   *   Check for any of the Tapis special chars that are unescaped
+   *   Check that for BETWEEN/NBETWEEN it is a 2 element list
+   * @param cond the condition to process
+   * @throws IllegalArgumentException if condition is invalid
+   */
+  static void validateSearchConditionForm(String cond) throws IllegalArgumentException
+  {
+    // A blank string is OK at this point and means we are done
+    if (StringUtils.isBlank(cond)) return;
+
+    // Validate the 3 components of a condition
+    extractAttribute(cond);
+    SearchOperator operator = extractOperator(cond);
+    extractFullValueStr(cond, operator);
+  }
+
+  /**
+   * Validate and process a search condition that must have the form <attr>.<op>.<value>
+   * For operators that take a list (IN, NIN, BETWEEN, NBETWEEN) the value is processed as a CSV list
+   * For the value(s):
+   *   Check for any of our special chars that are unescaped
+   *   Check that for BETWEEN/NBETWEEN it is a 2 element list
+   *   For LIKE/NLIKE translate special characters * -> % and ! -> _
+   *   Remove escapes from our special characters as needed
+   * @param cond the condition to process
+   * @return the validated and processed condition without surrounding parentheses
+   * @throws IllegalArgumentException if condition is invalid
+   */
+  static String validateAndProcessSearchCondition(String cond) throws IllegalArgumentException
+  {
+    String retCond = cond;
+    // A blank string is OK at this point and means we are done
+    if (StringUtils.isBlank(retCond)) return retCond;
+
+    // Validate and extract the 3 components of a condition
+    String attr = extractAttribute(retCond);
+    SearchOperator operator = extractOperator(retCond);
+    String fullValueStr = extractFullValueStr(retCond, operator);
+
+    // <value> may be a list so always build a list to simplify the logic below
+    // If the operator takes a list set a flag since it will require special processing
+    List<String> valList;
+    boolean isListOperator = listOpSet.contains(operator);
+    if (isListOperator) valList = getValueList(fullValueStr); else valList = Collections.singletonList(fullValueStr);
+
+    // For all operators except LIKE/NLIKE we can now unescape our special characters
+    // LIKE/NLIKE deal with escaped characters (as opposed to EQ for example) but require special
+    //   processing because of *! and %_. So leaving in escapes for LIKE/NLIKE simplifies processing.
+    if (!operator.equals(SearchOperator.LIKE) && !operator.equals(SearchOperator.NLIKE))
+    {
+      var valListTmp = new ArrayList<String>();
+      for (String val : valList)
+      {
+        // Unescape our special chars. For list operators commas are left escaped
+        valListTmp.add(unescapeSpecialChars(val, isListOperator));
+      }
+      valList = valListTmp;
+    }
+
+    // For LIKE/NLIKE translate special characters as needed
+    // Not a list operator so only one value in valList
+    // * -> %
+    // ! -> _
+    if (operator.equals(SearchOperator.LIKE) || operator.equals(SearchOperator.NLIKE))
+    {
+      // Existing % and _ must be escaped before going to SQL
+      //  so escape any unescaped %, _ characters
+      fullValueStr = fullValueStr.replaceAll("(?<!\\\\)%", "\\\\%"); // match % but not \%
+      fullValueStr = fullValueStr.replaceAll("(?<!\\\\)_", "\\\\_"); // match _ but not \_
+      // Now do translations
+      // Use regex to skip escaped characters
+      fullValueStr = fullValueStr.replaceAll("(?<!\\\\)\\*", "%"); // match * but not \*
+      fullValueStr = fullValueStr.replaceAll("(?<!\\\\)!", "_"); // match ! but not \!
+      valList = Collections.singletonList(fullValueStr);
+    }
+
+    // Rebuild the list
+    // NOTE that at this point each individual value in the list should not have any unescaped commas,
+    //   because if it had then they would create separate items in the list when processed above.
+    StringJoiner sj = new StringJoiner(",");
+    for (String v : valList) { sj.add(v); }
+    fullValueStr = sj.toString();
+    retCond = attr + "." + operator.name() + "." + fullValueStr;
+    return retCond;
+  }
+
+  /**
+   * Break up a string containing comma separated values
+   * Match "," but not "\," (i.e. match only an unescaped comma)
+   * @param valStr string containing comma separated list of values
+   * @return Resulting list of strings
+   */
+  static List<String> getValueList(String valStr)
+  {
+    if (StringUtils.isBlank(valStr)) return new ArrayList<>();
+    else return Arrays.asList(COMMASPLIT_PATTERN.split(valStr));
+
+  }
+
+  /**
+   * Check that attribute name is valid
+   * @param attrStr value to check
+   * @return true if valid, else false
+   */
+  static boolean invalidAttributeName(String attrStr)
+  {
+    // <attr> must start with [a-zA-Z] and contain only [a-zA-Z0-9_]
+    // Turn the pattern into a matcher and make sure attrStr matches
+    return !VALIDATTR_PATTERN.matcher(attrStr).find();
+  }
+
+
+  /**
+   * Check for unescaped special characters in a value
+   * @param valStr value to check
+   * @return true if value contains no unescaped characters otherwise false
+   */
+  private static boolean validateValueSpecialChars(String valStr)
+  {
+    if (StringUtils.isBlank(valStr)) return true;
+
+    // regex=(?<!\\)<char> Match <char> but not \<char>
+    String regex = "(?<!" + Pattern.quote("\\") + ")";
+    for (Character c : SEARCH_VAL_SPECIAL_CHARS)
+    {
+      Pattern p = Pattern.compile(regex + Pattern.quote(c.toString()));
+      if (p.matcher(valStr).find()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Unescape Tapis special characters in a value
+   * Some operators take a list and for those commas must remain escaped
+   * @param valStr value to process
+   * @param isListOp indicates operator takes a list
+   * @return value with escape characters removed as appropriate
+   */
+  private static String unescapeSpecialChars(String valStr, boolean isListOp)
+  {
+    String retVal = valStr;
+    if (StringUtils.isBlank(valStr)) return valStr;
+    for (Character c : SEARCH_VAL_SPECIAL_CHARS)
+    {
+      if (isListOp &&  c.equals(',')) continue; // Commas remain escaped for list operators
+      String regex = "\\\\" + Pattern.quote(c.toString());
+      retVal = retVal.replaceAll(regex, c.toString()); // Replace \<char> with <char>
+    }
+    return retVal;
+  }
+
+  /**
+   * Extract and validate attribute name in a condition having the form attr.op.value
+   * NOTE: Make package-private for use in test code
+   * @param condStr condition string
+   * @return attribute name
+   */
+  static String extractAttribute(String condStr)
+  {
+    int dot1 = condStr.indexOf('.');
+    if (dot1 < 0)
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOATTR", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+    String attr = condStr.substring(0, dot1);
+    // <attr> must not be empty
+    if (StringUtils.isBlank(attr))
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOATTR", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+
+    // Validate <attr>
+    if (invalidAttributeName(attr))
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_ATTR", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+    return attr;
+  }
+
+  /**
+   * Extract and validate operator in a condition having the form attr.op.value
+   * NOTE: Make package-private for use in test code
+   * @param condStr condition string
+   * @return search operator from condition
+   */
+  static SearchOperator extractOperator(String condStr)
+  {
+    int dot1 = condStr.indexOf('.');
+    if (dot1 < 0)
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOOPER", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+    int dot2 = condStr.indexOf('.', dot1 + 1);
+    if (dot2 < 0)
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOOPER", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+    String op = condStr.substring(dot1 + 1, dot2);
+    // <op> must not be empty
+    if (StringUtils.isBlank(op))
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOOPER", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+
+    // Validate <op>
+    // Verify <op> is supported.
+    if (!SEARCH_OP_SET.contains(op.toUpperCase()))
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_OP", op, condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+    return SearchOperator.valueOf(op.toUpperCase());
+  }
+
+  /**
+   * Extract and validate value in a condition having the form attr.op.value
+   * NOTE: Make package-private for use in test code
+   * @param condStr condition string
+   * @return full value string which may be a list
+   */
+  static String extractFullValueStr(String condStr, SearchOperator operator)
+  {
+    int dot1 = condStr.indexOf('.');
+    if (dot1 < 0)
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOVAL", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+    int dot2 = condStr.indexOf('.', dot1 + 1);
+    if (dot2 < 0)
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOVAL", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+    String fullValueStr = condStr.substring(dot2 + 1);
+    // <val> must not be empty
+    if (StringUtils.isBlank(fullValueStr))
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_NOVAL", condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+
+    // Validate and process <value>
+    // <value> may be a list so always build a list to simplify the logic below
+    List<String> valList;
+    if (listOpSet.contains(operator)) valList = getValueList(fullValueStr); else valList = Collections.singletonList(fullValueStr);
+
+    // Make sure each value does not have any of our special characters that are unescaped.
+    for (String val : valList)
+    {
+      if (!validateValueSpecialChars(val))
+      {
+        String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_VAL", condStr);
+        throw new IllegalArgumentException(errMsg);
+      }
+    }
+
+    // For BETWEEN/NBETWEEN the value must be a 2 element list
+    if ((operator.equals(SearchOperator.BETWEEN) || operator.equals(SearchOperator.NBETWEEN))
+            && valList.size() != 2)
+    {
+      String errMsg = MsgUtils.getMsg("SEARCH_COND_INVALID_OP2", operator.name(), condStr);
+      throw new IllegalArgumentException(errMsg);
+    }
+    return fullValueStr;
+  }
+}
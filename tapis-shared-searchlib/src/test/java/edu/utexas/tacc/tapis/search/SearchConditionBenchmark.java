@@ -0,0 +1,60 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Process search lists as done by a service for a search query parameter:
+ * extractAndValidateSearchList() followed by validateAndProcessSearchCondition() for each
+ * condition, with SearchUtils and with the former regular expressions in RegexSearchConditions.
+ * Reports the best time per search list of several rounds, the first ones warm up.
+ *
+ * Usage: SearchConditionBenchmark [iterations [rounds]]
+ */
+public class SearchConditionBenchmark
+{
+  private static final Map<String, String> SEARCHES = Map.of(
+    "simple", "(enabled.eq.true)~(owner.eq.jdoe)~(port.lt.7)",
+    "escaped", "(description.like.my\\,\\(\\)\\~\\*\\!\\\\system*)~(name.neq.test\\(\\)name)~(host.nlike.stampede!.tacc.*)",
+    "list", "(system_type.in.S3,LINUX,IRODS,GLOBUS)~(port.between.0,1024)~(tags.contains.a,b\\,c,d)~(owner.nin.x,y,z)");
+
+  // Keeps the results live so the work is not optimized away
+  private static long sink;
+
+  public static void main(String[] args)
+  {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    System.out.printf("%-8s %12s %12s%n", "search", "scanner ns", "regex ns");
+    for (String name : List.of("simple", "escaped", "list"))
+    {
+      String searchList = SEARCHES.get(name);
+      double scanner = bestNanos(searchList, SearchUtils::extractAndValidateSearchList,
+                                 SearchUtils::validateAndProcessSearchCondition, iterations, rounds);
+      double regex = bestNanos(searchList, RegexSearchConditions::extractAndValidateSearchList,
+                               RegexSearchConditions::validateAndProcessSearchCondition, iterations, rounds);
+      System.out.printf("%-8s %12.1f %12.1f%n", name, scanner, regex);
+    }
+    if (sink == 42) System.out.println();
+  }
+
+  /*
+   * Best time per search list over the rounds
+   */
+  private static double bestNanos(String searchList, Function<String, List<String>> extract,
+                                  UnaryOperator<String> process, int iterations, int rounds)
+  {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < rounds; round++)
+    {
+      long t0 = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+        for (String cond : extract.apply(searchList)) sink += process.apply(cond).length();
+      best = Math.min(best, System.nanoTime() - t0);
+    }
+    return (double) best / iterations;
+  }
+}
@@ -0,0 +1,124 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *  Differential tests of SearchConditionScanner against the former regular expression based
+ *  processing in RegexSearchConditions.
+ */
+@Test(groups= {"unit"})
+public class SearchConditionScannerTest
+{
+  // Pieces that random inputs are built from, weighted towards special characters and escapes
+  private static final String[] PIECES =
+    { "a", "Z", "b1", "_x", "9", " ", ".", "\\", "\\\\", "~", ",", "(", ")", "*", "!", "%", "_",
+      "\\,", "\\(", "\\)", "\\~", "\\*", "\\!", "\\%", "\\_", "\n", "\r", "\r\n", "\u2028", "\u0085", "sys" };
+  private static final String[] OPS =
+    { "eq", "NEQ", "lt", "lte", "gt", "gte", "in", "nin", "like", "NLike", "between", "nbetween",
+      "contains", "ncontains", "eqq", "", " " };
+
+  private static final int CASES = 10000;
+
+  /*
+   * Known edge cases of the former regular expressions
+   */
+  @Test(groups = {"unit"})
+  public void testEdgeCases()
+  {
+    String[] conditions =
+      { "name.eq.a\\\\(b", "name.in.a\\\\,b", "name.in.a,,b,,", "name.in.,", "name.between.1,2,",
+        "name.between.,1,2", "name.like.a\\\\%b*c!d_e", "name\n.eq.x", "name\r\n.eq.x", "name\n\n.eq.x",
+        "name\u2028.eq.x", "n.eq.\\", "n.in.(a),b", "n.in.a\\(,b\\)", "n.eq.a\\,b", "1n.eq.x", " .eq.x",
+        "n..x", "n.eq.", "n.eq. ", "n", ".eq.x", "n.nlike.\\*\\!*!%_" };
+    for (String cond : conditions) checkCondition(cond);
+
+    String[] lists =
+      { "a.eq.b\\", "(a.eq.b\\)", "(a.eq.b)~(c.eq.d\\\n)", "a.eq.b\\\nc", "~~(a.eq.1)~~", "(a.eq.1", "a.eq.1)",
+        "(a.eq.1)~b.eq.2", "(a.eq.\\~)~(b.in.1,2)", "\\", "\\~", "( )~()", "(a.eq.1)~\\\r(b.eq.2)" };
+    for (String list : lists) checkSearchList(list);
+  }
+
+  /*
+   * Random conditions, search lists and value lists give the same results or errors
+   */
+  @Test(groups = {"unit"})
+  public void testRandom()
+  {
+    var random = new Random(42);
+    for (int i = 0; i < CASES; i++)
+    {
+      String cond = randomCondition(random);
+      checkCondition(cond);
+
+      var list = new StringBuilder();
+      int count = random.nextInt(4);
+      for (int j = 0; j < count; j++)
+      {
+        if (j > 0 || random.nextInt(4) == 0) list.append('~');
+        boolean parens = random.nextInt(5) != 0;
+        list.append(parens ? "(" : "").append(randomCondition(random)).append(parens ? ")" : "");
+      }
+      checkSearchList(list.toString());
+
+      String values = randomPieces(random, 8);
+      check("getValueList " + values, () -> RegexSearchConditions.getValueList(values),
+            () -> SearchUtils.getValueList(values));
+    }
+  }
+
+  private static void checkCondition(String cond)
+  {
+    check("validateAndProcessSearchCondition " + cond, () -> RegexSearchConditions.validateAndProcessSearchCondition(cond),
+          () -> SearchUtils.validateAndProcessSearchCondition(cond));
+    check("validateSearchConditionForm " + cond,
+          () -> { RegexSearchConditions.validateSearchConditionForm(cond); return null; },
+          () -> { SearchUtils.validateSearchConditionForm(cond); return null; });
+    check("extractAttribute " + cond, () -> RegexSearchConditions.extractAttribute(cond),
+          () -> SearchUtils.extractAttribute(cond));
+    check("extractOperator " + cond, () -> RegexSearchConditions.extractOperator(cond),
+          () -> SearchUtils.extractOperator(cond));
+    for (var op : SearchUtils.SearchOperator.values())
+      check("extractFullValueStr " + op + " " + cond, () -> RegexSearchConditions.extractFullValueStr(cond, op),
+            () -> SearchUtils.extractFullValueStr(cond, op));
+    int dot = cond.indexOf('.');
+    String attr = dot < 0 ? cond : cond.substring(0, dot);
+    if (!attr.isEmpty())
+      Assert.assertEquals(SearchConditionScanner.isValidAttributeName(attr), !RegexSearchConditions.invalidAttributeName(attr),
+                          attr);
+  }
+
+  private static void checkSearchList(String list)
+  {
+    check("extractAndValidateSearchList " + list, () -> RegexSearchConditions.extractAndValidateSearchList(list),
+          () -> SearchUtils.extractAndValidateSearchList(list));
+  }
+
+  // Compare results, or exception types and messages
+  private static void check(String what, Supplier<Object> expected, Supplier<Object> actual)
+  {
+    Object e, a;
+    try { e = expected.get(); } catch (RuntimeException ex) { e = ex.getClass().getName() + ": " + ex.getMessage(); }
+    try { a = actual.get(); } catch (RuntimeException ex) { a = ex.getClass().getName() + ": " + ex.getMessage(); }
+    Assert.assertEquals(a, e, what);
+  }
+
+  private static String randomCondition(Random random)
+  {
+    if (random.nextInt(10) == 0) return randomPieces(random, 12);
+    String attr = random.nextInt(8) == 0 ? randomPieces(random, 3) : "attr_" + random.nextInt(3);
+    String op = OPS[random.nextInt(OPS.length)];
+    return attr + "." + op + "." + randomPieces(random, 8);
+  }
+
+  private static String randomPieces(Random random, int max)
+  {
+    var sb = new StringBuilder();
+    int count = random.nextInt(max + 1);
+    for (int i = 0; i < count; i++) sb.append(PIECES[random.nextInt(PIECES.length)]);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,140 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.search.SearchLimits.Complexity;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTParser;
+
+/**
+ *  Tests of SearchLimits: measuring searches and rejecting those that exceed a limit.
+ */
+@Test(groups= {"unit"})
+public class SearchLimitsTest
+{
+  /*
+   * Leaves, depth, list values, wildcards and cost of parsed searches
+   */
+  @Test(groups = {"unit"})
+  public void testMeasureAst()
+  {
+    checkAst("a = 1", 2, 1, 0, 0, 1);
+    checkAst("a = 1 AND b = 2 AND c = 3 AND d = 4", 8, 2, 0, 0, 4);
+    checkAst("a = 1 AND (b = 2 OR NOT c = 3)", 6, 4, 0, 0, 5);
+    checkAst("a = 1 OR b = 2 AND c = 3", 6, 3, 0, 0, 4);
+    checkAst("(((a = 1)))", 2, 1, 0, 0, 1);
+    // 25 values cost 3, 3 wildcards cost 6 plus 10 for the leading one, the escaped % is not a wildcard
+    checkAst("owner IN (" + quotedList(25) + ") AND name LIKE '%ab_c%d\\%'", 4, 2, 25, 3, 1 + 3 + 1 + 6 + 10);
+    checkAst("name NLIKE 'abc%'", 2, 1, 0, 1, 3);
+  }
+
+  /*
+   * Conditions of a search list use the Tapis wildcards and escape commas
+   */
+  @Test(groups = {"unit"})
+  public void testMeasureSearchList()
+  {
+    Complexity c = SearchLimits.measure(List.of("owner.in.a,b\\,c,d", "name.like.*ab!c*", "port.gt.5"));
+    Assert.assertEquals(c.getConditions(), 3);
+    Assert.assertEquals(c.getLeaves(), 6);
+    Assert.assertEquals(c.getDepth(), 0);
+    Assert.assertEquals(c.getMaxListValues(), 3);
+    Assert.assertEquals(c.getMaxWildcards(), 3);
+    Assert.assertEquals(c.getCost(), 1 + 1 + (1 + 6 + 10) + 1);
+    Assert.assertEquals(c.getLength(), 42);
+  }
+
+  /*
+   * Each limit rejects a search that exceeds it and accepts one at the limit
+   */
+  @Test(groups = {"unit"})
+  public void testLimits()
+  {
+    var limits = SearchLimits.defaultLimits().setMaxLength(100).setMaxLeaves(6).setMaxDepth(3).setMaxListValues(5)
+                             .setMaxWildcards(2).setMaxCost(20);
+    limits.parse("a = 1 AND b = 2 AND c IN ('1','2','3','4','5')");
+    assertRejected(() -> limits.checkLength("a".repeat(101)), "SEARCH_LIMIT_LENGTH");
+    assertRejected(() -> limits.parse("a = 1 AND b = 2 AND c = 3 AND d = 4"), "SEARCH_LIMIT_LEAVES");
+    limits.parse("a = 1 OR NOT b = 2");
+    assertRejected(() -> limits.parse("a = 1 OR NOT (b = 2 AND c = 3)"), "SEARCH_LIMIT_DEPTH");
+    assertRejected(() -> limits.parse("c IN ('1','2','3','4','5','6')"), "SEARCH_LIMIT_LIST_VALUES");
+    limits.parse("name LIKE 'a%b_'");
+    assertRejected(() -> limits.parse("name LIKE 'a%b_c%'"), "SEARCH_LIMIT_WILDCARDS");
+    assertRejected(() -> limits.parse("a LIKE '%b' OR b LIKE '%c'"), "SEARCH_LIMIT_COST");
+
+    // Deep nesting is rejected with the default limits, and accepted without limits
+    String nested = "a = 1";
+    for (int i = 0; i < SearchLimits.DEFAULT_MAX_DEPTH; i++) nested = "NOT (" + nested + ")";
+    String deep = nested;
+    assertRejected(() -> SearchLimits.defaultLimits().parse(deep), "SEARCH_LIMIT_DEPTH");
+    Assert.assertEquals(SearchLimits.unlimited().parse(deep).countLeaves(), 2);
+  }
+
+  /*
+   * Search lists are checked by SearchUtils, the length before the list is split
+   */
+  @Test(groups = {"unit"})
+  public void testSearchList()
+  {
+    var limits = SearchLimits.defaultLimits().setMaxLength(200).setMaxListValues(10).setMaxWildcards(3);
+    Assert.assertEquals(SearchUtils.extractAndValidateSearchList("(owner.in.a,b)~(name.like.*x*)", limits),
+                        List.of("owner.in.a,b", "name.like.*x*"));
+    assertRejected(() -> SearchUtils.extractAndValidateSearchList("(owner.eq." + "a".repeat(200) + ")", limits),
+                   "SEARCH_LIMIT_LENGTH");
+    assertRejected(() -> SearchUtils.extractAndValidateSearchList("owner.in." + "a,".repeat(10) + "a", limits),
+                   "SEARCH_LIMIT_LIST_VALUES");
+    assertRejected(() -> SearchUtils.extractAndValidateSearchList("name.nlike.*a!b*c*", limits), "SEARCH_LIMIT_WILDCARDS");
+    // Escaped wildcards and commas are values, not wildcards or separators
+    SearchUtils.extractAndValidateSearchList("(name.like.\\*a\\!b*c*)~(owner.in." + "a\\,".repeat(10) + "a)", limits);
+    // Without limits nothing is checked
+    SearchUtils.extractAndValidateSearchList("owner.in." + "a,".repeat(5000) + "a");
+  }
+
+  /*
+   * SearchSqlCompiler checks limits before validating values
+   */
+  @Test(groups = {"unit"})
+  public void testCompiler()
+  {
+    var columns = Map.of("port", Types.INTEGER);
+    ASTNode ast = ASTParser.parse("port IN (" + quotedList(SearchLimits.DEFAULT_MAX_LIST_VALUES) + ",'x')");
+    assertRejected(() -> new SearchSqlCompiler(columns).compile(ast), "SEARCH_LIMIT_LIST_VALUES");
+    assertRejected(() -> new SearchSqlCompiler(columns, SearchLimits.unlimited()).compile(ast), "SEARCH_AST_INVALID_VALUE");
+  }
+
+  private static void checkAst(String search, int leaves, int depth, int listValues, int wildcards, long cost)
+  {
+    ASTNode ast = ASTParser.parse(search);
+    Complexity c = SearchLimits.measure(ast);
+    Assert.assertEquals(c.getLeaves(), ast.countLeaves(), search);
+    Assert.assertEquals(c.getLeaves(), leaves, search);
+    Assert.assertEquals(c.getDepth(), depth, search);
+    Assert.assertEquals(c.getMaxListValues(), listValues, search);
+    Assert.assertEquals(c.getMaxWildcards(), wildcards, search);
+    Assert.assertEquals(c.getCost(), cost, search);
+  }
+
+  // '0','1', ... '<n-1>'
+  private static String quotedList(int n)
+  {
+    var sj = new StringJoiner(",");
+    for (int i = 0; i < n; i++) sj.add("'" + i + "'");
+    return sj.toString();
+  }
+
+  private static void assertRejected(Runnable r, String msgKey)
+  {
+    try
+    {
+      r.run();
+      Assert.fail("Expected " + msgKey);
+    }
+    catch (IllegalArgumentException e) { Assert.assertTrue(e.getMessage().startsWith(msgKey), e.getMessage()); }
+  }
+}
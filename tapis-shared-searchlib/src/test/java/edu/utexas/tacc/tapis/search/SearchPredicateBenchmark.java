@@ -0,0 +1,98 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import edu.utexas.tacc.tapis.search.SearchPredicateCompilerTest.SystemType;
+import edu.utexas.tacc.tapis.search.SearchPredicateCompilerTest.TSystem;
+import edu.utexas.tacc.tapis.search.parser.ASTBinaryExpression;
+import edu.utexas.tacc.tapis.search.parser.ASTLeaf;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTParser;
+import edu.utexas.tacc.tapis.search.parser.ASTUnaryExpression;
+
+/**
+ * Filter objects with a compiled predicate, with an evaluator that walks the AST and reads
+ * attributes by reflection for each object, and with the same search written as a lambda.
+ *
+ * Usage: SearchPredicateBenchmark [objects [rounds]]
+ */
+public class SearchPredicateBenchmark
+{
+  private static final String SEARCH =
+          "enabled = true AND (owner = 'user7' OR port > 8000) AND hostName LIKE 'host1%' AND load < 2.5";
+
+  public static void main(String[] args) throws Exception
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    var random = new Random(1);
+    var systems = new ArrayList<TSystem>(count);
+    for (int i = 0; i < count; i++)
+      systems.add(new TSystem("s" + i, "user" + random.nextInt(20), random.nextInt(10000), (long) i,
+                              random.nextDouble() * 4, "1", random.nextBoolean(), "2021-04-29T20:15:52Z",
+                              SystemType.LINUX, Set.of(), "host" + random.nextInt(100) + ".example.com"));
+
+    ASTNode ast = ASTParser.parse(SEARCH);
+    Predicate<TSystem> compiled = new SearchPredicateCompiler<>(TSystem.class).compile(ast);
+    Predicate<TSystem> lambda = s -> s.isEnabled() && ("user7".equals(s.getOwner()) || s.getPort() > 8000)
+                                     && s.hostName.startsWith("host1") && s.getLoad() < 2.5;
+    Predicate<TSystem> interpreted = s -> interpret(ast, s);
+
+    System.out.printf("%d objects, %s%n%-12s %12s %10s%n", count, SEARCH, "predicate", "objects/s", "matches");
+    for (int r = 0; r < rounds; r++)
+    {
+      boolean last = r == rounds - 1;
+      run("lambda", systems, lambda, last);
+      run("compiled", systems, compiled, last);
+      run("interpreted", systems, interpreted, last);
+    }
+  }
+
+  private static void run(String name, List<TSystem> systems, Predicate<TSystem> p, boolean print)
+  {
+    long start = System.nanoTime();
+    long matches = systems.stream().filter(p).count();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (print) System.out.printf("%-12s %,12.0f %10d%n", name, systems.size() / seconds, matches);
+  }
+
+  // Evaluate the AST for one object, looking up getters and converting values every time
+  private static boolean interpret(ASTNode node, Object obj)
+  {
+    var b = (ASTBinaryExpression) node;
+    if ("AND".equals(b.getOp())) return interpret(b.getLeft(), obj) && interpret(b.getRight(), obj);
+    if ("OR".equals(b.getOp())) return interpret(b.getLeft(), obj) || interpret(b.getRight(), obj);
+    String attr = ((ASTLeaf) ((ASTUnaryExpression) b.getLeft()).getNode()).getValue();
+    String value = ((ASTLeaf) b.getRight()).getValue();
+    Object v = read(obj, attr);
+    if (v == null) return false;
+    switch (b.getOp())
+    {
+      case "EQ": return v instanceof Boolean ? v.equals(Boolean.valueOf(value)) : v.toString().equals(value);
+      case "GT": return ((Number) v).doubleValue() > Double.parseDouble(value);
+      case "LT": return ((Number) v).doubleValue() < Double.parseDouble(value);
+      case "LIKE": return v.toString().matches(value.replace(".", "\\.").replace("%", ".*").replace("_", "."));
+      default: throw new IllegalArgumentException(b.getOp());
+    }
+  }
+
+  private static Object read(Object obj, String attr)
+  {
+    String cap = Character.toUpperCase(attr.charAt(0)) + attr.substring(1);
+    for (String name : List.of("get" + cap, "is" + cap))
+      try
+      {
+        Method m = obj.getClass().getMethod(name);
+        return m.invoke(obj);
+      }
+      catch (NoSuchMethodException e) { /* try the next name */ }
+      catch (ReflectiveOperationException e) { throw new IllegalStateException(e); }
+    try { return obj.getClass().getField(attr).get(obj); }
+    catch (ReflectiveOperationException e) { throw new IllegalStateException(e); }
+  }
+}
@@ -0,0 +1,191 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.search.parser.ASTParser;
+
+/**
+ *  Tests of compiling searches to in-memory predicates.
+ */
+@Test(groups= {"unit"})
+public class SearchPredicateCompilerTest
+{
+  public enum SystemType {LINUX, S3}
+
+  public static class TSystem
+  {
+    private final String id;
+    private final String owner;
+    private final int port;
+    private final Long size;
+    private final double load;
+    private final BigDecimal cost;
+    private final boolean enabled;
+    private final Instant created;
+    private final SystemType systemType;
+    private final Set<String> tags;
+    public String hostName;
+
+    public TSystem(String id, String owner, int port, Long size, double load, String cost, boolean enabled,
+                   String created, SystemType systemType, Set<String> tags, String hostName)
+    {
+      this.id = id; this.owner = owner; this.port = port; this.size = size; this.load = load;
+      this.cost = cost == null ? null : new BigDecimal(cost); this.enabled = enabled;
+      this.created = created == null ? null : Instant.parse(created); this.systemType = systemType;
+      this.tags = tags; this.hostName = hostName;
+    }
+
+    public String getId() { return id; }
+    public String getOwner() { return owner; }
+    public int getPort() { return port; }
+    public Long getSize() { return size; }
+    public double getLoad() { return load; }
+    public BigDecimal getCost() { return cost; }
+    public boolean isEnabled() { return enabled; }
+    public Instant getCreated() { return created; }
+    public SystemType getSystemType() { return systemType; }
+    public Set<String> getTags() { return tags; }
+  }
+
+  static class Hidden
+  {
+    int getPort() { return 22; }
+  }
+
+  static final TSystem S1 = new TSystem("s1", "jdoe", 22, 100L, 0.5, "2.50", true, "2021-04-29T20:15:52Z",
+                                        SystemType.LINUX, Set.of("a", "b"), "stampede2.tacc.utexas.edu");
+  static final TSystem S2 = new TSystem("s2", "test_user", 8080, 5000L, 1.5, "10", false, "2022-01-01T00:00:00Z",
+                                        SystemType.S3, Set.of("b", "c"), "frontera.tacc.utexas.edu");
+  static final TSystem S3 = new TSystem("s3", null, 443, null, 3.0, null, true, null,
+                                        SystemType.LINUX, null, "100%.example.com");
+  static final List<TSystem> SYSTEMS = List.of(S1, S2, S3);
+
+  /*
+   * Comparisons on each attribute type
+   */
+  @Test(groups = {"unit"})
+  public void testCompare()
+  {
+    var compiler = new SearchPredicateCompiler<>(TSystem.class);
+    check(compiler, "owner = 'jdoe'", "s1");
+    check(compiler, "owner <> 'jdoe'", "s2");
+    check(compiler, "port > 100", "s2", "s3");
+    check(compiler, "port BETWEEN '22' AND '443'", "s1", "s3");
+    check(compiler, "port NOT BETWEEN '22' AND '443'", "s2");
+    check(compiler, "port IN ('22', '8080')", "s1", "s2");
+    check(compiler, "size >= 100", "s1", "s2");
+    check(compiler, "load < 1.5", "s1");
+    check(compiler, "load IN ('1.5', '3')", "s2", "s3");
+    check(compiler, "cost = '2.5'", "s1");
+    check(compiler, "enabled = true", "s1", "s3");
+    check(compiler, "enabled = 'false'", "s2");
+    check(compiler, "created > '2021-05'", "s2");
+    check(compiler, "created < '2021-04-29T20:15:53Z'", "s1");
+    check(compiler, "system_type = 'LINUX'", "s1", "s3");
+    check(compiler, "systemType NIN ('S3')", "s1", "s3");
+    check(compiler, "id > 's1'", "s2", "s3");
+
+    // Arrays: IN overlaps the list, CONTAINS holds every value
+    check(compiler, "tags IN ('a', 'x')", "s1");
+    check(compiler, "tags NIN ('a')", "s2");
+    check(compiler, "hostName LIKE 'stampede%'", "s1");
+    check(compiler, "host_name LIKE '%.tacc.utexas.edu'", "s1", "s2");
+    check(compiler, "hostName LIKE '%tacc%'", "s1", "s2");
+    check(compiler, "hostName LIKE 'f_ontera.%'", "s2");
+    check(compiler, "hostName LIKE '100\\%%'", "s3");
+    check(compiler, "hostName NOT LIKE '%.edu'", "s3");
+  }
+
+  /*
+   * Logical operators, with null attributes never matching as in SQL
+   */
+  @Test(groups = {"unit"})
+  public void testLogical()
+  {
+    var compiler = new SearchPredicateCompiler<>(TSystem.class);
+    check(compiler, "enabled = true AND (owner = 'jdoe' OR port > 1000)", "s1");
+    check(compiler, "enabled = true OR port > 1000", "s1", "s2", "s3");
+    check(compiler, "NOT (owner = 'jdoe')", "s2");
+    check(compiler, "NOT (owner = 'jdoe' OR port = 443)", "s2");
+    check(compiler, "NOT (NOT (size > 1000))", "s2");
+    check(compiler, "NOT (created BETWEEN '2020' AND '2021-12-31')", "s2");
+    check(compiler, "NOT (owner = 'x' AND port = 443)", "s1", "s2");
+
+    // Condition lists are ANDed
+    Assert.assertEquals(ids(compiler.compile(List.of("enabled.eq.true", "port.lt.100"))), List.of("s1"));
+    Assert.assertEquals(ids(compiler.compile(List.of("host_name.like.*.tacc.*", "tags.contains.b"))), List.of("s1", "s2"));
+    Assert.assertEquals(ids(compiler.compile(List.of("owner.in.jdoe,test_user"))), List.of("s1", "s2"));
+    Assert.assertEquals(ids(compiler.compile(List.of("hostName.like.stampede!.*"))), List.of("s1"));
+    Assert.assertEquals(ids(compiler.compile(List.of())), List.of("s1", "s2", "s3"));
+    Assert.assertEquals(ids(compiler.compile(SearchUtils.extractAndValidateSearchList("(port.gt.22)~(enabled.eq.true)"))),
+                        List.of("s3"));
+  }
+
+  /*
+   * Unsupported searches and invalid values are rejected
+   */
+  @Test(groups = {"unit"})
+  public void testInvalid()
+  {
+    var compiler = new SearchPredicateCompiler<>(TSystem.class);
+    reject(compiler, "nosuch = 'a'", "SEARCH_AST_UNKNOWN_ATTR");
+    reject(compiler, "port = 'abc'", "SEARCH_AST_INVALID_VALUE");
+    reject(compiler, "port = 1.5", "SEARCH_AST_INVALID_VALUE");
+    reject(compiler, "created > 'yesterday'", "SEARCH_AST_INVALID_VALUE");
+    reject(compiler, "enabled > true", "SEARCH_AST_INVALID_OP");
+    reject(compiler, "port LIKE '1%'", "SEARCH_AST_INVALID_OP");
+    reject(compiler, "owner = port", "SEARCH_AST_UNSUPPORTED");
+    reject(compiler, "class = 'x'", "SEARCH_PRED_UNSUPPORTED_TYPE");
+
+    // Package-private classes need the caller's lookup
+    var e = Assert.expectThrows(IllegalArgumentException.class,
+        () -> new SearchPredicateCompiler<>(Hidden.class).compile(ASTParser.parse("port = 22")));
+    Assert.assertTrue(e.getMessage().startsWith("SEARCH_PRED_INACCESSIBLE_ATTR"), e.getMessage());
+    Predicate<Hidden> p = new SearchPredicateCompiler<>(Hidden.class, MethodHandles.lookup())
+            .compile(ASTParser.parse("port = 22"));
+    Assert.assertTrue(p.test(new Hidden()));
+  }
+
+  /*
+   * LIKE patterns and their escapes
+   */
+  @Test(groups = {"unit"})
+  public void testLike()
+  {
+    Assert.assertTrue(SearchPredicateCompiler.like("a%").test("abc"));
+    Assert.assertFalse(SearchPredicateCompiler.like("a%").test("cab"));
+    Assert.assertTrue(SearchPredicateCompiler.like("%").test(""));
+    Assert.assertTrue(SearchPredicateCompiler.like("%%").test("x"));
+    Assert.assertTrue(SearchPredicateCompiler.like("a%c").test("a\nbc"));
+    Assert.assertTrue(SearchPredicateCompiler.like("a.c").test("a.c"));
+    Assert.assertFalse(SearchPredicateCompiler.like("a.c").test("abc"));
+    Assert.assertTrue(SearchPredicateCompiler.like("a\\_c").test("a_c"));
+    Assert.assertFalse(SearchPredicateCompiler.like("a\\_c").test("abc"));
+    Assert.assertTrue(SearchPredicateCompiler.like("a_c").test("abc"));
+    Assert.assertTrue(SearchPredicateCompiler.like("[x]*").test("[x]*"));
+  }
+
+  private static List<String> ids(Predicate<TSystem> p)
+  {
+    return SYSTEMS.stream().filter(p).map(TSystem::getId).toList();
+  }
+
+  private static void check(SearchPredicateCompiler<TSystem> compiler, String search, String... expectedIds)
+  {
+    Assert.assertEquals(ids(compiler.compile(ASTParser.parse(search))), List.of(expectedIds), search);
+  }
+
+  private static void reject(SearchPredicateCompiler<TSystem> compiler, String search, String msgKey)
+  {
+    var e = Assert.expectThrows(IllegalArgumentException.class, () -> compiler.compile(ASTParser.parse(search)));
+    Assert.assertTrue(e.getMessage().startsWith(msgKey), search + ": " + e.getMessage());
+  }
+}
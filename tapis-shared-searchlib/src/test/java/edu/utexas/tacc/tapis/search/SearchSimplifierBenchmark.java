@@ -0,0 +1,132 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.function.Predicate;
+
+import edu.utexas.tacc.tapis.search.SearchSimplifierTest.Row;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTParser;
+
+/**
+ * Simplify searches like those built by a UI, with repeated filters, nested groups and overlapping
+ * ranges written in random order. Reports the leaves before and after, the time to simplify, the
+ * number of distinct SQL statements and canonical keys, and the time to filter rows in memory with
+ * the original and the simplified predicates.
+ *
+ * Usage: SearchSimplifierBenchmark [searches [rows]]
+ */
+public class SearchSimplifierBenchmark
+{
+  private static final Map<String, Integer> COLUMNS =
+    Map.of("owner", Types.VARCHAR, "port", Types.INTEGER, "load", Types.DOUBLE, "enabled", Types.BOOLEAN);
+
+  public static void main(String[] args)
+  {
+    int searches = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int rowCount = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+    var random = new Random(1);
+    var simplifier = new SearchSimplifier(COLUMNS);
+    var sqlCompiler = new SearchSqlCompiler(COLUMNS);
+    var predicates = new SearchPredicateCompiler<>(Row.class);
+
+    var rows = new ArrayList<Row>();
+    for (int i = 0; i < rowCount; i++)
+      rows.add(new Row(i, "user" + random.nextInt(20), random.nextInt(100) * 10, null, random.nextInt(40) / 4.0,
+                       BigDecimal.ONE, random.nextBoolean(), LocalDateTime.of(2021, 4, 29, 20, 15, 52)));
+
+    var asts = new ArrayList<ASTNode>();
+    for (int i = 0; i < searches; i++) asts.add(ASTParser.parse(uiSearch(random)));
+
+    // Best of 50 passes over all the searches, the first ones warm up
+    long simplifyNanos = Long.MAX_VALUE;
+    for (int round = 0; round < 50; round++)
+    {
+      long t0 = System.nanoTime();
+      for (ASTNode ast : asts) simplifier.simplify(ast);
+      simplifyNanos = Math.min(simplifyNanos, System.nanoTime() - t0);
+    }
+
+    long leaves = 0, simplifiedLeaves = 0, originalNanos = 0, simplifiedNanos = 0;
+    var statements = new HashSet<String>();
+    var simplifiedStatements = new HashSet<String>();
+    var keys = new HashSet<String>();
+    for (ASTNode ast : asts)
+    {
+      SearchSimplifier.Simplified s = simplifier.simplify(ast);
+      leaves += ast.countLeaves();
+      keys.add(s.getCanonicalKey());
+      statements.add(sqlCompiler.compile(ast).getSql());
+      if (s.matchesNothing()) continue;
+      simplifiedLeaves += s.getAst().countLeaves();
+      simplifiedStatements.add(sqlCompiler.compile(s.getAst()).getSql());
+    }
+    System.out.printf("%d searches: leaves %d -> %d, simplify %.1f us per search%n", searches, leaves, simplifiedLeaves,
+                      simplifyNanos / 1e3 / searches);
+    System.out.printf("Distinct SQL statements %d -> %d, canonical keys %d%n", statements.size(),
+                      simplifiedStatements.size(), keys.size());
+
+    // Filter the rows with the first searches, best of three
+    int filtered = Math.min(searches, 100);
+    for (int round = 0; round < 3; round++)
+    {
+      long original = 0, simplified = 0;
+      for (ASTNode ast : asts.subList(0, filtered))
+      {
+        Predicate<Row> p = predicates.compile(ast);
+        SearchSimplifier.Simplified s = simplifier.simplify(ast);
+        Predicate<Row> q = s.matchesNothing() ? r -> false : predicates.compile(s.getAst());
+        long t0 = System.nanoTime();
+        int a = count(rows, p);
+        long t1 = System.nanoTime();
+        int b = count(rows, q);
+        long t2 = System.nanoTime();
+        if (a != b) throw new IllegalStateException("Counts differ for " + ast);
+        original += t1 - t0;
+        simplified += t2 - t1;
+      }
+      originalNanos = round == 0 ? original : Math.min(originalNanos, original);
+      simplifiedNanos = round == 0 ? simplified : Math.min(simplifiedNanos, simplified);
+    }
+    System.out.printf("Filter %d rows, ns per row and search: original %.1f, simplified %.1f%n", rowCount,
+                      (double) originalNanos / filtered / rowCount, (double) simplifiedNanos / filtered / rowCount);
+  }
+
+  /*
+   * A few filter groups in random order, each a range, a list of owners built one EQ at a time or a
+   *   flag, some of them repeated as happens when filters are added to a saved search
+   */
+  private static String uiSearch(Random random)
+  {
+    var filters = new ArrayList<String>();
+    int lo = random.nextInt(50) * 10, hi = lo + random.nextInt(50) * 10;
+    filters.add("port >= " + lo);
+    filters.add("port <= " + hi);
+    if (random.nextBoolean()) filters.add("port > " + Math.max(0, lo - 10 * random.nextInt(3)));
+    var owners = new StringJoiner(" OR ", "(", ")");
+    int n = 1 + random.nextInt(4);
+    for (int i = 0; i < n; i++) owners.add("owner = 'user" + random.nextInt(20) + "'");
+    filters.add(owners.toString());
+    if (random.nextBoolean()) filters.add("(load < " + random.nextInt(10) + " OR load < " + random.nextInt(10) + ")");
+    if (random.nextBoolean()) filters.add("enabled = true");
+    int repeats = random.nextInt(3);
+    for (int i = 0; i < repeats; i++) filters.add(filters.get(random.nextInt(filters.size())));
+    Collections.shuffle(filters, random);
+    return String.join(" AND ", filters);
+  }
+
+  private static int count(List<Row> rows, Predicate<Row> p)
+  {
+    int n = 0;
+    for (Row r : rows) if (p.test(r)) n++;
+    return n;
+  }
+}
@@ -0,0 +1,330 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.function.Predicate;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.search.SearchSimplifier.Simplified;
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTParser;
+
+/**
+ *  Tests of SearchSimplifier: rewrites, canonical keys and randomized differential tests of the
+ *  simplified searches against the originals, in memory and in an embedded H2 database.
+ */
+@Test(groups= {"unit"})
+public class SearchSimplifierTest
+{
+  private static final Map<String, Integer> COLUMNS =
+          Map.of("id", Types.INTEGER, "owner", Types.VARCHAR, "port", Types.INTEGER, "size", Types.BIGINT,
+                 "load", Types.DOUBLE, "cost", Types.DECIMAL, "enabled", Types.BOOLEAN, "created", Types.TIMESTAMP,
+                 "tags", Types.ARRAY, "host_name", Types.VARCHAR);
+  private static final LocalDateTime START = LocalDateTime.of(2021, 4, 29, 20, 15, 52);
+
+  private final SearchSimplifier simplifier = new SearchSimplifier(COLUMNS);
+
+  public static class Row
+  {
+    private final int id;
+    private final String owner;
+    private final Integer port;
+    private final Long size;
+    private final Double load;
+    private final BigDecimal cost;
+    private final Boolean enabled;
+    private final Instant created;
+
+    public Row(int id, String owner, Integer port, Long size, Double load, BigDecimal cost, Boolean enabled,
+               LocalDateTime created)
+    {
+      this.id = id; this.owner = owner; this.port = port; this.size = size; this.load = load; this.cost = cost;
+      this.enabled = enabled; this.created = created == null ? null : created.toInstant(ZoneOffset.UTC);
+    }
+
+    public int getId() { return id; }
+    public String getOwner() { return owner; }
+    public Integer getPort() { return port; }
+    public Long getSize() { return size; }
+    public Double getLoad() { return load; }
+    public BigDecimal getCost() { return cost; }
+    public Boolean getEnabled() { return enabled; }
+    public Instant getCreated() { return created; }
+  }
+
+  /*
+   * Flattening, duplicates, NOT, ranges, lists and contradictions
+   */
+  @Test(groups = {"unit"})
+  public void testRewrites()
+  {
+    // Flattening and duplicates, terms are sorted by their keys
+    check("a = 1 AND ((b = 2 AND (a = 1)) AND c = 3)", "(((a.EQ.1).AND.(b.EQ.2)).AND.(c.EQ.3))");
+    check("owner = 'x' AND owner = 'x'", "(owner.EQ.x)");
+    check("owner = 'x' AND (port = 1 OR owner = 'x')", "(owner.EQ.x)");
+    check("owner = 'x' OR (port = 1 AND owner = 'x')", "(owner.EQ.x)");
+    check("hostName = 'a' OR host_name = 'a'", "(host_name.EQ.a)");
+
+    // NOT is pushed down
+    check("NOT (port > 5 OR owner LIKE 'x%')", "((port.LTE.5).AND.(owner.NLIKE.x%))");
+    check("NOT (NOT (NOT (enabled = true)))", "(enabled.NEQ.true)");
+    check("NOT (owner IN ('b','a','b') AND port BETWEEN '1' AND '5')", "((port.NBETWEEN.1,5).OR.(owner.NIN.a,b))");
+
+    // Ranges and lists of ordered columns
+    check("port > 5 AND port > 10", "(port.GT.10)");
+    check("port >= 1 AND port <= 9 AND port > 0", "(port.BETWEEN.1,9)");
+    check("port >= 1 AND port < 9", "((port.GTE.1).AND.(port.LT.9))");
+    check("port >= 3 AND port <= 3", "(port.EQ.3)");
+    check("port IN ('1','2','3') AND port <> 2", "(port.IN.1,3)");
+    check("port IN ('1','2','3') AND port IN ('3','2','4') AND port < 3", "(port.EQ.2)");
+    check("port > 10 AND port <> 5 AND port NIN ('20','1')", "((port.GT.10).AND.(port.NEQ.20))");
+    check("port > 5 OR port > 10 OR port >= 5", "(port.GTE.5)");
+    check("port = 1 OR port IN ('3','2') OR port = 1", "(port.IN.1,2,3)");
+    check("port = 7 OR port > 5 OR port < 0 OR port = 2", "(((port.EQ.2).OR.(port.GT.5)).OR.(port.LT.0))");
+    check("port = '022' OR size = '+10'", "((port.EQ.22).OR.(size.EQ.10))");
+    check("load = '-0.0' AND load = 0", "(load.EQ.0.0)");
+    check("cost = 2.50 OR cost IN ('2.5','1000')", "(cost.IN.2.5,1000)");
+    check("enabled = true AND enabled <> false", "(enabled.EQ.true)");
+    check("created > '2021-04-29T20:15:52Z' AND created >= '2021-04-29T14:15:52-06:00'",
+          "(created.GT.2021-04-29T20:15:52Z)");
+    check("created = '2021-04-29T20:15:52.250Z' OR created = '2021-04-29T20:15:53Z'",
+          "((created.EQ.2021-04-29T20:15:53Z).OR.(created.EQ.2021-04-29T20:15:52.25Z))");
+
+    // Strings are only merged under OR, array columns not at all
+    check("owner = 'b' OR owner = 'a' OR owner IN ('c','a')", "(owner.IN.a,b,c)");
+    check("owner = 'a' AND owner = 'b'", "((owner.EQ.a).AND.(owner.EQ.b))");
+    check("owner > 'a' AND owner > 'b'", "((owner.GT.a).AND.(owner.GT.b))");
+    check("tags IN ('a') OR tags IN ('b')", "((tags.IN.a).OR.(tags.IN.b))");
+
+    // Values that are not merged
+    check("port = 'abc' AND port > 5 AND port > 6", "((port.EQ.abc).AND.(port.GT.6))");
+    check("created > '2021-04-29T20:15:52.0000001Z' AND created > '2021-04-29T20:15:52.0000002Z'",
+          "((created.GT.2021-04-29T20:15:52.0000001Z).AND.(created.GT.2021-04-29T20:15:52.0000002Z))");
+
+    // Contradictions
+    Assert.assertTrue(simplify("port > 10 AND port < 5").matchesNothing());
+    Assert.assertTrue(simplify("port BETWEEN '5' AND '1'").matchesNothing());
+    Assert.assertTrue(simplify("enabled = true AND NOT (enabled = true)").matchesNothing());
+    Assert.assertTrue(simplify("(port = 1 AND port = 2) OR (load > 1 AND load < 1)").matchesNothing());
+    Assert.assertEquals(simplify("port = 1 AND port = 2").getCanonicalKey(), "F");
+    check("(port > 10 AND port < 5) OR owner = 'a'", "(owner.EQ.a)");
+  }
+
+  /*
+   * Equivalent searches share a canonical key, different ones don't, and keys are stable
+   */
+  @Test(groups = {"unit"})
+  public void testCanonicalKey()
+  {
+    String[][] equivalent =
+      {
+        {"owner = 'a' AND port > 10", "port > 10 AND owner = 'a'", "(((port > 10)) AND owner = 'a' AND owner = 'a')",
+         "NOT (owner <> 'a' OR port <= 10)", "port > 9 AND port > '010' AND owner = 'a'"},
+        {"port IN ('3','1','2')", "port = 1 OR port = 2 OR port = 3", "port IN ('1','2','3','1') AND port < 4"},
+        {"created >= '2021-04-29T20:15:52Z'", "created >= '2021-04-29T14:15:52-06:00'",
+         "NOT (created < '2021-04-29T20:15:52.000Z')"},
+      };
+    var keys = new ArrayList<String>();
+    for (String[] group : equivalent)
+    {
+      String key = simplify(group[0]).getCanonicalKey();
+      for (String search : group) Assert.assertEquals(simplify(search).getCanonicalKey(), key, search);
+      Assert.assertFalse(keys.contains(key), key);
+      keys.add(key);
+    }
+
+    // Values that look like the key syntax cannot make different searches equal
+    List<String> different = List.of("owner = '1:a' AND port = 1", "owner = '1' AND port = 1", "owner LIKE 'a)' OR owner = 'b'",
+                                     "owner LIKE 'a' OR owner = ')b'", "owner = 'C5:ownerEQ1:a'", "owner = 'a'");
+    for (String search : different) Assert.assertEquals(different.stream().filter(s -> key(s).equals(key(search))).count(), 1L);
+
+    // Simplifying a simplified search changes nothing
+    Simplified s = simplify("NOT (port < 5 AND (owner = 'x' OR owner = 'y')) AND size BETWEEN '1' AND '9' AND size > 2");
+    Assert.assertEquals(simplifier.canonicalKey(s.getAst()), s.getCanonicalKey());
+    Assert.assertEquals(simplifier.simplify(s.getAst()).toString(), s.toString());
+  }
+
+  /*
+   * Random searches with duplicates, overlapping ranges and NOTs match the same objects before and after
+   *   they are simplified, in memory with SearchPredicateCompiler and in H2 with SearchSqlCompiler
+   */
+  @Test(groups = {"unit"})
+  public void testDifferential() throws SQLException
+  {
+    var random = new Random(50);
+    var rows = new ArrayList<Row>();
+    for (int i = 0; i < 300; i++) rows.add(randomRow(random, i));
+    var predicates = new SearchPredicateCompiler<>(Row.class);
+    var sqlCompiler = new SearchSqlCompiler(COLUMNS);
+
+    try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:simplifier_test"))
+    {
+      try (var stmt = conn.createStatement())
+      {
+        stmt.execute("CREATE TABLE systems (\"id\" INTEGER PRIMARY KEY, \"owner\" VARCHAR(20), \"port\" INTEGER, " +
+                     "\"size\" BIGINT, \"load\" DOUBLE PRECISION, \"cost\" DECIMAL(10,2), \"enabled\" BOOLEAN, " +
+                     "\"created\" TIMESTAMP)");
+      }
+      try (var insert = conn.prepareStatement("INSERT INTO systems VALUES (?, ?, ?, ?, ?, ?, ?, ?)"))
+      {
+        for (Row r : rows)
+        {
+          insert.setInt(1, r.id);
+          insert.setObject(2, r.owner);
+          insert.setObject(3, r.port);
+          insert.setObject(4, r.size);
+          insert.setObject(5, r.load);
+          insert.setObject(6, r.cost);
+          insert.setObject(7, r.enabled);
+          insert.setObject(8, r.created == null ? null : Timestamp.valueOf(LocalDateTime.ofInstant(r.created, ZoneOffset.UTC)));
+          insert.addBatch();
+        }
+        insert.executeBatch();
+      }
+
+      int leaves = 0, simplifiedLeaves = 0, contradictions = 0;
+      for (int i = 0; i < 2000; i++)
+      {
+        var pool = new ArrayList<String>();
+        String search = randomSearch(random, pool, 3);
+        ASTNode ast = ASTParser.parse(search);
+        Simplified s = simplifier.simplify(ast);
+        List<Integer> expected = matches(rows, predicates.compile(ast));
+        List<Integer> actual = s.matchesNothing() ? List.of() : matches(rows, predicates.compile(s.getAst()));
+        Assert.assertEquals(actual, expected, search + " -> " + s);
+        Assert.assertEquals(simplifier.canonicalKey(s.getAst() == null ? ast : s.getAst()), s.getCanonicalKey(), search);
+        if (i % 4 == 0)
+        {
+          List<Integer> selected = select(conn, sqlCompiler.compile(ast));
+          Assert.assertEquals(s.matchesNothing() ? List.of() : select(conn, sqlCompiler.compile(s.getAst())), selected,
+                              search + " -> " + s);
+        }
+        leaves += ast.countLeaves();
+        simplifiedLeaves += s.matchesNothing() ? 0 : s.getAst().countLeaves();
+        if (s.matchesNothing()) contradictions++;
+      }
+      // The searches are redundant enough that simplifying them matters
+      Assert.assertTrue(simplifiedLeaves < leaves * 3 / 4, simplifiedLeaves + " of " + leaves);
+      Assert.assertTrue(contradictions > 0);
+    }
+  }
+
+  private void check(String search, String expected)
+  {
+    Simplified s = simplify(search);
+    Assert.assertEquals(s.toString(), expected, search);
+  }
+
+  private Simplified simplify(String search) { return simplifier.simplify(ASTParser.parse(search)); }
+
+  private String key(String search) { return simplify(search).getCanonicalKey(); }
+
+  private static Row randomRow(Random random, int id)
+  {
+    // About one value in ten is null
+    return new Row(id, random.nextInt(10) == 0 ? null : "user" + random.nextInt(5),
+                   random.nextInt(10) == 0 ? null : random.nextInt(8) * 10,
+                   random.nextInt(10) == 0 ? null : random.nextInt(8) * 1000L,
+                   random.nextInt(10) == 0 ? null : random.nextInt(8) / 4.0 - 0.5,
+                   random.nextInt(10) == 0 ? null : new BigDecimal(random.nextInt(8)).movePointLeft(1),
+                   random.nextInt(10) == 0 ? null : random.nextBoolean(),
+                   random.nextInt(10) == 0 ? null : START.plusHours(random.nextInt(8)));
+  }
+
+  /*
+   * AND and OR of conditions and nested searches, some under NOT. Conditions are often repeated from
+   *   the pool of this search or are on the same column as another one, so that they merge.
+   */
+  private static String randomSearch(Random random, List<String> pool, int depth)
+  {
+    String search;
+    if (depth == 0 || random.nextInt(3) == 0)
+      search = !pool.isEmpty() && random.nextInt(4) == 0 ? pool.get(random.nextInt(pool.size())) : condition(random, pool);
+    else
+    {
+      var terms = new StringJoiner(random.nextBoolean() ? " AND " : " OR ", "(", ")");
+      int n = 2 + random.nextInt(3);
+      for (int i = 0; i < n; i++) terms.add(randomSearch(random, pool, depth - 1));
+      search = terms.toString();
+    }
+    return random.nextInt(6) == 0 ? "NOT (" + search + ")" : search;
+  }
+
+  private static String condition(Random random, List<String> pool)
+  {
+    String[] columns = {"owner", "port", "size", "load", "cost", "enabled", "created"};
+    String column = columns[random.nextInt(columns.length)];
+    String cond;
+    if (column.equals("enabled")) cond = "enabled " + (random.nextBoolean() ? "= " : "<> ") + random.nextBoolean();
+    else
+    {
+      String[] ops = column.equals("owner") ? new String[] {"=", "<>", "<", "<=", ">", ">=", "LIKE", "NOT LIKE", "IN", "NIN",
+                                                            "BETWEEN", "NOT BETWEEN"}
+                   : column.equals("created") ? new String[] {"=", "<>", "<", "<=", ">", ">=", "BETWEEN", "NOT BETWEEN"}
+                   : new String[] {"=", "<>", "<", "<=", ">", ">=", "IN", "NIN", "BETWEEN", "NOT BETWEEN"};
+      String op = ops[random.nextInt(ops.length)];
+      switch (op)
+      {
+        case "IN", "NIN" ->
+        {
+          var values = new StringJoiner(",", column + " " + op + " (", ")");
+          int n = 1 + random.nextInt(4);
+          for (int i = 0; i < n; i++) values.add(value(random, column));
+          cond = values.toString();
+        }
+        case "BETWEEN", "NOT BETWEEN" -> cond = column + " " + op + " " + value(random, column) + " AND " + value(random, column);
+        case "LIKE", "NOT LIKE" -> cond = column + " " + op + " '" + (random.nextBoolean() ? "user%" : "user_") + "'";
+        default -> cond = column + " " + op + " " + value(random, column);
+      }
+    }
+    pool.add(cond);
+    return cond;
+  }
+
+  // Values in and around those of the rows, in different forms
+  private static String value(Random random, String column)
+  {
+    int v = random.nextInt(9);
+    return switch (column)
+    {
+      case "owner" -> "'user" + v + "'";
+      case "port" -> "'" + (random.nextBoolean() ? "0" : "") + v * 10 + "'";
+      case "size" -> "'" + v * 1000 + "'";
+      case "load" -> "'" + (v == 2 && random.nextBoolean() ? "-0.0" : String.valueOf(v / 4.0 - 0.5)) + "'";
+      case "cost" -> "'" + new BigDecimal(v).movePointLeft(1).setScale(1 + random.nextInt(2)).toPlainString() + "'";
+      default -> "'" + START.plusHours(v) + (random.nextBoolean() ? "Z'" : ".000Z'");
+    };
+  }
+
+  private static List<Integer> matches(List<Row> rows, Predicate<Row> predicate)
+  {
+    var ids = new ArrayList<Integer>();
+    for (Row r : rows) if (predicate.test(r)) ids.add(r.id);
+    return ids;
+  }
+
+  private static List<Integer> select(Connection conn, SearchSql sql) throws SQLException
+  {
+    try (var stmt = conn.prepareStatement("SELECT \"id\" FROM systems WHERE " + sql.getSql() + " ORDER BY \"id\""))
+    {
+      sql.bind(stmt, 1);
+      var ids = new ArrayList<Integer>();
+      try (var rs = stmt.executeQuery()) { while (rs.next()) ids.add(rs.getInt(1)); }
+      return ids;
+    }
+  }
+}
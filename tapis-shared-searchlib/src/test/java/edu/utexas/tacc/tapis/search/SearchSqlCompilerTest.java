@@ -0,0 +1,263 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.search.parser.ASTParser;
+
+/**
+ *  Tests of compiling ASTs to parameterized SQL.
+ */
+@Test(groups= {"unit"})
+public class SearchSqlCompilerTest
+{
+  static final Map<String, Integer> COLUMNS =
+          Map.of("id", Types.INTEGER, "owner", Types.VARCHAR, "port", Types.INTEGER,
+                 "enabled", Types.BOOLEAN, "created", Types.TIMESTAMP, "size", Types.BIGINT,
+                 "load", Types.DOUBLE, "cost", Types.DECIMAL, "tags", Types.ARRAY, "host_name", Types.VARCHAR);
+
+  /*
+   * Conditions and their SQL and bind values
+   */
+  @Test(groups = {"unit"})
+  public void testCompile()
+  {
+    var compiler = new SearchSqlCompiler(COLUMNS);
+    check(compiler, "owner = 'jdoe'", "\"owner\" = ?", "jdoe");
+    check(compiler, "port <> 22", "\"port\" <> ?", 22);
+    check(compiler, "size >= 10", "\"size\" >= ?", 10L);
+    check(compiler, "load < 1.5", "\"load\" < ?", 1.5);
+    check(compiler, "cost <= '2.50'", "\"cost\" <= ?", new BigDecimal("2.50"));
+    check(compiler, "enabled = true", "\"enabled\" = ?", true);
+    check(compiler, "created > '2021-04-29T20:15:52Z'", "\"created\" > ?", LocalDateTime.of(2021, 4, 29, 20, 15, 52));
+    check(compiler, "hostName LIKE 'stampede%'", "\"host_name\" LIKE ?", "stampede%");
+    check(compiler, "owner NOT LIKE 'test_'", "\"owner\" NOT LIKE ?", "test_");
+    check(compiler, "port BETWEEN '1' AND '1024'", "\"port\" BETWEEN ? AND ?", 1, 1024);
+    check(compiler, "port NOT BETWEEN '1' AND '1024'", "\"port\" NOT BETWEEN ? AND ?", 1, 1024);
+    check(compiler, "owner IN ('a', 'b', 'c')", "\"owner\" IN (?, ?, ?)", "a", "b", "c");
+    check(compiler, "owner NIN ('a')", "\"owner\" NOT IN (?)", "a");
+    check(compiler, "enabled = 'true' AND (owner = 'jdoe' OR port > 1024)",
+          "(\"enabled\" = ? AND (\"owner\" = ? OR \"port\" > ?))", true, "jdoe", 1024);
+    check(compiler, "NOT (owner = 'x' OR owner = 'y')", "NOT ((\"owner\" = ? OR \"owner\" = ?))", "x", "y");
+
+    // Array columns bind the list as one array
+    var sql = compiler.compile(ASTParser.parse("tags IN ('a', 'b')"));
+    Assert.assertEquals(sql.getSql(), "\"tags\" && ?");
+    Assert.assertEquals((Object[]) sql.getBindValues()[0], new String[] {"a", "b"});
+    Assert.assertEquals(compiler.compile(ASTParser.parse("tags NIN ('a', 'b', 'c')")).getSql(), "NOT (\"tags\" && ?)");
+  }
+
+  /*
+   * Equal-shaped searches share one statement text
+   */
+  @Test(groups = {"unit"})
+  public void testShapes()
+  {
+    var compiler = new SearchSqlCompiler(COLUMNS);
+    var s1 = compiler.compile(ASTParser.parse("owner = 'a' AND (port > 1 OR created < '2020')"));
+    var s2 = compiler.compile(ASTParser.parse("owner = 'zz' AND (port > 9999 OR created < '2023-01-01')"));
+    Assert.assertSame(s1.getSql(), s2.getSql());
+    Assert.assertNotEquals(s1.getBindValues(), s2.getBindValues());
+
+    // The attribute spelling does not change the shape, the list length does
+    Assert.assertSame(compiler.compile(ASTParser.parse("host_name = 'a'")).getSql(),
+                      compiler.compile(ASTParser.parse("hostName = 'b'")).getSql());
+    Assert.assertNotEquals(compiler.compile(ASTParser.parse("owner IN ('a','b')")).getSql(),
+                           compiler.compile(ASTParser.parse("owner IN ('a','b','c')")).getSql());
+    Assert.assertSame(compiler.compile(ASTParser.parse("tags IN ('a','b')")).getSql(),
+                      compiler.compile(ASTParser.parse("tags IN ('a','b','c')")).getSql());
+
+    var stats = compiler.getShapeCacheStats();
+    Assert.assertEquals(stats.getMissCount(), 5);
+    Assert.assertEquals(stats.getHitCount(), 3);
+  }
+
+  /*
+   * Unsupported searches and invalid values are rejected
+   */
+  @Test(groups = {"unit"})
+  public void testInvalid()
+  {
+    var compiler = new SearchSqlCompiler(COLUMNS);
+    reject(compiler, "nosuch = 'a'", "SEARCH_AST_UNKNOWN_ATTR");
+    reject(compiler, "port = 'abc'", "SEARCH_AST_INVALID_VALUE");
+    reject(compiler, "enabled = 'yes'", "SEARCH_AST_INVALID_VALUE");
+    reject(compiler, "created > 'yesterday'", "SEARCH_AST_INVALID_VALUE");
+    reject(compiler, "enabled > true", "SEARCH_AST_INVALID_OP");
+    reject(compiler, "port LIKE '1%'", "SEARCH_AST_INVALID_OP");
+    reject(compiler, "'a' = owner", "SEARCH_AST_UNSUPPORTED");
+    reject(compiler, "owner = port", "SEARCH_AST_UNSUPPORTED");
+    reject(compiler, "port + 1 = 2", "SEARCH_AST_UNSUPPORTED");
+    reject(compiler, "owner IS NULL", "SEARCH_AST_UNSUPPORTED");
+    reject(compiler, "enabled", "SEARCH_AST_UNSUPPORTED");
+  }
+
+  /*
+   * Values are set on a statement in placeholder order
+   */
+  @Test(groups = {"unit"})
+  public void testBind() throws Exception
+  {
+    var compiler = new SearchSqlCompiler(COLUMNS);
+    var sql = compiler.compile(ASTParser.parse("owner = 'a' AND created < '2020' AND tags IN ('x','y') AND port = 5"));
+    var calls = new ArrayList<String>();
+    var conn = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+        (proxy, method, args) -> {
+          if (!method.getName().equals("createArrayOf")) throw new UnsupportedOperationException(method.getName());
+          calls.add("createArrayOf " + args[0] + " " + Arrays.toString((Object[]) args[1]));
+          return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Array.class}, (p, m, a) -> null);
+        });
+    var stmt = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+          if (method.getName().equals("getConnection")) return conn;
+          calls.add(method.getName() + " " + args[0] + " " + (args[1] instanceof Array ? "array" : args[1]));
+          return null;
+        });
+
+    Assert.assertEquals(sql.bind(stmt, 3), 7);
+    Assert.assertEquals(calls, List.of("setObject 3 a", "setTimestamp 4 " + Timestamp.valueOf("2020-01-01 00:00:00"),
+                                       "createArrayOf text [x, y]", "setArray 5 array", "setObject 6 5"));
+  }
+
+  /*
+   * IN and NIN lists bound as one array of the column's type share one shape for every length
+   */
+  @Test(groups = {"unit"})
+  public void testListArrays() throws Exception
+  {
+    var compiler = new SearchSqlCompiler(COLUMNS, SearchLimits.defaultLimits(), true);
+    check(compiler, "owner IN ('a', 'b', 'c')", "\"owner\" = ANY(?)", (Object) new Object[] {"a", "b", "c"});
+    check(compiler, "port NIN ('22')", "NOT (\"port\" = ANY(?))", (Object) new Object[] {22});
+    check(compiler, "size IN ('1', '2') AND cost NIN ('2.50')", "(\"size\" = ANY(?) AND NOT (\"cost\" = ANY(?)))",
+          new Object[] {1L, 2L}, new Object[] {new BigDecimal("2.50")});
+    // Other list operators and array columns are unchanged
+    check(compiler, "port BETWEEN '1' AND '1024'", "\"port\" BETWEEN ? AND ?", 1, 1024);
+    check(compiler, "tags NIN ('a', 'b')", "NOT (\"tags\" && ?)", (Object) new String[] {"a", "b"});
+    reject(compiler, "port IN ('1', 'x')", "SEARCH_AST_INVALID_VALUE");
+
+    Assert.assertSame(compiler.compile(ASTParser.parse("owner IN ('a')")).getSql(),
+                      compiler.compile(ASTParser.parse("owner IN ('a','b','c','d','e','f')")).getSql());
+    Assert.assertNotSame(compiler.compile(ASTParser.parse("owner IN ('a')")).getSql(),
+                         compiler.compile(ASTParser.parse("owner NIN ('a')")).getSql());
+
+    // The array is created with the element type of the column
+    var sql = compiler.compile(ASTParser.parse("port IN ('80', '443')"));
+    var calls = new ArrayList<String>();
+    var conn = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+        (proxy, method, args) -> {
+          calls.add("createArrayOf " + args[0] + " " + Arrays.toString((Object[]) args[1]));
+          return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Array.class}, (p, m, a) -> null);
+        });
+    var stmt = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> method.getName().equals("getConnection") ? conn : null);
+    Assert.assertEquals(sql.bind(stmt, 1), 2);
+    Assert.assertEquals(calls, List.of("createArrayOf integer [80, 443]"));
+  }
+
+  /*
+   * Lists bound as arrays select the same rows as lists bound value by value, including rows with nulls.
+   * IN and NIN are allowed on string and numeric columns.
+   */
+  @Test(groups = {"unit"})
+  public void testListArrayParity() throws Exception
+  {
+    var random = new Random(49);
+    var perValue = new SearchSqlCompiler(COLUMNS);
+    var arrays = new SearchSqlCompiler(COLUMNS, SearchLimits.defaultLimits(), true);
+    try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:list_arrays"))
+    {
+      try (var stmt = conn.createStatement())
+      {
+        stmt.execute("CREATE TABLE systems (\"id\" INTEGER PRIMARY KEY, \"owner\" VARCHAR(20), \"port\" INTEGER, " +
+                     "\"size\" BIGINT, \"load\" DOUBLE PRECISION, \"cost\" DECIMAL(10,2))");
+      }
+      try (var insert = conn.prepareStatement("INSERT INTO systems VALUES (?, ?, ?, ?, ?, ?)"))
+      {
+        for (int i = 0; i < 300; i++)
+        {
+          insert.setInt(1, i);
+          // About one value in ten is null
+          insert.setObject(2, random.nextInt(10) == 0 ? null : "user" + random.nextInt(8));
+          insert.setObject(3, random.nextInt(10) == 0 ? null : random.nextInt(8) * 10);
+          insert.setObject(4, random.nextInt(10) == 0 ? null : random.nextInt(8) * 1000L);
+          insert.setObject(5, random.nextInt(10) == 0 ? null : random.nextInt(8) / 4.0);
+          insert.setObject(6, random.nextInt(10) == 0 ? null : new BigDecimal(random.nextInt(8)).movePointLeft(1));
+          insert.addBatch();
+        }
+        insert.executeBatch();
+      }
+
+      String[] columns = {"owner", "port", "size", "load", "cost"};
+      for (int i = 0; i < 500; i++)
+      {
+        // One or two list conditions with 1 to 12 values, some not in the table
+        String search = listCondition(random, columns);
+        if (random.nextBoolean()) search += (random.nextBoolean() ? " AND " : " OR ") + listCondition(random, columns);
+        if (random.nextInt(4) == 0) search = "NOT (" + search + ")";
+        var ast = ASTParser.parse(search);
+        Assert.assertEquals(select(conn, arrays.compile(ast)), select(conn, perValue.compile(ast)), search);
+      }
+    }
+  }
+
+  private static String listCondition(Random random, String[] columns)
+  {
+    String column = columns[random.nextInt(columns.length)];
+    var values = new StringJoiner("', '", column + (random.nextBoolean() ? " IN ('" : " NIN ('"), "')");
+    int n = 1 + random.nextInt(12);
+    for (int i = 0; i < n; i++)
+    {
+      int v = random.nextInt(10);
+      switch (column)
+      {
+        case "owner" -> values.add("user" + v);
+        case "port" -> values.add(String.valueOf(v * 10));
+        case "size" -> values.add(String.valueOf(v * 1000L));
+        case "load" -> values.add(String.valueOf(v / 4.0));
+        default -> values.add(new BigDecimal(v).movePointLeft(1).toString());
+      }
+    }
+    return values.toString();
+  }
+
+  private static List<Integer> select(Connection conn, SearchSql sql) throws SQLException
+  {
+    try (var stmt = conn.prepareStatement("SELECT \"id\" FROM systems WHERE " + sql.getSql() + " ORDER BY \"id\""))
+    {
+      sql.bind(stmt, 1);
+      var ids = new ArrayList<Integer>();
+      try (var rs = stmt.executeQuery()) { while (rs.next()) ids.add(rs.getInt(1)); }
+      return ids;
+    }
+  }
+
+  private static void check(SearchSqlCompiler compiler, String search, String expectedSql, Object... expectedValues)
+  {
+    SearchSql sql = compiler.compile(ASTParser.parse(search));
+    Assert.assertEquals(sql.getSql(), expectedSql, search);
+    Assert.assertEquals(sql.getBindValues(), expectedValues, search);
+  }
+
+  private static void reject(SearchSqlCompiler compiler, String search, String msgKey)
+  {
+    var e = Assert.expectThrows(IllegalArgumentException.class, () -> compiler.compile(ASTParser.parse(search)));
+    Assert.assertTrue(e.getMessage().startsWith(msgKey), search + ": " + e.getMessage());
+  }
+}
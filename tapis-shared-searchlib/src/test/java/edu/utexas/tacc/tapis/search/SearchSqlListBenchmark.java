@@ -0,0 +1,118 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+
+import edu.utexas.tacc.tapis.search.parser.ASTNode;
+import edu.utexas.tacc.tapis.search.parser.ASTParser;
+
+/**
+ * Compile and run IN lists of increasing length in an embedded H2 database, with a placeholder per
+ * value and with the list bound as one array. Reports the SQL length, the number of distinct
+ * statements for lists of random length, and the compile and query times.
+ *
+ * Usage: SearchSqlListBenchmark [rows [rounds]]
+ */
+public class SearchSqlListBenchmark
+{
+  private static final Map<String, Integer> COLUMNS = Map.of("id", Types.BIGINT, "port", Types.INTEGER);
+  private static final int[] LENGTHS = {10, 100, 1000};
+
+  public static void main(String[] args) throws Exception
+  {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    var perValue = new SearchSqlCompiler(COLUMNS, SearchLimits.unlimited());
+    var arrays = new SearchSqlCompiler(COLUMNS, SearchLimits.unlimited(), true);
+    var random = new Random(1);
+
+    // Distinct statements for lists of random length
+    var perValueSql = new HashSet<String>();
+    var arraySql = new HashSet<String>();
+    for (int i = 0; i < 1000; i++)
+    {
+      ASTNode ast = ASTParser.parse(inList(random, 1 + random.nextInt(1000), rows));
+      perValueSql.add(perValue.compile(ast).getSql());
+      arraySql.add(arrays.compile(ast).getSql());
+    }
+    System.out.printf("Distinct statements for 1000 lists of 1 to 1000 values: per value %d, array %d%n",
+                      perValueSql.size(), arraySql.size());
+
+    try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:list_benchmark;QUERY_CACHE_SIZE=0"))
+    {
+      try (var stmt = conn.createStatement())
+      {
+        stmt.execute("CREATE TABLE systems (\"id\" BIGINT PRIMARY KEY, \"port\" INTEGER NOT NULL)");
+        stmt.execute("CREATE INDEX systems_port ON systems (\"port\")");
+      }
+      try (var insert = conn.prepareStatement("INSERT INTO systems VALUES (?, ?)"))
+      {
+        for (int i = 0; i < rows; i++)
+        {
+          insert.setLong(1, i);
+          insert.setInt(2, random.nextInt(rows));
+          insert.addBatch();
+          if (i % 10_000 == 9_999) insert.executeBatch();
+        }
+        insert.executeBatch();
+      }
+
+      System.out.printf("%d rows, best of %d%n%8s %10s %10s %12s %12s %10s %10s%n", rows, rounds, "values",
+                        "value sql", "array sql", "value comp", "array comp", "value us", "array us");
+      for (int length : LENGTHS)
+      {
+        ASTNode ast = ASTParser.parse(inList(random, length, rows));
+        long perValueCompile = Long.MAX_VALUE, arrayCompile = Long.MAX_VALUE;
+        long perValueQuery = Long.MAX_VALUE, arrayQuery = Long.MAX_VALUE;
+        SearchSql byValue = null, byArray = null;
+        for (int r = 0; r < rounds; r++)
+        {
+          long t0 = System.nanoTime();
+          byValue = perValue.compile(ast);
+          long t1 = System.nanoTime();
+          byArray = arrays.compile(ast);
+          long t2 = System.nanoTime();
+          long valueCount = count(conn, byValue);
+          long t3 = System.nanoTime();
+          long arrayCount = count(conn, byArray);
+          long t4 = System.nanoTime();
+          if (valueCount != arrayCount) throw new IllegalStateException("Counts differ for " + length + " values");
+          perValueCompile = Math.min(perValueCompile, t1 - t0);
+          arrayCompile = Math.min(arrayCompile, t2 - t1);
+          perValueQuery = Math.min(perValueQuery, t3 - t2);
+          arrayQuery = Math.min(arrayQuery, t4 - t3);
+        }
+        System.out.printf("%8d %10d %10d %10.1fus %10.1fus %,10.0f %,10.0f%n", length, byValue.getSql().length(),
+                          byArray.getSql().length(), perValueCompile / 1e3, arrayCompile / 1e3,
+                          perValueQuery / 1e3, arrayQuery / 1e3);
+      }
+    }
+  }
+
+  // port IN ('...', ...) with random values
+  private static String inList(Random random, int length, int bound)
+  {
+    var values = new StringJoiner("','", "port IN ('", "')");
+    for (int i = 0; i < length; i++) values.add(String.valueOf(random.nextInt(bound)));
+    return values.toString();
+  }
+
+  // Prepare, bind and run a count of the matching rows
+  private static long count(Connection conn, SearchSql sql) throws Exception
+  {
+    try (var stmt = conn.prepareStatement("SELECT COUNT(*) FROM systems WHERE " + sql.getSql()))
+    {
+      sql.bind(stmt, 1);
+      try (var rs = stmt.executeQuery())
+      {
+        rs.next();
+        return rs.getLong(1);
+      }
+    }
+  }
+}
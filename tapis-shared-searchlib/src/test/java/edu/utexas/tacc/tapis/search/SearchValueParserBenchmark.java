@@ -0,0 +1,88 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.time.format.DateTimeParseException;
+import java.util.function.BiFunction;
+
+import edu.utexas.tacc.tapis.shared.utils.TapisUtils;
+
+/**
+ * Convert search values with SearchValueParser and with the exception based parsers it replaces,
+ * for valid and invalid values of each kind of type. Reports the best time per value of several
+ * rounds, the first ones warm up.
+ *
+ * Usage: SearchValueParserBenchmark [iterations [rounds]]
+ */
+public class SearchValueParserBenchmark
+{
+  private static final String[] TYPES = { "integer", "double", "decimal", "timestamp" };
+  private static final int[] SQL_TYPES = { Types.INTEGER, Types.DOUBLE, Types.DECIMAL, Types.TIMESTAMP };
+
+  private static final String[] INTEGERS = { "0", "8080", "-42", "2147483647" };
+  private static final String[] BAD_INTEGERS = { "80a", "2147483648", "1.5", "none" };
+  private static final String[] DOUBLES = { "2.5", "-0.125", "1e-3", "42" };
+  private static final String[] BAD_DOUBLES = { "2.5.1", "abc", "1e", "-" };
+  private static final String[] DECIMALS = { "12.50", "-3", "0.001", "1E+3" };
+  private static final String[] BAD_DECIMALS = { "12,50", "x3", "1e", "." };
+  private static final String[] TIMESTAMPS =
+    { "2021-04-29T20:15:52Z", "2021-04-29T20:15:52.123456-06:00", "2021-04-29", "2021-04-29T20:15" };
+  private static final String[] BAD_TIMESTAMPS = { "yesterday", "2021-13-29", "2021/04/29", "2021-04-29T20:15:52X" };
+
+  private static final String[][] VALID = { INTEGERS, DOUBLES, DECIMALS, TIMESTAMPS };
+  private static final String[][] INVALID = { BAD_INTEGERS, BAD_DOUBLES, BAD_DECIMALS, BAD_TIMESTAMPS };
+
+  // Keeps the results live so the work is not optimized away
+  private static long sink;
+
+  public static void main(String[] args)
+  {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    System.out.printf("%-10s %-8s %10s %14s%n", "type", "input", "parser ns", "exceptions ns");
+    for (int t = 0; t < TYPES.length; t++)
+      for (boolean valid : new boolean[] { true, false })
+      {
+        String[] values = valid ? VALID[t] : INVALID[t];
+        double parser = bestNanos(SQL_TYPES[t], values, SearchValueParser::parse, iterations, rounds);
+        double exceptions = bestNanos(SQL_TYPES[t], values, SearchValueParserBenchmark::parseWithExceptions,
+                                      iterations, rounds);
+        System.out.printf("%-10s %-8s %10.1f %14.1f%n", TYPES[t], valid ? "valid" : "invalid", parser, exceptions);
+      }
+    if (sink == 42) System.out.println();
+  }
+
+  /*
+   * Best time per value over the rounds
+   */
+  private static double bestNanos(int sqlType, String[] values, BiFunction<Integer, String, Object> parse,
+                                  int iterations, int rounds)
+  {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < rounds; round++)
+    {
+      long t0 = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+        for (String val : values) if (parse.apply(sqlType, val) != null) sink++;
+      best = Math.min(best, System.nanoTime() - t0);
+    }
+    return (double) best / iterations / values.length;
+  }
+
+  // Validate and convert by calling the parsers and catching their exceptions
+  static Object parseWithExceptions(int sqlType, String val)
+  {
+    try
+    {
+      switch (sqlType)
+      {
+        case Types.INTEGER: return Integer.valueOf(val);
+        case Types.DOUBLE: return Double.valueOf(val);
+        case Types.DECIMAL: return new BigDecimal(val);
+        default: return TapisUtils.getUTCTimeFromString(val);
+      }
+    }
+    catch (NumberFormatException | DateTimeParseException e) { return null; }
+  }
+}
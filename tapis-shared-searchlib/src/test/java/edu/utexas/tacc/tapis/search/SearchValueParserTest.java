@@ -0,0 +1,134 @@
+package edu.utexas.tacc.tapis.search;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.shared.utils.TapisUtils;
+
+/**
+ *  Differential tests of SearchValueParser against the exception based JDK and TapisUtils parsers.
+ */
+@Test(groups= {"unit"})
+public class SearchValueParserTest
+{
+  // Pieces that random numbers are built from
+  private static final String[] NUMBER_PIECES =
+    { "0", "1", "7", "9", "00", "123", "9223372036854775807", "2147483648", "32768", "-", "+", ".", "e", "E",
+      "e-", "x", "0x", "p", "P", "f", "d", "D", "L", " ", "NaN", "Infinity", "a", "F", "\u0663", "\uff11" };
+  // Pieces that random timestamps are built from, after a year
+  private static final String[] TIMESTAMP_PIECES =
+    { "-", "-01", "-02", "-12", "-13", "-00", "-28", "-29", "-30", "-31", "-32", "T", "t", "T00", "T23", "T24",
+      "T25", ":00", ":59", ":60", ":61", ".", ".5", ".123456", ".123456789", ".1234567890", "+01:00", "-06:00",
+      "+18:00", "+18:01", "-19:00", "+01:00:30", "Z", "z", "1", "+", " " };
+  private static final String[] YEARS = { "2020", "2000", "1900", "2024", "0000", "9999", "+12020", "-0001", "202", "20201" };
+
+  private static final int CASES = 20000;
+
+  /*
+   * Known numeric, boolean and string edge cases
+   */
+  @Test(groups = {"unit"})
+  public void testEdgeCases()
+  {
+    String[] values =
+      { "0", "-0", "+0", "-", "+", "", " ", "1 ", " 1", "2147483647", "2147483648", "-2147483648", "-2147483649",
+        "9223372036854775807", "9223372036854775808", "-9223372036854775808", "32767", "32768", "-32768",
+        "\u0663\u0664", "1.5", ".5", "5.", ".", "1e5", "1e", "1e+", "1E-5", "1.5f", "1.5F", "1d", "1.5dd", "NaN",
+        "-Infinity", "+NaN", "Infinityx", "0x1p3", "0x1.8P-1f", "0x.8p1", "0x.p1", "0x1", "0x1pf", "1..2", "1.2.3",
+        "1e999", "1e0000000001", "1e1234567890", "true", "FALSE", "True ", "yes", "abc" };
+    for (String val : values) checkAllTypes(val);
+    Assert.assertEquals(SearchValueParser.parse(Types.VARCHAR, "a b"), "a b");
+    Assert.assertNull(SearchValueParser.parse(Types.VARCHAR, " "));
+    Assert.assertNull(SearchValueParser.parse(Types.BLOB, "1"));
+    Assert.assertFalse(SearchValueParser.isSupported(Types.BLOB));
+  }
+
+  /*
+   * Random numbers give the same results as the JDK parsers
+   */
+  @Test(groups = {"unit"})
+  public void testRandomNumbers()
+  {
+    var random = new Random(7);
+    for (int i = 0; i < CASES; i++)
+    {
+      var sb = new StringBuilder();
+      int count = 1 + random.nextInt(5);
+      for (int j = 0; j < count; j++) sb.append(NUMBER_PIECES[random.nextInt(NUMBER_PIECES.length)]);
+      checkAllTypes(sb.toString());
+    }
+  }
+
+  /*
+   * Timestamps give the same results as TapisUtils.getUTCTimeFromString(), including the examples
+   *   documented for SearchUtils.isTimestamp() and random timestamps built from valid and invalid pieces
+   */
+  @Test(groups = {"unit"})
+  public void testTimestamps()
+  {
+    String[] values =
+      { "2020", "2020Z", "2020-04", "2020-04Z", "2020-04-29", "2020-04-29-06:00", "2020-04-29T20-06:00",
+        "2020-04-29T20:15-06:00", "2020-04-29T20:15:52-06:00", "2020-04-29T20:15:52.123456-06:00",
+        "2020-04-29T20:15:52.126Z", "2020-06:00", "2020+06:00", "2020-04+06:00", "2020-02-30T10:15",
+        "2020-02-30T10:15:00", "2020-02-30T10:15:00.123456", "2020-12-31T24:00", "2020-12-31T23:59:60Z",
+        "2020-04-29t20:15:52z", "+12020-01-01T00:00:00Z", "-0001-01-01T00", "20201-01-01", "yesterday", "202",
+        "2020-4-29", "2020-04-29T20:15:5", "2020-04-29T20:15:52.", "2020-04-29 20:15:52", "2020-04-29T20:15:52+1",
+        "\u0662020-04-29", "2020-04-29T20:15:52+18:00", "2020-04-29T20:15:52-18:01" };
+    for (String val : values) checkTimestamp(val);
+
+    var random = new Random(11);
+    for (int i = 0; i < CASES; i++)
+    {
+      var sb = new StringBuilder(YEARS[random.nextInt(YEARS.length)]);
+      int count = random.nextInt(7);
+      for (int j = 0; j < count; j++) sb.append(TIMESTAMP_PIECES[random.nextInt(TIMESTAMP_PIECES.length)]);
+      checkTimestamp(sb.toString());
+    }
+  }
+
+  private static void checkAllTypes(String val)
+  {
+    check(Types.INTEGER, val, Integer::valueOf);
+    check(Types.BIGINT, val, Long::valueOf);
+    check(Types.SMALLINT, val, Short::valueOf);
+    check(Types.TINYINT, val, Short::valueOf);
+    check(Types.DOUBLE, val, Double::valueOf);
+    check(Types.FLOAT, val, Double::valueOf);
+    check(Types.REAL, val, Float::valueOf);
+    check(Types.BOOLEAN, val,
+          v -> "true".equalsIgnoreCase(v) ? Boolean.TRUE : "false".equalsIgnoreCase(v) ? Boolean.FALSE : null);
+    check(Types.VARCHAR, val, v -> v);
+    // The decimal grammar is a subset of the BigDecimal one, limited to ASCII digits and short exponents
+    Object decimal = SearchValueParser.parse(Types.DECIMAL, val);
+    if (decimal != null) Assert.assertEquals(decimal, new BigDecimal(val), val);
+    else if (val.matches("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d{1,9})?"))
+      Assert.fail("Valid decimal rejected: " + val);
+  }
+
+  // Compare with the exception based parser, which gives null for invalid values
+  private static void check(int sqlType, String val, Function<String, Object> parser)
+  {
+    Object expected;
+    try { expected = val.isBlank() ? null : parser.apply(val); }
+    catch (NumberFormatException e) { expected = null; }
+    Assert.assertEquals(SearchValueParser.parse(sqlType, val), expected, sqlType + " " + val);
+    Assert.assertEquals(SearchValueParser.isValid(sqlType, val), expected != null, sqlType + " " + val);
+  }
+
+  private static void checkTimestamp(String val)
+  {
+    LocalDateTime expected;
+    try { expected = TapisUtils.getUTCTimeFromString(val); }
+    catch (DateTimeParseException e) { expected = null; }
+    Assert.assertEquals(SearchValueParser.parseTimestamp(val), expected, val);
+    Assert.assertEquals(SearchValueParser.parse(Types.TIMESTAMP, val), expected, val);
+    Assert.assertEquals(SearchUtils.isTimestamp(val), expected != null, val);
+  }
+}
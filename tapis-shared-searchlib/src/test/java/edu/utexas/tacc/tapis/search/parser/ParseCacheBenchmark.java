@@ -0,0 +1,79 @@
+package edu.utexas.tacc.tapis.search.parser;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.activemq.util.LRUCache;
+
+/**
+ * Compare parse throughput with the synchronized 100 entry LRU map the parsers used to
+ * cache with and with ParseCache, for 1 to 32 threads drawing from a set of distinct
+ * queries. With more distinct queries than the old map holds, the old map also misses.
+ *
+ * Usage: ParseCacheBenchmark [distinctQueries [secondsPerRun]]
+ */
+public class ParseCacheBenchmark
+{
+  private static final int[] THREADS = {1, 4, 16, 32};
+
+  private interface Lookup { ASTNode parse(String sql); }
+
+  public static void main(String[] args) throws Exception
+  {
+    int distinct = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+    String[] queries = new String[distinct];
+    for (int i = 0; i < distinct; i++)
+      queries[i] = "enabled = 'true' AND (owner = 'user" + i + "' OR port > " + i + ") AND name LIKE 'sys%'";
+
+    System.out.printf("%d distinct queries%n%-16s %8s %14s %10s%n", distinct, "cache", "threads", "parses/s", "hit rate");
+    for (int threads : THREADS)
+    {
+      Map<String, Object> lru = Collections.synchronizedMap(new LRUCache<>(100));
+      var misses = new LongAdder();
+      run("synchronized LRU", threads, seconds, queries, misses::sum, sql -> {
+        Object result = lru.get(sql);
+        if (result instanceof ASTNode) return (ASTNode) result;
+        misses.increment();
+        ASTNode node = new ASTParser(sql).parse();
+        lru.put(sql, node);
+        return node;
+      });
+
+      var cache = new ParseCache<ASTNode, UnsupportedOperationException>("bench", UnsupportedOperationException.class);
+      run("ParseCache", threads, seconds, queries, () -> cache.getStats().getMissCount(),
+          sql -> cache.get(sql, s -> new ASTParser(s).parse()));
+    }
+  }
+
+  // Run the threads for the time given and print the throughput
+  private static void run(String name, int threads, double seconds, String[] queries, LongSupplier misses,
+                          Lookup lookup) throws Exception
+  {
+    var count = new LongAdder();
+    var done = new CountDownLatch(threads);
+    long end = System.nanoTime() + (long) (seconds * 1e9);
+    for (int t = 0; t < threads; t++)
+    {
+      new Thread(() -> {
+        var random = ThreadLocalRandom.current();
+        long n = 0;
+        while (System.nanoTime() < end)
+        {
+          for (int i = 0; i < 100; i++) lookup.parse(queries[random.nextInt(queries.length)]);
+          n += 100;
+        }
+        count.add(n);
+        done.countDown();
+      }).start();
+    }
+    done.await();
+    long total = count.sum();
+    double hitRate = total == 0 ? 0 : 1 - (double) misses.getAsLong() / total;
+    System.out.printf("%-16s %8d %,14.0f %10.3f%n", name, threads, total / seconds, hitRate);
+  }
+}
@@ -0,0 +1,126 @@
+package edu.utexas.tacc.tapis.search.parser;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.InvalidSelectorException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import edu.utexas.tacc.tapis.search.TapisSelectorParser;
+
+/**
+ *  Tests of the parse cache used by the generated parsers.
+ */
+@Test(groups= {"unit"})
+public class ParseCacheTest
+{
+  /*
+   * Concurrent lookups of the same text run the parser once
+   */
+  @Test(groups = {"unit"})
+  public void testCoalescing() throws Exception
+  {
+    var cache = new ParseCache<String, InvalidSelectorException>("test", InvalidSelectorException.class, 100);
+    var parses = new AtomicInteger();
+    var started = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    ParseCache.Parser<String, InvalidSelectorException> parser = s -> {
+      parses.incrementAndGet();
+      started.countDown();
+      try { release.await(); } catch (InterruptedException e) { throw new IllegalStateException(e); }
+      return s.toUpperCase();
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try
+    {
+      var futures = new ArrayList<Future<String>>();
+      futures.add(executor.submit(() -> cache.get("owner = 'a'", parser)));
+      Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+      for (int i = 0; i < 7; i++) futures.add(executor.submit(() -> cache.get("owner = 'a'", parser)));
+
+      // Wait until the other callers are blocked on the first parse
+      long deadline = System.currentTimeMillis() + 5000;
+      while (cache.getStats().getWaitCount() < 7 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+      release.countDown();
+      for (var f : futures) Assert.assertEquals(f.get(5, TimeUnit.SECONDS), "OWNER = 'A'");
+    }
+    finally { executor.shutdownNow(); }
+
+    Assert.assertEquals(parses.get(), 1);
+    var stats = cache.getStats();
+    Assert.assertEquals(stats.getMissCount(), 1);
+    Assert.assertEquals(stats.getWaitCount(), 7);
+    Assert.assertEquals(cache.get("owner = 'a'", parser), "OWNER = 'A'");
+    Assert.assertEquals(cache.getStats().getHitCount(), 1);
+  }
+
+  /*
+   * Parse failures are cached, other exceptions are not
+   */
+  @Test(groups = {"unit"})
+  public void testFailures() throws Exception
+  {
+    // The generated parsers cache their own failures
+    String bad = "enabled = 'true' AND";
+    var before = ASTParser.getCache().getStats();
+    var e1 = Assert.expectThrows(UnsupportedOperationException.class, () -> ASTParser.parse(bad));
+    var e2 = Assert.expectThrows(UnsupportedOperationException.class, () -> ASTParser.parse(bad));
+    Assert.assertSame(e1, e2);
+    var after = ASTParser.getCache().getStats();
+    Assert.assertEquals(after.getFailureCount() - before.getFailureCount(), 1);
+    Assert.assertEquals(after.getHitCount() - before.getHitCount(), 1);
+
+    var s1 = Assert.expectThrows(InvalidSelectorException.class, () -> TapisSelectorParser.parse("a = "));
+    var s2 = Assert.expectThrows(InvalidSelectorException.class, () -> TapisSelectorParser.parse("a = "));
+    Assert.assertSame(s1, s2);
+
+    // Unexpected exceptions are passed on and the text parsed again next time
+    var cache = new ParseCache<String, InvalidSelectorException>("test", InvalidSelectorException.class, 100);
+    var parses = new AtomicInteger();
+    ParseCache.Parser<String, InvalidSelectorException> parser = s -> {
+      if (parses.incrementAndGet() == 1) throw new IllegalStateException("transient");
+      return s;
+    };
+    Assert.assertThrows(IllegalStateException.class, () -> cache.get("x", parser));
+    Assert.assertEquals(cache.size(), 0);
+    Assert.assertEquals(cache.get("x", parser), "x");
+    Assert.assertEquals(parses.get(), 2);
+    Assert.assertEquals(cache.getStats().getFailureCount(), 0);
+  }
+
+  /*
+   * The cache stays near its maximum size and keeps recently used entries
+   */
+  @Test(groups = {"unit"})
+  public void testEviction() throws Exception
+  {
+    var cache = new ParseCache<ASTNode, UnsupportedOperationException>("test", UnsupportedOperationException.class, 10);
+    cache.get("port = 1", ASTParser::parse);
+    for (int i = 0; i < 100; i++)
+    {
+      cache.get("port = " + (i + 2), ASTParser::parse);
+      cache.get("port = 1", ASTParser::parse);
+    }
+    Assert.assertTrue(cache.size() <= 10, "size " + cache.size());
+    Assert.assertTrue(cache.getStats().getEvictionCount() >= 90, cache.getStats().toString());
+
+    // The entry used throughout is still cached
+    long misses = cache.getStats().getMissCount();
+    cache.get("port = 1", ASTParser::parse);
+    Assert.assertEquals(cache.getStats().getMissCount(), misses);
+
+    // Shrinking evicts at once
+    cache.setMaxSize(2);
+    Assert.assertTrue(cache.size() <= 2, "size " + cache.size());
+    cache.clear();
+    Assert.assertEquals(cache.size(), 0);
+  }
+}